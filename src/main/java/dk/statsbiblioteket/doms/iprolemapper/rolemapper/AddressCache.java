@@ -0,0 +1,309 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * Bounded cache of the roles of recently looked up addresses, placed in front
+ * of a {@link SegmentIndex}.
+ * <p/>
+ * Entries are keyed by the primitive values of the addresses, without
+ * allocating any keys. IPv4 addresses and IPv4-mapped IPv6 addresses share
+ * their entries. IPv6 addresses are keyed by a prefix of a configurable length,
+ * so clients rotating through privacy addresses within their /64 share a
+ * single entry. The prefix is lengthened if any IPv6 segment of the index
+ * begins within a shorter prefix, so all the addresses sharing an entry always
+ * have the same roles.
+ * <p/>
+ * The entries live in a set-associative table of {@link #WAYS} entries per
+ * set, which is read without locking. When a set is full, a new entry is only
+ * admitted if its key has been looked up more frequently than the least
+ * frequently looked up key of the set, which is then evicted. The frequencies
+ * are estimated by a count-min sketch of 4 bit counters, which are halved
+ * periodically so the estimates follow changes in the traffic (TinyLFU).
+ * Scans over many addresses which are only looked up once thus do not flush
+ * the frequently looked up addresses from the cache.
+ * <p/>
+ * A cache belongs to a single {@link MappingSnapshot}, so publishing a new
+ * snapshot also replaces the cache.
+ */
+final class AddressCache {
+
+    /**
+     * The number of entries in each set of the table.
+     */
+    static final int WAYS = 4;
+
+    /**
+     * The number of longs of 16 frequency counters each, per entry of the
+     * table. A smaller sketch saturates when many distinct addresses are
+     * looked up between the halvings.
+     */
+    private static final int SKETCH_SIZE_FACTOR = 4;
+
+    /**
+     * The number of frequency counter increments between the halvings of all
+     * the counters, per entry of the table.
+     */
+    private static final int SAMPLE_SIZE_FACTOR = 10;
+
+    private static final long[] SKETCH_SEEDS = { 0xc3a5c85c97cb3127L,
+            0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /**
+     * An immutable cache entry. Entries are published to other threads through
+     * plain array stores, which is safe as all the fields are final.
+     */
+    private static final class Entry {
+
+        private final long keyHigh;
+        private final long keyLow;
+        private final long hash;
+        private final RoleSet roles;
+
+        private Entry(long keyHigh, long keyLow, long hash, RoleSet roles) {
+            this.keyHigh = keyHigh;
+            this.keyLow = keyLow;
+            this.hash = hash;
+            this.roles = roles;
+        }
+    }
+
+    private final SegmentIndex segmentIndex;
+    private final AddressCacheStatistics statistics;
+    private final int ipv6PrefixLength;
+    private final long ipv6HighMask;
+    private final long ipv6LowMask;
+
+    private final Entry[] entries;
+    private final int setMask;
+
+    /**
+     * The frequency sketch. Each long holds 16 counters of 4 bits. The
+     * counters are updated without synchronisation; a lost update only makes
+     * an estimate slightly lower.
+     */
+    private final long[] frequencyCounters;
+    private final int frequencyCounterMask;
+    private final int sampleSize;
+    private int sampleCount;
+
+    /**
+     * Create an empty cache in front of <code>segmentIndex</code>.
+     * 
+     * @param segmentIndex
+     *            the index to look up the addresses missing in the cache in.
+     * @param capacity
+     *            the maximum number of entries. It is rounded up to a power of
+     *            two of at least {@link #WAYS}.
+     * @param ipv6PrefixLength
+     *            the length of the prefix to key IPv6 addresses by, between 0
+     *            and 128.
+     * @param statistics
+     *            the counters to record hits, misses and evictions in.
+     * @throws IllegalArgumentException
+     *             if <code>capacity</code> is not positive or
+     *             <code>ipv6PrefixLength</code> is out of range.
+     */
+    AddressCache(SegmentIndex segmentIndex, int capacity,
+            int ipv6PrefixLength, AddressCacheStatistics statistics)
+            throws IllegalArgumentException {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Illegal cache capacity: "
+                    + capacity);
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException("Illegal IPv6 prefix length: "
+                    + ipv6PrefixLength);
+        }
+        this.segmentIndex = segmentIndex;
+        this.statistics = statistics;
+
+        this.ipv6PrefixLength = Math.max(ipv6PrefixLength, segmentIndex
+                .getIPv6BoundaryPrefixLength());
+        if (this.ipv6PrefixLength <= 64) {
+            ipv6HighMask = (this.ipv6PrefixLength == 0) ? 0
+                    : -1L << (64 - this.ipv6PrefixLength);
+            ipv6LowMask = 0;
+        } else {
+            ipv6HighMask = -1L;
+            ipv6LowMask = -1L << (128 - this.ipv6PrefixLength);
+        }
+
+        final int tableSize = Math.max(WAYS, Integer
+                .highestOneBit(capacity - 1) << 1);
+        entries = new Entry[tableSize];
+        setMask = tableSize / WAYS - 1;
+        frequencyCounters = new long[SKETCH_SIZE_FACTOR * tableSize];
+        frequencyCounterMask = frequencyCounters.length - 1;
+        sampleSize = SAMPLE_SIZE_FACTOR * tableSize;
+    }
+
+    /**
+     * Get the roles of <code>ipAddress</code> from the cache, or from the
+     * index if it is not cached.
+     * 
+     * @param ipAddress
+     *            the address to look up.
+     * @return the shared role set of the address.
+     */
+    RoleSet lookup(IPAddress ipAddress) {
+
+        // IPv4 addresses are keyed as IPv4-mapped addresses. Masked IPv6
+        // addresses which are not IPv4-mapped can never collide with those,
+        // as masking either clears the low 64 bits or keeps all of the
+        // high 64 bits.
+        final long keyHigh;
+        final long keyLow;
+        if (ipAddress.isIPv4OrMapped()) {
+            keyHigh = 0;
+            keyLow = AddressKeys.IPV4_MAPPED_PREFIX
+                    | (ipAddress.getLow() & 0xffffffffL);
+        } else {
+            keyHigh = ipAddress.getHigh() & ipv6HighMask;
+            keyLow = ipAddress.getLow() & ipv6LowMask;
+        }
+        final long hash = hash(keyHigh, keyLow);
+        recordAccess(hash);
+
+        final int firstWay = ((int) hash & setMask) * WAYS;
+        for (int way = firstWay; way < firstWay + WAYS; way++) {
+            final Entry entry = entries[way];
+            if (entry != null && entry.keyHigh == keyHigh
+                    && entry.keyLow == keyLow) {
+                statistics.recordHit();
+                return entry.roles;
+            }
+        }
+        statistics.recordMiss();
+
+        final RoleSet roles = segmentIndex.lookup(ipAddress);
+        admit(new Entry(keyHigh, keyLow, hash, roles), firstWay);
+        return roles;
+    }
+
+    /**
+     * @return the length of the prefix IPv6 addresses are actually keyed by.
+     */
+    int getIPv6PrefixLength() {
+        return ipv6PrefixLength;
+    }
+
+    /**
+     * @return the maximum number of entries in this cache.
+     */
+    int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * Store <code>candidate</code> in the set beginning at
+     * <code>firstWay</code>, if it has room or if the candidate is looked up
+     * more frequently than any of its entries. Concurrent misses of the same
+     * key may store it more than once, which only wastes a way.
+     */
+    private void admit(Entry candidate, int firstWay) {
+        int victimWay = -1;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int way = firstWay; way < firstWay + WAYS; way++) {
+            final Entry entry = entries[way];
+            if (entry == null) {
+                entries[way] = candidate;
+                return;
+            }
+            final int frequency = getFrequency(entry.hash);
+            if (frequency < victimFrequency) {
+                victimWay = way;
+                victimFrequency = frequency;
+            }
+        }
+        if (getFrequency(candidate.hash) > victimFrequency) {
+            entries[victimWay] = candidate;
+            statistics.recordEviction();
+        }
+    }
+
+    /**
+     * Increment the frequency counters of the key with the hash code
+     * <code>hash</code>, and halve all the counters once enough increments
+     * have been sampled.
+     */
+    private void recordAccess(long hash) {
+        final int firstCounter = (int) (hash >>> 62) << 2;
+        boolean isIncremented = false;
+        for (int depth = 0; depth < SKETCH_SEEDS.length; depth++) {
+            final int index = getCounterIndex(hash, depth);
+            final int shift = (firstCounter + depth) << 2;
+            final long counters = frequencyCounters[index];
+            if (((counters >>> shift) & 0xf) != 0xf) {
+                frequencyCounters[index] = counters + (1L << shift);
+                isIncremented = true;
+            }
+        }
+        if (isIncremented && ++sampleCount >= sampleSize) {
+            halveFrequencies();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent lookups of the key with the hash
+     *         code <code>hash</code>, between 0 and 15.
+     */
+    private int getFrequency(long hash) {
+        final int firstCounter = (int) (hash >>> 62) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int depth = 0; depth < SKETCH_SEEDS.length; depth++) {
+            final int shift = (firstCounter + depth) << 2;
+            frequency = Math.min(frequency,
+                    (int) (frequencyCounters[getCounterIndex(hash, depth)] >>> shift) & 0xf);
+        }
+        return frequency;
+    }
+
+    private int getCounterIndex(long hash, int depth) {
+        long index = (hash + SKETCH_SEEDS[depth]) * SKETCH_SEEDS[depth];
+        index += index >>> 32;
+        return (int) index & frequencyCounterMask;
+    }
+
+    private void halveFrequencies() {
+        sampleCount = 0;
+        for (int index = 0; index < frequencyCounters.length; index++) {
+            frequencyCounters[index] = (frequencyCounters[index] >>> 1) & 0x7777777777777777L;
+        }
+    }
+
+    /**
+     * @return a well mixed 64 bit hash code of the key given by
+     *         <code>keyHigh</code> and <code>keyLow</code>.
+     */
+    private static long hash(long keyHigh, long keyLow) {
+        long hash = keyHigh * 0x9e3779b97f4a7c15L ^ keyLow;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the address cache of {@link IPRoleMapper}. The counters are
+ * kept across (re-)initialisations of the mapper, although every
+ * (re-)initialisation starts with an empty cache.
+ */
+public final class AddressCacheStatistics {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    AddressCacheStatistics() {
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    /**
+     * @return the number of lookups answered by the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups which were not answered by the cache.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries which have been replaced by more
+     *         frequently used entries.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the share of the lookups answered by the cache, or 0 if there
+     *         have not been any lookups.
+     */
+    public double getHitRatio() {
+        final long hitCount = getHitCount();
+        final long lookupCount = hitCount + getMissCount();
+        return (lookupCount == 0) ? 0 : (double) hitCount / lookupCount;
+    }
+
+    @Override
+    public String toString() {
+        return getHitCount() + " hits, " + getMissCount() + " misses, "
+                + getEvictionCount() + " evictions";
+    }
+}
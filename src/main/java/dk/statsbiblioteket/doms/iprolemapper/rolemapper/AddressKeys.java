@@ -0,0 +1,190 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * Helper methods for converting the raw bytes of IPv4 and IPv6 addresses into
+ * primitive keys. IPv4 addresses are represented by an <code>int</code>, which
+ * must be compared as an unsigned value, and IPv6 addresses by two
+ * <code>long</code>s (the high and low 64 bits), which must also be compared
+ * as unsigned values.
+ * <p/>
+ * IPv4-mapped IPv6 addresses (<code>::ffff:a.b.c.d</code>) are considered to
+ * be IPv4 addresses.
+ */
+final class AddressKeys {
+
+    /**
+     * The low 64 bits of the first IPv4-mapped IPv6 address,
+     * <code>::ffff:0.0.0.0</code>. The high 64 bits are all zero.
+     */
+    static final long IPV4_MAPPED_PREFIX = 0x0000ffff00000000L;
+
+    /**
+     * The low 64 bits of the last IPv4-mapped IPv6 address,
+     * <code>::ffff:255.255.255.255</code>.
+     */
+    static final long IPV4_MAPPED_END = IPV4_MAPPED_PREFIX | 0xffffffffL;
+
+    private AddressKeys() {
+        // Only static helpers here.
+    }
+
+    /**
+     * Test whether <code>address</code> contains an IPv4 address, either as a
+     * plain 4 byte address or as a 16 byte IPv4-mapped IPv6 address.
+     * 
+     * @param address
+     *            the raw address bytes as returned by
+     *            <code>InetAddress.getAddress()</code>.
+     * @return <code>true</code> if the address is an IPv4 address.
+     */
+    static boolean isIPv4(byte[] address) {
+        if (address.length == 4) {
+            return true;
+        }
+        return toHigh(address) == 0
+                && (toLow(address) & 0xffffffff00000000L) == IPV4_MAPPED_PREFIX;
+    }
+
+    /**
+     * Get the IPv4 key of <code>address</code>. That is, the last four bytes of
+     * the address.
+     * 
+     * @param address
+     *            the raw bytes of an IPv4 address or an IPv4-mapped IPv6
+     *            address.
+     * @return the address as an (unsigned) <code>int</code>.
+     */
+    static int toIPv4Key(byte[] address) {
+        final int offset = address.length - 4;
+        return ((address[offset] & 0xff) << 24)
+                | ((address[offset + 1] & 0xff) << 16)
+                | ((address[offset + 2] & 0xff) << 8)
+                | (address[offset + 3] & 0xff);
+    }
+
+    /**
+     * @param address
+     *            the raw bytes of an IPv6 address.
+     * @return the high 64 bits of the address.
+     */
+    static long toHigh(byte[] address) {
+        return toLong(address, 0);
+    }
+
+    /**
+     * @param address
+     *            the raw bytes of an IPv6 address.
+     * @return the low 64 bits of the address.
+     */
+    static long toLow(byte[] address) {
+        return toLong(address, 8);
+    }
+
+    /**
+     * Compare two 128 bit unsigned values given by their high and low 64 bits.
+     * 
+     * @return a negative value, zero or a positive value if the first value is
+     *         less than, equal to or greater than the second value.
+     */
+    static int compare(long high1, long low1, long high2, long low2) {
+        final int highComparison = Long.compareUnsigned(high1, high2);
+        return (highComparison != 0) ? highComparison : Long.compareUnsigned(
+                low1, low2);
+    }
+
+    /**
+     * Get the length of the shortest prefix which the 128 bit value given by
+     * <code>high</code> and <code>low</code> is the first address of. That
+     * is, the number of bits up to and including the last set bit.
+     * 
+     * @return a prefix length between 0 (for the value zero) and 128.
+     */
+    static int getAlignment(long high, long low) {
+        if (low != 0) {
+            return 128 - Long.numberOfTrailingZeros(low);
+        }
+        return (high != 0) ? 64 - Long.numberOfTrailingZeros(high) : 0;
+    }
+
+    private static long toLong(byte[] address, int offset) {
+        long value = 0;
+        for (int index = offset; index < offset + 8; index++) {
+            value = (value << 8) | (address[index] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Convert the addresses of <code>range</code> into primitive keys and add
+     * the range to the collector of its address family. IPv4-mapped IPv6
+     * addresses are considered to be IPv4 addresses, and the part of an IPv6
+     * range which overlaps the IPv4-mapped addresses is added to both
+     * collectors.
+     * 
+     * @param range
+     *            the range to add.
+     * @param ipv4Collector
+     *            the collector of IPv4 ranges.
+     * @param ipv6Collector
+     *            the collector of IPv6 ranges.
+     */
+    static void collect(IPRangeRoles range, RangeCollector ipv4Collector,
+            RangeCollector ipv6Collector) {
+
+        final IPAddress begin = range.getBegin();
+        final IPAddress end = range.getEnd();
+
+        if (begin.isIPv4OrMapped() && end.isIPv4OrMapped()) {
+            ipv4Collector.add(0, begin.getLow() & 0xffffffffL, 0, end.getLow()
+                    & 0xffffffffL, range.getRoles());
+            return;
+        }
+
+        final long beginHigh = begin.getHigh();
+        final long beginLow = begin.getLow();
+        final long endHigh = end.getHigh();
+        final long endLow = end.getLow();
+        ipv6Collector.add(beginHigh, beginLow, endHigh, endLow, range
+                .getRoles());
+
+        // An IPv6 range may still cover some of the IPv4-mapped addresses,
+        // which are looked up as IPv4 addresses.
+        if (compare(beginHigh, beginLow, 0, IPV4_MAPPED_END) > 0
+                || compare(endHigh, endLow, 0, IPV4_MAPPED_PREFIX) < 0) {
+            // No overlap.
+            return;
+        }
+
+        final long mappedBegin = (compare(beginHigh, beginLow, 0,
+                IPV4_MAPPED_PREFIX) < 0) ? 0 : beginLow & 0xffffffffL;
+        final long mappedEnd = (compare(endHigh, endLow, 0, IPV4_MAPPED_END) > 0) ? 0xffffffffL
+                : endLow & 0xffffffffL;
+        ipv4Collector.add(0, mappedBegin, 0, mappedEnd, range.getRoles());
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * Parser of textual IPv4 and IPv6 address literals, which goes straight from
+ * the characters to the primitive values of an {@link IPAddress}. Unlike
+ * <code>InetAddress.getByName()</code>, it never consults DNS, and it reports
+ * invalid input by returning <code>null</code> rather than by throwing an
+ * exception, so invalid input is as cheap as valid input.
+ * <p/>
+ * IPv4 addresses must be given in dotted-quad form with decimal parts without
+ * leading zeros, which rules out the ambiguous octal forms. IPv6 addresses may
+ * use <code>::</code> compression, a dotted-quad IPv4 address as the last 32
+ * bits and enclosing square brackets. Scoped addresses (<code>%zone</code>)
+ * are not accepted.
+ */
+final class AddressParser {
+
+    private AddressParser() {
+        // Only static helpers here.
+    }
+
+    /**
+     * Parse the address literal <code>text</code>.
+     *
+     * @param text
+     *            the text to parse.
+     * @return the parsed address, or <code>null</code> if <code>text</code> is
+     *         <code>null</code> or not a valid IPv4 or IPv6 address literal.
+     *         IPv4-mapped IPv6 addresses are returned as IPv4 addresses, like
+     *         <code>InetAddress.getByName()</code> does.
+     */
+    static IPAddress parse(CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+        int begin = 0;
+        int end = text.length();
+        final boolean isBracketed = end >= 2 && text.charAt(0) == '['
+                && text.charAt(end - 1) == ']';
+        if (isBracketed) {
+            begin++;
+            end--;
+        }
+        for (int charIdx = begin; charIdx < end; charIdx++) {
+            if (text.charAt(charIdx) == ':') {
+                return parseIPv6(text, begin, end);
+            }
+        }
+        if (isBracketed) {
+            return null;
+        }
+        final long ipv4Address = parseIPv4(text, begin, end);
+        return (ipv4Address < 0) ? null
+                : new IPAddress(0, ipv4Address, false);
+    }
+
+    /**
+     * Parse the dotted-quad IPv4 address between <code>begin</code>
+     * (inclusive) and <code>end</code> (exclusive) of <code>text</code>.
+     *
+     * @return the address as an unsigned 32 bit value, or -1 if the text is
+     *         not a valid IPv4 address.
+     */
+    private static long parseIPv4(CharSequence text, int begin, int end) {
+        long address = 0;
+        int charIdx = begin;
+        for (int partIdx = 0; partIdx < 4; partIdx++) {
+            if (partIdx > 0) {
+                if (charIdx >= end || text.charAt(charIdx) != '.') {
+                    return -1;
+                }
+                charIdx++;
+            }
+            final int partBegin = charIdx;
+            int part = 0;
+            while (charIdx < end && charIdx - partBegin < 3) {
+                final char character = text.charAt(charIdx);
+                if (character < '0' || character > '9') {
+                    break;
+                }
+                part = part * 10 + (character - '0');
+                charIdx++;
+            }
+            final int digitCount = charIdx - partBegin;
+            if (digitCount == 0 || part > 255
+                    || (digitCount > 1 && text.charAt(partBegin) == '0')) {
+                return -1;
+            }
+            address = (address << 8) | part;
+        }
+        return (charIdx == end) ? address : -1;
+    }
+
+    /**
+     * Parse the IPv6 address between <code>begin</code> (inclusive) and
+     * <code>end</code> (exclusive) of <code>text</code>.
+     *
+     * @return the parsed address, or <code>null</code> if the text is not a
+     *         valid IPv6 address.
+     */
+    private static IPAddress parseIPv6(CharSequence text, int begin, int end) {
+
+        // The groups before a "::" are collected in head*, and the groups
+        // after it in tail*. Without a "::", all the groups are in head*.
+        long headHigh = 0;
+        long headLow = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int headGroupCount = 0;
+        int groupCount = 0;
+        boolean hasGap = false;
+
+        int charIdx = begin;
+        if (end - begin >= 2 && text.charAt(begin) == ':'
+                && text.charAt(begin + 1) == ':') {
+            hasGap = true;
+            charIdx += 2;
+        }
+        while (charIdx < end) {
+            final int groupBegin = charIdx;
+            int group = 0;
+            while (charIdx < end && charIdx - groupBegin < 5) {
+                final int digit = hexDigitValue(text.charAt(charIdx));
+                if (digit < 0) {
+                    break;
+                }
+                group = (group << 4) | digit;
+                charIdx++;
+            }
+
+            final int groupValueCount;
+            long groupValues;
+            if (charIdx < end && text.charAt(charIdx) == '.') {
+                // An IPv4 address makes up the last two groups.
+                groupValues = parseIPv4(text, groupBegin, end);
+                if (groupValues < 0) {
+                    return null;
+                }
+                groupValueCount = 2;
+                charIdx = end;
+            } else {
+                final int digitCount = charIdx - groupBegin;
+                if (digitCount == 0 || digitCount > 4) {
+                    return null;
+                }
+                groupValues = group;
+                groupValueCount = 1;
+            }
+            groupCount += groupValueCount;
+            if (groupCount > (hasGap ? 7 : 8)) {
+                return null;
+            }
+            for (int shiftIdx = groupValueCount - 1; shiftIdx >= 0; shiftIdx--) {
+                final long groupValue = (groupValues >>> (16 * shiftIdx)) & 0xffff;
+                if (hasGap) {
+                    tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                    tailLow = (tailLow << 16) | groupValue;
+                } else {
+                    headHigh = (headHigh << 16) | (headLow >>> 48);
+                    headLow = (headLow << 16) | groupValue;
+                    headGroupCount++;
+                }
+            }
+
+            if (charIdx == end) {
+                break;
+            }
+            if (text.charAt(charIdx) != ':' || charIdx + 1 == end) {
+                return null;
+            }
+            charIdx++;
+            if (text.charAt(charIdx) == ':') {
+                if (hasGap) {
+                    return null;
+                }
+                hasGap = true;
+                charIdx++;
+            }
+        }
+
+        if (hasGap ? groupCount > 7 : groupCount != 8) {
+            return null;
+        }
+
+        // Move the head groups to the top of the address. The tail groups
+        // are already at the bottom, and the gap in between is zero.
+        for (int shiftIdx = headGroupCount; shiftIdx < 8; shiftIdx++) {
+            headHigh = (headHigh << 16) | (headLow >>> 48);
+            headLow <<= 16;
+        }
+        final long high = headHigh | tailHigh;
+        final long low = headLow | tailLow;
+        if (high == 0
+                && (low & 0xffffffff00000000L) == AddressKeys.IPV4_MAPPED_PREFIX) {
+            return new IPAddress(0, low & 0xffffffffL, false);
+        }
+        return new IPAddress(high, low, true);
+    }
+
+    /**
+     * @return the value of the hexadecimal digit <code>character</code>, or
+     *         -1 if it is not an ASCII hexadecimal digit.
+     */
+    private static int hexDigitValue(char character) {
+        if (character >= '0' && character <= '9') {
+            return character - '0';
+        }
+        if (character >= 'a' && character <= 'f') {
+            return character - 'a' + 10;
+        }
+        if (character >= 'A' && character <= 'F') {
+            return character - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IPv4 lookup compiled into a class of its own, generated from a segment
+ * table. The generated class finds the segment of an address by a balanced
+ * decision tree of comparisons against the segment begins, which are
+ * constants in its bytecode, so a lookup reads no arrays but the role sets.
+ * The JIT compiles the tree into a sequence of compare-and-branch
+ * instructions on immediate values.
+ * <p/>
+ * The class is loaded as a hidden class where the runtime supports it (Java
+ * 15 and later), which is unloaded along with the last instance. On older
+ * runtimes, it is defined as an ordinary class in the package of this class
+ * by <code>MethodHandles.Lookup.defineClass()</code>, and stays loaded, so
+ * every rebuild of the index leaves a class of up to a few hundred kilobytes
+ * behind in the metaspace.
+ * <p/>
+ * The generated code grows linearly with the number of segments, so tables
+ * of more than {@link #MAX_SEGMENTS} segments are refused.
+ */
+abstract class CompiledIPv4Lookup implements IPv4Lookup {
+
+    /**
+     * The maximum number of segments of a table to compile.
+     */
+    static final int MAX_SEGMENTS = 1 << 14;
+
+    /**
+     * The number of classes generated so far, which tells their names apart.
+     */
+    private static final AtomicInteger generatedClassCount = new AtomicInteger();
+
+    private final RoleSet[] segmentRoles;
+
+    /**
+     * Create a lookup returning the role sets specified by
+     * <code>segmentRoles</code>. Only called by the generated subclasses.
+     * 
+     * @param segmentRoles
+     *            the roles of each segment.
+     */
+    CompiledIPv4Lookup(RoleSet[] segmentRoles) {
+        this.segmentRoles = segmentRoles;
+    }
+
+    /**
+     * Compile the segment table produced by <code>segmentBuilder</code>.
+     * 
+     * @param segmentBuilder
+     *            a builder which has built a table of IPv4 segments.
+     * @return an instance of the class generated from the table.
+     * @throws IllegalArgumentException
+     *             if the table has more than {@link #MAX_SEGMENTS} segments.
+     * @throws IllegalStateException
+     *             if the generated class cannot be loaded.
+     */
+    static CompiledIPv4Lookup compile(SegmentBuilder segmentBuilder)
+            throws IllegalArgumentException, IllegalStateException {
+        return compile(IPv4SegmentIndex.toSegmentBegins(segmentBuilder),
+                segmentBuilder.getSegmentRoles());
+    }
+
+    /**
+     * Compile the segment table given by its begin addresses and roles.
+     * 
+     * @param segmentBegins
+     *            the (unsigned) begin address of each segment in ascending
+     *            order, beginning at 0.0.0.0.
+     * @param segmentRoles
+     *            the roles of each segment.
+     * @return an instance of the class generated from the table.
+     * @throws IllegalArgumentException
+     *             if the table has more than {@link #MAX_SEGMENTS} segments.
+     * @throws IllegalStateException
+     *             if the generated class cannot be loaded.
+     */
+    static CompiledIPv4Lookup compile(int[] segmentBegins,
+            RoleSet[] segmentRoles) throws IllegalArgumentException,
+            IllegalStateException {
+        if (segmentBegins.length > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("Cannot compile "
+                    + segmentBegins.length + " segments. The maximum is "
+                    + MAX_SEGMENTS + ".");
+        }
+        final String className = CompiledIPv4Lookup.class.getName()
+                + "$Generated" + generatedClassCount.incrementAndGet();
+        final byte[] classBytes = new DecisionTreeClassWriter(className,
+                segmentBegins).write();
+        try {
+            return (CompiledIPv4Lookup) defineClass(classBytes)
+                    .getDeclaredConstructor(RoleSet[].class).newInstance(
+                            (Object) segmentRoles);
+        } catch (ReflectiveOperationException | LinkageError loadException) {
+            throw new IllegalStateException("Cannot load the generated "
+                    + "lookup class.", loadException);
+        }
+    }
+
+    /**
+     * Define the class given by <code>classBytes</code> in the package of
+     * this class, as a hidden class if the runtime supports it.
+     */
+    private static Class<?> defineClass(byte[] classBytes)
+            throws ReflectiveOperationException {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final Class<?> classOptionClass;
+        final Method defineHiddenClass;
+        try {
+            classOptionClass = Class
+                    .forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod(
+                    "defineHiddenClass", byte[].class, boolean.class, Array
+                            .newInstance(classOptionClass, 0).getClass());
+        } catch (ClassNotFoundException | NoSuchMethodException noHiddenClasses) {
+            return lookup.defineClass(classBytes);
+        }
+        try {
+            return ((MethodHandles.Lookup) defineHiddenClass.invoke(lookup,
+                    classBytes, true, Array.newInstance(classOptionClass, 0)))
+                    .lookupClass();
+        } catch (InvocationTargetException invocationException) {
+            if (invocationException.getCause() instanceof LinkageError) {
+                throw (LinkageError) invocationException.getCause();
+            }
+            throw invocationException;
+        }
+    }
+
+    /**
+     * Find the segment of the address specified by <code>key</code>.
+     * 
+     * @param key
+     *            the address to look up, with the sign bit flipped.
+     * @return the index of the last segment beginning at or before the
+     *         address.
+     */
+    abstract int findSegment(int key);
+
+    @Override
+    public RoleSet lookup(int address) {
+        return segmentRoles[findSegment(address ^ Integer.MIN_VALUE)];
+    }
+
+    /**
+     * @return the number of segments in this lookup.
+     */
+    int size() {
+        return segmentRoles.length;
+    }
+}
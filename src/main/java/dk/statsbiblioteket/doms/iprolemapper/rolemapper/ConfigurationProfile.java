@@ -0,0 +1,333 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The size and shape of a configuration, as far as the choice of lookup
+ * engine is concerned, and the engine chosen from it for
+ * {@link LookupEngine#AUTO}.
+ * <p/>
+ * For each address family, the profile holds the number of ranges, the
+ * number of CIDR prefixes they split into (which is the number of ranges if
+ * all the ranges are CIDR-aligned), the number of single host ranges, the
+ * maximum number of ranges covering a single address and the number of
+ * segments of the compiled segment table.
+ * For IPv4, it also holds the number of /24 blocks split between segments,
+ * which determines the size of a DIR-24-8 table.
+ * <p/>
+ * The engine is chosen as follows:
+ * <ul>
+ * <li>{@link LookupEngine#DIR_24_8} if the IPv4 segments outnumber the IPv6
+ * segments, there are at least {@link #DIRECT_INDEX_MIN_SEGMENTS} of them,
+ * and the table has room for the split blocks and role sets. A binary search
+ * would then take 12 or more steps, where the table takes at most two array
+ * reads, which pays for its fixed 32 MB.</li>
+ * <li>{@link LookupEngine#PREFIX_TRIE} if the IPv6 segments are at least as
+ * many as the IPv4 segments, there are at least
+ * {@link #PREFIX_TRIE_MIN_SEGMENTS} of them, and the ranges of both families
+ * are mostly CIDR-aligned, i.e. split into at most
+ * {@link #PREFIX_TRIE_MAX_PREFIXES_PER_RANGE} prefixes each on average. A
+ * walk of the trie then touches fewer nodes than a binary search over 128 bit
+ * keys.</li>
+ * <li>{@link LookupEngine#HOST_HASH} otherwise, if there are at least
+ * {@link #HOST_HASH_MIN_SEGMENTS} segments in all, and at least
+ * {@link #HOST_HASH_MIN_HOST_PERCENTAGE} percent of the ranges are single
+ * hosts. The hosts then make up most of the segments, and taking them out of
+ * the search leaves a much smaller segment table behind a hash probe.</li>
+ * <li>{@link LookupEngine#EYTZINGER_TABLE} otherwise, if there are between
+ * {@link #EYTZINGER_MIN_SEGMENTS} and {@link #EYTZINGER_MAX_SEGMENTS} IPv4
+ * segments. In that range, the cached upper levels of the Eytzinger tree make
+ * lookups about twice as fast as a binary search over the sorted table. Above
+ * it, the levels below the cached ones cost a cache miss each, which the
+ * speculative loads of the binary search hide better.</li>
+ * <li>{@link LookupEngine#SEGMENT_TABLE} otherwise. It is the smallest
+ * structure, and a binary search over a small table is as fast as any of the
+ * others.</li>
+ * </ul>
+ * The overlap depth does not affect the choice, as every engine resolves
+ * overlaps when it is built, but it is reported along with the other figures
+ * as it explains large segment counts.
+ */
+final class ConfigurationProfile {
+
+    /**
+     * The minimum number of IPv4 segments to use a DIR-24-8 table for.
+     */
+    static final int DIRECT_INDEX_MIN_SEGMENTS = 4096;
+
+    /**
+     * The minimum number of IPv6 segments to use prefix tries for.
+     */
+    static final int PREFIX_TRIE_MIN_SEGMENTS = 1024;
+
+    /**
+     * The maximum average number of CIDR prefixes per range to use prefix
+     * tries for.
+     */
+    static final int PREFIX_TRIE_MAX_PREFIXES_PER_RANGE = 2;
+
+    /**
+     * The minimum number of IPv4 segments to use the Eytzinger layout for.
+     */
+    static final int EYTZINGER_MIN_SEGMENTS = 256;
+
+    /**
+     * The maximum number of IPv4 segments to use the Eytzinger layout for.
+     */
+    static final int EYTZINGER_MAX_SEGMENTS = 1 << 18;
+
+    /**
+     * The minimum total number of segments to use host hash tables for.
+     */
+    static final int HOST_HASH_MIN_SEGMENTS = 256;
+
+    /**
+     * The minimum percentage of single host ranges to use host hash tables
+     * for.
+     */
+    static final int HOST_HASH_MIN_HOST_PERCENTAGE = 50;
+
+    private final FamilyProfile ipv4Profile;
+    private final FamilyProfile ipv6Profile;
+    private final int ipv4SegmentCount;
+    private final int ipv6SegmentCount;
+    private final int splitBlockCount;
+    private final int roleSetCount;
+
+    /**
+     * The ranges of a single address family, gathered by
+     * {@link AddressKeys#collect(IPRangeRoles, RangeCollector, RangeCollector)}
+     * and measured once they are all there.
+     */
+    private static final class FamilyProfile implements RangeCollector {
+
+        private final int width;
+        private final boolean isIPv6;
+        private final List<IPAddress> begins = new ArrayList<IPAddress>();
+        private final List<IPAddress> ends = new ArrayList<IPAddress>();
+        private long prefixCount;
+        private int hostCount;
+        private int overlapDepth;
+
+        private FamilyProfile(int width) {
+            this.width = width;
+            isIPv6 = width == 128;
+        }
+
+        @Override
+        public void add(long beginHigh, long beginLow, long endHigh,
+                long endLow, List<String> roles) {
+            begins.add(new IPAddress(beginHigh, beginLow, isIPv6));
+            ends.add(new IPAddress(endHigh, endLow, isIPv6));
+            prefixCount += countPrefixes(beginHigh, beginLow, endHigh, endLow);
+            if (beginHigh == endHigh && beginLow == endLow) {
+                hostCount++;
+            }
+        }
+
+        /**
+         * Compute the overlap depth by sweeping over the sorted begin and end
+         * addresses: the number of ranges covering a begin address is the
+         * number of ranges beginning at or before it minus the number of
+         * ranges ending before it.
+         */
+        private void measure() {
+            Collections.sort(begins);
+            Collections.sort(ends);
+            int endIdx = 0;
+            for (int beginIdx = 0; beginIdx < begins.size(); beginIdx++) {
+                while (ends.get(endIdx).compareTo(begins.get(beginIdx)) < 0) {
+                    endIdx++;
+                }
+                overlapDepth = Math.max(overlapDepth, beginIdx + 1 - endIdx);
+            }
+        }
+
+        /**
+         * Count the CIDR prefixes the range from <code>begin*</code> to
+         * <code>end*</code> splits into, the way {@link PrefixTrie} splits
+         * it.
+         */
+        private long countPrefixes(long beginHigh, long beginLow,
+                long endHigh, long endLow) {
+            final BigInteger end = toBigInteger(endHigh, endLow);
+            BigInteger prefixBegin = toBigInteger(beginHigh, beginLow);
+            long count = 0;
+            while (prefixBegin.compareTo(end) <= 0) {
+                final int alignment = (prefixBegin.signum() == 0) ? width
+                        : prefixBegin.getLowestSetBit();
+                final int remainingBits = end.subtract(prefixBegin).add(
+                        BigInteger.ONE).bitLength() - 1;
+                prefixBegin = prefixBegin.add(BigInteger.ONE.shiftLeft(Math
+                        .min(alignment, remainingBits)));
+                count++;
+            }
+            return count;
+        }
+
+        private static BigInteger toBigInteger(long high, long low) {
+            return new BigInteger(Long.toUnsignedString(high)).shiftLeft(64)
+                    .or(new BigInteger(Long.toUnsignedString(low)));
+        }
+
+        private int getRangeCount() {
+            return begins.size();
+        }
+
+        private boolean isMostlyCIDRAligned() {
+            return prefixCount <= (long) PREFIX_TRIE_MAX_PREFIXES_PER_RANGE
+                    * getRangeCount();
+        }
+
+        @Override
+        public String toString() {
+            return getRangeCount() + " ranges (" + hostCount
+                    + " single hosts) in " + prefixCount
+                    + " CIDR prefixes with an overlap depth of "
+                    + overlapDepth;
+        }
+    }
+
+    /**
+     * Measure the ranges specified by <code>ranges</code>, which have been
+     * compiled into the on-heap segment tables specified by
+     * <code>segmentTables</code>.
+     * 
+     * @param ranges
+     *            the ranges of the configuration.
+     * @param segmentTables
+     *            the segment tables built from <code>ranges</code>. They must
+     *            not be mapped.
+     */
+    ConfigurationProfile(List<IPRangeRoles> ranges, SegmentTables segmentTables) {
+        ipv4Profile = new FamilyProfile(32);
+        ipv6Profile = new FamilyProfile(128);
+        for (IPRangeRoles range : ranges) {
+            AddressKeys.collect(range, ipv4Profile, ipv6Profile);
+        }
+        ipv4Profile.measure();
+        ipv6Profile.measure();
+
+        final long[] ipv4SegmentBegins = segmentTables.getIPv4Segments()
+                .getSegmentBeginLows();
+        ipv4SegmentCount = ipv4SegmentBegins.length;
+        ipv6SegmentCount = segmentTables.getIPv6Segments()
+                .getSegmentBeginLows().length;
+        splitBlockCount = DirectIPv4Index.countSplitBlocks(ipv4SegmentBegins);
+        roleSetCount = segmentTables.getRoleTable().getRoleSetCount();
+    }
+
+    /**
+     * @return the engine best suited for the measured configuration. This is
+     *         never {@link LookupEngine#AUTO} or
+     *         {@link LookupEngine#MAPPED_SNAPSHOT}.
+     */
+    LookupEngine selectEngine() {
+        if (ipv4SegmentCount > ipv6SegmentCount) {
+            if (ipv4SegmentCount >= DIRECT_INDEX_MIN_SEGMENTS
+                    && splitBlockCount <= DirectIPv4Index.MAX_ENTRIES
+                    && roleSetCount <= DirectIPv4Index.MAX_ENTRIES) {
+                return LookupEngine.DIR_24_8;
+            }
+        } else if (ipv6SegmentCount >= PREFIX_TRIE_MIN_SEGMENTS
+                && ipv4Profile.isMostlyCIDRAligned()
+                && ipv6Profile.isMostlyCIDRAligned()) {
+            return LookupEngine.PREFIX_TRIE;
+        }
+        final long hostCount = ipv4Profile.hostCount + ipv6Profile.hostCount;
+        final long rangeCount = ipv4Profile.getRangeCount()
+                + ipv6Profile.getRangeCount();
+        if (ipv4SegmentCount + ipv6SegmentCount >= HOST_HASH_MIN_SEGMENTS
+                && hostCount * 100 >= HOST_HASH_MIN_HOST_PERCENTAGE
+                        * rangeCount) {
+            return LookupEngine.HOST_HASH;
+        }
+        if (ipv4SegmentCount >= EYTZINGER_MIN_SEGMENTS
+                && ipv4SegmentCount <= EYTZINGER_MAX_SEGMENTS) {
+            return LookupEngine.EYTZINGER_TABLE;
+        }
+        return LookupEngine.SEGMENT_TABLE;
+    }
+
+    /**
+     * @return the number of IPv4 ranges consisting of a single host.
+     */
+    int getIPv4HostCount() {
+        return ipv4Profile.hostCount;
+    }
+
+    /**
+     * @return the number of IPv6 ranges consisting of a single host.
+     */
+    int getIPv6HostCount() {
+        return ipv6Profile.hostCount;
+    }
+
+    /**
+     * @return the maximum number of IPv4 ranges covering a single address.
+     */
+    int getIPv4OverlapDepth() {
+        return ipv4Profile.overlapDepth;
+    }
+
+    /**
+     * @return the maximum number of IPv6 ranges covering a single address.
+     */
+    int getIPv6OverlapDepth() {
+        return ipv6Profile.overlapDepth;
+    }
+
+    /**
+     * @return the number of CIDR prefixes the IPv4 ranges split into.
+     */
+    long getIPv4PrefixCount() {
+        return ipv4Profile.prefixCount;
+    }
+
+    /**
+     * @return the number of CIDR prefixes the IPv6 ranges split into.
+     */
+    long getIPv6PrefixCount() {
+        return ipv6Profile.prefixCount;
+    }
+
+    /**
+     * @return a human readable summary of the profile.
+     */
+    @Override
+    public String toString() {
+        return "IPv4: " + ipv4Profile + ", " + ipv4SegmentCount
+                + " segments and " + splitBlockCount
+                + " split /24 blocks. IPv6: " + ipv6Profile + " and "
+                + ipv6SegmentCount + " segments.";
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writer of the class files of {@link CompiledIPv4Lookup} subclasses, whose
+ * <code>findSegment()</code> method is a balanced decision tree of
+ * <code>int</code> comparisons against the segment begins of a table, with
+ * the segment indexes as constants in the leaves.
+ * <p/>
+ * The JIT does not compile methods of more than 8000 bytes of bytecode, so
+ * the tree is cut into subtrees of at most {@link #SUBTREE_SEGMENT_COUNT}
+ * segments, each in a private static method of its own, below a tree over the
+ * first begins of the subtrees.
+ * <p/>
+ * The class files are written in the format of Java 5, which the verifier
+ * checks by type inference, so the branches need no stack map frames.
+ */
+final class DecisionTreeClassWriter {
+
+    /**
+     * The maximum number of segments of each decision tree method.
+     */
+    static final int SUBTREE_SEGMENT_COUNT = 512;
+
+    private static final int CLASS_FILE_MAGIC = 0xcafebabe;
+    private static final int CLASS_FILE_MAJOR_VERSION = 49;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD_0 = 0x1a;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final String SUPER_CLASS_NAME = CompiledIPv4Lookup.class
+            .getName().replace('.', '/');
+    private static final String CONSTRUCTOR_DESCRIPTOR = "([L"
+            + RoleSet.class.getName().replace('.', '/') + ";)V";
+    private static final String FIND_SEGMENT_DESCRIPTOR = "(I)I";
+
+    private final String className;
+
+    /**
+     * The begin address of each segment with the sign bit flipped, so signed
+     * comparison orders them like unsigned addresses.
+     */
+    private final int[] segmentKeys;
+
+    private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(
+            constantPoolBytes);
+    private final Map<String, Integer> constantIndexes = new HashMap<String, Integer>();
+    private int constantCount = 1;
+
+    /**
+     * The methods written so far.
+     */
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    /**
+     * Create a writer of a class named <code>className</code> looking up the
+     * segment table given by <code>segmentBegins</code>.
+     * 
+     * @param className
+     *            the binary name of the class, in the package of
+     *            {@link CompiledIPv4Lookup}.
+     * @param segmentBegins
+     *            the (unsigned) begin address of each segment in ascending
+     *            order, beginning at 0.0.0.0.
+     */
+    DecisionTreeClassWriter(String className, int[] segmentBegins) {
+        this.className = className.replace('.', '/');
+        segmentKeys = new int[segmentBegins.length];
+        for (int segmentIdx = 0; segmentIdx < segmentBegins.length; segmentIdx++) {
+            segmentKeys[segmentIdx] = segmentBegins[segmentIdx]
+                    ^ Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Bytecode of a method being written, which can be patched afterwards to
+     * fill in forward branch offsets.
+     */
+    private static final class Code {
+
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        private void writeByte(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeShort(int value) {
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        private void patchShort(int position, int value) {
+            bytes[position] = (byte) (value >>> 8);
+            bytes[position + 1] = (byte) value;
+        }
+    }
+
+    /**
+     * Writer of the code of the leaves of a decision tree.
+     */
+    private interface LeafWriter {
+
+        void write(Code code, int leafIdx) throws IOException;
+    }
+
+    /**
+     * Write the class file.
+     * 
+     * @return the bytes of the class file.
+     */
+    byte[] write() {
+        try {
+            writeConstructor();
+            writeFindSegment();
+            return toClassFile();
+        } catch (IOException ioException) {
+            // Only thrown by the byte array streams, which never throw.
+            throw new IllegalStateException(ioException);
+        }
+    }
+
+    /**
+     * Write the constructor, which passes the role sets of the segments on to
+     * the constructor of {@link CompiledIPv4Lookup}.
+     */
+    private void writeConstructor() throws IOException {
+        final Code code = new Code();
+        code.writeByte(ALOAD_0);
+        code.writeByte(ALOAD_1);
+        code.writeByte(INVOKESPECIAL);
+        code.writeShort(addMethodref(SUPER_CLASS_NAME, "<init>",
+                CONSTRUCTOR_DESCRIPTOR));
+        code.writeByte(RETURN);
+        writeMethod(ACC_PUBLIC, "<init>", CONSTRUCTOR_DESCRIPTOR, code, 2, 2);
+    }
+
+    /**
+     * Write <code>findSegment()</code>, either as a single decision tree, or
+     * as a tree over the subtree methods, which are written as well.
+     */
+    private void writeFindSegment() throws IOException {
+        final Code code = new Code();
+        if (segmentKeys.length <= SUBTREE_SEGMENT_COUNT) {
+            writeTree(code, 1, segmentKeys, 0, segmentKeys.length - 1,
+                    this::writeSegmentLeaf);
+            writeMethod(ACC_FINAL, "findSegment", FIND_SEGMENT_DESCRIPTOR,
+                    code, 2, 2);
+            return;
+        }
+
+        final int subtreeCount = (segmentKeys.length
+                + SUBTREE_SEGMENT_COUNT - 1)
+                / SUBTREE_SEGMENT_COUNT;
+        final int[] subtreeKeys = new int[subtreeCount];
+        final int[] subtreeMethodrefs = new int[subtreeCount];
+        for (int subtreeIdx = 0; subtreeIdx < subtreeCount; subtreeIdx++) {
+            final int firstSegment = subtreeIdx * SUBTREE_SEGMENT_COUNT;
+            final int lastSegment = Math.min(firstSegment
+                    + SUBTREE_SEGMENT_COUNT, segmentKeys.length) - 1;
+            final String methodName = "findSegment" + subtreeIdx;
+            final Code subtreeCode = new Code();
+            writeTree(subtreeCode, 0, segmentKeys, firstSegment, lastSegment,
+                    this::writeSegmentLeaf);
+            writeMethod(ACC_PRIVATE | ACC_STATIC, methodName,
+                    FIND_SEGMENT_DESCRIPTOR, subtreeCode, 2, 1);
+            subtreeKeys[subtreeIdx] = segmentKeys[firstSegment];
+            subtreeMethodrefs[subtreeIdx] = addMethodref(className,
+                    methodName, FIND_SEGMENT_DESCRIPTOR);
+        }
+        writeTree(code, 1, subtreeKeys, 0, subtreeCount - 1, (leafCode,
+                subtreeIdx) -> {
+            leafCode.writeByte(ILOAD_0 + 1);
+            leafCode.writeByte(INVOKESTATIC);
+            leafCode.writeShort(subtreeMethodrefs[subtreeIdx]);
+            leafCode.writeByte(IRETURN);
+        });
+        writeMethod(ACC_FINAL, "findSegment", FIND_SEGMENT_DESCRIPTOR, code,
+                2, 2);
+    }
+
+    /**
+     * Write a balanced decision tree finding the last of the keys from
+     * <code>keys[lowIdx]</code> to <code>keys[highIdx]</code> which is at or
+     * before the key in local variable <code>keyLocal</code>, which is known
+     * to be at or after <code>keys[lowIdx]</code>. The taken branch of each
+     * comparison jumps forward to the lower half, so all branches are forward
+     * branches.
+     */
+    private void writeTree(Code code, int keyLocal, int[] keys, int lowIdx,
+            int highIdx, LeafWriter leafWriter) throws IOException {
+        if (lowIdx == highIdx) {
+            leafWriter.write(code, lowIdx);
+            return;
+        }
+        final int middle = (lowIdx + highIdx + 1) >>> 1;
+        code.writeByte(ILOAD_0 + keyLocal);
+        writeIntConstant(code, keys[middle]);
+        final int branchPosition = code.size;
+        code.writeByte(IF_ICMPLT);
+        code.writeShort(0);
+        writeTree(code, keyLocal, keys, middle, highIdx, leafWriter);
+        code.patchShort(branchPosition + 1, code.size - branchPosition);
+        writeTree(code, keyLocal, keys, lowIdx, middle - 1, leafWriter);
+    }
+
+    private void writeSegmentLeaf(Code code, int segmentIdx)
+            throws IOException {
+        writeIntConstant(code, segmentIdx);
+        code.writeByte(IRETURN);
+    }
+
+    /**
+     * Write the shortest instruction pushing <code>value</code>.
+     */
+    private void writeIntConstant(Code code, int value) throws IOException {
+        if (value >= -1 && value <= 5) {
+            code.writeByte(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            code.writeByte(BIPUSH);
+            code.writeByte(value);
+        } else if (value == (short) value) {
+            code.writeByte(SIPUSH);
+            code.writeShort(value);
+        } else {
+            final int constantIdx = addConstant("I" + value, () -> {
+                constantPool.writeByte(CONSTANT_INTEGER);
+                constantPool.writeInt(value);
+            });
+            if (constantIdx < 256) {
+                code.writeByte(LDC);
+                code.writeByte(constantIdx);
+            } else {
+                code.writeByte(LDC_W);
+                code.writeShort(constantIdx);
+            }
+        }
+    }
+
+    private void writeMethod(int accessFlags, String name, String descriptor,
+            Code code, int maxStack, int maxLocals) throws IOException {
+        methods.writeShort(accessFlags);
+        methods.writeShort(addUTF8(name));
+        methods.writeShort(addUTF8(descriptor));
+        methods.writeShort(1);
+        methods.writeShort(addUTF8("Code"));
+        methods.writeInt(12 + code.size);
+        methods.writeShort(maxStack);
+        methods.writeShort(maxLocals);
+        methods.writeInt(code.size);
+        methods.write(code.bytes, 0, code.size);
+        methods.writeShort(0); // No exception table.
+        methods.writeShort(0); // No attributes.
+        methodCount++;
+    }
+
+    private byte[] toClassFile() throws IOException {
+        final int thisClass = addClass(className);
+        final int superClass = addClass(SUPER_CLASS_NAME);
+        final ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        final DataOutputStream classFile = new DataOutputStream(classBytes);
+        classFile.writeInt(CLASS_FILE_MAGIC);
+        classFile.writeShort(0);
+        classFile.writeShort(CLASS_FILE_MAJOR_VERSION);
+        classFile.writeShort(constantCount);
+        constantPoolBytes.writeTo(classFile);
+        classFile.writeShort(ACC_FINAL | ACC_SUPER);
+        classFile.writeShort(thisClass);
+        classFile.writeShort(superClass);
+        classFile.writeShort(0); // No interfaces.
+        classFile.writeShort(0); // No fields.
+        classFile.writeShort(methodCount);
+        methodBytes.writeTo(classFile);
+        classFile.writeShort(0); // No attributes.
+        return classBytes.toByteArray();
+    }
+
+    /**
+     * Writer of a constant pool entry.
+     */
+    private interface ConstantWriter {
+
+        void write() throws IOException;
+    }
+
+    /**
+     * Get the index of the constant pool entry identified by
+     * <code>key</code>, adding it by <code>constantWriter</code> if it is
+     * not there yet.
+     */
+    private int addConstant(String key, ConstantWriter constantWriter)
+            throws IOException {
+        final Integer constantIdx = constantIndexes.get(key);
+        if (constantIdx != null) {
+            return constantIdx;
+        }
+        constantWriter.write();
+        constantIndexes.put(key, constantCount);
+        return constantCount++;
+    }
+
+    private int addUTF8(String value) throws IOException {
+        return addConstant("U" + value, () -> {
+            constantPool.writeByte(CONSTANT_UTF8);
+            constantPool.writeUTF(value);
+        });
+    }
+
+    private int addClass(String name) throws IOException {
+        final int nameIdx = addUTF8(name);
+        return addConstant("C" + name, () -> {
+            constantPool.writeByte(CONSTANT_CLASS);
+            constantPool.writeShort(nameIdx);
+        });
+    }
+
+    private int addMethodref(String owner, String name, String descriptor)
+            throws IOException {
+        final int classIdx = addClass(owner);
+        final int nameIdx = addUTF8(name);
+        final int descriptorIdx = addUTF8(descriptor);
+        final int nameAndTypeIdx = addConstant("N" + name + descriptor,
+                () -> {
+                    constantPool.writeByte(CONSTANT_NAME_AND_TYPE);
+                    constantPool.writeShort(nameIdx);
+                    constantPool.writeShort(descriptorIdx);
+                });
+        return addConstant("M" + owner + "." + name + descriptor, () -> {
+            constantPool.writeByte(CONSTANT_METHODREF);
+            constantPool.writeShort(classIdx);
+            constantPool.writeShort(nameAndTypeIdx);
+        });
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * DIR-24-8 style direct-indexed lookup table for IPv4 addresses.
+ * <p/>
+ * The top 24 bits of an address index a flat table with an entry for every
+ * /24 block. If all the addresses of the block have the same roles, the entry
+ * is the ID of that role set. Otherwise the entry refers to a block of 256
+ * entries in a second-level table, which is indexed by the lowest 8 bits of
+ * the address. A lookup is thus at most two array reads.
+ * <p/>
+ * The entries are <code>short</code>s, where non-negative values are role set
+ * IDs and negative values refer to second-level blocks. This limits the table
+ * to 32768 distinct role sets and 32768 split /24 blocks.
+ */
+class DirectIPv4Index implements IPv4Lookup {
+
+    /**
+     * The maximum number of distinct role sets and split /24 blocks the table
+     * can hold.
+     */
+    static final int MAX_ENTRIES = 1 << 15;
+
+    private final short[] firstLevel;
+    private final short[] secondLevel;
+    private final RoleSet[] roleSets;
+
+    /**
+     * Create a lookup table from the IPv4 segment table produced by
+     * <code>segmentBuilder</code>.
+     * 
+     * @param segmentBuilder
+     *            a builder which has built a table of IPv4 segments.
+     * @throws IllegalArgumentException
+     *             if the segments have too many distinct role sets or split
+     *             too many /24 blocks to fit in the table.
+     */
+    DirectIPv4Index(SegmentBuilder segmentBuilder)
+            throws IllegalArgumentException {
+
+        final long[] segmentBegins = segmentBuilder.getSegmentBeginLows();
+        final RoleSet[] segmentRoles = segmentBuilder.getSegmentRoles();
+
+        // Assign IDs to the (interned) role sets.
+        final Map<RoleSet, Integer> roleSetIDs = new IdentityHashMap<RoleSet, Integer>();
+        final RoleSet[] roleSetTable = new RoleSet[segmentRoles.length];
+        for (RoleSet roles : segmentRoles) {
+            if (!roleSetIDs.containsKey(roles)) {
+                roleSetTable[roleSetIDs.size()] = roles;
+                roleSetIDs.put(roles, roleSetIDs.size());
+            }
+        }
+        if (roleSetIDs.size() > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Too many distinct role sets "
+                    + "for a DIR-24-8 table: " + roleSetIDs.size());
+        }
+        roleSets = Arrays.copyOf(roleSetTable, roleSetIDs.size());
+
+        // Count the split blocks in order to size the second-level table.
+        final int splitBlocks = countSplitBlocks(segmentBegins);
+        if (splitBlocks > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Too many split /24 blocks "
+                    + "for a DIR-24-8 table: " + splitBlocks);
+        }
+
+        firstLevel = new short[1 << 24];
+        secondLevel = new short[splitBlocks << 8];
+
+        // The segments cover the entire address space in ascending order, so
+        // every entry of both tables is written exactly once below.
+        int allocatedBlocks = 0;
+        for (int segmentIdx = 0; segmentIdx < segmentBegins.length; segmentIdx++) {
+            final long begin = segmentBegins[segmentIdx];
+            final long end = (segmentIdx + 1 < segmentBegins.length) ? segmentBegins[segmentIdx + 1] - 1
+                    : 0xffffffffL;
+            final short roleSetID = roleSetIDs.get(segmentRoles[segmentIdx])
+                    .shortValue();
+
+            long address = begin;
+            while (address <= end) {
+                final int block = (int) (address >>> 8);
+                final long blockEnd = address | 0xff;
+                if ((address & 0xff) == 0 && blockEnd <= end) {
+                    // The segment covers one or more whole blocks.
+                    final long lastBlock = (end == (end | 0xff)) ? end >>> 8
+                            : (end >>> 8) - 1;
+                    Arrays.fill(firstLevel, block, (int) lastBlock + 1,
+                            roleSetID);
+                    address = (lastBlock + 1) << 8;
+                } else {
+                    // The segment covers part of a split block.
+                    if (firstLevel[block] >= 0) {
+                        // Only whole-block entries can have been written to
+                        // this block before, and none of those. Allocate a
+                        // second-level block.
+                        firstLevel[block] = (short) ~allocatedBlocks++;
+                    }
+                    final int secondLevelBase = (~firstLevel[block]) << 8;
+                    final long partEnd = Math.min(blockEnd, end);
+                    Arrays.fill(secondLevel, secondLevelBase
+                            + (int) (address & 0xff), secondLevelBase
+                            + (int) (partEnd & 0xff) + 1, roleSetID);
+                    address = partEnd + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the /24 blocks which are split between several segments. A block
+     * is split if a segment begins inside it.
+     * 
+     * @param segmentBegins
+     *            the begin addresses of the IPv4 segments in ascending order.
+     * @return the number of split /24 blocks.
+     */
+    static int countSplitBlocks(long[] segmentBegins) {
+        int splitBlocks = 0;
+        long lastSplitBlock = -1;
+        for (long segmentBegin : segmentBegins) {
+            if ((segmentBegin & 0xff) != 0
+                    && (segmentBegin >>> 8) != lastSplitBlock) {
+                lastSplitBlock = segmentBegin >>> 8;
+                splitBlocks++;
+            }
+        }
+        return splitBlocks;
+    }
+
+    @Override
+    public RoleSet lookup(int address) {
+        final short entry = firstLevel[address >>> 8];
+        if (entry >= 0) {
+            return roleSets[entry];
+        }
+        return roleSets[secondLevel[((~entry) << 8) | (address & 0xff)]];
+    }
+
+    /**
+     * @return the number of /24 blocks split between several role sets.
+     */
+    int getSplitBlockCount() {
+        return secondLevel.length >> 8;
+    }
+
+    /**
+     * @return the approximate number of bytes occupied by the tables.
+     */
+    long getMemoryUsage() {
+        return 2L * (firstLevel.length + secondLevel.length);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.Arrays;
+
+/**
+ * Segment table for IPv4 addresses searched through an Eytzinger
+ * (breadth-first) ordered tree over blocks of the sorted table.
+ * <p/>
+ * A binary search over a sorted array touches a new cache line at almost every
+ * step of a large table, at addresses which are far apart and depend on the
+ * previous comparison. Here, the sorted segment begins are divided into blocks
+ * of {@link #BLOCK_SIZE} begins, which fill a cache line each. The first begin
+ * of each block is stored in an implicit binary search tree in Eytzinger
+ * order: the root is at index 1, and the children of the node at index
+ * <code>k</code> are at <code>2k</code> and <code>2k + 1</code>. The upper
+ * levels of the tree, which every lookup visits, are thus packed into the
+ * first few cache lines and stay cached, and the tree is a sixteenth of the
+ * size of the table. The result of each comparison is added to the next index
+ * instead of being branched on, so the descent does not suffer from
+ * mispredicted branches.
+ * <p/>
+ * The descent ends at the block holding the segment of the address, which is
+ * then found by counting the begins of the block at or before the address,
+ * without any branches, in a single cache line.
+ */
+class EytzingerIPv4Index implements IPv4Lookup {
+
+    /**
+     * The number of segment begins per block, which fill a 64 byte cache
+     * line.
+     */
+    static final int BLOCK_SIZE = 16;
+
+    /**
+     * The begin addresses of all the segments in ascending order, padded with
+     * the highest address to a whole number of blocks. The addresses are
+     * stored with the sign bit flipped, so signed comparison orders them like
+     * unsigned addresses.
+     */
+    private final int[] segmentBegins;
+
+    private final RoleSet[] segmentRoles;
+
+    /**
+     * The first begin address of each block but the first (which begins at
+     * 0.0.0.0), in Eytzinger order from index 1, with the sign bit flipped.
+     */
+    private final int[] blockBegins;
+
+    /**
+     * The index of the block preceding the block at the same index of
+     * <code>blockBegins</code>.
+     */
+    private final int[] precedingBlocks;
+
+    private final int segmentCount;
+    private final int blockCount;
+
+    /**
+     * Create an index from the segment table produced by
+     * <code>segmentBuilder</code>.
+     * 
+     * @param segmentBuilder
+     *            a builder which has built a table of IPv4 segments.
+     */
+    EytzingerIPv4Index(SegmentBuilder segmentBuilder) {
+        this(IPv4SegmentIndex.toSegmentBegins(segmentBuilder), segmentBuilder
+                .getSegmentRoles());
+    }
+
+    /**
+     * Create an index from a segment table given by its begin addresses and
+     * roles.
+     * 
+     * @param sortedBegins
+     *            the (unsigned) begin address of each segment in ascending
+     *            order, beginning at 0.0.0.0.
+     * @param segmentRoles
+     *            the roles of each segment.
+     */
+    EytzingerIPv4Index(int[] sortedBegins, RoleSet[] segmentRoles) {
+        this.segmentRoles = segmentRoles;
+        segmentCount = sortedBegins.length;
+        blockCount = (segmentCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        segmentBegins = new int[blockCount * BLOCK_SIZE];
+        Arrays.fill(segmentBegins, Integer.MAX_VALUE);
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            segmentBegins[segmentIdx] = sortedBegins[segmentIdx]
+                    ^ Integer.MIN_VALUE;
+        }
+
+        // Place the blocks following the first one by an in-order walk of the
+        // implicit tree, which visits the nodes in ascending order.
+        blockBegins = new int[blockCount];
+        precedingBlocks = new int[blockCount];
+        int node = descendLeft(1);
+        for (int blockIdx = 1; blockIdx < blockCount; blockIdx++) {
+            blockBegins[node] = segmentBegins[blockIdx * BLOCK_SIZE];
+            precedingBlocks[node] = blockIdx - 1;
+
+            // Continue with the leftmost node of the right subtree if there is
+            // one, and otherwise climb up to the first ancestor whose left
+            // subtree has just been completed.
+            if (2 * node + 1 < blockCount) {
+                node = descendLeft(2 * node + 1);
+            } else {
+                node >>>= Integer.numberOfTrailingZeros(~node) + 1;
+            }
+        }
+    }
+
+    @Override
+    public RoleSet lookup(int address) {
+        final int key = address ^ Integer.MIN_VALUE;
+        int node = 1;
+        while (node < blockCount) {
+            node = 2 * node + (blockBegins[node] <= key ? 1 : 0);
+        }
+
+        // The path went right at every block beginning at or before the
+        // address. Dropping those trailing right turns and the last left turn
+        // leads to the first block beginning after the address, or to 0 if
+        // there is none. The address is in the block preceding that one.
+        node >>>= Integer.numberOfTrailingZeros(~node) + 1;
+        final int block = (node == 0) ? blockCount - 1 : precedingBlocks[node];
+
+        // The first begin of the block is at or before the address. The
+        // padding after the last segment only counts for the highest address,
+        // which is in the last segment.
+        final int blockStart = block * BLOCK_SIZE;
+        int segmentIdx = blockStart - 1;
+        for (int beginIdx = blockStart; beginIdx < blockStart + BLOCK_SIZE; beginIdx++) {
+            segmentIdx += (segmentBegins[beginIdx] <= key) ? 1 : 0;
+        }
+        return segmentRoles[Math.min(segmentIdx, segmentCount - 1)];
+    }
+
+    /**
+     * @return the leftmost node of the subtree rooted at <code>node</code>.
+     */
+    private int descendLeft(int node) {
+        while (2 * node < blockCount) {
+            node *= 2;
+        }
+        return node;
+    }
+
+    /**
+     * @return the number of segments in this index.
+     */
+    int size() {
+        return segmentCount;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index which keeps the single host ranges of a configuration (ranges whose
+ * begin and end addresses are equal) in primitive open-addressing hash tables,
+ * and only the true ranges in segment tables.
+ * <p/>
+ * Configurations often consist mostly of single hosts scattered between a few
+ * broad ranges. In a segment table, every host adds one or two segments, so
+ * the hosts make up most of the table, and every lookup pays for them in
+ * search steps. Here, the segment tables only hold the segments of the true
+ * ranges. Each host is stored with the roles of the host itself combined with
+ * the roles of the ranges covering it, which are resolved once when the index
+ * is built. A lookup of a host is thus answered by a hash probe alone, and any
+ * other address by a probe which misses, followed by a search of the smaller
+ * segment table.
+ * <p/>
+ * The hash tables use linear probing and are at most half full, so a probe
+ * which misses usually stops at the first or second slot. Empty slots are
+ * recognised by having no roles, so every address can be a key.
+ */
+class HostHashIndex implements IPv4Lookup, IPv6Lookup {
+
+    /**
+     * Fibonacci hashing multipliers, which spread keys differing only in
+     * their low bits (such as neighbouring hosts) over the whole table.
+     */
+    private static final int IPV4_HASH_MULTIPLIER = 0x9e3779b9;
+    private static final long IPV6_HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private final IPv4SegmentIndex ipv4Ranges;
+    private final IPv6SegmentIndex ipv6Ranges;
+
+    /**
+     * The IPv4 hosts and their roles. A slot is empty if its roles are
+     * <code>null</code>.
+     */
+    private final int[] ipv4Hosts;
+    private final RoleSet[] ipv4HostRoles;
+    private final int ipv4Shift;
+    private final int ipv4HostCount;
+
+    /**
+     * The high and low 64 bits of the IPv6 hosts and their roles. A slot is
+     * empty if its roles are <code>null</code>.
+     */
+    private final long[] ipv6HostHighs;
+    private final long[] ipv6HostLows;
+    private final RoleSet[] ipv6HostRoles;
+    private final int ipv6Shift;
+    private final int ipv6HostCount;
+
+    /**
+     * Collector of the ranges of a single address family, which sends true
+     * ranges on to a segment builder and gathers the roles of each host.
+     */
+    private static final class HostCollector implements RangeCollector {
+
+        private final SegmentBuilder rangeBuilder;
+        private final RoleTable roleTable;
+        private final boolean isIPv6;
+
+        /**
+         * The role ID bits of each host, in the order the hosts were added.
+         */
+        private final Map<IPAddress, long[]> hostRoleBits = new LinkedHashMap<IPAddress, long[]>();
+
+        private HostCollector(SegmentBuilder rangeBuilder,
+                RoleTable roleTable, boolean isIPv6) {
+            this.rangeBuilder = rangeBuilder;
+            this.roleTable = roleTable;
+            this.isIPv6 = isIPv6;
+        }
+
+        @Override
+        public void add(long beginHigh, long beginLow, long endHigh,
+                long endLow, List<String> roles) {
+            if (beginHigh != endHigh || beginLow != endLow) {
+                rangeBuilder.add(beginHigh, beginLow, endHigh, endLow, roles);
+                return;
+            }
+            final long[] bits = hostRoleBits.computeIfAbsent(new IPAddress(
+                    beginHigh, beginLow, isIPv6), host -> roleTable.newBits());
+            for (String role : roles) {
+                final int roleID = roleTable.getRoleID(role);
+                bits[roleID >>> 6] |= 1L << roleID;
+            }
+        }
+
+        /**
+         * Get the roles of <code>host</code> combined with
+         * <code>rangeRoles</code>, the roles of the ranges covering it.
+         */
+        private RoleSet combine(IPAddress host, RoleSet rangeRoles) {
+            final long[] bits = hostRoleBits.get(host);
+            final long[] rangeBits = rangeRoles.getBits();
+            for (int wordIdx = 0; wordIdx < bits.length; wordIdx++) {
+                bits[wordIdx] |= rangeBits[wordIdx];
+            }
+            return roleTable.intern(bits);
+        }
+    }
+
+    /**
+     * Build an index of the IP ranges specified by <code>ranges</code>.
+     * 
+     * @param ranges
+     *            the IP ranges and associated roles to build the index from.
+     * @param roleTable
+     *            the table of all the roles of <code>ranges</code>, which
+     *            interns the role sets of the index.
+     */
+    HostHashIndex(List<IPRangeRoles> ranges, RoleTable roleTable) {
+        final HostCollector ipv4Collector = new HostCollector(
+                new SegmentBuilder(0, 0xffffffffL, roleTable), roleTable,
+                false);
+        final HostCollector ipv6Collector = new HostCollector(
+                new SegmentBuilder(-1L, -1L, roleTable), roleTable, true);
+        for (IPRangeRoles range : ranges) {
+            AddressKeys.collect(range, ipv4Collector, ipv6Collector);
+        }
+        ipv4Collector.rangeBuilder.build();
+        ipv6Collector.rangeBuilder.build();
+        ipv4Ranges = new IPv4SegmentIndex(ipv4Collector.rangeBuilder);
+        ipv6Ranges = new IPv6SegmentIndex(ipv6Collector.rangeBuilder);
+
+        ipv4HostCount = ipv4Collector.hostRoleBits.size();
+        final int ipv4Capacity = getCapacity(ipv4HostCount);
+        ipv4Shift = 32 - Integer.numberOfTrailingZeros(ipv4Capacity);
+        ipv4Hosts = new int[ipv4Capacity];
+        ipv4HostRoles = new RoleSet[ipv4Capacity];
+        for (IPAddress host : ipv4Collector.hostRoleBits.keySet()) {
+            final int address = (int) host.getLow();
+            int slot = (address * IPV4_HASH_MULTIPLIER) >>> ipv4Shift;
+            while (ipv4HostRoles[slot] != null) {
+                slot = (slot + 1) & (ipv4Capacity - 1);
+            }
+            ipv4Hosts[slot] = address;
+            ipv4HostRoles[slot] = ipv4Collector.combine(host, ipv4Ranges
+                    .lookup(address));
+        }
+
+        ipv6HostCount = ipv6Collector.hostRoleBits.size();
+        final int ipv6Capacity = getCapacity(ipv6HostCount);
+        ipv6Shift = 64 - Integer.numberOfTrailingZeros(ipv6Capacity);
+        ipv6HostHighs = new long[ipv6Capacity];
+        ipv6HostLows = new long[ipv6Capacity];
+        ipv6HostRoles = new RoleSet[ipv6Capacity];
+        for (IPAddress host : ipv6Collector.hostRoleBits.keySet()) {
+            final long high = host.getHigh();
+            final long low = host.getLow();
+            int slot = hashIPv6(high, low);
+            while (ipv6HostRoles[slot] != null) {
+                slot = (slot + 1) & (ipv6Capacity - 1);
+            }
+            ipv6HostHighs[slot] = high;
+            ipv6HostLows[slot] = low;
+            ipv6HostRoles[slot] = ipv6Collector.combine(host, ipv6Ranges
+                    .lookup(high, low));
+        }
+    }
+
+    /**
+     * @return the number of slots of a hash table of <code>hostCount</code>
+     *         hosts: the smallest power of two which is at least twice the
+     *         number of hosts, and at least two.
+     */
+    private static int getCapacity(int hostCount) {
+        return Integer.highestOneBit(Math.max(1, hostCount * 2 - 1)) << 1;
+    }
+
+    @Override
+    public RoleSet lookup(int address) {
+        final RoleSet hostRoles = findIPv4Host(address);
+        return (hostRoles != null) ? hostRoles : ipv4Ranges.lookup(address);
+    }
+
+    @Override
+    public RoleSet lookup(long high, long low) {
+        int slot = hashIPv6(high, low);
+        RoleSet hostRoles;
+        while ((hostRoles = ipv6HostRoles[slot]) != null) {
+            if (ipv6HostLows[slot] == low && ipv6HostHighs[slot] == high) {
+                return hostRoles;
+            }
+            slot = (slot + 1) & (ipv6HostLows.length - 1);
+        }
+        return ipv6Ranges.lookup(high, low);
+    }
+
+    /**
+     * Resolve the sorted addresses in a single merge pass over the range
+     * segments, and then replace the roles of the hosts.
+     */
+    @Override
+    public void lookupSorted(int[] sortedAddresses, int count,
+            RoleSet[] results) {
+        ipv4Ranges.lookupSorted(sortedAddresses, count, results);
+        if (ipv4HostCount == 0) {
+            return;
+        }
+        for (int addressIdx = 0; addressIdx < count; addressIdx++) {
+            final RoleSet hostRoles = findIPv4Host(sortedAddresses[addressIdx]);
+            if (hostRoles != null) {
+                results[addressIdx] = hostRoles;
+            }
+        }
+    }
+
+    /**
+     * @return the roles of the IPv4 host <code>address</code>, or
+     *         <code>null</code> if it is not in the hash table.
+     */
+    private RoleSet findIPv4Host(int address) {
+        int slot = (address * IPV4_HASH_MULTIPLIER) >>> ipv4Shift;
+        RoleSet hostRoles;
+        while ((hostRoles = ipv4HostRoles[slot]) != null) {
+            if (ipv4Hosts[slot] == address) {
+                return hostRoles;
+            }
+            slot = (slot + 1) & (ipv4Hosts.length - 1);
+        }
+        return null;
+    }
+
+    private int hashIPv6(long high, long low) {
+        return (int) (((high * IPV6_HASH_MULTIPLIER) ^ low)
+                * IPV6_HASH_MULTIPLIER >>> ipv6Shift);
+    }
+
+    /**
+     * @return the number of IPv4 hosts in the hash table.
+     */
+    int getIPv4HostCount() {
+        return ipv4HostCount;
+    }
+
+    /**
+     * @return the number of IPv6 hosts in the hash table.
+     */
+    int getIPv6HostCount() {
+        return ipv6HostCount;
+    }
+
+    /**
+     * @return the number of segments of the IPv4 range table.
+     */
+    int getIPv4SegmentCount() {
+        return ipv4Ranges.size();
+    }
+
+    /**
+     * @return the number of segments of the IPv6 range table.
+     */
+    int getIPv6SegmentCount() {
+        return ipv6Ranges.size();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Immutable IPv4 or IPv6 address, represented by primitive values. Comparing
+ * <code>IPAddress</code> instances neither allocates any objects nor copies
+ * any arrays, as opposed to comparing <code>InetAddress</code> instances,
+ * whose <code>getAddress()</code> method returns a new copy of the address on
+ * every call.
+ * <p/>
+ * An address has the address family of the <code>InetAddress</code> or the
+ * number of bytes it was created from. IPv4-mapped IPv6 addresses
+ * (<code>::ffff:a.b.c.d</code>) created from <code>Inet6Address</code>
+ * instances are thus IPv6 addresses, and are different from the IPv4
+ * addresses they map. This is consistent with <code>InetAddress</code>.
+ */
+public final class IPAddress implements Comparable<IPAddress> {
+
+    /**
+     * The high 64 bits of the address. Always zero for IPv4 addresses.
+     */
+    private final long high;
+
+    /**
+     * The low 64 bits of the address. IPv4 addresses only use the low 32 bits.
+     */
+    private final long low;
+
+    private final boolean isIPv6;
+
+    /**
+     * Create an address from its primitive values.
+     * 
+     * @param high
+     *            the high 64 bits of an IPv6 address, or zero.
+     * @param low
+     *            the low 64 bits of an IPv6 address, or the IPv4 address.
+     * @param isIPv6
+     *            <code>true</code> if this is an IPv6 address.
+     */
+    IPAddress(long high, long low, boolean isIPv6) {
+        this.high = high;
+        this.low = low;
+        this.isIPv6 = isIPv6;
+    }
+
+    /**
+     * Get the <code>IPAddress</code> equivalent of <code>inetAddress</code>.
+     * 
+     * @param inetAddress
+     *            the address to convert.
+     * @return an <code>IPAddress</code> of the same address family and value
+     *         as <code>inetAddress</code>.
+     */
+    public static IPAddress valueOf(InetAddress inetAddress) {
+        return valueOf(inetAddress.getAddress());
+    }
+
+    /**
+     * Get the <code>IPAddress</code> represented by the raw address bytes
+     * specified by <code>address</code>.
+     * 
+     * @param address
+     *            the address in network byte order, as returned by
+     *            <code>InetAddress.getAddress()</code>.
+     * @return an IPv4 address if <code>address</code> is 4 bytes long, and an
+     *         IPv6 address if it is 16 bytes long.
+     * @throws IllegalArgumentException
+     *             if <code>address</code> is neither 4 nor 16 bytes long.
+     */
+    public static IPAddress valueOf(byte[] address)
+            throws IllegalArgumentException {
+        if (address.length == 4) {
+            return new IPAddress(0, AddressKeys.toIPv4Key(address) & 0xffffffffL,
+                    false);
+        }
+        if (address.length == 16) {
+            return new IPAddress(AddressKeys.toHigh(address), AddressKeys
+                    .toLow(address), true);
+        }
+        throw new IllegalArgumentException("Illegal address length: "
+                + address.length);
+    }
+
+    /**
+     * Parse the IPv4 or IPv6 address literal specified by <code>text</code>.
+     * Unlike <code>InetAddress.getByName()</code>, this method never resolves
+     * host names, and it does not throw any exceptions for invalid input.
+     *
+     * @param text
+     *            the address literal to parse, e.g. <code>10.0.0.1</code> or
+     *            <code>2001:db8::1</code>.
+     * @return the parsed address, or <code>null</code> if <code>text</code> is
+     *         not a valid address literal. IPv4-mapped IPv6 addresses are
+     *         returned as IPv4 addresses, like
+     *         <code>InetAddress.getByName()</code> does.
+     */
+    public static IPAddress parse(CharSequence text) {
+        return AddressParser.parse(text);
+    }
+
+    /**
+     * @return <code>true</code> if this is an IPv6 address and
+     *         <code>false</code> if it is an IPv4 address.
+     */
+    public boolean isIPv6() {
+        return isIPv6;
+    }
+
+    /**
+     * @return <code>true</code> if this is an IPv4 address or an IPv4-mapped
+     *         IPv6 address, which are looked up as IPv4 addresses.
+     */
+    boolean isIPv4OrMapped() {
+        return !isIPv6
+                || (high == 0 && (low & 0xffffffff00000000L) == AddressKeys.IPV4_MAPPED_PREFIX);
+    }
+
+    /**
+     * @return the high 64 bits of this address. Always zero for IPv4
+     *         addresses.
+     */
+    long getHigh() {
+        return high;
+    }
+
+    /**
+     * @return the low 64 bits of this address. For IPv4 addresses and
+     *         IPv4-mapped IPv6 addresses, the low 32 bits are the IPv4
+     *         address.
+     */
+    long getLow() {
+        return low;
+    }
+
+    /**
+     * @return the raw bytes of this address in network byte order. That is,
+     *         4 bytes for IPv4 addresses and 16 bytes for IPv6 addresses.
+     */
+    public byte[] getAddress() {
+        final byte[] address = new byte[isIPv6 ? 16 : 4];
+        if (isIPv6) {
+            for (int index = 0; index < 8; index++) {
+                address[index] = (byte) (high >>> (56 - 8 * index));
+                address[index + 8] = (byte) (low >>> (56 - 8 * index));
+            }
+        } else {
+            for (int index = 0; index < 4; index++) {
+                address[index] = (byte) (low >>> (24 - 8 * index));
+            }
+        }
+        return address;
+    }
+
+    /**
+     * @return an <code>InetAddress</code> of the same address family and value
+     *         as this address. IPv4-mapped IPv6 addresses are returned as
+     *         <code>Inet6Address</code> instances.
+     */
+    public InetAddress toInetAddress() {
+        try {
+            if (isIPv6) {
+                return Inet6Address.getByAddress(null, getAddress(), -1);
+            }
+            return InetAddress.getByAddress(getAddress());
+        } catch (UnknownHostException unknownHostException) {
+            // Only thrown for illegal address lengths.
+            throw new IllegalStateException(unknownHostException);
+        }
+    }
+
+    /**
+     * Compare this address with <code>other</code>, which must be of the same
+     * address family.
+     * 
+     * @param other
+     *            the address to compare with.
+     * @return a negative value, zero or a positive value if this address is
+     *         lower than, equal to or higher than <code>other</code>.
+     * @throws ClassCastException
+     *             if the addresses are not of the same address family.
+     */
+    @Override
+    public int compareTo(IPAddress other) throws ClassCastException {
+        if (isIPv6 != other.isIPv6) {
+            throw new ClassCastException("The addresses to compare are not "
+                    + "of the same address family: " + this + " and " + other);
+        }
+        return AddressKeys.compare(high, low, other.high, other.low);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = isIPv6 ? 1231 : 1237;
+        result = prime * result + Long.hashCode(high);
+        result = prime * result + Long.hashCode(low);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IPAddress)) {
+            return false;
+        }
+        final IPAddress other = (IPAddress) obj;
+        return high == other.high && low == other.low
+                && isIPv6 == other.isIPv6;
+    }
+
+    /**
+     * @return the address in its textual representation, as returned by
+     *         <code>InetAddress.getHostAddress()</code>.
+     */
+    @Override
+    public String toString() {
+        return toInetAddress().getHostAddress();
+    }
+}
@@ -33,8 +33,8 @@ import java.net.InetAddress;
  */
 public class IPRange {
 
-    private final InetAddress beginAddress;
-    private final InetAddress endAddress;
+    private final IPAddress beginAddress;
+    private final IPAddress endAddress;
 
     /**
      * Create an IP range starting at <code>beginAddress</code> and ending at
@@ -51,15 +51,31 @@ public class IPRange {
      *             <code>endAddress</code>.
      */
     public IPRange(InetAddress beginAddress, InetAddress endAddress) {
-        if (beginAddress.getClass() != endAddress.getClass()) {
+        this(IPAddress.valueOf(beginAddress), IPAddress.valueOf(endAddress));
+    }
+
+    /**
+     * Create an IP range starting at <code>beginAddress</code> and ending at
+     * <code>endAddress</code>. Both addresses are included in the range.
+     * 
+     * @param beginAddress
+     *            the start address of the range.
+     * @param endAddress
+     *            the end address of the range.
+     * @throws IllegalArgumentException
+     *             if the begin address and end address is not of the same type.
+     *             I.e. if they are not both IPv4 of IPv6 addresses, or if
+     *             <code>beginAddress</code> is larger/higher/after
+     *             <code>endAddress</code>.
+     */
+    public IPRange(IPAddress beginAddress, IPAddress endAddress) {
+        if (beginAddress.isIPv6() != endAddress.isIPv6()) {
             throw new IllegalArgumentException("The begin and end addresses "
-                    + "must be of the same type. beginAddress.getClas() = "
-                    + beginAddress.getClass() + "  endAddress.getClass() = "
-                    + endAddress.getClass());
+                    + "must be of the same type. beginAddress = "
+                    + beginAddress + "  endAddress = " + endAddress);
         }
 
-        final InetAddressComparator comparator = new InetAddressComparator();
-        if (comparator.compare(beginAddress, endAddress) == 1) {
+        if (beginAddress.compareTo(endAddress) > 0) {
             throw new IllegalArgumentException("The begin addresses must be "
                     + "equal to or before the end address. beginAddress = "
                     + beginAddress + "  endAddress = " + endAddress);
@@ -72,17 +88,39 @@ public class IPRange {
     /**
      * @return the begin address of this IP range.
      */
-    public InetAddress getBeginAddress() {
+    public IPAddress getBegin() {
         return beginAddress;
     }
 
     /**
      * @return the end address of this IP range.
      */
-    public InetAddress getEndAddress() {
+    public IPAddress getEnd() {
         return endAddress;
     }
 
+    /**
+     * Get the begin address of this IP range as an <code>InetAddress</code>.
+     * Note that a new <code>InetAddress</code> instance is created on every
+     * call. Use {@link #getBegin()} where possible.
+     * 
+     * @return the begin address of this IP range.
+     */
+    public InetAddress getBeginAddress() {
+        return beginAddress.toInetAddress();
+    }
+
+    /**
+     * Get the end address of this IP range as an <code>InetAddress</code>.
+     * Note that a new <code>InetAddress</code> instance is created on every
+     * call. Use {@link #getEnd()} where possible.
+     * 
+     * @return the end address of this IP range.
+     */
+    public InetAddress getEndAddress() {
+        return endAddress.toInetAddress();
+    }
+
     /**
      * Merge this <code>IPRange</code> instance with the overlapping range
      * specified by <code>overlappingRange</code>. That is, create a new
@@ -108,15 +146,13 @@ public class IPRange {
                     + toString());
         }
 
-        final InetAddressComparator comparator = new InetAddressComparator();
-
-        final InetAddress resultStartAddress = comparator.compare(
-                getBeginAddress(), overlappingRange.getBeginAddress()) < 0 ? getBeginAddress()
-                : overlappingRange.getBeginAddress();
+        final IPAddress resultStartAddress = beginAddress
+                .compareTo(overlappingRange.beginAddress) < 0 ? beginAddress
+                : overlappingRange.beginAddress;
 
-        final InetAddress resultEndAddress = comparator.compare(
-                getEndAddress(), overlappingRange.getEndAddress()) > 0 ? getEndAddress()
-                : overlappingRange.getEndAddress();
+        final IPAddress resultEndAddress = endAddress
+                .compareTo(overlappingRange.endAddress) > 0 ? endAddress
+                : overlappingRange.endAddress;
 
         return new IPRange(resultStartAddress, resultEndAddress);
     }
@@ -129,36 +165,16 @@ public class IPRange {
      *            other <code>IPRange</code> instance to test for overlap.
      * @return <code>true</code> if there is an overlap between this IP range
      *         and <code>ipRange</code> and otherwise false.
+     * @throws ClassCastException
+     *             if the ranges are not of the same address family.
      */
     public boolean overlaps(IPRange ipRange) {
 
-        final InetAddressComparator comparator = new InetAddressComparator();
-
-        final InetAddress rangeBegin = ipRange.getBeginAddress();
-        final InetAddress rangeEnd = ipRange.getEndAddress();
-
-        // The below comparison are based on the (safe) assumption that begin
-        // addresses are lower than end addresses. The IPRange implementation
-        // ensures this.
-
-        if (comparator.compare(rangeEnd, beginAddress) < 0) {
-            return false;
-        }
-
-        if (comparator.compare(rangeEnd, endAddress) <= 0) {
-            return true;
-        }
-
-        if (comparator.compare(endAddress, rangeBegin) < 0) {
-            return false;
-        }
-
-        if (comparator.compare(endAddress, rangeEnd) <= 0) {
-            return true;
-        }
-
-        // Never reached. However, the compiler refuses to realise that.
-        return false;
+        // Both ranges are closed intervals, and the IPRange constructor
+        // ensures that begin addresses are lower than or equal to end
+        // addresses.
+        return ipRange.endAddress.compareTo(beginAddress) >= 0
+                && endAddress.compareTo(ipRange.beginAddress) >= 0;
     }
 
     /* (non-Javadoc)
@@ -212,6 +228,7 @@ public class IPRange {
      */
     @Override
     public String toString() {
-        return "IPRange: " + beginAddress + " - " + endAddress + "\n";
+        return "IPRange: " + beginAddress.toInetAddress() + " - "
+                + endAddress.toInetAddress() + "\n";
     }
 }
\ No newline at end of file
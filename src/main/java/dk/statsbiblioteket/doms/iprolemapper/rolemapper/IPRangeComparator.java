@@ -45,15 +45,13 @@ public class IPRangeComparator implements Comparator<IPRange> {
     @Override
     public int compare(IPRange ipRange1, IPRange ipRange2) {
 
-        final InetAddressComparator inetAddressComparator = new InetAddressComparator();
-        final int startAddressComparison = inetAddressComparator.compare(
-                ipRange1.getBeginAddress(), ipRange2.getBeginAddress());
+        final int startAddressComparison = ipRange1.getBegin().compareTo(
+                ipRange2.getBegin());
 
         if (startAddressComparison == 0) {
             // The begin addresses are the same. Let the end addresses determine
             // the result.
-            return inetAddressComparator.compare(ipRange1.getEndAddress(),
-                    ipRange2.getEndAddress());
+            return ipRange1.getEnd().compareTo(ipRange2.getEnd());
         }
 
         return startAddressComparison;
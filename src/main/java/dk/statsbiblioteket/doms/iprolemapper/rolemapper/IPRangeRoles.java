@@ -59,6 +59,28 @@ public class IPRangeRoles extends IPRange {
         this.roles = roles;
     }
 
+    /**
+     * Create an IP range associated with the roles specified by
+     * <code>roles</code>
+     * 
+     * @param beginAddress
+     *            the start address of the range.
+     * @param endAddress
+     *            the end address of the range.
+     * @param roles
+     *            the roles associated with the range.
+     * @throws IllegalArgumentException
+     *             if the begin address and end address is not of the same type.
+     *             I.e. if they are not both IPv4 of IPv6 addresses, or if
+     *             <code>beginAddress</code> is larger/higher/after
+     *             <code>endAddress</code>.
+     */
+    public IPRangeRoles(IPAddress beginAddress, IPAddress endAddress,
+            List<String> roles) throws IllegalArgumentException {
+        super(beginAddress, endAddress);
+        this.roles = roles;
+    }
+
     /**
      * @return the roles associated with this IP range.
      */
@@ -26,25 +26,33 @@
  */
 package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import dk.statsbiblioteket.doms.iprolemapper.utils.SortedList;
 
 /**
  * The <code>IPRoleMapper</code> is capable of associating a number of roles
  * with an IP address based on a number of IP address ranges, which again are
  * associated with a number of roles.
+ * <p/>
+ * All the mapping information is kept in an immutable snapshot, which is
+ * replaced as a whole when the mapper is (re-)initialised. Mapping operations
+ * never take any locks, and a single operation always sees a single,
+ * consistent snapshot.
+ * <p/>
+ * Single address lookups can optionally be served by a bounded cache of the
+ * most frequently looked up addresses, see
+ * {@link #setAddressCache(int, int)}. Every snapshot has a cache of its own,
+ * so (re-)initialising the mapper never leaves stale entries behind.
  * 
  * @author Thomas Skou Hansen &lt;tsh@statsbiblioteket.dk&gt;
  */
@@ -53,65 +61,80 @@ public class IPRoleMapper {
     private static final Log log = LogFactory.getLog(IPRoleMapper.class);
 
     /**
-     * A map for mapping an IP range start address to a list of all IP ranges
-     * starting at that particular address.
+     * The current snapshot of the mapping information. Readers must read this
+     * field only once per operation.
      */
-    private static TreeMap<InetAddress, LinkedList<IPRangeRoles>> startAddrRangeMapList = new TreeMap<InetAddress, LinkedList<IPRangeRoles>>(
-            new InetAddressComparator());
+    private static volatile MappingSnapshot snapshot = new MappingSnapshot(0,
+            Collections.<IPRangeRoles> emptyList(), LookupEngine.SEGMENT_TABLE);
 
     /**
-     * A map for mapping all known role names with the ranges associated with
-     * them.
+     * The default length of the prefix IPv6 addresses are cached by.
      */
-    private static TreeMap<String, LinkedList<IPRange>> roleIPRangeMapList = new TreeMap<String, LinkedList<IPRange>>();
+    public static final int DEFAULT_CACHE_IPV6_PREFIX_LENGTH = 64;
+
+    /**
+     * The maximum number of addresses to cache for each new snapshot, or 0 if
+     * new snapshots have no cache. Guarded by the class.
+     */
+    private static int addressCacheCapacity = 0;
+
+    /**
+     * The length of the prefix IPv6 addresses are cached by for each new
+     * snapshot. Guarded by the class.
+     */
+    private static int addressCacheIPv6PrefixLength = DEFAULT_CACHE_IPV6_PREFIX_LENGTH;
+
+    private static final AddressCacheStatistics addressCacheStatistics = new AddressCacheStatistics();
 
     /**
      * Map a host name or IP address to one or more roles all roles of the known
-     * ip ranges matching <code>ipAddress</code> will be collected. The roles
-     * are returned as a comma separated list in a <code>String</code>.
+     * ip ranges matching <code>ipAddress</code> will be collected.
      * 
      * @param ipAddress
      *            the IP address or host name to get roles for.
-     * @return a <code>String</code> containing a comma separated list of all
-     *         matching roles.
+     * @return an immutable, sorted <code>Set</code> containing all the
+     *         matching roles. The set is shared with all other callers mapping
+     *         addresses having the same roles.
      */
-    public Set<String> mapIPHost(InetAddress ipAddress) {
+    public RoleSet mapIPHost(InetAddress ipAddress) {
 
         if (log.isTraceEnabled()) {
             log.trace("mapIPHost(): Called with InetAddress: " + ipAddress);
         }
 
-        final Set<String> collectedRoles = new TreeSet<String>();
-
-        Collection<LinkedList<IPRangeRoles>> allPotentialMatchingRangeSets;
+        final MappingSnapshot currentSnapshot = snapshot;
+        final RoleSet collectedRoles = currentSnapshot.hasAddressCache() ? currentSnapshot
+                .lookup(IPAddress.valueOf(ipAddress))
+                : currentSnapshot.getSegmentIndex().lookup(ipAddress);
 
-        // Synchronise with the static init() method.
-        synchronized (IPRoleMapper.class) {
-            // Get all ranges starting before or at the given ipAddress.
-            allPotentialMatchingRangeSets = startAddrRangeMapList.headMap(
-                    ipAddress, true).values();
+        if (log.isTraceEnabled()) {
+            log.trace("mapIPHost(): Returning collected roles: "
+                    + collectedRoles);
         }
 
-        final InetAddressComparator ipComparator = new InetAddressComparator();
-        for (List<IPRangeRoles> potentialMatchingRanges : allPotentialMatchingRangeSets) {
-
-            for (IPRangeRoles candidateRange : potentialMatchingRanges) {
+        return collectedRoles;
+    }
 
-                // Test ipAddress lies within the candidate range.
-                if ((ipComparator.compare(ipAddress, candidateRange
-                        .getBeginAddress()) == 0 || ipComparator.compare(
-                        ipAddress, candidateRange.getBeginAddress()) > 0)
-                        && (ipComparator.compare(ipAddress, candidateRange
-                                .getEndAddress()) == 0 || ipComparator.compare(
-                                ipAddress, candidateRange.getEndAddress()) < 0)) {
+    /**
+     * Map an IP address to the roles of all the known ip ranges matching
+     * <code>ipAddress</code>. Unlike {@link #mapIPHost(InetAddress)}, this
+     * method does not allocate any objects when trace logging is disabled,
+     * except for adding a new entry to the address cache, if it is enabled.
+     * 
+     * @param ipAddress
+     *            the IP address to get roles for.
+     * @return an immutable, sorted <code>Set</code> containing all the
+     *         matching roles. The set is shared with all other callers mapping
+     *         addresses having the same roles.
+     */
+    public RoleSet mapIPHost(IPAddress ipAddress) {
 
-                    // Range match! Collect the roles from this range into a
-                    // set in order to eliminate any duplicates.
-                    collectedRoles.addAll(candidateRange.getRoles());
-                } // end-if
-            } // end-for test of candidate range list.
+        if (log.isTraceEnabled()) {
+            log.trace("mapIPHost(): Called with IPAddress: " + ipAddress);
         }
 
+        final RoleSet collectedRoles = snapshot.lookup(ipAddress);
+
         if (log.isTraceEnabled()) {
             log.trace("mapIPHost(): Returning collected roles: "
                     + collectedRoles);
@@ -120,13 +143,77 @@ public class IPRoleMapper {
         return collectedRoles;
     }
 
+    /**
+     * Map each of the IP addresses specified by <code>ipAddresses</code> to
+     * the roles of all the known ip ranges matching it. The addresses are
+     * sorted once and resolved in a single pass over the internal database,
+     * which is considerably faster than mapping each address on its own for
+     * larger batches. All the addresses are mapped by the same generation of
+     * the database.
+     * 
+     * @param ipAddresses
+     *            the IP addresses to get roles for.
+     * @return an unmodifiable list of the roles of each address, in the order
+     *         of <code>ipAddresses</code>. The role sets are shared with all
+     *         other callers mapping addresses having the same roles.
+     */
+    public List<RoleSet> mapIPHosts(
+            Collection<? extends InetAddress> ipAddresses) {
+
+        if (log.isTraceEnabled()) {
+            log.trace("mapIPHosts(): Called with " + ipAddresses.size()
+                    + " InetAddresses.");
+        }
+
+        final IPAddress[] addressesToMap = new IPAddress[ipAddresses.size()];
+        int addressIdx = 0;
+        for (InetAddress ipAddress : ipAddresses) {
+            addressesToMap[addressIdx++] = IPAddress.valueOf(ipAddress);
+        }
+        return Collections.unmodifiableList(Arrays
+                .asList(mapIPHosts(addressesToMap)));
+    }
+
+    /**
+     * Map each of the IP addresses specified by <code>ipAddresses</code> to
+     * the roles of all the known ip ranges matching it, like
+     * {@link #mapIPHosts(Collection)} does.
+     * 
+     * @param ipAddresses
+     *            the IP addresses to get roles for.
+     * @return the roles of each address, in the order of
+     *         <code>ipAddresses</code>. The role sets are shared with all
+     *         other callers mapping addresses having the same roles.
+     */
+    public RoleSet[] mapIPHosts(IPAddress[] ipAddresses) {
+
+        final RoleSet[] collectedRoles = snapshot.getSegmentIndex().lookupAll(
+                ipAddresses);
+
+        if (log.isTraceEnabled()) {
+            log.trace("mapIPHosts(): Returning collected roles: "
+                    + Arrays.asList(collectedRoles));
+        }
+
+        return collectedRoles;
+    }
+
     /**
      * Get a set of address ranges associated with the role names specified by
      * <code>roles</code>. Any overlapping ranges will be merged.
      * 
+     * <p/>
+     * The merged ranges of each role are computed when the internal database
+     * is initialised, so mapping a set of roles only takes a single sweep over
+     * the ranges of the roles. The results of recently mapped role sets are
+     * reused.
+     * 
      * @param roles
      *            a set of role names to find associated address ranges for.
-     * @return all the <code>IPRange</code> instances associated with the roles.
+     * @return an unmodifiable set of all the non-overlapping
+     *         <code>IPRange</code> instances associated with the roles. IPv4
+     *         ranges are iterated before IPv6 ranges, and the ranges of each
+     *         address family are iterated in ascending order.
      */
     public Set<IPRange> mapRoles(Set<String> roles) {
 
@@ -134,67 +221,11 @@ public class IPRoleMapper {
             log.trace("mapRoles(): Called with roles: " + roles);
         }
 
-        // Collect all the ranges associated with the roles specified. The
-        // sorted list will keep the IPRange objects ordered in a non-descending
-        // order.
-        final SortedList<IPRange> associatedRanges = new SortedList<IPRange>(
-                new IPRangeComparator());
-        for (String role : roles) {
-            final List<IPRange> associatedRoleRanges = roleIPRangeMapList
-                    .get(role);
-            if (associatedRoleRanges != null) {
-                associatedRanges.addAll(associatedRoleRanges);
-            }
-        }
-
-        // Now iterate through all the ranges, merge any overlapping ranges and
-        // remove any redundant ranges.
-
-        final Set<IPRange> mergedRanges = new HashSet<IPRange>();
-        while (associatedRanges.isEmpty() == false) {
-            final IPRange lowestRange = associatedRanges.get(0);
-
-            // Remove all occurrences of the lowest range as it will be
-            // collected under any circumstances.
-            associatedRanges.removeAll(Arrays.asList(lowestRange));
-
-            IPRange neighbourRange = null;
-            if (associatedRanges.isEmpty() == false) {
-                neighbourRange = associatedRanges.get(0);
-            }
-
-            if ((neighbourRange == null)
-                    || (lowestRange.overlaps(neighbourRange) == false)) {
-
-                // No more ranges or they do not overlap. Done...
-                mergedRanges.add(lowestRange);
-            } else {
-
-                // The ranges overlap each other. Merge them and any
-                // subsequently overlapping ranges.
-                IPRange mergedRange = lowestRange;
-                while ((associatedRanges.isEmpty() == false)
-                        && mergedRange.overlaps(neighbourRange)) {
-
-                    // Remove all occurrences of the overlapping neighbour
-                    // range.
-                    associatedRanges.removeAll(Arrays.asList(neighbourRange));
-
-                    // Update the merged range.
-                    mergedRange = mergedRange.merge(neighbourRange);
-
-                    // Prepare testing the next neighbour if there is any.
-                    if (associatedRanges.isEmpty() == false) {
-                        neighbourRange = associatedRanges.get(0);
-                    }
-                }
-                mergedRanges.add(mergedRange);
-            }
-        }
+        final Set<IPRange> mergedRanges = snapshot.mapRoles(roles);
 
         if (log.isTraceEnabled()) {
             log.trace("mapRoles(): Returning IP address ranges: "
-                    + associatedRanges);
+                    + mergedRanges);
         }
 
         return mergedRanges;
@@ -208,61 +239,217 @@ public class IPRoleMapper {
      *         contain any mapping information and otherwise <code>false</code>.
      */
     public boolean isEmpty() {
-        return startAddrRangeMapList.isEmpty();
+        return snapshot.isEmpty();
+    }
+
+    /**
+     * Get a human readable description of the size of the internal database,
+     * the lookup structures used and the time spent building them.
+     * 
+     * @return a description of the internal database.
+     */
+    public static String getIndexDescription() {
+        return snapshot.getDescription();
+    }
+
+    /**
+     * Configure the cache of single address lookups for the following
+     * (re-)initialisations of the internal database. The cache admits the
+     * addresses by how frequently they are looked up, so a scan over many
+     * addresses does not flush the frequently looked up ones.
+     * <p/>
+     * IPv6 addresses are cached by their prefix of the given length, so
+     * clients rotating through privacy addresses share a single entry. If the
+     * configuration has ranges beginning within such a prefix, the prefix is
+     * lengthened as needed to keep the lookups exact.
+     * <p/>
+     * Batch lookups by {@link #mapIPHosts(IPAddress[])} bypass the cache.
+     * 
+     * @param capacity
+     *            the maximum number of cached addresses, or 0 to disable the
+     *            cache.
+     * @param ipv6PrefixLength
+     *            the length of the prefix to cache IPv6 addresses by, between
+     *            0 and 128.
+     * @throws IllegalArgumentException
+     *             if <code>capacity</code> is negative or
+     *             <code>ipv6PrefixLength</code> is out of range.
+     */
+    public static synchronized void setAddressCache(int capacity,
+            int ipv6PrefixLength) throws IllegalArgumentException {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal cache capacity: "
+                    + capacity);
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException("Illegal IPv6 prefix length: "
+                    + ipv6PrefixLength);
+        }
+        addressCacheCapacity = capacity;
+        addressCacheIPv6PrefixLength = ipv6PrefixLength;
+    }
+
+    /**
+     * Get the hit, miss and eviction counters of the address cache. The
+     * counters are kept across (re-)initialisations of the internal database.
+     * 
+     * @return the counters of the address cache.
+     */
+    public static AddressCacheStatistics getAddressCacheStatistics() {
+        return addressCacheStatistics;
+    }
+
+    /**
+     * Get the generation number of the internal database. The number is
+     * increased every time the database is (re-)initialised, and is 0 before
+     * the first initialisation.
+     * 
+     * @return the generation number of the internal database.
+     */
+    public static long getGeneration() {
+        return snapshot.getGeneration();
+    }
+
+    /**
+     * (re-)initialise the internal database over IP ranges and roles, using
+     * the default lookup engine. This method should only be called for the
+     * initial initialisation and if the configuration changes.
+     * 
+     * @param ranges
+     *            a list of IP range and role information to initialise the
+     *            database with.
+     */
+    public static void init(List<IPRangeRoles> ranges) {
+        init(ranges, LookupEngine.SEGMENT_TABLE);
     }
 
     /**
      * (re-)initialise the internal database over IP ranges and roles. This
      * method should only be called for the initial initialisation and if the
      * configuration changes.
+     * <p/>
+     * The new database is built while the current one is still in use, and is
+     * published once it is complete. Concurrent calls of this method are
+     * serialised.
      * 
      * @param ranges
      *            a list of IP range and role information to initialise the
      *            database with.
+     * @param lookupEngine
+     *            the engine to use for looking up the roles of addresses.
      */
-    public static synchronized void init(List<IPRangeRoles> ranges) {
+    public static synchronized void init(List<IPRangeRoles> ranges,
+            LookupEngine lookupEngine) {
 
         if (log.isTraceEnabled()) {
             log.trace("init(): Called with IPRangeRoles: " + ranges);
         }
-        startAddrRangeMapList = new TreeMap<InetAddress, LinkedList<IPRangeRoles>>(
-                new InetAddressComparator());
-
-        roleIPRangeMapList = new TreeMap<String, LinkedList<IPRange>>();
-
-        for (IPRangeRoles range : ranges) {
-
-            // Add the range to the start IP address -> IPRangeRoles map.
-            LinkedList<IPRangeRoles> rangeList = startAddrRangeMapList
-                    .get(range.getBeginAddress());
-
-            if (rangeList == null) {
-                // No ranges with this begin address have been registered
-                // earlier. Create a container for them.
-                rangeList = new LinkedList<IPRangeRoles>();
-                startAddrRangeMapList.put(range.getBeginAddress(), rangeList);
-            }
-            rangeList.add(range);
-
-            // Associate the range with all its roles in the role -> IPRange
-            // map.
-            for (String roleName : range.getRoles()) {
-
-                LinkedList<IPRange> roleRanges = roleIPRangeMapList
-                        .get(roleName);
-
-                if (roleRanges == null) {
-                    // There has not previously been associated any ranges with
-                    // this role name. Create a new list.
-                    roleRanges = new LinkedList<IPRange>();
-                    roleIPRangeMapList.put(roleName, roleRanges);
-                }
-                roleRanges.add(range);
-            }
-        }// end-for
+        final MappingSnapshot newSnapshot = new MappingSnapshot(snapshot
+                .getGeneration() + 1, ranges, lookupEngine);
+        createAddressCache(newSnapshot);
+        snapshot = newSnapshot;
+        log.info("init(): Published generation "
+                + newSnapshot.getGeneration() + ". "
+                + newSnapshot.getDescription());
 
         if (log.isTraceEnabled()) {
             log.trace("init(): Finished initialisation. Exiting.");
         }
     }
+
+    /**
+     * Write the current internal database to the snapshot file specified by
+     * <code>snapshotFile</code>, so it can later be restored by
+     * {@link #initFromSnapshot(File, byte[], LookupEngine)} without parsing
+     * and compiling the configuration again. The file is replaced atomically.
+     * 
+     * @param snapshotFile
+     *            the file to write the snapshot to.
+     * @param sourceDigest
+     *            the digest of the configuration the database was initialised
+     *            from. It is stored in the snapshot, so it can be verified
+     *            that the snapshot matches the configuration when it is
+     *            restored.
+     * @throws IOException
+     *             if the snapshot cannot be written.
+     */
+    public static void saveSnapshot(File snapshotFile, byte[] sourceDigest)
+            throws IOException {
+
+        final MappingSnapshot currentSnapshot = snapshot;
+        final long writeStart = System.nanoTime();
+        SnapshotFile.write(currentSnapshot, sourceDigest, snapshotFile);
+        log.info("saveSnapshot(): Wrote generation "
+                + currentSnapshot.getGeneration() + " to " + snapshotFile
+                + " (" + snapshotFile.length() + " bytes) in "
+                + (System.nanoTime() - writeStart) / 1000000 + " ms.");
+    }
+
+    /**
+     * (re-)initialise the internal database from the snapshot file specified
+     * by <code>snapshotFile</code>, which has been written by
+     * {@link #saveSnapshot(File, byte[])}.
+     * 
+     * @param snapshotFile
+     *            the snapshot file to initialise the database from.
+     * @param sourceDigest
+     *            the digest of the configuration the snapshot must have been
+     *            written from, or <code>null</code> if any snapshot will do.
+     * @param lookupEngine
+     *            the engine to use for looking up the roles of addresses. If
+     *            it is {@link LookupEngine#MAPPED_SNAPSHOT}, the snapshot file
+     *            is memory-mapped and lookups are served directly from it. A
+     *            newer snapshot file must be renamed onto
+     *            <code>snapshotFile</code> (as
+     *            {@link #saveSnapshot(File, byte[])} does), and this method
+     *            called again to map it.
+     * @return <code>true</code> if the database was initialised and
+     *         <code>false</code> if the snapshot was written from another
+     *         configuration than specified by <code>sourceDigest</code>.
+     * @throws IOException
+     *             if the snapshot file cannot be read or is corrupt.
+     */
+    public static synchronized boolean initFromSnapshot(File snapshotFile,
+            byte[] sourceDigest, LookupEngine lookupEngine) throws IOException {
+
+        if (log.isTraceEnabled()) {
+            log.trace("initFromSnapshot(): Called with snapshot file: "
+                    + snapshotFile);
+        }
+
+        // Compare the digest in the header before reading or mapping the
+        // rest of a snapshot, which would be thrown away on a mismatch.
+        if (sourceDigest != null
+                && !Arrays.equals(sourceDigest, SnapshotFile
+                        .readSourceDigest(snapshotFile))) {
+            log.info("initFromSnapshot(): The snapshot " + snapshotFile
+                    + " was written from another configuration. Ignoring it.");
+            return false;
+        }
+
+        final SnapshotFile snapshotContents = (lookupEngine == LookupEngine.MAPPED_SNAPSHOT) ? SnapshotFile
+                .map(snapshotFile)
+                : SnapshotFile.read(snapshotFile);
+
+        final MappingSnapshot newSnapshot = new MappingSnapshot(snapshot
+                .getGeneration() + 1, snapshotContents.getRanges(),
+                snapshotContents.getSegmentTables(), lookupEngine);
+        createAddressCache(newSnapshot);
+        snapshot = newSnapshot;
+        log.info("initFromSnapshot(): Published generation "
+                + newSnapshot.getGeneration() + " from " + snapshotFile
+                + ". " + newSnapshot.getDescription());
+        return true;
+    }
+
+    /**
+     * Give <code>newSnapshot</code> an empty address cache, if the cache is
+     * enabled.
+     */
+    private static void createAddressCache(MappingSnapshot newSnapshot) {
+        if (addressCacheCapacity > 0) {
+            newSnapshot.createAddressCache(addressCacheCapacity,
+                    addressCacheIPv6PrefixLength, addressCacheStatistics);
+        }
+    }
 }
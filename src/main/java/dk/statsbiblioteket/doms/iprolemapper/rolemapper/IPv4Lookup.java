@@ -0,0 +1,66 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * Common interface of the structures capable of looking up the roles of an
+ * IPv4 address.
+ */
+interface IPv4Lookup {
+
+    /**
+     * Get the roles of all the ranges covering <code>address</code>.
+     * 
+     * @param address
+     *            the IPv4 address to look up, as an unsigned <code>int</code>.
+     * @return the shared role set of the address.
+     */
+    RoleSet lookup(int address);
+
+    /**
+     * Get the roles of each of the addresses specified by
+     * <code>sortedAddresses</code>, which must be in ascending (unsigned)
+     * order. Implementations may exploit the order to resolve all the
+     * addresses in a single pass, whereas this default implementation looks
+     * up each address on its own.
+     * 
+     * @param sortedAddresses
+     *            the IPv4 addresses to look up, as unsigned <code>int</code>
+     *            values in ascending order.
+     * @param count
+     *            the number of addresses to look up.
+     * @param results
+     *            the array receiving the role set of
+     *            <code>sortedAddresses[n]</code> at <code>results[n]</code>.
+     */
+    default void lookupSorted(int[] sortedAddresses, int count,
+            RoleSet[] results) {
+        for (int addressIdx = 0; addressIdx < count; addressIdx++) {
+            results[addressIdx] = lookup(sortedAddresses[addressIdx]);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * Segment table for IPv4 addresses. The begin address of each segment is kept
+ * in a primitive <code>int</code> array, so lookups neither allocate nor
+ * follow any references until the matching segment has been found.
+ */
+class IPv4SegmentIndex implements IPv4Lookup {
+
+    /**
+     * The (unsigned) begin address of each segment in ascending order. The
+     * first segment always begins at 0.0.0.0.
+     */
+    private final int[] segmentBegins;
+
+    private final RoleSet[] segmentRoles;
+
+    /**
+     * Create an index from the segment table produced by
+     * <code>segmentBuilder</code>.
+     * 
+     * @param segmentBuilder
+     *            a builder which has built a table of IPv4 segments.
+     */
+    IPv4SegmentIndex(SegmentBuilder segmentBuilder) {
+        this(toSegmentBegins(segmentBuilder), segmentBuilder.getSegmentRoles());
+    }
+
+    /**
+     * Create an index from a segment table given by its begin addresses and
+     * roles.
+     * 
+     * @param segmentBegins
+     *            the (unsigned) begin address of each segment in ascending
+     *            order, beginning at 0.0.0.0. The array must not be modified
+     *            afterwards.
+     * @param segmentRoles
+     *            the roles of each segment.
+     */
+    IPv4SegmentIndex(int[] segmentBegins, RoleSet[] segmentRoles) {
+        this.segmentBegins = segmentBegins;
+        this.segmentRoles = segmentRoles;
+    }
+
+    /**
+     * @return the begin addresses of the IPv4 segments built by
+     *         <code>segmentBuilder</code>, as unsigned <code>int</code>
+     *         values.
+     */
+    static int[] toSegmentBegins(SegmentBuilder segmentBuilder) {
+        final long[] beginLows = segmentBuilder.getSegmentBeginLows();
+        final int[] segmentBegins = new int[beginLows.length];
+        for (int segmentIdx = 0; segmentIdx < beginLows.length; segmentIdx++) {
+            segmentBegins[segmentIdx] = (int) beginLows[segmentIdx];
+        }
+        return segmentBegins;
+    }
+
+    @Override
+    public RoleSet lookup(int address) {
+
+        // Binary search for the last segment beginning at or before the
+        // address. The first segment begins at the lowest address, so there
+        // is always a match.
+        int low = 1;
+        int high = segmentBegins.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (Integer.compareUnsigned(segmentBegins[middle], address) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return segmentRoles[high];
+    }
+
+    /**
+     * Resolve the sorted addresses in a single merge pass over the segments.
+     * The search for the segment of each address starts at the segment of the
+     * previous address, and gallops forward before narrowing the search down
+     * by binary search, so sparse addresses do not visit every segment.
+     */
+    @Override
+    public void lookupSorted(int[] sortedAddresses, int count,
+            RoleSet[] results) {
+        int segmentIdx = 0;
+        for (int addressIdx = 0; addressIdx < count; addressIdx++) {
+            final int address = sortedAddresses[addressIdx];
+
+            int step = 1;
+            int lowIdx = segmentIdx;
+            while (lowIdx + step < segmentBegins.length
+                    && Integer.compareUnsigned(segmentBegins[lowIdx + step],
+                            address) <= 0) {
+                lowIdx += step;
+                step <<= 1;
+            }
+
+            // The last segment beginning at or before the address is in
+            // [lowIdx, highIdx].
+            int highIdx = Math.min(lowIdx + step, segmentBegins.length) - 1;
+            lowIdx++;
+            while (lowIdx <= highIdx) {
+                final int middle = (lowIdx + highIdx) >>> 1;
+                if (Integer.compareUnsigned(segmentBegins[middle], address) <= 0) {
+                    lowIdx = middle + 1;
+                } else {
+                    highIdx = middle - 1;
+                }
+            }
+            segmentIdx = highIdx;
+            results[addressIdx] = segmentRoles[segmentIdx];
+        }
+    }
+
+    /**
+     * @return the number of segments in this index.
+     */
+    int size() {
+        return segmentBegins.length;
+    }
+}
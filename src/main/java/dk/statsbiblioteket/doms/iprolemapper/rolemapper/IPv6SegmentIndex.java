@@ -0,0 +1,142 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * Segment table for IPv6 addresses. The begin address of each segment is kept
+ * as its high and low 64 bits in two primitive <code>long</code> arrays, so
+ * lookups neither allocate nor follow any references until the matching
+ * segment has been found.
+ */
+class IPv6SegmentIndex implements IPv6Lookup {
+
+    /**
+     * The high and low 64 bits of the begin address of each segment in
+     * ascending order. The first segment always begins at <code>::</code>.
+     */
+    private final long[] segmentBeginHighs;
+    private final long[] segmentBeginLows;
+
+    private final RoleSet[] segmentRoles;
+
+    /**
+     * Create an index from the segment table produced by
+     * <code>segmentBuilder</code>.
+     * 
+     * @param segmentBuilder
+     *            a builder which has built a table of IPv6 segments.
+     */
+    IPv6SegmentIndex(SegmentBuilder segmentBuilder) {
+        segmentBeginHighs = segmentBuilder.getSegmentBeginHighs();
+        segmentBeginLows = segmentBuilder.getSegmentBeginLows();
+        segmentRoles = segmentBuilder.getSegmentRoles();
+    }
+
+    @Override
+    public RoleSet lookup(long high, long low) {
+
+        // Binary search for the last segment beginning at or before the
+        // address. The first segment begins at the lowest address, so there
+        // is always a match.
+        int lowIdx = 1;
+        int highIdx = segmentBeginHighs.length - 1;
+        while (lowIdx <= highIdx) {
+            final int middle = (lowIdx + highIdx) >>> 1;
+            if (AddressKeys.compare(segmentBeginHighs[middle],
+                    segmentBeginLows[middle], high, low) <= 0) {
+                lowIdx = middle + 1;
+            } else {
+                highIdx = middle - 1;
+            }
+        }
+        return segmentRoles[highIdx];
+    }
+
+    /**
+     * Resolve the sorted addresses in a single merge pass over the segments.
+     * The search for the segment of each address starts at the segment of the
+     * previous address, and gallops forward before narrowing the search down
+     * by binary search, so sparse addresses do not visit every segment.
+     */
+    @Override
+    public void lookupSorted(long[] sortedHighs, long[] sortedLows,
+            int count, RoleSet[] results) {
+        final int segmentCount = segmentBeginHighs.length;
+        int segmentIdx = 0;
+        for (int addressIdx = 0; addressIdx < count; addressIdx++) {
+            final long high = sortedHighs[addressIdx];
+            final long low = sortedLows[addressIdx];
+
+            int step = 1;
+            int lowIdx = segmentIdx;
+            while (lowIdx + step < segmentCount
+                    && AddressKeys.compare(segmentBeginHighs[lowIdx + step],
+                            segmentBeginLows[lowIdx + step], high, low) <= 0) {
+                lowIdx += step;
+                step <<= 1;
+            }
+
+            // The last segment beginning at or before the address is in
+            // [lowIdx, highIdx].
+            int highIdx = Math.min(lowIdx + step, segmentCount) - 1;
+            lowIdx++;
+            while (lowIdx <= highIdx) {
+                final int middle = (lowIdx + highIdx) >>> 1;
+                if (AddressKeys.compare(segmentBeginHighs[middle],
+                        segmentBeginLows[middle], high, low) <= 0) {
+                    lowIdx = middle + 1;
+                } else {
+                    highIdx = middle - 1;
+                }
+            }
+            segmentIdx = highIdx;
+            results[addressIdx] = segmentRoles[segmentIdx];
+        }
+    }
+
+    /**
+     * @return the length of the shortest prefix which all the segments of this
+     *         index begin on a boundary of. Addresses sharing a prefix of at
+     *         least this length are always in the same segment.
+     */
+    int getBoundaryPrefixLength() {
+        int boundaryPrefixLength = 0;
+        for (int segmentIdx = 0; segmentIdx < segmentBeginHighs.length; segmentIdx++) {
+            boundaryPrefixLength = Math.max(boundaryPrefixLength, AddressKeys
+                    .getAlignment(segmentBeginHighs[segmentIdx],
+                            segmentBeginLows[segmentIdx]));
+        }
+        return boundaryPrefixLength;
+    }
+
+    /**
+     * @return the number of segments in this index.
+     */
+    int size() {
+        return segmentBeginHighs.length;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+/**
+ * The lookup engines available for mapping addresses to roles.
+ */
+public enum LookupEngine {
+
+    /**
+     * Binary search in sorted tables of non-overlapping segments. This is the
+     * default engine. It has a small memory footprint and is fast to build.
+     */
+    SEGMENT_TABLE,
+
+    /**
+     * DIR-24-8 style direct-indexed table for IPv4 addresses, which needs at
+     * most two array reads per lookup. The table occupies 32 MB plus 512
+     * bytes per /24 block split between several role sets, regardless of the
+     * size of the configuration. IPv6 addresses are looked up in the segment
+     * table.
+     */
+    DIR_24_8,
+
+    /**
+     * Segment table for IPv4 addresses stored in Eytzinger (breadth-first)
+     * order, where the upper levels of the search tree share a few cache
+     * lines. It takes about twice the memory of the IPv4 part of
+     * {@link #SEGMENT_TABLE}, and is about twice as fast for tables of
+     * hundreds to a few hundred thousand IPv4 segments. Larger tables are
+     * faster with {@link #SEGMENT_TABLE} or {@link #DIR_24_8}. IPv6 addresses
+     * are looked up in the segment table.
+     */
+    EYTZINGER_TABLE,
+
+    /**
+     * Decision tree of comparisons against the IPv4 segment begins, generated
+     * as the bytecode of a class of its own when the mapper is
+     * (re-)initialised, so the JIT compiles the segment table into
+     * instructions with the begins as immediate values. Lookups of recurring
+     * addresses, whose branches the CPU learns to predict, are faster than
+     * with any of the table engines, whereas lookups of random addresses are
+     * slower than with {@link #EYTZINGER_TABLE}. Generating and loading the
+     * class takes some tens of milliseconds. Configurations of more than
+     * 16384 IPv4 segments use the segment table instead, and so do IPv6
+     * addresses. This engine is never selected by {@link #AUTO}.
+     */
+    COMPILED_TREE,
+
+    /**
+     * Open-addressing hash tables of the single host ranges (ranges whose
+     * begin and end addresses are equal), for both IPv4 and IPv6 addresses,
+     * in front of segment tables of the remaining ranges. A host is answered
+     * by a single hash probe, with the roles of the ranges covering it
+     * included, and any other address by a probe which misses and a binary
+     * search in a segment table which the hosts no longer inflate. This suits
+     * configurations consisting mostly of single hosts.
+     */
+    HOST_HASH,
+
+    /**
+     * Path-compressed binary tries over the CIDR prefixes of the ranges, for
+     * both IPv4 and IPv6 addresses. A lookup walks at most 32 or 128 bits
+     * regardless of the number of ranges, which suits configurations of
+     * mostly CIDR-aligned ranges, in particular IPv6 ones.
+     */
+    PREFIX_TRIE,
+
+    /**
+     * Binary search in the segment tables of a snapshot file (see
+     * {@link IPRoleMapper#saveSnapshot(java.io.File, byte[])}), which is
+     * memory-mapped read-only instead of being copied onto the heap. The
+     * tables live in the page cache of the operating system, so they are
+     * shared by all the JVMs of a host mapping the same file, and are not
+     * subject to garbage collection. Only the role sets and the ranges used by
+     * {@link IPRoleMapper#mapRoles(java.util.Set)} are kept on the heap.
+     * <p/>
+     * The engine is only used when the mapper is initialised from a snapshot
+     * file. Otherwise the on-heap segment table is used.
+     */
+    MAPPED_SNAPSHOT,
+
+    /**
+     * One of {@link #SEGMENT_TABLE}, {@link #DIR_24_8},
+     * {@link #EYTZINGER_TABLE}, {@link #HOST_HASH} and {@link #PREFIX_TRIE},
+     * selected every time the mapper is (re-)initialised from the size and
+     * shape of the configuration: the number of segments of each address
+     * family, how CIDR-aligned the ranges are, how many of them are single
+     * hosts and how many /24 blocks they split. See
+     * {@link ConfigurationProfile} for the rules. The selected engine and the
+     * figures it was selected from are included in
+     * {@link IPRoleMapper#getIndexDescription()}.
+     * <p/>
+     * This engine must be selected explicitly, as it may select the
+     * {@link #DIR_24_8} table and its 32 MB or more of heap, which is
+     * otherwise opt-in. {@link #SEGMENT_TABLE} is the default.
+     */
+    AUTO
+}
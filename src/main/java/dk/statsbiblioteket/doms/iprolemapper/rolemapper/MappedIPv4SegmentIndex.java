@@ -0,0 +1,163 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Segment table for IPv4 addresses, which is read directly from a (memory
+ * mapped) buffer holding the segments of a snapshot file. Each segment is
+ * stored as a record of its (unsigned) begin address and the index of its role
+ * set, both as big-endian <code>int</code> values.
+ * <p/>
+ * The buffer is only read using absolute positions, which never changes its
+ * state, so it can safely be shared by any number of threads.
+ */
+class MappedIPv4SegmentIndex implements IPv4Lookup {
+
+    /**
+     * The number of bytes per segment record.
+     */
+    static final int RECORD_SIZE = 8;
+
+    private final ByteBuffer segments;
+    private final int offset;
+    private final int segmentCount;
+    private final RoleSet[] roleSets;
+
+    /**
+     * Create an index over the segment records starting at position
+     * <code>offset</code> of <code>segments</code>.
+     * 
+     * @param segments
+     *            the buffer holding the segment records. It must not be
+     *            modified afterwards.
+     * @param offset
+     *            the position of the first segment record.
+     * @param segmentCount
+     *            the number of segment records.
+     * @param roleSets
+     *            the role sets referenced by the segment records.
+     * @throws IllegalArgumentException
+     *             if the segments are not ascending from the lowest address,
+     *             or refer to unknown role sets.
+     */
+    MappedIPv4SegmentIndex(ByteBuffer segments, int offset, int segmentCount,
+            RoleSet[] roleSets) throws IllegalArgumentException {
+        this.segments = segments;
+        this.offset = offset;
+        this.segmentCount = segmentCount;
+        this.roleSets = roleSets;
+
+        if (segmentCount == 0 || segments.getInt(offset) != 0) {
+            throw new IllegalArgumentException("The first segment must begin "
+                    + "at the lowest address.");
+        }
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            final int recordOffset = offset + segmentIdx * RECORD_SIZE;
+            if (segmentIdx > 0
+                    && Integer.compareUnsigned(segments.getInt(recordOffset
+                            - RECORD_SIZE), segments.getInt(recordOffset)) >= 0) {
+                throw new IllegalArgumentException("The begin address of "
+                        + "segment " + segmentIdx + " is out of order.");
+            }
+            final int roleSetIdx = segments.getInt(recordOffset + 4);
+            if (roleSetIdx < 0 || roleSetIdx >= roleSets.length) {
+                throw new IllegalArgumentException("Segment " + segmentIdx
+                        + " refers to an unknown role set: " + roleSetIdx);
+            }
+        }
+    }
+
+    @Override
+    public RoleSet lookup(int address) {
+
+        // Binary search for the last segment beginning at or before the
+        // address. The first segment begins at the lowest address, so there
+        // is always a match.
+        int low = 1;
+        int high = segmentCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (Integer.compareUnsigned(segments.getInt(offset + middle
+                    * RECORD_SIZE), address) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return roleSets[segments.getInt(offset + high * RECORD_SIZE + 4)];
+    }
+
+    /**
+     * Resolve the sorted addresses in a single merge pass over the segments.
+     * The search for the segment of each address starts at the segment of the
+     * previous address, and gallops forward before narrowing the search down
+     * by binary search, so sparse addresses do not visit every segment.
+     */
+    @Override
+    public void lookupSorted(int[] sortedAddresses, int count,
+            RoleSet[] results) {
+        int segmentIdx = 0;
+        for (int addressIdx = 0; addressIdx < count; addressIdx++) {
+            final int address = sortedAddresses[addressIdx];
+
+            int step = 1;
+            int lowIdx = segmentIdx;
+            while (lowIdx + step < segmentCount
+                    && Integer.compareUnsigned(segments.getInt(offset
+                            + (lowIdx + step) * RECORD_SIZE), address) <= 0) {
+                lowIdx += step;
+                step <<= 1;
+            }
+
+            // The last segment beginning at or before the address is in
+            // [lowIdx, highIdx].
+            int highIdx = Math.min(lowIdx + step, segmentCount) - 1;
+            lowIdx++;
+            while (lowIdx <= highIdx) {
+                final int middle = (lowIdx + highIdx) >>> 1;
+                if (Integer.compareUnsigned(segments.getInt(offset + middle
+                        * RECORD_SIZE), address) <= 0) {
+                    lowIdx = middle + 1;
+                } else {
+                    highIdx = middle - 1;
+                }
+            }
+            segmentIdx = highIdx;
+            results[addressIdx] = roleSets[segments.getInt(offset
+                    + segmentIdx * RECORD_SIZE + 4)];
+        }
+    }
+
+    /**
+     * @return the number of segments in this index.
+     */
+    int size() {
+        return segmentCount;
+    }
+}
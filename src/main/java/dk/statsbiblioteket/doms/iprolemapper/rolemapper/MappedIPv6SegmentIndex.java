@@ -0,0 +1,194 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Segment table for IPv6 addresses, which is read directly from a (memory
+ * mapped) buffer holding the segments of a snapshot file. Each segment is
+ * stored as a record of the high and low 64 bits of its begin address as
+ * big-endian <code>long</code> values, followed by the index of its role set
+ * as a big-endian <code>int</code>.
+ * <p/>
+ * The buffer is only read using absolute positions, which never changes its
+ * state, so it can safely be shared by any number of threads.
+ */
+class MappedIPv6SegmentIndex implements IPv6Lookup {
+
+    /**
+     * The number of bytes per segment record.
+     */
+    static final int RECORD_SIZE = 20;
+
+    private final ByteBuffer segments;
+    private final int offset;
+    private final int segmentCount;
+    private final RoleSet[] roleSets;
+
+    /**
+     * Create an index over the segment records starting at position
+     * <code>offset</code> of <code>segments</code>.
+     * 
+     * @param segments
+     *            the buffer holding the segment records. It must not be
+     *            modified afterwards.
+     * @param offset
+     *            the position of the first segment record.
+     * @param segmentCount
+     *            the number of segment records.
+     * @param roleSets
+     *            the role sets referenced by the segment records.
+     * @throws IllegalArgumentException
+     *             if the segments are not ascending from the lowest address,
+     *             or refer to unknown role sets.
+     */
+    MappedIPv6SegmentIndex(ByteBuffer segments, int offset, int segmentCount,
+            RoleSet[] roleSets) throws IllegalArgumentException {
+        this.segments = segments;
+        this.offset = offset;
+        this.segmentCount = segmentCount;
+        this.roleSets = roleSets;
+
+        if (segmentCount == 0 || segments.getLong(offset) != 0
+                || segments.getLong(offset + 8) != 0) {
+            throw new IllegalArgumentException("The first segment must begin "
+                    + "at the lowest address.");
+        }
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            final int recordOffset = offset + segmentIdx * RECORD_SIZE;
+            if (segmentIdx > 0
+                    && AddressKeys.compare(segments.getLong(recordOffset
+                            - RECORD_SIZE), segments.getLong(recordOffset
+                            - RECORD_SIZE + 8), segments.getLong(recordOffset),
+                            segments.getLong(recordOffset + 8)) >= 0) {
+                throw new IllegalArgumentException("The begin address of "
+                        + "segment " + segmentIdx + " is out of order.");
+            }
+            final int roleSetIdx = segments.getInt(recordOffset + 16);
+            if (roleSetIdx < 0 || roleSetIdx >= roleSets.length) {
+                throw new IllegalArgumentException("Segment " + segmentIdx
+                        + " refers to an unknown role set: " + roleSetIdx);
+            }
+        }
+    }
+
+    @Override
+    public RoleSet lookup(long high, long low) {
+
+        // Binary search for the last segment beginning at or before the
+        // address. The first segment begins at the lowest address, so there
+        // is always a match.
+        int lowIdx = 1;
+        int highIdx = segmentCount - 1;
+        while (lowIdx <= highIdx) {
+            final int middle = (lowIdx + highIdx) >>> 1;
+            final int recordOffset = offset + middle * RECORD_SIZE;
+            if (AddressKeys.compare(segments.getLong(recordOffset), segments
+                    .getLong(recordOffset + 8), high, low) <= 0) {
+                lowIdx = middle + 1;
+            } else {
+                highIdx = middle - 1;
+            }
+        }
+        return roleSets[segments.getInt(offset + highIdx * RECORD_SIZE + 16)];
+    }
+
+    /**
+     * Resolve the sorted addresses in a single merge pass over the segments.
+     * The search for the segment of each address starts at the segment of the
+     * previous address, and gallops forward before narrowing the search down
+     * by binary search, so sparse addresses do not visit every segment.
+     */
+    @Override
+    public void lookupSorted(long[] sortedHighs, long[] sortedLows,
+            int count, RoleSet[] results) {
+        int segmentIdx = 0;
+        for (int addressIdx = 0; addressIdx < count; addressIdx++) {
+            final long high = sortedHighs[addressIdx];
+            final long low = sortedLows[addressIdx];
+
+            int step = 1;
+            int lowIdx = segmentIdx;
+            while (lowIdx + step < segmentCount
+                    && compareSegmentBegin(lowIdx + step, high, low) <= 0) {
+                lowIdx += step;
+                step <<= 1;
+            }
+
+            // The last segment beginning at or before the address is in
+            // [lowIdx, highIdx].
+            int highIdx = Math.min(lowIdx + step, segmentCount) - 1;
+            lowIdx++;
+            while (lowIdx <= highIdx) {
+                final int middle = (lowIdx + highIdx) >>> 1;
+                if (compareSegmentBegin(middle, high, low) <= 0) {
+                    lowIdx = middle + 1;
+                } else {
+                    highIdx = middle - 1;
+                }
+            }
+            segmentIdx = highIdx;
+            results[addressIdx] = roleSets[segments.getInt(offset
+                    + segmentIdx * RECORD_SIZE + 16)];
+        }
+    }
+
+    /**
+     * Compare the begin address of the segment specified by
+     * <code>segmentIdx</code> with the address specified by <code>high</code>
+     * and <code>low</code>.
+     */
+    private int compareSegmentBegin(int segmentIdx, long high, long low) {
+        final int recordOffset = offset + segmentIdx * RECORD_SIZE;
+        return AddressKeys.compare(segments.getLong(recordOffset), segments
+                .getLong(recordOffset + 8), high, low);
+    }
+
+    /**
+     * @return the length of the shortest prefix which all the segments of this
+     *         index begin on a boundary of. Addresses sharing a prefix of at
+     *         least this length are always in the same segment.
+     */
+    int getBoundaryPrefixLength() {
+        int boundaryPrefixLength = 0;
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            final int recordOffset = offset + segmentIdx * RECORD_SIZE;
+            boundaryPrefixLength = Math.max(boundaryPrefixLength, AddressKeys
+                    .getAlignment(segments.getLong(recordOffset), segments
+                            .getLong(recordOffset + 8)));
+        }
+        return boundaryPrefixLength;
+    }
+
+    /**
+     * @return the number of segments in this index.
+     */
+    int size() {
+        return segmentCount;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of all the mapping information built from a single
+ * configuration. A snapshot is built completely before it is published by
+ * {@link IPRoleMapper}, and is never modified afterwards, so it can be read by
+ * any number of threads without synchronisation.
+ * <p/>
+ * A snapshot may have an {@link AddressCache} of its own, which is created
+ * empty before the snapshot is published. Publishing a new snapshot thus
+ * drops the cached lookups of the previous configuration along with it.
+ */
+final class MappingSnapshot {
+
+    /**
+     * The maximum number of role sets of more than one role to memoize the
+     * mapped ranges of.
+     */
+    private static final int MAPPED_ROLES_CACHE_SIZE = 256;
+
+    private final long generation;
+    private final SegmentIndex segmentIndex;
+
+    /**
+     * The cache in front of the segment index, or <code>null</code> if
+     * lookups go directly to the index. Only assigned before the snapshot is
+     * published.
+     */
+    private AddressCache addressCache;
+
+    /**
+     * All the ranges of the configuration this snapshot was built from.
+     */
+    private final List<IPRangeRoles> ranges;
+
+    /**
+     * Map from all known role names to the merged ranges associated with them.
+     * See {@link RangeMerger} for the order of the ranges.
+     */
+    private final Map<String, List<IPRange>> roleRanges;
+
+    /**
+     * Map from all known role names to the merged ranges associated with them,
+     * as returned by {@link #mapRoles(Set)} for the role alone.
+     */
+    private final Map<String, Set<IPRange>> roleRangeSets;
+
+    /**
+     * The mapped ranges of the first mapped role sets of more than one role,
+     * keyed by the known roles of the sets. Once full, further role sets are
+     * merged on every call, without taking any locks.
+     */
+    private final Map<SortedSet<String>, Set<IPRange>> mappedRolesCache = new ConcurrentHashMap<SortedSet<String>, Set<IPRange>>();
+
+    /**
+     * Build a snapshot from the IP ranges specified by <code>ranges</code>.
+     * 
+     * @param generation
+     *            the generation number of the snapshot. Each published
+     *            snapshot has a higher number than the previous one.
+     * @param ranges
+     *            the IP ranges and associated roles to build the snapshot
+     *            from.
+     * @param lookupEngine
+     *            the engine to use for looking up the roles of addresses.
+     */
+    MappingSnapshot(long generation, List<IPRangeRoles> ranges,
+            LookupEngine lookupEngine) {
+        this(generation, ranges, SegmentTables.compile(ranges), lookupEngine);
+    }
+
+    /**
+     * Build a snapshot from the IP ranges specified by <code>ranges</code>,
+     * which have already been compiled into the segment tables specified by
+     * <code>segmentTables</code>.
+     * 
+     * @param generation
+     *            the generation number of the snapshot. Each published
+     *            snapshot has a higher number than the previous one.
+     * @param ranges
+     *            the IP ranges and associated roles to build the snapshot
+     *            from.
+     * @param segmentTables
+     *            the segment tables built from <code>ranges</code>.
+     * @param lookupEngine
+     *            the engine to use for looking up the roles of addresses.
+     */
+    MappingSnapshot(long generation, List<IPRangeRoles> ranges,
+            SegmentTables segmentTables, LookupEngine lookupEngine) {
+
+        this.generation = generation;
+        // A copy, so the caller cannot change the snapshot through its list.
+        this.ranges = List.copyOf(ranges);
+
+        final Map<String, List<IPRange>> newRoleRanges = new TreeMap<String, List<IPRange>>();
+        for (IPRangeRoles range : ranges) {
+
+            // Associate the range with all its roles in the role -> IPRange
+            // map.
+            for (String roleName : range.getRoles()) {
+
+                List<IPRange> rangesOfRole = newRoleRanges.get(roleName);
+                if (rangesOfRole == null) {
+                    // There has not previously been associated any ranges with
+                    // this role name. Create a new list.
+                    rangesOfRole = new ArrayList<IPRange>();
+                    newRoleRanges.put(roleName, rangesOfRole);
+                }
+                rangesOfRole.add(range);
+            }
+        }
+        // Merge the ranges of each role up front, so mapping roles to ranges
+        // only has to merge the already merged lists of the roles.
+        final Map<String, Set<IPRange>> newRoleRangeSets = new TreeMap<String, Set<IPRange>>();
+        for (Map.Entry<String, List<IPRange>> roleRangesEntry : newRoleRanges
+                .entrySet()) {
+            final List<IPRange> mergedRanges = RangeMerger
+                    .merge(roleRangesEntry.getValue());
+            roleRangesEntry.setValue(mergedRanges);
+            newRoleRangeSets.put(roleRangesEntry.getKey(), Collections
+                    .unmodifiableSet(new LinkedHashSet<IPRange>(mergedRanges)));
+        }
+        roleRanges = Collections.unmodifiableMap(newRoleRanges);
+        roleRangeSets = Collections.unmodifiableMap(newRoleRangeSets);
+
+        segmentIndex = new SegmentIndex(ranges, segmentTables, lookupEngine);
+    }
+
+    /**
+     * @return the generation number of this snapshot.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the index for looking up the roles of addresses.
+     */
+    SegmentIndex getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    /**
+     * Put an empty address cache in front of the segment index of this
+     * snapshot. This must be done before the snapshot is published.
+     * 
+     * @param capacity
+     *            the maximum number of cached addresses.
+     * @param ipv6PrefixLength
+     *            the length of the prefix to key IPv6 addresses by.
+     * @param statistics
+     *            the counters to record the hits, misses and evictions of the
+     *            cache in.
+     * @throws IllegalArgumentException
+     *             if <code>capacity</code> is not positive or
+     *             <code>ipv6PrefixLength</code> is not between 0 and 128.
+     */
+    void createAddressCache(int capacity, int ipv6PrefixLength,
+            AddressCacheStatistics statistics) throws IllegalArgumentException {
+        addressCache = new AddressCache(segmentIndex, capacity,
+                ipv6PrefixLength, statistics);
+    }
+
+    /**
+     * Get the roles of all the ranges covering <code>ipAddress</code>, from
+     * the address cache if this snapshot has one.
+     * 
+     * @param ipAddress
+     *            the address to look up.
+     * @return the shared role set of the address, which is empty if no ranges
+     *         cover <code>ipAddress</code>.
+     */
+    RoleSet lookup(IPAddress ipAddress) {
+        final AddressCache cache = addressCache;
+        return (cache == null) ? segmentIndex.lookup(ipAddress) : cache
+                .lookup(ipAddress);
+    }
+
+    /**
+     * @return <code>true</code> if this snapshot has an address cache.
+     */
+    boolean hasAddressCache() {
+        return addressCache != null;
+    }
+
+    /**
+     * @return an unmodifiable list of all the ranges this snapshot was built
+     *         from.
+     */
+    List<IPRangeRoles> getAllRanges() {
+        return ranges;
+    }
+
+    /**
+     * Get the merged ranges associated with the role specified by
+     * <code>roleName</code>.
+     * 
+     * @param roleName
+     *            the name of the role to get the ranges of.
+     * @return an unmodifiable list of non-overlapping ranges, sorted as
+     *         described by {@link RangeMerger}, or <code>null</code> if the
+     *         role is unknown.
+     */
+    List<IPRange> getRanges(String roleName) {
+        return roleRanges.get(roleName);
+    }
+
+    /**
+     * Get the merged ranges associated with any of the roles specified by
+     * <code>roles</code>. Unknown roles are ignored.
+     * <p/>
+     * The merged ranges of a single role are built when the snapshot is.
+     * Those of several roles are merged with a single k-way merge, and the
+     * result is memoized for a bounded number of role sets.
+     * 
+     * @param roles
+     *            the names of the roles to get the ranges of.
+     * @return an unmodifiable set of non-overlapping ranges, iterated in the
+     *         order described by {@link RangeMerger}. The set is shared with
+     *         other callers mapping the same roles.
+     */
+    Set<IPRange> mapRoles(Set<String> roles) {
+
+        final SortedSet<String> knownRoles = new TreeSet<String>();
+        for (String role : roles) {
+            if (roleRanges.containsKey(role)) {
+                knownRoles.add(role);
+            }
+        }
+
+        if (knownRoles.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (knownRoles.size() == 1) {
+            return roleRangeSets.get(knownRoles.first());
+        }
+
+        final Set<IPRange> cachedRanges = mappedRolesCache.get(knownRoles);
+        if (cachedRanges != null) {
+            return cachedRanges;
+        }
+
+        final List<List<IPRange>> rangeLists = new ArrayList<List<IPRange>>(
+                knownRoles.size());
+        for (String role : knownRoles) {
+            rangeLists.add(roleRanges.get(role));
+        }
+        final Set<IPRange> mappedRanges = Collections
+                .unmodifiableSet(new LinkedHashSet<IPRange>(RangeMerger
+                        .mergeSorted(rangeLists)));
+
+        // The size is only approximate under concurrent calls, which may
+        // overshoot the bound by a few entries.
+        if (mappedRolesCache.size() >= MAPPED_ROLES_CACHE_SIZE) {
+            return mappedRanges;
+        }
+        // Concurrent callers may have merged the same roles meanwhile. Share
+        // the result of the first of them.
+        final Set<IPRange> previousRanges = mappedRolesCache.putIfAbsent(
+                Collections.unmodifiableSortedSet(knownRoles), mappedRanges);
+        return (previousRanges == null) ? mappedRanges : previousRanges;
+    }
+
+    /**
+     * @return <code>true</code> if this snapshot was built from no ranges at
+     *         all.
+     */
+    boolean isEmpty() {
+        return segmentIndex.isEmpty();
+    }
+
+    /**
+     * @return a human readable description of the index of this snapshot.
+     */
+    String getDescription() {
+        if (addressCache == null) {
+            return segmentIndex.getDescription();
+        }
+        return segmentIndex.getDescription() + " Lookups are cached for up to "
+                + addressCache.getCapacity()
+                + " addresses, keying IPv6 addresses by their /"
+                + addressCache.getIPv6PrefixLength() + " prefix.";
+    }
+}
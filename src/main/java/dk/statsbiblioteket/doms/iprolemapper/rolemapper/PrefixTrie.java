@@ -0,0 +1,461 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Path-compressed binary trie (Patricia trie) over the address prefixes of a
+ * single address family.
+ * <p/>
+ * Every range added to the trie is split into the minimal number of CIDR
+ * prefixes covering it, and the roles of the range are attached to the node of
+ * each of these prefixes. Nodes having a single child and no roles of their
+ * own are not stored, so the depth of the trie is bounded by the number of
+ * distinct prefixes on a path rather than by the address width.
+ * <p/>
+ * When the trie has been built, every node carries the aggregated roles of
+ * itself and all its ancestors. A lookup is thus a longest-prefix-match walk of
+ * at most 32 (IPv4) or 128 (IPv6) bits, returning the roles of the deepest
+ * node matching the address.
+ * <p/>
+ * The built trie is flattened into arrays in depth-first order, and the first
+ * 16 bits below the common prefix of all the nodes are level-compressed into a
+ * directly indexed table, which skips the upper part of the walk.
+ * <p/>
+ * Addresses are kept as 128 bit values by their high and low 64 bits. IPv4
+ * addresses are left-aligned in the high 64 bits, so the same bit numbering is
+ * used for both address families.
+ */
+class PrefixTrie implements RangeCollector, IPv4Lookup, IPv6Lookup {
+
+    /**
+     * The number of address bits indexed by the stride table.
+     */
+    private static final int STRIDE_BITS = 16;
+
+    private final int width;
+    private final RoleTable roleTable;
+    private Node root;
+    private int nodeCount;
+    private int prefixCount;
+
+    // The flattened trie. Node 0 is the root, and a child index of zero means
+    // that there is no such child.
+    private long[] prefixHighs;
+    private long[] prefixLows;
+    private int[] prefixLengths;
+    private int[] zeroChildren;
+    private int[] oneChildren;
+    private RoleSet[] nodeRoles;
+
+    // The stride table maps the STRIDE_BITS address bits following the prefix
+    // of the stride base node to the deepest node determined by those bits.
+    private int[] strideTable;
+    private long strideBaseHigh;
+    private long strideBaseLow;
+    private int strideBaseLength;
+
+    /**
+     * Create an empty trie over addresses of <code>width</code> bits.
+     * 
+     * @param width
+     *            the number of bits of the addresses of the trie, i.e. 32 for
+     *            IPv4 and 128 for IPv6.
+     * @param roleTable
+     *            the table of all the roles of the ranges to be added, which
+     *            interns the role sets of the nodes.
+     */
+    PrefixTrie(int width, RoleTable roleTable) {
+        this.width = width;
+        this.roleTable = roleTable;
+        root = new Node(0, 0, 0);
+        nodeCount = 1;
+    }
+
+    /**
+     * Add a range to the trie being built. The addresses are given in the
+     * representation of {@link AddressKeys}, i.e. an IPv4 address has a high
+     * value of zero and the address in the lowest 32 bits of the low value.
+     */
+    @Override
+    public void add(long beginHigh, long beginLow, long endHigh, long endLow,
+            List<String> roles) {
+
+        final BigInteger end = toBigInteger(endHigh, endLow);
+        BigInteger prefixBegin = toBigInteger(beginHigh, beginLow);
+        while (prefixBegin.compareTo(end) <= 0) {
+
+            // Use the largest prefix which is aligned at prefixBegin and
+            // does not extend beyond the end of the range.
+            final int alignment = (prefixBegin.signum() == 0) ? width
+                    : prefixBegin.getLowestSetBit();
+            final int remainingBits = end.subtract(prefixBegin).add(
+                    BigInteger.ONE).bitLength() - 1;
+            final int hostBits = Math.min(alignment, remainingBits);
+
+            final BigInteger key = prefixBegin.shiftLeft(128 - width);
+            insert(key.shiftRight(64).longValue(), key.longValue(), width
+                    - hostBits, roles);
+            prefixCount++;
+
+            prefixBegin = prefixBegin.add(BigInteger.ONE.shiftLeft(hostBits));
+        }
+    }
+
+    /**
+     * Compute the aggregated roles of all the nodes of the trie and build the
+     * lookup tables. This must be called after the last range has been added
+     * and before any lookups. No ranges can be added afterwards.
+     */
+    void build() {
+        assignRoles(root, roleTable.getEmptySet());
+
+        prefixHighs = new long[nodeCount];
+        prefixLows = new long[nodeCount];
+        prefixLengths = new int[nodeCount];
+        zeroChildren = new int[nodeCount];
+        oneChildren = new int[nodeCount];
+        nodeRoles = new RoleSet[nodeCount];
+        flatten(root, 0);
+
+        // The root only has a single child if all the prefixes share a common
+        // prefix, which can then be skipped by the stride table.
+        int strideBase = 0;
+        if (zeroChildren[0] == 0 || oneChildren[0] == 0) {
+            strideBase = zeroChildren[0] + oneChildren[0];
+        }
+        strideBaseHigh = prefixHighs[strideBase];
+        strideBaseLow = prefixLows[strideBase];
+        strideBaseLength = prefixLengths[strideBase];
+        if (nodeCount > 1 && strideBaseLength + STRIDE_BITS <= width) {
+            strideTable = new int[1 << STRIDE_BITS];
+            final int strideEnd = strideBaseLength + STRIDE_BITS;
+            for (int strideIdx = 0; strideIdx < strideTable.length; strideIdx++) {
+                final long high = strideBaseHigh
+                        | strideBitsToHigh(strideIdx);
+                final long low = strideBaseLow | strideBitsToLow(strideIdx);
+                strideTable[strideIdx] = walk(strideBase, high, low,
+                        strideEnd);
+            }
+        }
+        root = null;
+    }
+
+    @Override
+    public RoleSet lookup(int address) {
+        return lookup((address & 0xffffffffL) << 32, 0);
+    }
+
+    @Override
+    public RoleSet lookup(long high, long low) {
+        int node = 0;
+        if (strideTable != null) {
+            if (maskHigh(high, strideBaseLength) != strideBaseHigh
+                    || maskLow(low, strideBaseLength) != strideBaseLow) {
+                // The address is outside the common prefix of all the
+                // prefixes of the trie.
+                return nodeRoles[0];
+            }
+            node = strideTable[strideBits(high, low)];
+        }
+        return nodeRoles[walk(node, high, low, width)];
+    }
+
+    /**
+     * @return the number of nodes in the trie.
+     */
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the number of CIDR prefixes the added ranges were split into.
+     */
+    int getPrefixCount() {
+        return prefixCount;
+    }
+
+    /**
+     * Attach <code>roles</code> to the node of the prefix of
+     * <code>length</code> bits given by <code>high</code> and
+     * <code>low</code>, creating the node if necessary.
+     */
+    private void insert(long high, long low, int length, List<String> roles) {
+
+        Node node = root;
+        while (node.length < length) {
+            // The prefix of node is a prefix of the key at this point.
+            final int branchBit = bit(high, low, node.length);
+            final Node child = (branchBit == 0) ? node.zero : node.one;
+            if (child == null) {
+                final Node leaf = newNode(high, low, length);
+                addRoles(leaf, roles);
+                node.setChild(branchBit, leaf);
+                return;
+            }
+
+            final int commonLength = Math.min(Math.min(child.length, length),
+                    commonPrefixLength(high, low, child.high, child.low));
+            if (commonLength == child.length) {
+                node = child;
+                continue;
+            }
+
+            // The key diverges from the child, or ends, inside the prefix of
+            // the child. Insert a node for the common part between them.
+            final Node split = newNode(high, low, commonLength);
+            node.setChild(branchBit, split);
+            split.setChild(bit(child.high, child.low, commonLength), child);
+            if (commonLength == length) {
+                addRoles(split, roles);
+            } else {
+                final Node leaf = newNode(high, low, length);
+                addRoles(leaf, roles);
+                split.setChild(bit(high, low, commonLength), leaf);
+            }
+            return;
+        }
+        addRoles(node, roles);
+    }
+
+    /**
+     * Attach <code>roles</code> to <code>node</code>.
+     */
+    private void addRoles(Node node, List<String> roles) {
+        if (node.ownRoleBits == null) {
+            node.ownRoleBits = roleTable.newBits();
+        }
+        for (String role : roles) {
+            final int roleID = roleTable.getRoleID(role);
+            node.ownRoleBits[roleID >>> 6] |= 1L << roleID;
+        }
+    }
+
+    /**
+     * Walk the trie from the (matching) node <code>node</code> towards the
+     * address given by <code>high</code> and <code>low</code>.
+     * 
+     * @return the deepest node of at most <code>maxLength</code> bits which
+     *         matches the address.
+     */
+    private int walk(int node, long high, long low, int maxLength) {
+        while (prefixLengths[node] < width) {
+            final int child = (bit(high, low, prefixLengths[node]) == 0) ? zeroChildren[node]
+                    : oneChildren[node];
+            if (child == 0 || prefixLengths[child] > maxLength
+                    || prefixHighs[child] != maskHigh(high, prefixLengths[child])
+                    || prefixLows[child] != maskLow(low, prefixLengths[child])) {
+                break;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Get the <code>STRIDE_BITS</code> address bits following the prefix of
+     * the stride base node.
+     */
+    private int strideBits(long high, long low) {
+        final int offset = strideBaseLength;
+        if (offset + STRIDE_BITS <= 64) {
+            return (int) (high >>> (64 - STRIDE_BITS - offset))
+                    & ((1 << STRIDE_BITS) - 1);
+        }
+        if (offset >= 64) {
+            return (int) (low >>> (128 - STRIDE_BITS - offset))
+                    & ((1 << STRIDE_BITS) - 1);
+        }
+        return (int) ((high << (offset + STRIDE_BITS - 64)) | (low >>> (128
+                - STRIDE_BITS - offset)))
+                & ((1 << STRIDE_BITS) - 1);
+    }
+
+    /**
+     * Get the high 64 bits of an address having <code>strideBits</code> as
+     * the bits following the prefix of the stride base node, and zeros
+     * elsewhere.
+     */
+    private long strideBitsToHigh(long strideBits) {
+        final int shift = 64 - STRIDE_BITS - strideBaseLength;
+        if (shift >= 0) {
+            return strideBits << shift;
+        }
+        return (shift > -STRIDE_BITS) ? strideBits >>> -shift : 0;
+    }
+
+    /**
+     * Get the low 64 bits of an address having <code>strideBits</code> as the
+     * bits following the prefix of the stride base node, and zeros elsewhere.
+     */
+    private long strideBitsToLow(long strideBits) {
+        final int shift = 128 - STRIDE_BITS - strideBaseLength;
+        if (shift >= 64) {
+            return 0;
+        }
+        return strideBits << shift;
+    }
+
+    /**
+     * Copy <code>node</code> and its descendants into the node arrays in
+     * depth-first order, starting at index <code>nodeIdx</code>.
+     * 
+     * @return the index following the last node copied.
+     */
+    private int flatten(Node node, int nodeIdx) {
+        prefixHighs[nodeIdx] = node.high;
+        prefixLows[nodeIdx] = node.low;
+        prefixLengths[nodeIdx] = node.length;
+        nodeRoles[nodeIdx] = node.roles;
+        int nextIdx = nodeIdx + 1;
+        if (node.zero != null) {
+            zeroChildren[nodeIdx] = nextIdx;
+            nextIdx = flatten(node.zero, nextIdx);
+        }
+        if (node.one != null) {
+            oneChildren[nodeIdx] = nextIdx;
+            nextIdx = flatten(node.one, nextIdx);
+        }
+        return nextIdx;
+    }
+
+    /**
+     * Assign the aggregated roles to <code>node</code> and its descendants.
+     */
+    private void assignRoles(Node node, RoleSet inheritedRoles) {
+        if (node.ownRoleBits == null) {
+            node.roles = inheritedRoles;
+        } else {
+            final long[] inheritedRoleBits = inheritedRoles.getBits();
+            for (int wordIdx = 0; wordIdx < inheritedRoleBits.length; wordIdx++) {
+                node.ownRoleBits[wordIdx] |= inheritedRoleBits[wordIdx];
+            }
+            node.roles = roleTable.intern(node.ownRoleBits);
+            node.ownRoleBits = null;
+        }
+        if (node.zero != null) {
+            assignRoles(node.zero, node.roles);
+        }
+        if (node.one != null) {
+            assignRoles(node.one, node.roles);
+        }
+    }
+
+    private Node newNode(long high, long low, int length) {
+        nodeCount++;
+        return new Node(maskHigh(high, length), maskLow(low, length), length);
+    }
+
+    private static BigInteger toBigInteger(long high, long low) {
+        final byte[] bytes = new byte[17];
+        for (int byteIdx = 0; byteIdx < 8; byteIdx++) {
+            bytes[1 + byteIdx] = (byte) (high >>> (56 - 8 * byteIdx));
+            bytes[9 + byteIdx] = (byte) (low >>> (56 - 8 * byteIdx));
+        }
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Get bit number <code>bitIdx</code> of an address, counting from the most
+     * significant bit.
+     */
+    private static int bit(long high, long low, int bitIdx) {
+        if (bitIdx < 64) {
+            return (int) (high >>> (63 - bitIdx)) & 1;
+        }
+        return (int) (low >>> (127 - bitIdx)) & 1;
+    }
+
+    private static int commonPrefixLength(long high1, long low1, long high2,
+            long low2) {
+        if (high1 != high2) {
+            return Long.numberOfLeadingZeros(high1 ^ high2);
+        }
+        return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+    }
+
+    /**
+     * Get the high 64 bits of the first <code>length</code> bits of an
+     * address.
+     */
+    private static long maskHigh(long high, int length) {
+        if (length >= 64) {
+            return high;
+        }
+        return (length == 0) ? 0 : high & (-1L << (64 - length));
+    }
+
+    /**
+     * Get the low 64 bits of the first <code>length</code> bits of an address.
+     */
+    private static long maskLow(long low, int length) {
+        if (length <= 64) {
+            return 0;
+        }
+        return (length == 128) ? low : low & (-1L << (128 - length));
+    }
+
+    /**
+     * A node of the trie, representing the prefix of <code>length</code> bits
+     * given by <code>high</code> and <code>low</code>.
+     */
+    private static class Node {
+
+        final long high;
+        final long low;
+        final int length;
+        Node zero;
+        Node one;
+
+        /**
+         * The role ID bits of the roles attached to this node while the trie
+         * is being built.
+         */
+        long[] ownRoleBits;
+
+        /**
+         * The aggregated roles of this node and its ancestors.
+         */
+        RoleSet roles;
+
+        Node(long high, long low, int length) {
+            this.high = high;
+            this.low = low;
+            this.length = length;
+        }
+
+        void setChild(int branchBit, Node child) {
+            if (branchBit == 0) {
+                zero = child;
+            } else {
+                one = child;
+            }
+        }
+    }
+}
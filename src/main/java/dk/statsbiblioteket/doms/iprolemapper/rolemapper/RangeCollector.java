@@ -0,0 +1,54 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.List;
+
+/**
+ * Common interface of the builders which collect address ranges of a single
+ * address family. Addresses are given as 128 bit unsigned values by their
+ * high and low 64 bits. IPv4 addresses use a high value of zero.
+ */
+interface RangeCollector {
+
+    /**
+     * Add a range and its roles to the structure being built.
+     * 
+     * @param beginHigh
+     *            the high 64 bits of the begin address.
+     * @param beginLow
+     *            the low 64 bits of the begin address.
+     * @param endHigh
+     *            the high 64 bits of the (inclusive) end address.
+     * @param endLow
+     *            the low 64 bits of the (inclusive) end address.
+     * @param roles
+     *            the roles associated with the range.
+     */
+    void add(long beginHigh, long beginLow, long endHigh, long endLow,
+            List<String> roles);
+}
@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Helpers for merging overlapping IP ranges into sorted lists of
+ * non-overlapping ranges.
+ * <p/>
+ * A merged range list contains all the IPv4 ranges before all the IPv6
+ * ranges, and the ranges of each address family are sorted by their begin
+ * addresses. Ranges are merged when they overlap, but not when they are merely
+ * adjacent to each other.
+ */
+final class RangeMerger {
+
+    /**
+     * Orders IPv4 ranges before IPv6 ranges and ranges of the same address
+     * family as {@link IPRangeComparator} does.
+     */
+    static final Comparator<IPRange> ADDRESS_ORDER = new Comparator<IPRange>() {
+
+        private final IPRangeComparator rangeComparator = new IPRangeComparator();
+
+        @Override
+        public int compare(IPRange ipRange1, IPRange ipRange2) {
+            final boolean isIPv6Range1 = ipRange1.getBegin().isIPv6();
+            if (isIPv6Range1 != ipRange2.getBegin().isIPv6()) {
+                return isIPv6Range1 ? 1 : -1;
+            }
+            return rangeComparator.compare(ipRange1, ipRange2);
+        }
+    };
+
+    private RangeMerger() {
+        // Only static helpers here.
+    }
+
+    /**
+     * Merge the ranges specified by <code>ranges</code>, which may be of
+     * both address families and in any order.
+     * 
+     * @param ranges
+     *            the ranges to merge.
+     * @return an unmodifiable, merged range list.
+     */
+    static List<IPRange> merge(List<? extends IPRange> ranges) {
+        final List<IPRange> sortedRanges = new ArrayList<IPRange>(ranges);
+        Collections.sort(sortedRanges, ADDRESS_ORDER);
+        return mergeSorted(Collections.singletonList(sortedRanges));
+    }
+
+    /**
+     * Merge the ranges of all the lists specified by
+     * <code>sortedRangeLists</code> in a single sweep. Each list must be sorted
+     * in the order of {@link #ADDRESS_ORDER}, such as a merged range list.
+     * <p/>
+     * The lists are merged with a k-way merge, which takes
+     * <code>O(n log k)</code> time for <code>n</code> ranges in
+     * <code>k</code> lists. Ranges which do not overlap any other ranges are
+     * returned as they are, whereas overlapping ranges are replaced by a
+     * plain <code>IPRange</code> covering them all.
+     * 
+     * @param sortedRangeLists
+     *            the sorted range lists to merge.
+     * @return an unmodifiable, merged range list.
+     */
+    static List<IPRange> mergeSorted(List<List<IPRange>> sortedRangeLists) {
+
+        final PriorityQueue<RangeCursor> cursors = new PriorityQueue<RangeCursor>(
+                Math.max(1, sortedRangeLists.size()));
+        for (List<IPRange> sortedRanges : sortedRangeLists) {
+            if (!sortedRanges.isEmpty()) {
+                cursors.add(new RangeCursor(sortedRanges));
+            }
+        }
+
+        final List<IPRange> mergedRanges = new ArrayList<IPRange>();
+        IPRange currentRange = null;
+        IPAddress currentEnd = null;
+        boolean isMerged = false;
+        while (!cursors.isEmpty()) {
+            final RangeCursor cursor = cursors.poll();
+            final IPRange nextRange = cursor.current;
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+
+            if (currentRange != null
+                    && currentRange.getBegin().isIPv6() == nextRange
+                            .getBegin().isIPv6()
+                    && currentEnd.compareTo(nextRange.getBegin()) >= 0) {
+                // The ranges overlap. Extend the current range, but postpone
+                // creating the merged range until it cannot grow any further.
+                if (nextRange.getEnd().compareTo(currentEnd) > 0) {
+                    currentEnd = nextRange.getEnd();
+                }
+                isMerged = true;
+            } else {
+                if (currentRange != null) {
+                    mergedRanges.add(isMerged ? new IPRange(currentRange
+                            .getBegin(), currentEnd) : currentRange);
+                }
+                currentRange = nextRange;
+                currentEnd = nextRange.getEnd();
+                isMerged = false;
+            }
+        }
+        if (currentRange != null) {
+            mergedRanges.add(isMerged ? new IPRange(currentRange.getBegin(),
+                    currentEnd) : currentRange);
+        }
+
+        return Collections.unmodifiableList(mergedRanges);
+    }
+
+    /**
+     * The position of a k-way merge in one of the sorted range lists.
+     */
+    private static final class RangeCursor implements Comparable<RangeCursor> {
+
+        private final List<IPRange> sortedRanges;
+        private int index;
+        private IPRange current;
+
+        RangeCursor(List<IPRange> sortedRanges) {
+            this.sortedRanges = sortedRanges;
+            current = sortedRanges.get(0);
+        }
+
+        /**
+         * Move to the next range of the list.
+         * 
+         * @return <code>false</code> if there are no more ranges.
+         */
+        boolean advance() {
+            if (++index == sortedRanges.size()) {
+                current = null;
+                return false;
+            }
+            current = sortedRanges.get(index);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RangeCursor other) {
+            return ADDRESS_ORDER.compare(current, other.current);
+        }
+    }
+}
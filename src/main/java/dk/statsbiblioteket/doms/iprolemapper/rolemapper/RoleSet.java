@@ -0,0 +1,224 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import dk.statsbiblioteket.doms.iprolemapper.utils.JSONStrings;
+
+/**
+ * Immutable set of role names backed by a bit set over the role IDs of a
+ * {@link RoleTable}.
+ * <p/>
+ * The role sets are interned by the role table, so all the addresses having
+ * the same roles share the same <code>RoleSet</code> instance, and looking up
+ * the roles of an address allocates nothing. Since the role IDs are assigned
+ * in the alphabetical order of the role names, the roles are iterated in
+ * sorted order.
+ * <p/>
+ * Since the number of distinct role sets is small, each set also carries its
+ * pre-encoded representations as a comma separated list and as a JSON array,
+ * so responses can be written without building or encoding any strings.
+ * <p/>
+ * Any attempt to modify the set will result in an
+ * <code>UnsupportedOperationException</code>.
+ */
+public final class RoleSet extends AbstractSet<String> {
+
+    /**
+     * The sorted role names of the role table this set belongs to, indexed by
+     * role ID.
+     */
+    private final String[] roleNames;
+
+    /**
+     * Bit number <code>n</code> is set if the role having ID <code>n</code>
+     * is a member of this set.
+     */
+    private final long[] bits;
+
+    private final int size;
+    private final int hashCode;
+    private final byte[] commaSeparatedBytes;
+    private final byte[] jsonBytes;
+
+    /**
+     * Create a role set. This is only done by {@link RoleTable}.
+     * 
+     * @param roleNames
+     *            the sorted role names of the role table, indexed by role ID.
+     * @param bits
+     *            the role IDs of the members of the set. The array is owned by
+     *            the new set and must not be modified afterwards.
+     */
+    RoleSet(String[] roleNames, long[] bits) {
+        this.roleNames = roleNames;
+        this.bits = bits;
+
+        int roleCount = 0;
+        int roleHashCodes = 0;
+        final StringBuilder commaSeparated = new StringBuilder();
+        final StringBuilder json = new StringBuilder("[");
+        for (int roleID = nextRoleID(0); roleID >= 0; roleID = nextRoleID(roleID + 1)) {
+            if (roleCount > 0) {
+                commaSeparated.append(',');
+                json.append(',');
+            }
+            roleCount++;
+            roleHashCodes += roleNames[roleID].hashCode();
+            commaSeparated.append(roleNames[roleID]);
+            JSONStrings.append(json, roleNames[roleID]);
+        }
+        json.append(']');
+        size = roleCount;
+        hashCode = roleHashCodes;
+        commaSeparatedBytes = commaSeparated.toString().getBytes(
+                StandardCharsets.UTF_8);
+        jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean contains(Object roleName) {
+        if (!(roleName instanceof String)) {
+            return false;
+        }
+        final int roleID = Arrays.binarySearch(roleNames, roleName);
+        return roleID >= 0 && containsRole(roleID);
+    }
+
+    /**
+     * @param roleID
+     *            the ID of a role of the role table this set belongs to.
+     * @return <code>true</code> if the role having the ID
+     *         <code>roleID</code> is a member of this set.
+     */
+    boolean containsRole(int roleID) {
+        return (bits[roleID >>> 6] & (1L << roleID)) != 0;
+    }
+
+    /**
+     * Get the roles of this set as a comma separated list in sorted order,
+     * e.g. <code>professor,student</code>, encoded as UTF-8.
+     * 
+     * @return the encoded roles. The array is shared and must not be
+     *         modified.
+     */
+    public byte[] getCommaSeparatedBytes() {
+        return commaSeparatedBytes;
+    }
+
+    /**
+     * Get the roles of this set as a JSON array of strings in sorted order,
+     * e.g. <code>["professor","student"]</code>, encoded as UTF-8.
+     * 
+     * @return the encoded roles. The array is shared and must not be
+     *         modified.
+     */
+    public byte[] getJSONBytes() {
+        return jsonBytes;
+    }
+
+    /**
+     * Get the bits of this set. The array is shared and must not be modified.
+     */
+    long[] getBits() {
+        return bits;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+
+            private int nextRoleID = nextRoleID(0);
+
+            @Override
+            public boolean hasNext() {
+                return nextRoleID >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (nextRoleID < 0) {
+                    throw new NoSuchElementException();
+                }
+                final String roleName = roleNames[nextRoleID];
+                nextRoleID = nextRoleID(nextRoleID + 1);
+                return roleName;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (other instanceof RoleSet
+                && ((RoleSet) other).roleNames == roleNames) {
+            return Arrays.equals(bits, ((RoleSet) other).bits);
+        }
+        return super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * @return the lowest ID of a member role which is not lower than
+     *         <code>fromRoleID</code>, or -1 if there is no such role.
+     */
+    private int nextRoleID(int fromRoleID) {
+        int wordIdx = fromRoleID >>> 6;
+        if (wordIdx >= bits.length) {
+            return -1;
+        }
+        long word = bits[wordIdx] & (-1L << fromRoleID);
+        while (word == 0) {
+            if (++wordIdx == bits.length) {
+                return -1;
+            }
+            word = bits[wordIdx];
+        }
+        return (wordIdx << 6) + Long.numberOfTrailingZeros(word);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Table of the role names known by an index. The role names are assigned
+ * integer IDs in alphabetical order, and each distinct combination of roles is
+ * represented by a single, shared {@link RoleSet} instance.
+ */
+class RoleTable {
+
+    private final String[] roleNames;
+    private final Map<RoleBits, RoleSet> internedRoleSets = new HashMap<RoleBits, RoleSet>();
+    private final RoleSet emptySet;
+
+    /**
+     * Create a role table containing the role names specified by
+     * <code>roleNames</code>.
+     * 
+     * @param roleNames
+     *            the role names to assign IDs to. Duplicates are ignored.
+     */
+    RoleTable(Collection<String> roleNames) {
+        this.roleNames = new TreeSet<String>(roleNames).toArray(new String[0]);
+        emptySet = intern(newBits());
+    }
+
+    /**
+     * @return the number of role names in this table.
+     */
+    int size() {
+        return roleNames.length;
+    }
+
+    /**
+     * Get the name of the role specified by <code>roleID</code>.
+     * 
+     * @param roleID
+     *            the ID of a role in this table.
+     * @return the name of the role.
+     */
+    String getRoleName(int roleID) {
+        return roleNames[roleID];
+    }
+
+    /**
+     * Get the ID of the role specified by <code>roleName</code>.
+     * 
+     * @param roleName
+     *            the name of a role in this table.
+     * @return the ID of the role.
+     * @throws IllegalArgumentException
+     *             if the role is not in this table.
+     */
+    int getRoleID(String roleName) throws IllegalArgumentException {
+        final int roleID = Arrays.binarySearch(roleNames, roleName);
+        if (roleID < 0) {
+            throw new IllegalArgumentException("Unknown role: " + roleName);
+        }
+        return roleID;
+    }
+
+    /**
+     * @return a new, empty bit array of the size used by the role sets of this
+     *         table.
+     */
+    long[] newBits() {
+        return new long[(roleNames.length + 63) >>> 6];
+    }
+
+    /**
+     * @return the shared, empty role set of this table.
+     */
+    RoleSet getEmptySet() {
+        return emptySet;
+    }
+
+    /**
+     * Get the shared role set instance having the roles given by the role ID
+     * bits specified by <code>bits</code>.
+     * 
+     * @param bits
+     *            an array created by {@link #newBits()}, where bit
+     *            <code>n</code> is set if the role having ID <code>n</code>
+     *            is a member of the set. The array is copied if a new role set
+     *            is created, so the caller may reuse it.
+     * @return the shared role set having the roles given by <code>bits</code>.
+     */
+    RoleSet intern(long[] bits) {
+        final RoleSet internedRoleSet = internedRoleSets.get(new RoleBits(bits));
+        if (internedRoleSet != null) {
+            return internedRoleSet;
+        }
+        final long[] newBits = bits.clone();
+        final RoleSet newRoleSet = new RoleSet(roleNames, newBits);
+        internedRoleSets.put(new RoleBits(newBits), newRoleSet);
+        return newRoleSet;
+    }
+
+    /**
+     * Get the shared role set instance having the roles specified by
+     * <code>roles</code>.
+     * 
+     * @param roles
+     *            the names of roles in this table.
+     * @return the shared role set having the roles.
+     * @throws IllegalArgumentException
+     *             if any of the roles are not in this table.
+     */
+    RoleSet intern(Collection<String> roles) throws IllegalArgumentException {
+        final long[] bits = newBits();
+        for (String role : roles) {
+            final int roleID = getRoleID(role);
+            bits[roleID >>> 6] |= 1L << roleID;
+        }
+        return intern(bits);
+    }
+
+    /**
+     * @return the number of distinct role sets interned by this table.
+     */
+    int getRoleSetCount() {
+        return internedRoleSets.size();
+    }
+
+    /**
+     * Key of the interned role sets. Creating a <code>RoleSet</code> is
+     * comparatively expensive, as it pre-encodes the set, so the bits are
+     * wrapped in this key instead when looking for an existing set.
+     */
+    private static class RoleBits {
+
+        private final long[] bits;
+        private final int hashCode;
+
+        RoleBits(long[] bits) {
+            this.bits = bits;
+            hashCode = Arrays.hashCode(bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RoleBits
+                    && Arrays.equals(bits, ((RoleBits) other).bits);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builder which compiles a number of (possibly overlapping) address ranges of
+ * a single address family into a table of non-overlapping segments covering
+ * the entire address space of the family. Each segment carries the set of
+ * roles of all the ranges covering it.
+ * <p/>
+ * Addresses are given as 128 bit unsigned values by their high and low 64
+ * bits. IPv4 addresses simply use a high value of zero.
+ */
+class SegmentBuilder implements RangeCollector {
+
+    private final long maxHigh;
+    private final long maxLow;
+
+    private final RoleTable roleTable;
+
+    private final ArrayList<Boundary> boundaries = new ArrayList<Boundary>();
+
+    private long[] segmentBeginHighs;
+    private long[] segmentBeginLows;
+    private RoleSet[] segmentRoles;
+
+    /**
+     * Create a builder for an address family where the highest possible
+     * address is specified by <code>maxHigh</code> and <code>maxLow</code>.
+     * 
+     * @param maxHigh
+     *            the high 64 bits of the highest address.
+     * @param maxLow
+     *            the low 64 bits of the highest address.
+     * @param roleTable
+     *            the table of all the roles of the ranges to be added. The
+     *            role sets of the segments are interned by this table, so
+     *            they are shared between segments (and builders).
+     */
+    SegmentBuilder(long maxHigh, long maxLow, RoleTable roleTable) {
+        this.maxHigh = maxHigh;
+        this.maxLow = maxLow;
+        this.roleTable = roleTable;
+    }
+
+    @Override
+    public void add(long beginHigh, long beginLow, long endHigh, long endLow,
+            List<String> roles) {
+
+        final int[] roleIDs = new int[roles.size()];
+        for (int roleIdx = 0; roleIdx < roleIDs.length; roleIdx++) {
+            roleIDs[roleIdx] = roleTable.getRoleID(roles.get(roleIdx));
+        }
+
+        boundaries.add(new Boundary(beginHigh, beginLow, roleIDs, true));
+
+        // The range stops covering addresses right after its end address,
+        // unless it ends at the highest possible address.
+        if (endHigh != maxHigh || endLow != maxLow) {
+            final long successorLow = endLow + 1;
+            final long successorHigh = (successorLow == 0) ? endHigh + 1
+                    : endHigh;
+            boundaries.add(new Boundary(successorHigh, successorLow,
+                    roleIDs, false));
+        }
+    }
+
+    /**
+     * Compile the ranges added so far into a segment table. The table is
+     * accessible through the getters of this builder afterwards.
+     */
+    void build() {
+
+        Collections.sort(boundaries);
+
+        // There can be no more segments than boundaries plus the segment
+        // starting at the lowest address.
+        final int maxSegments = boundaries.size() + 1;
+        final long[] beginHighs = new long[maxSegments];
+        final long[] beginLows = new long[maxSegments];
+        final RoleSet[] roleSets = new RoleSet[maxSegments];
+
+        // The first segment always starts at the lowest address, and is
+        // initially not covered by any ranges.
+        beginHighs[0] = 0;
+        beginLows[0] = 0;
+        roleSets[0] = roleTable.getEmptySet();
+        int segmentCount = 1;
+
+        // Sweep through the boundaries and keep track of the roles of all the
+        // ranges covering the current segment, and how many of the ranges
+        // have each role.
+        final int[] activeRoleCounts = new int[roleTable.size()];
+        final long[] activeRoleBits = roleTable.newBits();
+        int boundaryIdx = 0;
+        while (boundaryIdx < boundaries.size()) {
+            final Boundary segmentBegin = boundaries.get(boundaryIdx);
+
+            // Apply all the boundaries at this address.
+            do {
+                final Boundary boundary = boundaries.get(boundaryIdx);
+                for (int roleID : boundary.roleIDs) {
+                    if (boundary.isBegin) {
+                        if (activeRoleCounts[roleID]++ == 0) {
+                            activeRoleBits[roleID >>> 6] |= 1L << roleID;
+                        }
+                    } else if (--activeRoleCounts[roleID] == 0) {
+                        activeRoleBits[roleID >>> 6] &= ~(1L << roleID);
+                    }
+                }
+                boundaryIdx++;
+            } while (boundaryIdx < boundaries.size()
+                    && boundaries.get(boundaryIdx).compareTo(segmentBegin) == 0);
+
+            final RoleSet roles = roleTable.intern(activeRoleBits);
+            if (segmentBegin.high == 0 && segmentBegin.low == 0) {
+                // A range starts at the lowest address. Just replace the
+                // roles of the first segment.
+                roleSets[0] = roles;
+            } else if (roleSets[segmentCount - 1] != roles) {
+                // Only start a new segment if the roles change.
+                beginHighs[segmentCount] = segmentBegin.high;
+                beginLows[segmentCount] = segmentBegin.low;
+                roleSets[segmentCount] = roles;
+                segmentCount++;
+            }
+        }
+
+        segmentBeginHighs = Arrays.copyOf(beginHighs, segmentCount);
+        segmentBeginLows = Arrays.copyOf(beginLows, segmentCount);
+        segmentRoles = Arrays.copyOf(roleSets, segmentCount);
+
+        // The boundaries are of no use once the table has been built.
+        boundaries.clear();
+        boundaries.trimToSize();
+    }
+
+    /**
+     * Use a segment table which has already been built, e.g. by another
+     * builder in a previous run, instead of building one from ranges. The
+     * table is accessible through the getters of this builder afterwards.
+     * 
+     * @param beginHighs
+     *            the high 64 bits of the begin address of each segment, in
+     *            ascending order. The first segment must begin at the lowest
+     *            address.
+     * @param beginLows
+     *            the low 64 bits of the begin address of each segment.
+     * @param roleSets
+     *            the roles of each segment, interned by the role table of this
+     *            builder.
+     * @throws IllegalArgumentException
+     *             if the arrays are of different lengths, or if the begin
+     *             addresses are not ascending from the lowest address.
+     */
+    void load(long[] beginHighs, long[] beginLows, RoleSet[] roleSets)
+            throws IllegalArgumentException {
+
+        if (beginHighs.length != beginLows.length
+                || beginHighs.length != roleSets.length
+                || beginHighs.length == 0) {
+            throw new IllegalArgumentException("The segment table must "
+                    + "contain at least one segment, and the same number of "
+                    + "begin addresses and role sets.");
+        }
+        if (beginHighs[0] != 0 || beginLows[0] != 0) {
+            throw new IllegalArgumentException("The first segment must begin "
+                    + "at the lowest address.");
+        }
+        for (int segmentIdx = 1; segmentIdx < beginHighs.length; segmentIdx++) {
+            if (AddressKeys.compare(beginHighs[segmentIdx - 1],
+                    beginLows[segmentIdx - 1], beginHighs[segmentIdx],
+                    beginLows[segmentIdx]) >= 0
+                    || AddressKeys.compare(beginHighs[segmentIdx],
+                            beginLows[segmentIdx], maxHigh, maxLow) > 0) {
+                throw new IllegalArgumentException("The begin address of "
+                        + "segment " + segmentIdx + " is out of order.");
+            }
+        }
+        segmentBeginHighs = beginHighs;
+        segmentBeginLows = beginLows;
+        segmentRoles = roleSets;
+    }
+
+    /**
+     * @return the high 64 bits of the begin address of each segment, in
+     *         ascending order.
+     */
+    long[] getSegmentBeginHighs() {
+        return segmentBeginHighs;
+    }
+
+    /**
+     * @return the low 64 bits of the begin address of each segment, in
+     *         ascending order.
+     */
+    long[] getSegmentBeginLows() {
+        return segmentBeginLows;
+    }
+
+    /**
+     * @return the roles of each segment.
+     */
+    RoleSet[] getSegmentRoles() {
+        return segmentRoles;
+    }
+
+    /**
+     * An address where a range either begins to or stops covering addresses.
+     */
+    private static class Boundary implements Comparable<Boundary> {
+
+        private final long high;
+        private final long low;
+        private final int[] roleIDs;
+        private final boolean isBegin;
+
+        Boundary(long high, long low, int[] roleIDs, boolean isBegin) {
+            this.high = high;
+            this.low = low;
+            this.roleIDs = roleIDs;
+            this.isBegin = isBegin;
+        }
+
+        @Override
+        public int compareTo(Boundary other) {
+            return AddressKeys.compare(high, low, other.high, other.low);
+        }
+    }
+}
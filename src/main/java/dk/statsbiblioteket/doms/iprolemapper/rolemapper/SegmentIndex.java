@@ -0,0 +1,411 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A flattened, read-only index over a number of (possibly overlapping) IP
+ * ranges. The ranges are compiled into sorted tables of non-overlapping
+ * segments, each carrying the complete set of roles of all the ranges covering
+ * it. Looking up the roles of an address is thus a single binary search,
+ * regardless of how many ranges overlap the address.
+ * <p/>
+ * IPv4 and IPv6 ranges are kept in separate tables keyed by primitive values,
+ * so configurations mixing the two address families are handled safely.
+ * IPv4-mapped IPv6 addresses (<code>::ffff:a.b.c.d</code>) are looked up in
+ * the IPv4 table.
+ * <p/>
+ * Adjacent segments having the same roles are merged, and segments having the
+ * same roles share the same immutable {@link RoleSet} instance.
+ */
+class SegmentIndex {
+
+    private static final Log log = LogFactory.getLog(SegmentIndex.class);
+
+    private final IPv4Lookup ipv4Index;
+    private final IPv6Lookup ipv6Index;
+    private final SegmentTables segmentTables;
+    private final int ipv4SegmentCount;
+    private final int ipv6SegmentCount;
+    private final int ipv6BoundaryPrefixLength;
+    private final boolean isEmpty;
+    private final String description;
+
+    /**
+     * Compile the IP ranges specified by <code>ranges</code> into a segment
+     * index, using the default lookup engine.
+     * 
+     * @param ranges
+     *            the IP ranges and associated roles to build the index from.
+     */
+    SegmentIndex(List<IPRangeRoles> ranges) {
+        this(ranges, LookupEngine.SEGMENT_TABLE);
+    }
+
+    /**
+     * Compile the IP ranges specified by <code>ranges</code> into a segment
+     * index and build the lookup structures of <code>lookupEngine</code> from
+     * it.
+     * 
+     * @param ranges
+     *            the IP ranges and associated roles to build the index from.
+     * @param lookupEngine
+     *            the engine to use for looking up addresses. If the engine
+     *            cannot handle the ranges, the segment table will be used
+     *            instead.
+     */
+    SegmentIndex(List<IPRangeRoles> ranges, LookupEngine lookupEngine) {
+        this(ranges, SegmentTables.compile(ranges), lookupEngine);
+    }
+
+    /**
+     * Create an index from the segment tables specified by
+     * <code>segmentTables</code>, which have been built from the IP ranges
+     * specified by <code>ranges</code>, and build the lookup structures of
+     * <code>lookupEngine</code> from it.
+     * 
+     * @param ranges
+     *            the IP ranges and associated roles the index represents.
+     * @param segmentTables
+     *            the segment tables built from <code>ranges</code>.
+     * @param lookupEngine
+     *            the engine to use for looking up addresses. If the engine
+     *            cannot handle the ranges, the segment table will be used
+     *            instead.
+     */
+    SegmentIndex(List<IPRangeRoles> ranges, SegmentTables segmentTables,
+            LookupEngine lookupEngine) {
+
+        this.segmentTables = segmentTables;
+        final RoleTable roleTable = segmentTables.getRoleTable();
+        isEmpty = ranges.isEmpty();
+
+        if (segmentTables.isMapped()) {
+            final MappedIPv4SegmentIndex mappedIPv4Index = segmentTables
+                    .getMappedIPv4Segments();
+            final MappedIPv6SegmentIndex mappedIPv6Index = segmentTables
+                    .getMappedIPv6Segments();
+            ipv4SegmentCount = mappedIPv4Index.size();
+            ipv6SegmentCount = mappedIPv6Index.size();
+            ipv6BoundaryPrefixLength = mappedIPv6Index
+                    .getBoundaryPrefixLength();
+            ipv4Index = mappedIPv4Index;
+            ipv6Index = mappedIPv6Index;
+            description = createDescription(ranges,
+                    "memory-mapped segment table",
+                    "memory-mapped segment table");
+            return;
+        }
+
+        final SegmentBuilder ipv4Builder = segmentTables.getIPv4Segments();
+        final IPv4SegmentIndex ipv4SegmentIndex = new IPv4SegmentIndex(
+                ipv4Builder);
+        final IPv6SegmentIndex ipv6SegmentIndex = new IPv6SegmentIndex(
+                segmentTables.getIPv6Segments());
+        ipv4SegmentCount = ipv4SegmentIndex.size();
+        ipv6SegmentCount = ipv6SegmentIndex.size();
+        ipv6BoundaryPrefixLength = ipv6SegmentIndex.getBoundaryPrefixLength();
+
+        String profileDescription = "";
+        if (lookupEngine == LookupEngine.AUTO) {
+            final ConfigurationProfile profile = new ConfigurationProfile(
+                    ranges, segmentTables);
+            lookupEngine = profile.selectEngine();
+            profileDescription = " The " + lookupEngine
+                    + " engine was selected automatically for " + profile;
+            log.debug("Selected the " + lookupEngine + " engine for "
+                    + profile);
+        }
+
+        final long segmentsBuilt = System.nanoTime();
+        String ipv4Description = "segment table";
+        String ipv6Description = "segment table";
+        if (lookupEngine == LookupEngine.MAPPED_SNAPSHOT) {
+            log.debug("Memory-mapped segment tables are only available when "
+                    + "initialising from a snapshot file. Using the segment "
+                    + "table instead.");
+        }
+        IPv4Lookup selectedIPv4Index = ipv4SegmentIndex;
+        IPv6Lookup selectedIPv6Index = ipv6SegmentIndex;
+        if (lookupEngine == LookupEngine.DIR_24_8) {
+            try {
+                final DirectIPv4Index directIndex = new DirectIPv4Index(
+                        ipv4Builder);
+                selectedIPv4Index = directIndex;
+                ipv4Description = "DIR-24-8 table of "
+                        + directIndex.getMemoryUsage() + " bytes with "
+                        + directIndex.getSplitBlockCount()
+                        + " split /24 blocks built in "
+                        + (System.nanoTime() - segmentsBuilt) / 1000000
+                        + " ms";
+            } catch (IllegalArgumentException tooLargeException) {
+                log.warn("Cannot build a DIR-24-8 table for this "
+                        + "configuration. Using the segment table instead.",
+                        tooLargeException);
+            }
+        } else if (lookupEngine == LookupEngine.EYTZINGER_TABLE) {
+            selectedIPv4Index = new EytzingerIPv4Index(ipv4Builder);
+            ipv4Description = "segment table in Eytzinger order built in "
+                    + (System.nanoTime() - segmentsBuilt) / 1000000 + " ms";
+        } else if (lookupEngine == LookupEngine.COMPILED_TREE) {
+            try {
+                selectedIPv4Index = CompiledIPv4Lookup.compile(ipv4Builder);
+                ipv4Description = "decision tree class compiled in "
+                        + (System.nanoTime() - segmentsBuilt) / 1000000
+                        + " ms";
+            } catch (IllegalArgumentException | IllegalStateException compileException) {
+                log.warn("Cannot compile a lookup class for this "
+                        + "configuration. Using the segment table instead.",
+                        compileException);
+            }
+        } else if (lookupEngine == LookupEngine.HOST_HASH) {
+            final HostHashIndex hostIndex = new HostHashIndex(ranges,
+                    roleTable);
+            selectedIPv4Index = hostIndex;
+            selectedIPv6Index = hostIndex;
+            ipv4Description = "hash table of " + hostIndex.getIPv4HostCount()
+                    + " hosts over a segment table of "
+                    + hostIndex.getIPv4SegmentCount() + " range segments";
+            ipv6Description = "hash table of " + hostIndex.getIPv6HostCount()
+                    + " hosts over a segment table of "
+                    + hostIndex.getIPv6SegmentCount()
+                    + " range segments, both built in "
+                    + (System.nanoTime() - segmentsBuilt) / 1000000 + " ms";
+        } else if (lookupEngine == LookupEngine.PREFIX_TRIE) {
+            final PrefixTrie ipv4Trie = new PrefixTrie(32, roleTable);
+            final PrefixTrie ipv6Trie = new PrefixTrie(128, roleTable);
+            for (IPRangeRoles range : ranges) {
+                AddressKeys.collect(range, ipv4Trie, ipv6Trie);
+            }
+            ipv4Trie.build();
+            ipv6Trie.build();
+            selectedIPv4Index = ipv4Trie;
+            selectedIPv6Index = ipv6Trie;
+            final long triesBuilt = System.nanoTime();
+            ipv4Description = "prefix trie of " + ipv4Trie.getNodeCount()
+                    + " nodes over " + ipv4Trie.getPrefixCount()
+                    + " prefixes";
+            ipv6Description = "prefix trie of " + ipv6Trie.getNodeCount()
+                    + " nodes over " + ipv6Trie.getPrefixCount()
+                    + " prefixes, both tries built in "
+                    + (triesBuilt - segmentsBuilt) / 1000000 + " ms";
+        }
+        ipv4Index = selectedIPv4Index;
+        ipv6Index = selectedIPv6Index;
+
+        description = createDescription(ranges, ipv4Description,
+                ipv6Description) + profileDescription;
+    }
+
+    /**
+     * Create the description of this index returned by
+     * {@link #getDescription()}.
+     */
+    private String createDescription(List<IPRangeRoles> ranges,
+            String ipv4Description, String ipv6Description) {
+        final RoleTable roleTable = segmentTables.getRoleTable();
+        return ranges.size() + " ranges with " + roleTable.size() + " roles "
+                + segmentTables.getOrigin() + " into " + ipv4SegmentCount
+                + " IPv4 and " + ipv6SegmentCount + " IPv6 segments with "
+                + roleTable.getRoleSetCount() + " distinct role sets in "
+                + segmentTables.getElapsedNanos() / 1000000
+                + " ms. IPv4 lookups use the " + ipv4Description
+                + ". IPv6 lookups use the " + ipv6Description + ".";
+    }
+
+    /**
+     * Get the roles of all the ranges covering <code>ipAddress</code>.
+     * 
+     * @param ipAddress
+     *            the address to look up.
+     * @return the shared role set of the address, which is empty if no ranges
+     *         cover <code>ipAddress</code>.
+     */
+    RoleSet lookup(InetAddress ipAddress) {
+        final byte[] address = ipAddress.getAddress();
+        if (AddressKeys.isIPv4(address)) {
+            return ipv4Index.lookup(AddressKeys.toIPv4Key(address));
+        }
+        return ipv6Index.lookup(AddressKeys.toHigh(address), AddressKeys
+                .toLow(address));
+    }
+
+    /**
+     * Get the roles of all the ranges covering <code>ipAddress</code>. This
+     * lookup does not allocate any objects.
+     * 
+     * @param ipAddress
+     *            the address to look up.
+     * @return the shared role set of the address, which is empty if no ranges
+     *         cover <code>ipAddress</code>.
+     */
+    RoleSet lookup(IPAddress ipAddress) {
+        if (ipAddress.isIPv4OrMapped()) {
+            return ipv4Index.lookup((int) ipAddress.getLow());
+        }
+        return ipv6Index.lookup(ipAddress.getHigh(), ipAddress.getLow());
+    }
+
+    /**
+     * Get the roles of each of the addresses specified by
+     * <code>ipAddresses</code>. The addresses are sorted once and resolved in
+     * a single merge pass over the segments of each address family, rather
+     * than by a binary search per address.
+     * 
+     * @param ipAddresses
+     *            the addresses to look up.
+     * @return the shared role sets of the addresses, in the order of
+     *         <code>ipAddresses</code>.
+     */
+    RoleSet[] lookupAll(IPAddress[] ipAddresses) {
+
+        int ipv4Count = 0;
+        for (IPAddress ipAddress : ipAddresses) {
+            if (ipAddress.isIPv4OrMapped()) {
+                ipv4Count++;
+            }
+        }
+        final int ipv6Count = ipAddresses.length - ipv4Count;
+
+        // Sort the IPv4 addresses along with their positions in a single
+        // primitive array. Flipping the sign bit makes the signed order of
+        // the keys follow the unsigned order of the addresses.
+        final long[] ipv4Keys = new long[ipv4Count];
+        final int[] ipv6Positions = new int[ipv6Count];
+        int ipv4Idx = 0;
+        int ipv6Idx = 0;
+        for (int position = 0; position < ipAddresses.length; position++) {
+            final IPAddress ipAddress = ipAddresses[position];
+            if (ipAddress.isIPv4OrMapped()) {
+                final long sortKey = (int) ipAddress.getLow()
+                        ^ Integer.MIN_VALUE;
+                ipv4Keys[ipv4Idx++] = (sortKey << 32) | position;
+            } else {
+                ipv6Positions[ipv6Idx++] = position;
+            }
+        }
+        Arrays.sort(ipv4Keys);
+
+        final RoleSet[] results = new RoleSet[ipAddresses.length];
+        final RoleSet[] sortedResults = new RoleSet[Math.max(ipv4Count,
+                ipv6Count)];
+
+        final int[] sortedIPv4Addresses = new int[ipv4Count];
+        for (int keyIdx = 0; keyIdx < ipv4Count; keyIdx++) {
+            sortedIPv4Addresses[keyIdx] = (int) (ipv4Keys[keyIdx] >>> 32)
+                    ^ Integer.MIN_VALUE;
+        }
+        ipv4Index.lookupSorted(sortedIPv4Addresses, ipv4Count, sortedResults);
+        for (int keyIdx = 0; keyIdx < ipv4Count; keyIdx++) {
+            results[(int) ipv4Keys[keyIdx]] = sortedResults[keyIdx];
+        }
+
+        if (ipv6Count > 0) {
+            sortIPv6Positions(ipAddresses, ipv6Positions);
+            final long[] sortedHighs = new long[ipv6Count];
+            final long[] sortedLows = new long[ipv6Count];
+            for (int positionIdx = 0; positionIdx < ipv6Count; positionIdx++) {
+                final IPAddress ipAddress = ipAddresses[ipv6Positions[positionIdx]];
+                sortedHighs[positionIdx] = ipAddress.getHigh();
+                sortedLows[positionIdx] = ipAddress.getLow();
+            }
+            ipv6Index.lookupSorted(sortedHighs, sortedLows, ipv6Count,
+                    sortedResults);
+            for (int positionIdx = 0; positionIdx < ipv6Count; positionIdx++) {
+                results[ipv6Positions[positionIdx]] = sortedResults[positionIdx];
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sort the positions of the IPv6 addresses of <code>ipAddresses</code>
+     * by the addresses they refer to.
+     */
+    private static void sortIPv6Positions(final IPAddress[] ipAddresses,
+            int[] ipv6Positions) {
+        final Integer[] boxedPositions = new Integer[ipv6Positions.length];
+        for (int positionIdx = 0; positionIdx < ipv6Positions.length; positionIdx++) {
+            boxedPositions[positionIdx] = ipv6Positions[positionIdx];
+        }
+        Arrays.sort(boxedPositions, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer position1, Integer position2) {
+                return ipAddresses[position1].compareTo(ipAddresses[position2]);
+            }
+        });
+        for (int positionIdx = 0; positionIdx < ipv6Positions.length; positionIdx++) {
+            ipv6Positions[positionIdx] = boxedPositions[positionIdx];
+        }
+    }
+
+    /**
+     * @return the segment tables this index was built from.
+     */
+    SegmentTables getSegmentTables() {
+        return segmentTables;
+    }
+
+    /**
+     * @return the length of the shortest prefix which all the IPv6 segments of
+     *         this index begin on a boundary of. IPv6 addresses sharing a
+     *         prefix of at least this length always have the same roles.
+     */
+    int getIPv6BoundaryPrefixLength() {
+        return ipv6BoundaryPrefixLength;
+    }
+
+    /**
+     * @return the total number of IPv4 and IPv6 segments in this index.
+     */
+    int size() {
+        return ipv4SegmentCount + ipv6SegmentCount;
+    }
+
+    /**
+     * @return a human readable description of the size of this index, the
+     *         lookup structures used and the time spent building them.
+     */
+    String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return <code>true</code> if this index was built from no ranges at all.
+     */
+    boolean isEmpty() {
+        return isEmpty;
+    }
+}
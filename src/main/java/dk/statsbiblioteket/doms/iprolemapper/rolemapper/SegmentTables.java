@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The IPv4 and IPv6 segment tables of an index together with the role table
+ * interning their role sets. The tables are either compiled from a list of
+ * ranges, loaded from a {@link SnapshotFile} onto the heap, or served directly
+ * from a memory-mapped snapshot file.
+ */
+final class SegmentTables {
+
+    private final RoleTable roleTable;
+    private final SegmentBuilder ipv4Segments;
+    private final SegmentBuilder ipv6Segments;
+    private final MappedIPv4SegmentIndex mappedIPv4Segments;
+    private final MappedIPv6SegmentIndex mappedIPv6Segments;
+    private final String origin;
+    private final long elapsedNanos;
+
+    /**
+     * Create an instance holding segment tables which have already been built.
+     * 
+     * @param roleTable
+     *            the role table interning the role sets of the segments.
+     * @param ipv4Segments
+     *            a builder holding the built IPv4 segment table.
+     * @param ipv6Segments
+     *            a builder holding the built IPv6 segment table.
+     * @param origin
+     *            a past participle describing where the tables came from, e.g.
+     *            "compiled".
+     * @param elapsedNanos
+     *            the number of nanoseconds spent on producing the tables.
+     */
+    SegmentTables(RoleTable roleTable, SegmentBuilder ipv4Segments,
+            SegmentBuilder ipv6Segments, String origin, long elapsedNanos) {
+        this.roleTable = roleTable;
+        this.ipv4Segments = ipv4Segments;
+        this.ipv6Segments = ipv6Segments;
+        mappedIPv4Segments = null;
+        mappedIPv6Segments = null;
+        this.origin = origin;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Create an instance holding segment tables served from a memory-mapped
+     * snapshot file.
+     * 
+     * @param roleTable
+     *            the role table interning the role sets of the segments.
+     * @param mappedIPv4Segments
+     *            the mapped IPv4 segment table.
+     * @param mappedIPv6Segments
+     *            the mapped IPv6 segment table.
+     * @param origin
+     *            a past participle describing where the tables came from.
+     * @param elapsedNanos
+     *            the number of nanoseconds spent on mapping the tables.
+     */
+    SegmentTables(RoleTable roleTable,
+            MappedIPv4SegmentIndex mappedIPv4Segments,
+            MappedIPv6SegmentIndex mappedIPv6Segments, String origin,
+            long elapsedNanos) {
+        this.roleTable = roleTable;
+        ipv4Segments = null;
+        ipv6Segments = null;
+        this.mappedIPv4Segments = mappedIPv4Segments;
+        this.mappedIPv6Segments = mappedIPv6Segments;
+        this.origin = origin;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Compile the IP ranges specified by <code>ranges</code> into segment
+     * tables.
+     * 
+     * @param ranges
+     *            the IP ranges and associated roles to build the tables from.
+     * @return the compiled segment tables.
+     */
+    static SegmentTables compile(List<IPRangeRoles> ranges) {
+
+        final long compileStart = System.nanoTime();
+
+        final List<String> roleNames = new ArrayList<String>();
+        for (IPRangeRoles range : ranges) {
+            roleNames.addAll(range.getRoles());
+        }
+        final RoleTable roleTable = new RoleTable(roleNames);
+        final SegmentBuilder ipv4Builder = new SegmentBuilder(0, 0xffffffffL,
+                roleTable);
+        final SegmentBuilder ipv6Builder = new SegmentBuilder(-1L, -1L,
+                roleTable);
+
+        for (IPRangeRoles range : ranges) {
+            AddressKeys.collect(range, ipv4Builder, ipv6Builder);
+        }
+
+        ipv4Builder.build();
+        ipv6Builder.build();
+        return new SegmentTables(roleTable, ipv4Builder, ipv6Builder,
+                "compiled", System.nanoTime() - compileStart);
+    }
+
+    /**
+     * @return the role table interning the role sets of the segments.
+     */
+    RoleTable getRoleTable() {
+        return roleTable;
+    }
+
+    /**
+     * @return <code>true</code> if the tables are served from a memory-mapped
+     *         snapshot file, in which case only the mapped tables are
+     *         available, and otherwise <code>false</code>, in which case only
+     *         the builders are available.
+     */
+    boolean isMapped() {
+        return mappedIPv4Segments != null;
+    }
+
+    /**
+     * @return the mapped IPv4 segment table, or <code>null</code> if the
+     *         tables are not mapped.
+     */
+    MappedIPv4SegmentIndex getMappedIPv4Segments() {
+        return mappedIPv4Segments;
+    }
+
+    /**
+     * @return the mapped IPv6 segment table, or <code>null</code> if the
+     *         tables are not mapped.
+     */
+    MappedIPv6SegmentIndex getMappedIPv6Segments() {
+        return mappedIPv6Segments;
+    }
+
+    /**
+     * @return a builder holding the built IPv4 segment table, or
+     *         <code>null</code> if the tables are mapped.
+     */
+    SegmentBuilder getIPv4Segments() {
+        return ipv4Segments;
+    }
+
+    /**
+     * @return a builder holding the built IPv6 segment table, or
+     *         <code>null</code> if the tables are mapped.
+     */
+    SegmentBuilder getIPv6Segments() {
+        return ipv6Segments;
+    }
+
+    /**
+     * @return a past participle describing where the tables came from.
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the number of nanoseconds spent on producing the tables.
+     */
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reader and writer of the binary snapshot format of a compiled
+ * configuration. A snapshot file contains everything needed for publishing a
+ * {@link MappingSnapshot} without parsing the configuration and compiling its
+ * segment tables again: the interned role names, the role set table, the
+ * sorted begin addresses of the IPv4 and IPv6 segments and the original
+ * ranges.
+ * <p/>
+ * The file is laid out as follows. All numbers are big-endian.
+ * 
+ * <pre>
+ * int      magic number, "IPRM"
+ * int      format version
+ * int, ... length and bytes of the digest of the source configuration
+ * int, ... number of role names and the names in role ID order (modified UTF-8)
+ * int, ... number of role sets, each given by its size and member role IDs
+ * int, ... number of IPv4 segments, each given by its begin address (int) and
+ *          role set index
+ * int, ... number of IPv6 segments, each given by its begin address (two
+ *          longs) and role set index
+ * int, ... number of ranges, each given by the address length (byte), the
+ *          begin and end addresses and the number and IDs of its roles
+ * int      CRC-32 of all the preceding bytes
+ * </pre>
+ * 
+ * Readers refuse files of any other format version than their own, so the
+ * version must be increased whenever the layout changes.
+ */
+final class SnapshotFile {
+
+    /**
+     * The first four bytes of a snapshot file, "IPRM".
+     */
+    static final int MAGIC = 0x4950524d;
+
+    /**
+     * The version of the format written by this class.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * The maximum length of the digest of the source configuration accepted
+     * by {@link #readSourceDigest(File)}, which is that of SHA-512.
+     */
+    private static final int MAX_SOURCE_DIGEST_LENGTH = 64;
+
+    private final byte[] sourceDigest;
+    private final List<IPRangeRoles> ranges;
+    private final SegmentTables segmentTables;
+
+    private SnapshotFile(byte[] sourceDigest, List<IPRangeRoles> ranges,
+            SegmentTables segmentTables) {
+        this.sourceDigest = sourceDigest;
+        this.ranges = ranges;
+        this.segmentTables = segmentTables;
+    }
+
+    /**
+     * @return the digest of the configuration the snapshot was compiled from,
+     *         as given when it was written.
+     */
+    byte[] getSourceDigest() {
+        return sourceDigest.clone();
+    }
+
+    /**
+     * @return the ranges of the configuration the snapshot was compiled from.
+     */
+    List<IPRangeRoles> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return the segment tables of the snapshot.
+     */
+    SegmentTables getSegmentTables() {
+        return segmentTables;
+    }
+
+    /**
+     * Write <code>snapshot</code> to the file specified by
+     * <code>snapshotFile</code>. The snapshot is written to a temporary file in
+     * the same directory, which then replaces <code>snapshotFile</code>, so
+     * readers never see a partially written snapshot.
+     * 
+     * @param snapshot
+     *            the snapshot to write.
+     * @param sourceDigest
+     *            the digest of the configuration <code>snapshot</code> was
+     *            built from.
+     * @param snapshotFile
+     *            the file to write the snapshot to.
+     * @throws IOException
+     *             if the snapshot cannot be written, or if it is served from a
+     *             memory-mapped snapshot file, in which case it has already
+     *             been written.
+     */
+    static void write(MappingSnapshot snapshot, byte[] sourceDigest,
+            File snapshotFile) throws IOException {
+
+        final SegmentTables segmentTables = snapshot.getSegmentIndex()
+                .getSegmentTables();
+        if (segmentTables.isMapped()) {
+            throw new IOException("The snapshot is served from a "
+                    + "memory-mapped snapshot file and cannot be written "
+                    + "again.");
+        }
+        final RoleTable roleTable = segmentTables.getRoleTable();
+        final SegmentBuilder ipv4Segments = segmentTables.getIPv4Segments();
+        final SegmentBuilder ipv6Segments = segmentTables.getIPv6Segments();
+
+        // Assign indexes to the (interned) role sets of the segments.
+        final Map<RoleSet, Integer> roleSetIndexes = new IdentityHashMap<RoleSet, Integer>();
+        final List<RoleSet> roleSetTable = new ArrayList<RoleSet>();
+        for (SegmentBuilder segments : Arrays.asList(ipv4Segments,
+                ipv6Segments)) {
+            for (RoleSet roles : segments.getSegmentRoles()) {
+                if (!roleSetIndexes.containsKey(roles)) {
+                    roleSetIndexes.put(roles, roleSetTable.size());
+                    roleSetTable.add(roles);
+                }
+            }
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(sourceDigest.length);
+        out.write(sourceDigest);
+
+        out.writeInt(roleTable.size());
+        for (int roleID = 0; roleID < roleTable.size(); roleID++) {
+            out.writeUTF(roleTable.getRoleName(roleID));
+        }
+
+        out.writeInt(roleSetTable.size());
+        for (RoleSet roles : roleSetTable) {
+            out.writeInt(roles.size());
+            for (String role : roles) {
+                out.writeInt(roleTable.getRoleID(role));
+            }
+        }
+
+        final long[] ipv4Begins = ipv4Segments.getSegmentBeginLows();
+        final RoleSet[] ipv4Roles = ipv4Segments.getSegmentRoles();
+        out.writeInt(ipv4Begins.length);
+        for (int segmentIdx = 0; segmentIdx < ipv4Begins.length; segmentIdx++) {
+            out.writeInt((int) ipv4Begins[segmentIdx]);
+            out.writeInt(roleSetIndexes.get(ipv4Roles[segmentIdx]));
+        }
+
+        final long[] ipv6BeginHighs = ipv6Segments.getSegmentBeginHighs();
+        final long[] ipv6BeginLows = ipv6Segments.getSegmentBeginLows();
+        final RoleSet[] ipv6Roles = ipv6Segments.getSegmentRoles();
+        out.writeInt(ipv6BeginLows.length);
+        for (int segmentIdx = 0; segmentIdx < ipv6BeginLows.length; segmentIdx++) {
+            out.writeLong(ipv6BeginHighs[segmentIdx]);
+            out.writeLong(ipv6BeginLows[segmentIdx]);
+            out.writeInt(roleSetIndexes.get(ipv6Roles[segmentIdx]));
+        }
+
+        final List<IPRangeRoles> ranges = snapshot.getAllRanges();
+        out.writeInt(ranges.size());
+        for (IPRangeRoles range : ranges) {
+            final byte[] beginAddress = range.getBegin().getAddress();
+            out.writeByte(beginAddress.length);
+            out.write(beginAddress);
+            out.write(range.getEnd().getAddress());
+            out.writeInt(range.getRoles().size());
+            for (String role : range.getRoles()) {
+                out.writeInt(roleTable.getRoleID(role));
+            }
+        }
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        out.writeInt((int) checksum.getValue());
+        out.flush();
+
+        final Path targetPath = snapshotFile.getAbsoluteFile().toPath();
+        final Path temporaryPath = Files.createTempFile(targetPath.getParent(),
+                targetPath.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporaryPath, bytes.toByteArray());
+            try {
+                Files.move(temporaryPath, targetPath,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException atomicMoveException) {
+                Files.move(temporaryPath, targetPath,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    /**
+     * Read the digest of the source configuration from the header of the
+     * snapshot file specified by <code>snapshotFile</code>, without reading
+     * or mapping the rest of the file. The checksum of the file is not
+     * verified until it is read or mapped.
+     * 
+     * @param snapshotFile
+     *            the file to read the digest from.
+     * @return the digest of the configuration the snapshot was compiled from.
+     * @throws IOException
+     *             if the file cannot be read, or is not a snapshot file of
+     *             the supported format version.
+     */
+    static byte[] readSourceDigest(File snapshotFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshotFile
+                        .toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + snapshotFile);
+            }
+            final int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version "
+                        + formatVersion + " (expected " + FORMAT_VERSION
+                        + "): " + snapshotFile);
+            }
+            final int digestLength = in.readInt();
+            if (digestLength < 0 || digestLength > MAX_SOURCE_DIGEST_LENGTH) {
+                throw new IOException("Illegal digest length " + digestLength
+                        + ". The snapshot file is corrupt: " + snapshotFile);
+            }
+            final byte[] sourceDigest = new byte[digestLength];
+            in.readFully(sourceDigest);
+            return sourceDigest;
+        } catch (EOFException eofException) {
+            throw new IOException("The file is too short to be a snapshot: "
+                    + snapshotFile, eofException);
+        }
+    }
+
+    /**
+     * Read the snapshot file specified by <code>snapshotFile</code> onto the
+     * heap. The file is read with a single bulk read, and its checksum is
+     * verified before anything is decoded.
+     * 
+     * @param snapshotFile
+     *            the file to read.
+     * @return the contents of the file.
+     * @throws IOException
+     *             if the file cannot be read, is not a snapshot file of the
+     *             supported format version, or is corrupt.
+     */
+    static SnapshotFile read(File snapshotFile) throws IOException {
+        final long readStart = System.nanoTime();
+        return decode(ByteBuffer.wrap(Files.readAllBytes(snapshotFile
+                .toPath())), snapshotFile, false, readStart);
+    }
+
+    /**
+     * Map the snapshot file specified by <code>snapshotFile</code> into memory
+     * and serve its segment tables directly from the mapping. Only the role
+     * names, role sets and ranges are copied onto the heap.
+     * <p/>
+     * The mapping stays valid when the file is replaced by renaming another
+     * file onto it, as {@link #write(MappingSnapshot, byte[], File)} does, so
+     * a new snapshot must be mapped again to be used. The file must never be
+     * modified in place while it is mapped.
+     * 
+     * @param snapshotFile
+     *            the file to map.
+     * @return the contents of the file, with mapped segment tables.
+     * @throws IOException
+     *             if the file cannot be mapped, is not a snapshot file of the
+     *             supported format version, or is corrupt.
+     */
+    static SnapshotFile map(File snapshotFile) throws IOException {
+        final long mapStart = System.nanoTime();
+        final MappedByteBuffer contents;
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(),
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The snapshot file is too large to be "
+                        + "mapped: " + snapshotFile);
+            }
+            contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        }
+        return decode(contents, snapshotFile, true, mapStart);
+    }
+
+    /**
+     * Verify the header and checksum of the snapshot file contents specified
+     * by <code>contents</code>, and decode them.
+     * 
+     * @param contents
+     *            the entire contents of the snapshot file.
+     * @param snapshotFile
+     *            the snapshot file, for error messages.
+     * @param mapSegments
+     *            <code>true</code> if the segment tables should be served
+     *            from <code>contents</code> instead of being copied.
+     * @param start
+     *            the value of <code>System.nanoTime()</code> when reading
+     *            the file began.
+     */
+    private static SnapshotFile decode(ByteBuffer contents, File snapshotFile,
+            boolean mapSegments, long start) throws IOException {
+
+        if (contents.limit() < 12) {
+            throw new IOException("The file is too short to be a snapshot: "
+                    + snapshotFile);
+        }
+        if (contents.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot file: " + snapshotFile);
+        }
+        final int formatVersion = contents.getInt(4);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version "
+                    + formatVersion + " (expected " + FORMAT_VERSION + "): "
+                    + snapshotFile);
+        }
+
+        final int payloadLength = contents.limit() - 4;
+        final ByteBuffer payload = contents.duplicate();
+        payload.limit(payloadLength);
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        if (contents.getInt(payloadLength) != (int) checksum.getValue()) {
+            throw new IOException("Checksum mismatch. The snapshot file is "
+                    + "corrupt: " + snapshotFile);
+        }
+
+        final ByteBuffer body = contents.duplicate();
+        body.position(8);
+        body.limit(payloadLength);
+        try {
+            return decodeBody(body, mapSegments ? contents : null, start);
+        } catch (IOException | IllegalArgumentException decodeException) {
+            throw new IOException("Failed decoding the snapshot file: "
+                    + snapshotFile, decodeException);
+        }
+    }
+
+    /**
+     * Decode the contents of a snapshot file following the format version,
+     * which are given by the remaining bytes of <code>body</code>. The
+     * segment tables are served from <code>mappedContents</code> unless it is
+     * <code>null</code>.
+     */
+    private static SnapshotFile decodeBody(ByteBuffer body,
+            ByteBuffer mappedContents, long start) throws IOException,
+            IllegalArgumentException {
+
+        final DataInputStream in = new DataInputStream(
+                new ByteBufferInputStream(body));
+
+        final byte[] sourceDigest = new byte[readCount(in)];
+        in.readFully(sourceDigest);
+
+        final String[] roleNames = new String[readCount(in)];
+        for (int roleID = 0; roleID < roleNames.length; roleID++) {
+            roleNames[roleID] = in.readUTF();
+        }
+        final RoleTable roleTable = new RoleTable(Arrays.asList(roleNames));
+        for (int roleID = 0; roleID < roleNames.length; roleID++) {
+            if (roleTable.getRoleID(roleNames[roleID]) != roleID) {
+                throw new IOException("The role names are not sorted.");
+            }
+        }
+
+        final RoleSet[] roleSets = new RoleSet[readCount(in)];
+        for (int roleSetIdx = 0; roleSetIdx < roleSets.length; roleSetIdx++) {
+            final long[] bits = roleTable.newBits();
+            final int roleCount = readCount(in);
+            for (int roleIdx = 0; roleIdx < roleCount; roleIdx++) {
+                final int roleID = readIndex(in, roleNames.length);
+                bits[roleID >>> 6] |= 1L << roleID;
+            }
+            roleSets[roleSetIdx] = roleTable.intern(bits);
+        }
+
+        final MappedIPv4SegmentIndex mappedIPv4Segments;
+        final MappedIPv6SegmentIndex mappedIPv6Segments;
+        final SegmentBuilder ipv4Segments;
+        final SegmentBuilder ipv6Segments;
+        if (mappedContents != null) {
+            final int ipv4SegmentCount = readCount(in);
+            mappedIPv4Segments = new MappedIPv4SegmentIndex(mappedContents,
+                    skipRecords(body, ipv4SegmentCount,
+                            MappedIPv4SegmentIndex.RECORD_SIZE),
+                    ipv4SegmentCount, roleSets);
+            final int ipv6SegmentCount = readCount(in);
+            mappedIPv6Segments = new MappedIPv6SegmentIndex(mappedContents,
+                    skipRecords(body, ipv6SegmentCount,
+                            MappedIPv6SegmentIndex.RECORD_SIZE),
+                    ipv6SegmentCount, roleSets);
+            ipv4Segments = null;
+            ipv6Segments = null;
+        } else {
+            final int ipv4SegmentCount = readCount(in);
+            final long[] ipv4BeginHighs = new long[ipv4SegmentCount];
+            final long[] ipv4BeginLows = new long[ipv4SegmentCount];
+            final RoleSet[] ipv4Roles = new RoleSet[ipv4SegmentCount];
+            for (int segmentIdx = 0; segmentIdx < ipv4SegmentCount; segmentIdx++) {
+                ipv4BeginLows[segmentIdx] = in.readInt() & 0xffffffffL;
+                ipv4Roles[segmentIdx] = roleSets[readIndex(in,
+                        roleSets.length)];
+            }
+            ipv4Segments = new SegmentBuilder(0, 0xffffffffL, roleTable);
+            ipv4Segments.load(ipv4BeginHighs, ipv4BeginLows, ipv4Roles);
+
+            final int ipv6SegmentCount = readCount(in);
+            final long[] ipv6BeginHighs = new long[ipv6SegmentCount];
+            final long[] ipv6BeginLows = new long[ipv6SegmentCount];
+            final RoleSet[] ipv6Roles = new RoleSet[ipv6SegmentCount];
+            for (int segmentIdx = 0; segmentIdx < ipv6SegmentCount; segmentIdx++) {
+                ipv6BeginHighs[segmentIdx] = in.readLong();
+                ipv6BeginLows[segmentIdx] = in.readLong();
+                ipv6Roles[segmentIdx] = roleSets[readIndex(in,
+                        roleSets.length)];
+            }
+            ipv6Segments = new SegmentBuilder(-1L, -1L, roleTable);
+            ipv6Segments.load(ipv6BeginHighs, ipv6BeginLows, ipv6Roles);
+            mappedIPv4Segments = null;
+            mappedIPv6Segments = null;
+        }
+
+        final int rangeCount = readCount(in);
+        final List<IPRangeRoles> ranges = new ArrayList<IPRangeRoles>(
+                rangeCount);
+        for (int rangeIdx = 0; rangeIdx < rangeCount; rangeIdx++) {
+            final int addressLength = in.readUnsignedByte();
+            if (addressLength != 4 && addressLength != 16) {
+                throw new IOException("Illegal address length: "
+                        + addressLength);
+            }
+            final byte[] beginAddress = new byte[addressLength];
+            final byte[] endAddress = new byte[addressLength];
+            in.readFully(beginAddress);
+            in.readFully(endAddress);
+
+            final int roleCount = readCount(in);
+            final List<String> roles = new ArrayList<String>(roleCount);
+            for (int roleIdx = 0; roleIdx < roleCount; roleIdx++) {
+                roles.add(roleNames[readIndex(in, roleNames.length)]);
+            }
+            // IPAddress keeps the address family of the written addresses.
+            // InetAddress.getByAddress() would turn IPv4-mapped IPv6
+            // addresses into IPv4 addresses.
+            ranges.add(new IPRangeRoles(IPAddress.valueOf(beginAddress),
+                    IPAddress.valueOf(endAddress), roles));
+        }
+
+        if (in.available() != 0) {
+            throw new IOException("Unexpected data after the ranges.");
+        }
+
+        if (mappedContents != null) {
+            return new SnapshotFile(sourceDigest, ranges, new SegmentTables(
+                    roleTable, mappedIPv4Segments, mappedIPv6Segments,
+                    "mapped from a snapshot", System.nanoTime() - start));
+        }
+        return new SnapshotFile(sourceDigest, ranges, new SegmentTables(
+                roleTable, ipv4Segments, ipv6Segments,
+                "loaded from a snapshot", System.nanoTime() - start));
+    }
+
+    /**
+     * Read a count, which must be non-negative and cannot exceed the number of
+     * bytes left, as every counted item takes up at least one byte.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Illegal count: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Skip <code>recordCount</code> records of <code>recordSize</code> bytes
+     * in <code>body</code>.
+     * 
+     * @return the position of the first record.
+     */
+    private static int skipRecords(ByteBuffer body, int recordCount,
+            int recordSize) throws IOException {
+        final int firstRecord = body.position();
+        if ((long) recordCount * recordSize > body.remaining()) {
+            throw new IOException("Illegal record count: " + recordCount);
+        }
+        body.position(firstRecord + recordCount * recordSize);
+        return firstRecord;
+    }
+
+    /**
+     * Read an index into a table of <code>tableSize</code> entries.
+     */
+    private static int readIndex(DataInputStream in, int tableSize)
+            throws IOException {
+        final int index = in.readInt();
+        if (index < 0 || index >= tableSize) {
+            throw new IOException("Illegal table index: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * <code>InputStream</code> reading the remaining bytes of a
+     * <code>ByteBuffer</code>, advancing its position.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int readLength = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, readLength);
+            return readLength;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
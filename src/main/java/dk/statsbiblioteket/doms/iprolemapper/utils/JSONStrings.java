@@ -0,0 +1,65 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.utils;
+
+/**
+ * Helpers for writing JSON by hand, for the few places where the responses are
+ * simple enough not to warrant a JSON library.
+ */
+public final class JSONStrings {
+
+    private JSONStrings() {
+        // Only static helpers here.
+    }
+
+    /**
+     * Append <code>value</code> to <code>json</code> as a quoted and escaped
+     * JSON string.
+     * 
+     * @param json
+     *            the JSON text to append to.
+     * @param value
+     *            the string value to append.
+     * @return <code>json</code>.
+     */
+    public static StringBuilder append(StringBuilder json, String value) {
+        json.append('"');
+        for (int charIdx = 0; charIdx < value.length(); charIdx++) {
+            final char character = value.charAt(charIdx);
+            if (character == '"' || character == '\\') {
+                json.append('\\').append(character);
+            } else if (character < 0x20) {
+                json.append("\\u00");
+                json.append(Character.forDigit(character >> 4, 16));
+                json.append(Character.forDigit(character & 0xf, 16));
+            } else {
+                json.append(character);
+            }
+        }
+        return json.append('"');
+    }
+}
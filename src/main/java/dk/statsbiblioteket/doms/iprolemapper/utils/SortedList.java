@@ -26,50 +26,68 @@
  */
 package dk.statsbiblioteket.doms.iprolemapper.utils;
 
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * This is an implementation of a sorted list which maintains a non-descending
- * order of the elements by applying insertion sorting, when adding elements to
- * a <code>LinkedList</code>. The class implements most of the methods of the
- * <code>List</code> interface, however, only the methods which are meaningful
- * to a sorted list are implemented.
+ * order of the elements in a growable array. Elements are positioned by binary
+ * search, so finding an element or the position to insert it at takes
+ * <code>O(log n)</code> comparisons. The class implements most of the methods
+ * of the <code>List</code> interface, however, only the methods which are
+ * meaningful to a sorted list are implemented.
+ * <p/>
+ * Elements which are equal to each other must also be equal according to the
+ * comparator of the list, as the elements are only searched for among the
+ * elements comparing equal to them. Elements comparing equal to each other are
+ * kept in the order they were added in.
  * 
  * @author Thomas Skou Hansen &lt;tsh@statsbiblioteket.dk&gt;
  */
 public class SortedList<T> implements Collection<T> {
 
-    private final LinkedList<T> elementList;
+    private static final int DEFAULT_CAPACITY = 10;
+
     private final Comparator<T> elementComparator;
 
+    /**
+     * The elements of the list in non-descending order. Only the first
+     * <code>size</code> entries are used.
+     */
+    private Object[] elements;
+    private int size;
+
+    /**
+     * The number of structural modifications of the list, which lets the
+     * iterators detect concurrent modifications.
+     */
+    private int modificationCount;
+
     /**
      * Create a <code>SortedList</code> instance which maintains a
      * non-descending order between the inserted elements, using the
      * <code>Comparator</code> specified by <code>elementComparator</code>.
      */
     public SortedList(Comparator<T> elementComparator) {
-        elementList = new LinkedList<T>();
+        elements = new Object[DEFAULT_CAPACITY];
         this.elementComparator = elementComparator;
     }
 
     /**
-     * FIXME! UPDATE DOC! Appends the specified element to the end of this list
-     * (optional operation).
-     * 
-     * <p>
-     * Lists that support this operation may place limitations on what elements
-     * may be added to this list. In particular, some lists will refuse to add
-     * null elements, and others will impose restrictions on the type of
-     * elements that may be added. List classes should clearly specify in their
-     * documentation any restrictions on what elements may be added.
+     * Inserts the specified element into this list, after any elements
+     * comparing equal to it. The insertion position is found by binary search,
+     * but the subsequent elements must still be moved, so a single insertion
+     * takes <code>O(n)</code> time. Use {@link #addAll(Collection)} to add
+     * many elements at once.
      * 
      * @param element
-     *            element to be appended to this list
+     *            element to be inserted into this list
      * @return <tt>true</tt> (as specified by {@link Collection#add})
      * @throws UnsupportedOperationException
      *             if the <tt>add</tt> operation is not supported by this list
@@ -84,25 +102,24 @@ public class SortedList<T> implements Collection<T> {
      *             to this list
      */
     public boolean add(T element) {
-        final int insertPos = findInsertionPosition(elementList,
-                elementComparator, element);
-
-        if (insertPos < elementList.size()) {
-            elementList.add(insertPos, element);
-            return true;
-        } else {
-            // Handle insertion into an empty list or at the end of the list.
-            return elementList.add(element);
-        }
+        final int insertPos = findUpperBound(element);
+        ensureCapacity(size + 1);
+        System.arraycopy(elements, insertPos, elements, insertPos + 1, size
+                - insertPos);
+        elements[insertPos] = element;
+        size++;
+        modificationCount++;
+        return true;
     }
 
     /**
-     * FIXME! UPDATE DOC! Appends all of the elements in the specified
-     * collection to the end of this list, in the order that they are returned
-     * by the specified collection's iterator (optional operation). The behavior
-     * of this operation is undefined if the specified collection is modified
-     * while the operation is in progress. (Note that this will occur if the
-     * specified collection is this list, and it's nonempty.)
+     * Inserts all of the elements in the specified collection into this list.
+     * The elements are sorted once and then merged with the elements of this
+     * list in a single pass, so adding <code>m</code> elements to a list of
+     * <code>n</code> elements takes <code>O(m log m + n)</code> time. Elements
+     * comparing equal to each other keep their order. The behavior of this
+     * operation is undefined if the specified collection is modified while the
+     * operation is in progress.
      * 
      * @param elements
      *            collection containing elements to be added to this list
@@ -122,12 +139,33 @@ public class SortedList<T> implements Collection<T> {
      *             prevents it from being added to this list
      * @see #add(Object)
      */
+    @SuppressWarnings("unchecked")
     public boolean addAll(Collection<? extends T> elements) {
-        boolean collectionHasChanged = false;
-        for (T element : elements) {
-            collectionHasChanged |= add(element);
+        final Object[] newElements = elements.toArray();
+        if (newElements.length == 0) {
+            return false;
         }
-        return collectionHasChanged;
+        Arrays.sort(newElements, 0, newElements.length,
+                (Comparator<Object>) elementComparator);
+
+        // Merge from the back, so the elements of this list are moved
+        // directly to their final positions.
+        ensureCapacity(size + newElements.length);
+        int oldIdx = size - 1;
+        int newIdx = newElements.length - 1;
+        int targetIdx = size + newElements.length - 1;
+        while (newIdx >= 0) {
+            if (oldIdx >= 0
+                    && elementComparator.compare(elementAt(oldIdx),
+                            (T) newElements[newIdx]) > 0) {
+                this.elements[targetIdx--] = this.elements[oldIdx--];
+            } else {
+                this.elements[targetIdx--] = newElements[newIdx--];
+            }
+        }
+        size += newElements.length;
+        modificationCount++;
+        return true;
     }
 
     /**
@@ -138,7 +176,9 @@ public class SortedList<T> implements Collection<T> {
      *             if the <tt>clear</tt> operation is not supported by this list
      */
     public void clear() {
-        elementList.clear();
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+        modificationCount++;
     }
 
     /**
@@ -158,11 +198,11 @@ public class SortedList<T> implements Collection<T> {
      *             permit null elements (optional)
      */
     public boolean contains(Object element) {
-        return elementList.contains(element);
+        return indexOf(element) >= 0;
     }
 
     /**
-     * FIXME! UPDATE DOC! Returns <tt>true</tt> if this list contains all of the
+     * Returns <tt>true</tt> if this list contains all of the
      * elements of the specified collection.
      * 
      * @param elements
@@ -179,15 +219,12 @@ public class SortedList<T> implements Collection<T> {
      * @see #contains(Object)
      */
     public boolean containsAll(Collection<?> elements) {
-        boolean allContained = true;
         for (Object element : elements) {
-            allContained &= elementList.contains(element);
-            if (allContained == false) {
-                break;
+            if (!contains(element)) {
+                return false;
             }
         }
-
-        return allContained;
+        return true;
     }
 
     /**
@@ -201,7 +238,8 @@ public class SortedList<T> implements Collection<T> {
      *             <tt>index &lt; 0 || index &gt;= size()</tt>)
      */
     public T get(int index) {
-        return elementList.get(index);
+        checkIndex(index);
+        return elementAt(index);
     }
 
     /**
@@ -222,8 +260,16 @@ public class SortedList<T> implements Collection<T> {
      *             if the specified element is null and this list does not
      *             permit null elements (optional)
      */
-    public int indexOf(T element) {
-        return elementList.indexOf(element);
+    public int indexOf(Object element) {
+        final int lowerBound = findLowerBound(element);
+        final int upperBound = findUpperBound(element, lowerBound);
+        for (int index = lowerBound; index < upperBound; index++) {
+            if (element == null ? elements[index] == null : element
+                    .equals(elements[index])) {
+                return index;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -232,7 +278,7 @@ public class SortedList<T> implements Collection<T> {
      * @return <tt>true</tt> if this list contains no elements
      */
     public boolean isEmpty() {
-        return elementList.isEmpty();
+        return size == 0;
     }
 
     /**
@@ -241,7 +287,7 @@ public class SortedList<T> implements Collection<T> {
      * @return an iterator over the elements in this list in proper sequence
      */
     public Iterator<T> iterator() {
-        return elementList.iterator();
+        return new ElementIterator();
     }
 
     /**
@@ -262,8 +308,16 @@ public class SortedList<T> implements Collection<T> {
      *             if the specified element is null and this list does not
      *             permit null elements (optional)
      */
-    public int lastIndexOf(T element) {
-        return elementList.lastIndexOf(element);
+    public int lastIndexOf(Object element) {
+        final int lowerBound = findLowerBound(element);
+        final int upperBound = findUpperBound(element, lowerBound);
+        for (int index = upperBound - 1; index >= lowerBound; index--) {
+            if (element == null ? elements[index] == null : element
+                    .equals(elements[index])) {
+                return index;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -282,7 +336,10 @@ public class SortedList<T> implements Collection<T> {
      *             <tt>index &lt; 0 || index &gt;= size()</tt>)
      */
     public T remove(int index) {
-        return elementList.remove(index);
+        checkIndex(index);
+        final T removedElement = elementAt(index);
+        removeRange(index, index + 1);
+        return removedElement;
     }
 
     /**
@@ -309,7 +366,12 @@ public class SortedList<T> implements Collection<T> {
      *             list
      */
     public boolean remove(Object element) {
-        return elementList.remove(element);
+        final int index = indexOf(element);
+        if (index < 0) {
+            return false;
+        }
+        removeRange(index, index + 1);
+        return true;
     }
 
     /**
@@ -333,7 +395,7 @@ public class SortedList<T> implements Collection<T> {
      * @see #contains(Object)
      */
     public boolean removeAll(Collection<?> elements) {
-        return elementList.removeAll(elements);
+        return removeIf(elements, true);
     }
 
     /**
@@ -359,7 +421,7 @@ public class SortedList<T> implements Collection<T> {
      * @see #contains(Object)
      */
     public boolean retainAll(Collection<?> elements) {
-        return elementList.retainAll(elements);
+        return removeIf(elements, false);
     }
 
     /**
@@ -370,7 +432,7 @@ public class SortedList<T> implements Collection<T> {
      * @return the number of elements in this list
      */
     public int size() {
-        return elementList.size();
+        return size;
     }
 
     /**
@@ -379,8 +441,8 @@ public class SortedList<T> implements Collection<T> {
      * <tt>fromIndex</tt> and <tt>toIndex</tt> are equal, the returned list is
      * empty.) The returned list is backed by this list, so non-structural
      * changes in the returned list are reflected in this list, and vice-versa.
-     * The returned list supports all of the optional list operations supported
-     * by this list.
+     * The returned list only supports removing elements, as any other
+     * modification could break the order of this list.
      * <p>
      * 
      * This method eliminates the need for explicit range operations (of the
@@ -415,7 +477,11 @@ public class SortedList<T> implements Collection<T> {
      *         fromIndex &gt; toIndex</tt>)
      */
     public List<T> subList(int fromIndex, int toIndex) {
-        return elementList.subList(fromIndex, toIndex);
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("fromIndex = " + fromIndex
+                    + "  toIndex = " + toIndex + "  size = " + size);
+        }
+        return new SubList(fromIndex, toIndex);
     }
 
     /**
@@ -436,7 +502,7 @@ public class SortedList<T> implements Collection<T> {
      * @see Arrays#asList(Object[])
      */
     public Object[] toArray() {
-        return elementList.toArray();
+        return Arrays.copyOf(elements, size);
     }
 
     /**
@@ -482,50 +548,257 @@ public class SortedList<T> implements Collection<T> {
      * @throws NullPointerException
      *             if the specified array is null
      */
+    @SuppressWarnings("unchecked")
     public <U> U[] toArray(U[] resultArray) {
-        return elementList.toArray(resultArray);
+        if (resultArray.length < size) {
+            return (U[]) Arrays.copyOf(elements, size, resultArray.getClass());
+        }
+        System.arraycopy(elements, 0, resultArray, 0, size);
+        if (resultArray.length > size) {
+            resultArray[size] = null;
+        }
+        return resultArray;
     }
 
     /**
+     * Removes the elements from <code>fromIndex</code>, inclusive, to
+     * <code>toIndex</code>, exclusive, from this list. Shifts any subsequent
+     * elements to the left.
      * 
-     * @param targetList
-     * @param comparator
-     * @param element
-     * @return
+     * @param fromIndex
+     *            the index of the first element to remove.
+     * @param toIndex
+     *            the index after the last element to remove.
+     * @throws IndexOutOfBoundsException
+     *             if <tt>fromIndex &lt; 0 || toIndex &gt; size() ||
+     *             fromIndex &gt; toIndex</tt>
      */
-    private int findInsertionPosition(LinkedList<T> targetList,
-            Comparator<T> comparator, T element) {
+    public void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("fromIndex = " + fromIndex
+                    + "  toIndex = " + toIndex + "  size = " + size);
+        }
+        System.arraycopy(elements, toIndex, elements, fromIndex, size
+                - toIndex);
+        final int newSize = size - (toIndex - fromIndex);
+        Arrays.fill(elements, newSize, size, null);
+        size = newSize;
+        modificationCount++;
+    }
 
-        return findPosition(targetList, 0, targetList.size(), comparator,
-                element);
+    /**
+     * Removes all the elements comparing greater than or equal to
+     * <code>fromElement</code> and less than <code>toElement</code> from this
+     * list. The elements are located by binary search.
+     * <p/>
+     * This is the value based counterpart of {@link #removeRange(int, int)},
+     * which is named differently to keep the two apart for lists of
+     * <code>Integer</code> elements.
+     * 
+     * @param fromElement
+     *            the lowest element to remove, inclusive.
+     * @param toElement
+     *            the highest element to remove, exclusive.
+     * @return the number of elements removed.
+     */
+    public int removeBetween(T fromElement, T toElement) {
+        final int fromIndex = findLowerBound(fromElement);
+        final int toIndex = Math.max(fromIndex, findLowerBound(toElement));
+        removeRange(fromIndex, toIndex);
+        return toIndex - fromIndex;
     }
 
     /**
-     * @param targetList
-     * @param startIndex
-     * @param endIndex
-     * @param comparator
+     * Removes all the elements comparing equal to <code>element</code> from
+     * this list. The elements are located by binary search.
+     * 
      * @param element
-     * @return
+     *            the element to remove all the equal elements of.
+     * @return the number of elements removed.
+     */
+    public int removeEqual(T element) {
+        final int fromIndex = findLowerBound(element);
+        final int toIndex = findUpperBound(element, fromIndex);
+        removeRange(fromIndex, toIndex);
+        return toIndex - fromIndex;
+    }
+
+    /**
+     * Remove the elements which are (or are not) contained in
+     * <code>elements</code> in a single pass.
+     * 
+     * @param elements
+     *            the elements to test against.
+     * @param removeContained
+     *            <code>true</code> to remove the contained elements and
+     *            <code>false</code> to remove the elements not contained.
+     * @return <code>true</code> if this list changed.
+     */
+    private boolean removeIf(Collection<?> elements, boolean removeContained) {
+        int targetIdx = 0;
+        for (int index = 0; index < size; index++) {
+            if (elements.contains(this.elements[index]) != removeContained) {
+                this.elements[targetIdx++] = this.elements[index];
+            }
+        }
+        if (targetIdx == size) {
+            return false;
+        }
+        Arrays.fill(this.elements, targetIdx, size, null);
+        size = targetIdx;
+        modificationCount++;
+        return true;
+    }
+
+    /**
+     * Get the index of the first element which does not compare less than
+     * <code>element</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private int findLowerBound(Object element) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (elementComparator.compare(elementAt(middle), (T) element) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the index of the first element which compares greater than
+     * <code>element</code>.
+     */
+    private int findUpperBound(Object element) {
+        return findUpperBound(element, 0);
+    }
+
+    /**
+     * Get the index of the first element at or after <code>fromIndex</code>
+     * which compares greater than <code>element</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private int findUpperBound(Object element, int fromIndex) {
+        int low = fromIndex;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (elementComparator.compare(elementAt(middle), (T) element) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T elementAt(int index) {
+        return (T) elements[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index = " + index
+                    + "  size = " + size);
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(minCapacity,
+                    elements.length + (elements.length >> 1)));
+        }
+    }
+
+    /**
+     * Iterator over the elements of the list, which supports removing the
+     * last returned element.
      */
-    private int findPosition(LinkedList<T> targetList, int startIndex,
-            int endIndex, Comparator<T> comparator, T element) {
+    private class ElementIterator implements Iterator<T> {
 
-        if (startIndex == endIndex) {
-            return startIndex;
+        private int nextIndex;
+        private int lastIndex = -1;
+        private int expectedModificationCount = modificationCount;
+
+        @Override
+        public boolean hasNext() {
+            return nextIndex < size;
+        }
+
+        @Override
+        public T next() {
+            checkModification();
+            if (nextIndex >= size) {
+                throw new NoSuchElementException();
+            }
+            lastIndex = nextIndex++;
+            return elementAt(lastIndex);
+        }
+
+        @Override
+        public void remove() {
+            if (lastIndex < 0) {
+                throw new IllegalStateException();
+            }
+            checkModification();
+            removeRange(lastIndex, lastIndex + 1);
+            nextIndex = lastIndex;
+            lastIndex = -1;
+            expectedModificationCount = modificationCount;
+        }
+
+        private void checkModification() {
+            if (modificationCount != expectedModificationCount) {
+                throw new ConcurrentModificationException();
+            }
         }
+    }
 
-        final int middleIndex = startIndex + (endIndex - startIndex) / 2;
-        final T middleElement = targetList.get(middleIndex);
-        final int compareResult = comparator.compare(middleElement, element);
+    /**
+     * View of a portion of the list, which supports reading and removing
+     * elements.
+     */
+    private class SubList extends AbstractList<T> {
+
+        private final int offset;
+        private int subListSize;
+
+        SubList(int fromIndex, int toIndex) {
+            offset = fromIndex;
+            subListSize = toIndex - fromIndex;
+        }
+
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= subListSize) {
+                throw new IndexOutOfBoundsException("index = " + index
+                        + "  size = " + subListSize);
+            }
+            return SortedList.this.get(offset + index);
+        }
+
+        @Override
+        public int size() {
+            return subListSize;
+        }
+
+        @Override
+        public T remove(int index) {
+            final T removedElement = get(index);
+            SortedList.this.removeRange(offset + index, offset + index + 1);
+            subListSize--;
+            return removedElement;
+        }
 
-        if (compareResult == 0) {
-            return middleIndex;
-        } else if (compareResult < 0) {
-            return findPosition(targetList, middleIndex + 1, endIndex,
-                    comparator, element);
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            SortedList.this.removeRange(offset + fromIndex, offset + toIndex);
+            subListSize -= toIndex - fromIndex;
         }
-        return findPosition(targetList, startIndex, middleIndex, comparator,
-                element);
     }
 }
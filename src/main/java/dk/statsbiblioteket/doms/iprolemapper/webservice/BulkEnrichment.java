@@ -0,0 +1,466 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.RoleSet;
+import dk.statsbiblioteket.doms.iprolemapper.utils.JSONStrings;
+
+/**
+ * Streaming response body which reads addresses, one per line, from a request
+ * body and writes the roles of each address to the response as it goes.
+ * <p/>
+ * The lines are read in chunks of at most {@link #CHUNK_SIZE} lines. The
+ * host names of a chunk, if host name resolution is enabled, are resolved
+ * concurrently, at most
+ * {@link IPRoleMapperService#MAX_LOOKUPS_PER_REQUEST} at a time, and the chunk
+ * is then mapped by a single call to
+ * {@link IPRoleMapper#mapIPHosts(IPAddress[])}. Its answers are written and
+ * flushed before the next chunk is read. Only the first
+ * {@link #MAX_LINE_LENGTH} characters of a line are kept, and longer lines are
+ * answered as invalid. The memory used is thus bounded by the chunk size and
+ * the line length regardless of the size of the request, and a client which
+ * reads the response slowly holds back the reading of its request by TCP flow
+ * control. Each chunk is mapped by the configuration current when the chunk is
+ * mapped, so a reload in the middle of a request affects the remaining chunks.
+ * <p/>
+ * The answers are written in the order of the lines, in one of the
+ * {@link Format formats} below. Lines which do not hold a valid address get an
+ * error answer instead of the roles, and do not stop the processing.
+ */
+class BulkEnrichment implements StreamingOutput {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(BulkEnrichment.class);
+
+    /**
+     * The maximum number of lines mapped and written at a time.
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * The maximum number of characters of a line, not counting the line
+     * break. Longer lines are answered as invalid, and only their first
+     * <code>MAX_LINE_LENGTH</code> characters are written back.
+     */
+    static final int MAX_LINE_LENGTH = 4096;
+
+    /**
+     * The error message of an answer to a line which does not hold a valid
+     * address.
+     */
+    static final String INVALID_ADDRESS_MESSAGE = "Invalid IP address or unknown host.";
+
+    /**
+     * The formats of the requests and responses of a bulk enrichment.
+     */
+    enum Format {
+
+        /**
+         * One address per line in, and one line of tab separated fields per
+         * address out: the address, then <code>OK</code> and the comma
+         * separated roles, or <code>ERROR</code> and an error message.
+         */
+        TEXT,
+
+        /**
+         * One address per line in, and one JSON object per address out,
+         * having an <code>address</code> field and either a
+         * <code>roles</code> array or an <code>error</code> message.
+         */
+        NDJSON,
+
+        /**
+         * CSV rows in, with the address in a given column. Each row is written
+         * back unchanged with two additional columns: the comma separated
+         * roles, and an error message which is empty for valid addresses.
+         * Quoted fields must not contain line breaks.
+         */
+        CSV
+    }
+
+    private final InputStream requestBody;
+    private final Format format;
+    private final int addressColumn;
+    private final boolean hasHeader;
+
+    /**
+     * Create a bulk enrichment of the lines of <code>requestBody</code>.
+     *
+     * @param requestBody
+     *            the UTF-8 encoded lines to read the addresses from.
+     * @param format
+     *            the format of the request and the response.
+     * @param addressColumn
+     *            the zero-based column holding the address of a CSV row.
+     *            Ignored by the other formats.
+     * @param hasHeader
+     *            <code>true</code> if the first line of a CSV request is a
+     *            header row. The header is written back with the names of the
+     *            additional columns appended. Ignored by the other formats.
+     */
+    BulkEnrichment(InputStream requestBody, Format format, int addressColumn,
+            boolean hasHeader) {
+        this.requestBody = requestBody;
+        this.format = format;
+        this.addressColumn = addressColumn;
+        this.hasHeader = hasHeader;
+    }
+
+    @Override
+    public void write(OutputStream responseBody) throws IOException {
+
+        final LineReader lineReader = new LineReader(new InputStreamReader(
+                requestBody, StandardCharsets.UTF_8));
+        final OutputStream output = new BufferedOutputStream(responseBody,
+                64 * 1024);
+
+        if (format == Format.CSV && hasHeader) {
+            final String header = lineReader.readLine();
+            if (header != null) {
+                writeUTF8(output, header + ",roles,error\n");
+            }
+        }
+
+        final String[] lines = new String[CHUNK_SIZE];
+        final List<String> addressStrings = new ArrayList<String>(CHUNK_SIZE);
+        final IPAddress[] addresses = new IPAddress[CHUNK_SIZE];
+        final IPRoleMapper ipRoleMapper = new IPRoleMapper();
+        long lineCount = 0;
+        boolean isExhausted = false;
+        while (!isExhausted) {
+
+            int chunkSize = 0;
+            addressStrings.clear();
+            while (chunkSize < CHUNK_SIZE) {
+                final String line = lineReader.readLine();
+                if (line == null) {
+                    isExhausted = true;
+                    break;
+                }
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                if (lineReader.isTruncated()) {
+                    addressStrings.add(null);
+                } else {
+                    addressStrings.add((format == Format.CSV) ? getCSVField(
+                            line, addressColumn) : line.trim());
+                }
+                lines[chunkSize++] = line;
+            }
+
+            // Wait for the host names of the chunk, which are looked up a
+            // window at a time, and which each give up after the timeout of
+            // the resolver.
+            final List<IPAddress> parsedAddresses = parseChunk(addressStrings);
+            int validCount = 0;
+            for (IPAddress address : parsedAddresses) {
+                if (address != null) {
+                    addresses[validCount++] = address;
+                }
+            }
+
+            final IPAddress[] addressesToMap = new IPAddress[validCount];
+            System.arraycopy(addresses, 0, addressesToMap, 0, validCount);
+            final RoleSet[] mappedRoles = ipRoleMapper
+                    .mapIPHosts(addressesToMap);
+
+            int mappedIdx = 0;
+            for (int lineIdx = 0; lineIdx < chunkSize; lineIdx++) {
+                final boolean isValid = parsedAddresses.get(lineIdx) != null;
+                final RoleSet roles = isValid ? mappedRoles[mappedIdx++] : null;
+                writeAnswer(output, lines[lineIdx], roles);
+            }
+            output.flush();
+            lineCount += chunkSize;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("write(): Enriched {} lines in the {} format.",
+                    lineCount, format);
+        }
+    }
+
+    /**
+     * Parse the addresses of a chunk, waiting for its host names to be
+     * resolved.
+     * 
+     * @param addressStrings
+     *            the addresses of the chunk, with <code>null</code> for the
+     *            truncated lines.
+     * @return the parsed addresses, with <code>null</code> for the invalid
+     *         ones.
+     * @throws IOException
+     *             if the host name resolver is overloaded. The response is
+     *             then cut short rather than answering good host names as
+     *             unknown.
+     */
+    private static List<IPAddress> parseChunk(List<String> addressStrings)
+            throws IOException {
+        try {
+            return IPRoleMapperService.parseAddressesAsync(addressStrings)
+                    .join();
+        } catch (CompletionException completionException) {
+            if (IPRoleMapperService.isOverloaded(completionException)) {
+                throw new IOException(
+                        IPRoleMapperService.OVERLOADED_MESSAGE,
+                        completionException.getCause());
+            }
+            throw completionException;
+        }
+    }
+
+    /**
+     * Write the answer to <code>line</code>, which is the address itself for
+     * the line based formats.
+     */
+    private void writeAnswer(OutputStream output, String line, RoleSet roles)
+            throws IOException {
+        switch (format) {
+        case CSV:
+            writeUTF8(output, line);
+            output.write(',');
+            if (roles != null) {
+                writeUTF8(output, quoteCSVField(new String(roles
+                        .getCommaSeparatedBytes(), StandardCharsets.UTF_8)));
+                output.write(',');
+            } else {
+                output.write(',');
+                writeUTF8(output, quoteCSVField(INVALID_ADDRESS_MESSAGE));
+            }
+            break;
+        case NDJSON:
+            writeJSONAnswer(output, line.trim(), roles);
+            break;
+        default:
+            writeTextAnswer(output, line.trim(), roles);
+        }
+        output.write('\n');
+    }
+
+    /**
+     * Write the answer for <code>address</code> as a line of tab separated
+     * fields, without the line break.
+     *
+     * @param output
+     *            the stream to write the answer to.
+     * @param address
+     *            the address as given by the client.
+     * @param roles
+     *            the roles of the address, or <code>null</code> if the address
+     *            is invalid.
+     * @throws IOException
+     *             if the answer cannot be written.
+     */
+    static void writeTextAnswer(OutputStream output, String address,
+            RoleSet roles) throws IOException {
+        writeUTF8(output, address);
+        if (roles != null) {
+            writeUTF8(output, "\tOK\t");
+            output.write(roles.getCommaSeparatedBytes());
+        } else {
+            writeUTF8(output, "\tERROR\t" + INVALID_ADDRESS_MESSAGE);
+        }
+    }
+
+    /**
+     * Write the answer for <code>address</code> as a JSON object.
+     *
+     * @param output
+     *            the stream to write the answer to.
+     * @param address
+     *            the address as given by the client.
+     * @param roles
+     *            the roles of the address, or <code>null</code> if the address
+     *            is invalid.
+     * @throws IOException
+     *             if the answer cannot be written.
+     */
+    static void writeJSONAnswer(OutputStream output, String address,
+            RoleSet roles) throws IOException {
+        final StringBuilder answer = new StringBuilder("{\"address\":");
+        JSONStrings.append(answer, address);
+        if (roles != null) {
+            answer.append(",\"roles\":");
+            writeUTF8(output, answer.toString());
+            output.write(roles.getJSONBytes());
+        } else {
+            answer.append(",\"error\":");
+            JSONStrings.append(answer, INVALID_ADDRESS_MESSAGE);
+            writeUTF8(output, answer.toString());
+        }
+        output.write('}');
+    }
+
+    /**
+     * Get the field specified by <code>column</code> of the CSV row
+     * <code>row</code>, with any enclosing quotes removed and escaped quotes
+     * unescaped.
+     *
+     * @return the trimmed field, or <code>null</code> if the row has no such
+     *         column.
+     */
+    static String getCSVField(String row, int column) {
+        int fieldBegin = 0;
+        for (int columnIdx = 0; columnIdx < column; columnIdx++) {
+            fieldBegin = skipCSVField(row, fieldBegin);
+            if (fieldBegin >= row.length()) {
+                return null;
+            }
+            fieldBegin++; // Skip the comma.
+        }
+
+        final int fieldEnd = skipCSVField(row, fieldBegin);
+        final String field = row.substring(fieldBegin, fieldEnd).trim();
+        if (field.length() >= 2 && field.charAt(0) == '"'
+                && field.charAt(field.length() - 1) == '"') {
+            return field.substring(1, field.length() - 1).replace("\"\"", "\"")
+                    .trim();
+        }
+        return field;
+    }
+
+    /**
+     * @return the index of the comma ending the CSV field beginning at
+     *         <code>fieldBegin</code> in <code>row</code>, or the length of
+     *         the row if it is the last field.
+     */
+    private static int skipCSVField(String row, int fieldBegin) {
+        boolean isQuoted = false;
+        int charIdx = fieldBegin;
+        for (; charIdx < row.length(); charIdx++) {
+            final char character = row.charAt(charIdx);
+            if (character == '"') {
+                isQuoted = !isQuoted;
+            } else if (character == ',' && !isQuoted) {
+                break;
+            }
+        }
+        return charIdx;
+    }
+
+    /**
+     * @return <code>value</code> as a quoted CSV field.
+     */
+    private static String quoteCSVField(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Reader of the lines of a request, which keeps at most
+     * {@link BulkEnrichment#MAX_LINE_LENGTH} characters of each line. Lines
+     * are terminated like by <code>BufferedReader.readLine()</code>.
+     */
+    private static final class LineReader {
+
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder line = new StringBuilder();
+        private int bufferPosition;
+        private int bufferLimit;
+        private boolean isTruncated;
+
+        /**
+         * <code>true</code> if the previous line was terminated by a carriage
+         * return, so a line feed right after it is part of that terminator.
+         */
+        private boolean isAfterCarriageReturn;
+
+        private LineReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the next line without its terminator, truncated to
+         *         <code>MAX_LINE_LENGTH</code> characters, or <code>null</code>
+         *         if there are no more lines.
+         */
+        private String readLine() throws IOException {
+            line.setLength(0);
+            isTruncated = false;
+            boolean hasCharacters = false;
+            while (true) {
+                if (bufferPosition == bufferLimit) {
+                    bufferLimit = reader.read(buffer);
+                    bufferPosition = 0;
+                    if (bufferLimit < 0) {
+                        bufferLimit = 0;
+                        return hasCharacters ? line.toString() : null;
+                    }
+                }
+                final char character = buffer[bufferPosition++];
+                if (isAfterCarriageReturn) {
+                    isAfterCarriageReturn = false;
+                    if (character == '\n') {
+                        continue;
+                    }
+                }
+                if (character == '\n' || character == '\r') {
+                    isAfterCarriageReturn = (character == '\r');
+                    return line.toString();
+                }
+                hasCharacters = true;
+                if (line.length() < MAX_LINE_LENGTH) {
+                    line.append(character);
+                } else {
+                    isTruncated = true;
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the line last read was longer than
+         *         <code>MAX_LINE_LENGTH</code> characters.
+         */
+        private boolean isTruncated() {
+            return isTruncated;
+        }
+    }
+
+    private static void writeUTF8(OutputStream output, String text)
+            throws IOException {
+        output.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
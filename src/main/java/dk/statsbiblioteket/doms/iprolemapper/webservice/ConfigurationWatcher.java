@@ -0,0 +1,558 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRangeRoles;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.LookupEngine;
+
+/**
+ * Background watcher which (re-)initialises <code>IPRoleMapper</code> whenever
+ * the IP ranges configuration file changes.
+ * <p/>
+ * Changes are detected by a <code>WatchService</code> on the directory of
+ * the configuration file, backed by periodic polling of its modification time
+ * and size for file systems which do not report changes. A detected change is
+ * only acted upon when the file has been quiet for a short while, so an editor
+ * or deployment writing the file in several steps causes a single reload.
+ * The file is only parsed if the SHA-256 digest of its contents differs from
+ * that of the configuration currently in use.
+ * <p/>
+ * After each successful reload, the compiled configuration is written to a
+ * binary snapshot file next to the configuration file, or in a separate
+ * snapshot directory if the configuration file lives on a read-only file
+ * system (see {@link #SNAPSHOT_FILE_SUFFIX}). The snapshot is used instead of
+ * the configuration file whenever it was written from a configuration having
+ * the same digest, e.g. when the service is restarted, and as the last known
+ * good configuration if the configuration file is missing or broken when the
+ * service starts. With the {@link LookupEngine#MAPPED_SNAPSHOT} engine, the
+ * lookups are served from the memory-mapped snapshot file, which is mapped
+ * again whenever it has been replaced. If the snapshot file cannot be
+ * written, the lookups are served from the heap instead, which is logged once
+ * and reported by the status.
+ * <p/>
+ * All reloads are carried out by a single background thread, so request
+ * threads never touch the file system, and are never delayed by a reload.
+ */
+class ConfigurationWatcher {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(ConfigurationWatcher.class);
+
+    /**
+     * The number of milliseconds the configuration file must have been
+     * unchanged before it is reloaded.
+     */
+    static final long DEFAULT_QUIET_PERIOD_MILLIS = 1000;
+
+    /**
+     * The number of milliseconds between polls of the modification time and
+     * size of the configuration file.
+     */
+    static final long DEFAULT_POLL_INTERVAL_MILLIS = 30000;
+
+    /**
+     * The suffix appended to the name of the configuration file to get the
+     * name of its snapshot file.
+     */
+    static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+
+    /**
+     * The states of the configuration reported by the status service.
+     */
+    enum Status {
+        OK, WARNING, ERROR
+    }
+
+    private final File configFile;
+    private final File snapshotFile;
+    private final LookupEngine lookupEngine;
+    private final long quietPeriodMillis;
+    private final long pollIntervalMillis;
+    private final ScheduledExecutorService reloadExecutor;
+
+    // The following fields are only accessed by the reload thread.
+    private byte[] currentDigest;
+    private long polledModificationTime = -1;
+    private long polledLength = -1;
+    private String snapshotFailure;
+
+    /**
+     * The pending reload, if any. Guarded by <code>this</code>.
+     */
+    private ScheduledFuture<?> pendingReload;
+
+    private WatchService watchService;
+    private Thread watchThread;
+
+    private volatile Status status = Status.ERROR;
+    private volatile String statusMessage = "No configuration loaded.";
+    private volatile String currentConfigurationFilePath;
+
+    /**
+     * Create a watcher for the configuration file specified by
+     * <code>configFile</code>, using the default quiet period and poll
+     * interval.
+     * 
+     * @param configFile
+     *            the IP ranges configuration file to watch.
+     * @param snapshotDirectory
+     *            the directory to write the snapshot file to, or
+     *            <code>null</code> to write it next to the configuration
+     *            file.
+     * @param lookupEngine
+     *            the engine to build from the configuration.
+     */
+    ConfigurationWatcher(File configFile, File snapshotDirectory,
+            LookupEngine lookupEngine) {
+        this(configFile, snapshotDirectory, lookupEngine,
+                DEFAULT_QUIET_PERIOD_MILLIS, DEFAULT_POLL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Create a watcher for the configuration file specified by
+     * <code>configFile</code>.
+     * 
+     * @param configFile
+     *            the IP ranges configuration file to watch.
+     * @param lookupEngine
+     *            the engine to build from the configuration.
+     * @param quietPeriodMillis
+     *            the number of milliseconds the file must have been unchanged
+     *            before it is reloaded.
+     * @param pollIntervalMillis
+     *            the number of milliseconds between polls of the modification
+     *            time and size of the file.
+     */
+    ConfigurationWatcher(File configFile, LookupEngine lookupEngine,
+            long quietPeriodMillis, long pollIntervalMillis) {
+        this(configFile, null, lookupEngine, quietPeriodMillis,
+                pollIntervalMillis);
+    }
+
+    /**
+     * Create a watcher for the configuration file specified by
+     * <code>configFile</code>.
+     * 
+     * @param configFile
+     *            the IP ranges configuration file to watch.
+     * @param snapshotDirectory
+     *            the directory to write the snapshot file to, or
+     *            <code>null</code> to write it next to the configuration
+     *            file.
+     * @param lookupEngine
+     *            the engine to build from the configuration.
+     * @param quietPeriodMillis
+     *            the number of milliseconds the file must have been unchanged
+     *            before it is reloaded.
+     * @param pollIntervalMillis
+     *            the number of milliseconds between polls of the modification
+     *            time and size of the file.
+     */
+    ConfigurationWatcher(File configFile, File snapshotDirectory,
+            LookupEngine lookupEngine, long quietPeriodMillis,
+            long pollIntervalMillis) {
+        this.configFile = configFile.getAbsoluteFile();
+        snapshotFile = new File((snapshotDirectory == null) ? this.configFile
+                .getParentFile() : snapshotDirectory.getAbsoluteFile(),
+                this.configFile.getName() + SNAPSHOT_FILE_SUFFIX);
+        this.lookupEngine = lookupEngine;
+        this.quietPeriodMillis = quietPeriodMillis;
+        this.pollIntervalMillis = pollIntervalMillis;
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable,
+                    "ip-rolemapper-configuration-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Load the configuration and start watching it for changes. The initial
+     * load has completed, successfully or not, when this method returns.
+     */
+    void start() {
+        try {
+            reloadExecutor.submit(this::reload).get();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException executionException) {
+            // reload() handles all expected exceptions itself.
+            log.error("start(): Un-expected failure loading the configuration.",
+                    executionException.getCause());
+        }
+
+        reloadExecutor.scheduleWithFixedDelay(this::poll, pollIntervalMillis,
+                pollIntervalMillis, TimeUnit.MILLISECONDS);
+
+        final Path configDirectory = configFile.toPath().getParent();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            configDirectory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watchThread = new Thread(this::watch,
+                    "ip-rolemapper-configuration-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } catch (IOException ioException) {
+            log.warn("start(): Cannot watch the directory " + configDirectory
+                    + " for changes. Relying on polling every "
+                    + pollIntervalMillis + " ms.", ioException);
+        }
+    }
+
+    /**
+     * Stop watching the configuration. Any reload in progress is interrupted.
+     */
+    void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ioException) {
+                log.warn("stop(): Failed closing the watch service.",
+                        ioException);
+            }
+        }
+        reloadExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the state of the configuration.
+     */
+    Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return a description of the outcome of the latest reload.
+     */
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * @return the path of the configuration file currently in use, or
+     *         <code>null</code> if no configuration has been loaded.
+     */
+    String getCurrentConfigurationFilePath() {
+        return currentConfigurationFilePath;
+    }
+
+    /**
+     * Schedule a reload of the configuration when the quiet period has
+     * elapsed, postponing any reload already pending.
+     */
+    synchronized void scheduleReload() {
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        pendingReload = reloadExecutor.schedule(this::reload,
+                quietPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for file system events and schedule a reload whenever the
+     * configuration file is affected.
+     */
+    private void watch() {
+        final Path configFileName = configFile.toPath().getFileName();
+        try {
+            while (true) {
+                final WatchKey watchKey = watchService.take();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || configFileName.equals(event.context())) {
+                        scheduleReload();
+                    }
+                }
+                if (!watchKey.reset()) {
+                    log.warn("watch(): The configuration directory is no "
+                            + "longer accessible. Relying on polling.");
+                    return;
+                }
+            }
+        } catch (InterruptedException interruptedException) {
+            // Stop watching.
+        } catch (ClosedWatchServiceException closedException) {
+            // The watcher has been stopped.
+        }
+    }
+
+    /**
+     * Schedule a reload if the modification time or size of the configuration
+     * file has changed since the last poll.
+     */
+    private void poll() {
+        final long modificationTime = configFile.lastModified();
+        final long length = configFile.length();
+        if (modificationTime != polledModificationTime
+                || length != polledLength) {
+            polledModificationTime = modificationTime;
+            polledLength = length;
+            scheduleReload();
+        }
+    }
+
+    /**
+     * (Re-)initialise <code>IPRoleMapper</code> from the configuration file if
+     * its contents have changed since the last successful reload.
+     * <p/>
+     * This method will not throw any exceptions if the initialisation fails,
+     * but will just keep the previous configuration.
+     */
+    private void reload() {
+
+        log.trace("reload(): Entering.");
+
+        try {
+            if (!configFile.exists()) {
+                throw new FileNotFoundException("Could not locate the "
+                        + "configuration file on the file system: "
+                        + configFile);
+            }
+
+            polledModificationTime = configFile.lastModified();
+            polledLength = configFile.length();
+            byte[] digest = digestConfigFile();
+            if (Arrays.equals(digest, currentDigest)) {
+                log.debug("reload(): The contents of {} are unchanged.",
+                        configFile);
+                return;
+            }
+
+            log.info("IP ranges configuration has changed. Re-initialising"
+                    + " from file: " + configFile);
+
+            if (loadMatchingSnapshot(digest)) {
+                snapshotFailure = null;
+            } else {
+                final MessageDigest readDigest = MessageDigest
+                        .getInstance("SHA-256");
+                final List<IPRangeRoles> ranges;
+                try (InputStream configStream = new BufferedInputStream(
+                        new DigestInputStream(new FileInputStream(configFile),
+                                readDigest))) {
+                    // The parser reads the whole file, up to the end of the
+                    // document.
+                    ranges = new IPRangesConfigReader().readFromXMLConfig(
+                            configStream, configFile.toURI().toString());
+                }
+                // The file may have changed since it was digested, in which
+                // case the digest of the contents actually parsed is kept.
+                digest = readDigest.digest();
+                IPRoleMapper.init(ranges, lookupEngine);
+                if (saveSnapshot(digest)
+                        && lookupEngine == LookupEngine.MAPPED_SNAPSHOT) {
+                    // Serve the lookups from the snapshot just written,
+                    // rather than from the heap.
+                    loadMatchingSnapshot(digest);
+                }
+            }
+
+            currentDigest = digest;
+            currentConfigurationFilePath = configFile.getPath();
+            if (snapshotFailure != null
+                    && lookupEngine == LookupEngine.MAPPED_SNAPSHOT) {
+                statusMessage = "The MAPPED_SNAPSHOT lookup engine cannot be "
+                        + "used, as the snapshot file " + snapshotFile
+                        + " cannot be written. Serving the lookups from the "
+                        + "heap instead. Cause of the failure: "
+                        + snapshotFailure;
+                status = Status.WARNING;
+            } else {
+                statusMessage = "Running normally.";
+                status = Status.OK;
+            }
+        } catch (IOException | RuntimeException failure) {
+            // Intentionally ignoring/logging this exception. The service will
+            // just continue using the last known good configuration or wait for
+            // the configuration to be fixed. Nobody else would see a runtime
+            // exception thrown by this background thread either.
+            final String errorMessage = "Failed (re-)initialising "
+                    + "configuration. Will proceed with the current "
+                    + "configuration. The failing configuration file is: "
+                    + configFile;
+            log.warn("reload(): " + errorMessage, failure);
+
+            if (currentConfigurationFilePath == null
+                    && loadLastKnownGoodSnapshot()) {
+                status = Status.WARNING;
+                statusMessage = errorMessage + " Using the last known good "
+                        + "configuration from the snapshot file "
+                        + snapshotFile + ". Cause of the failure: " + failure;
+            } else {
+                status = (currentConfigurationFilePath == null) ? Status.ERROR
+                        : Status.WARNING;
+                statusMessage = errorMessage + " Cause of the failure: "
+                        + failure;
+            }
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            // All Java platforms are required to support SHA-256.
+            throw new IllegalStateException(noSuchAlgorithmException);
+        }
+
+        log.trace("reload(): Exiting. Current re-load status: {}", status);
+    }
+
+    /**
+     * Compute the SHA-256 digest of the configuration file, streaming it
+     * rather than reading it into memory.
+     * 
+     * @return the digest of the contents of the configuration file.
+     * @throws IOException
+     *             if the configuration file cannot be read.
+     * @throws NoSuchAlgorithmException
+     *             if SHA-256 is not supported. This will not happen.
+     */
+    private byte[] digestConfigFile() throws IOException,
+            NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream configStream = new DigestInputStream(
+                new FileInputStream(configFile), digest)) {
+            configStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Initialise <code>IPRoleMapper</code> from the snapshot file if it was
+     * written from a configuration having the digest specified by
+     * <code>digest</code>.
+     * 
+     * @param digest
+     *            the digest of the configuration file.
+     * @return <code>true</code> if <code>IPRoleMapper</code> was initialised
+     *         from the snapshot, and <code>false</code> if there is no usable
+     *         snapshot.
+     */
+    private boolean loadMatchingSnapshot(byte[] digest) {
+        if (!snapshotFile.exists()) {
+            return false;
+        }
+        try {
+            return IPRoleMapper.initFromSnapshot(snapshotFile, digest,
+                    lookupEngine);
+        } catch (IOException | RuntimeException snapshotFailure) {
+            log.warn("loadMatchingSnapshot(): Cannot use the snapshot file "
+                    + snapshotFile + ". Reading the configuration file "
+                    + "instead.", snapshotFailure);
+            return false;
+        }
+    }
+
+    /**
+     * Initialise <code>IPRoleMapper</code> from the snapshot file, regardless
+     * of the configuration it was written from.
+     * 
+     * @return <code>true</code> if <code>IPRoleMapper</code> was initialised
+     *         from the snapshot, and <code>false</code> if there is no usable
+     *         snapshot.
+     */
+    private boolean loadLastKnownGoodSnapshot() {
+        if (!snapshotFile.exists()) {
+            return false;
+        }
+        try {
+            IPRoleMapper.initFromSnapshot(snapshotFile, null, lookupEngine);
+            currentConfigurationFilePath = snapshotFile.getPath();
+            return true;
+        } catch (IOException | RuntimeException snapshotFailure) {
+            log.error("loadLastKnownGoodSnapshot(): Cannot use the snapshot "
+                    + "file " + snapshotFile + " either.", snapshotFailure);
+            return false;
+        }
+    }
+
+    /**
+     * Write the current <code>IPRoleMapper</code> configuration to the
+     * snapshot file. A failure does not affect the reload, as the snapshot
+     * only serves as a shortcut and a fallback. It is only logged as a warning
+     * the first time it occurs, as it will typically recur on every reload.
+     * 
+     * @param digest
+     *            the digest of the configuration file.
+     * @return <code>true</code> if the snapshot file was written, and
+     *         otherwise <code>false</code>.
+     */
+    private boolean saveSnapshot(byte[] digest) {
+        try {
+            Files.createDirectories(snapshotFile.toPath().getParent());
+            IPRoleMapper.saveSnapshot(snapshotFile, digest);
+            snapshotFailure = null;
+            return true;
+        } catch (IOException | RuntimeException failure) {
+            if (!failure.toString().equals(snapshotFailure)) {
+                final String consequence;
+                if (lookupEngine == LookupEngine.MAPPED_SNAPSHOT) {
+                    consequence = "Serving the lookups from the heap instead "
+                            + "of the memory-mapped snapshot.";
+                } else {
+                    consequence = "Continuing without a snapshot.";
+                }
+                log.warn("saveSnapshot(): Cannot write the snapshot file "
+                        + snapshotFile + ": " + failure + ". " + consequence
+                        + " Configure a writable snapshot directory to "
+                        + "avoid this.");
+            }
+            log.debug("saveSnapshot(): Failed writing the snapshot file "
+                    + snapshotFile + ".", failure);
+            snapshotFailure = failure.toString();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
+
+/**
+ * Resolver of host names, which keeps the blocking lookups off the request
+ * threads.
+ * <p/>
+ * The lookups are carried out by a small pool of background threads using a
+ * pluggable {@link Lookup}, which is DNS in production. Resolved names are
+ * cached for a while, and so are names which could not be resolved, in a
+ * cache of bounded size which evicts the least recently used names. Concurrent
+ * requests for a name which is being looked up share that lookup instead of
+ * starting their own. A request waits at most a given time for a lookup; a
+ * lookup which takes longer is left running, and its result is cached for
+ * the requests which follow.
+ * <p/>
+ * A burst of requests for a slow domain thus occupies at most the lookup
+ * threads, for one lookup per name. Requests using {@link #resolve(String)}
+ * occupy their request threads for at most the timeout, and requests using
+ * {@link #resolveWithTimeout(String)} do not occupy them at all.
+ * <p/>
+ * If more names are waiting for a lookup thread than the queue of the
+ * resolver holds, further names are refused with an
+ * {@link OverloadedException} until the queue has room again, so an
+ * overloaded resolver is never mistaken for an unknown host.
+ */
+class HostNameResolver {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(HostNameResolver.class);
+
+    /**
+     * The blocking lookup of a host name.
+     */
+    interface Lookup {
+
+        /**
+         * Look up the address of <code>hostName</code>.
+         *
+         * @param hostName
+         *            the host name to look up.
+         * @return the address of the host.
+         * @throws UnknownHostException
+         *             if the host name is unknown.
+         */
+        IPAddress lookup(String hostName) throws UnknownHostException;
+    }
+
+    /**
+     * Lookup using <code>InetAddress.getByName()</code>.
+     */
+    static final Lookup DNS_LOOKUP = hostName -> IPAddress.valueOf(InetAddress
+            .getByName(hostName));
+
+    /**
+     * The default maximum number of host names in the cache.
+     */
+    static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * The default number of milliseconds a resolved host name is cached.
+     */
+    static final long DEFAULT_TTL_MILLIS = 60000;
+
+    /**
+     * The default number of milliseconds an unknown host name is cached.
+     */
+    static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10000;
+
+    /**
+     * The default number of milliseconds a request waits for a lookup.
+     */
+    static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The default number of threads carrying out lookups.
+     */
+    static final int DEFAULT_LOOKUP_THREAD_COUNT = 4;
+
+    /**
+     * The maximum number of lookups waiting for a lookup thread. Requests for
+     * further host names are refused until the queue has room.
+     */
+    static final int LOOKUP_QUEUE_SIZE = 1000;
+
+    /**
+     * Thrown, or used for completing a future exceptionally, when a host name
+     * cannot be looked up because too many lookups are pending.
+     */
+    static final class OverloadedException extends RejectedExecutionException {
+
+        private static final long serialVersionUID = 1L;
+
+        OverloadedException(String hostName) {
+            super("Too many pending host name lookups. Refused to look up "
+                    + hostName + ".");
+        }
+    }
+
+    /**
+     * A cached result of a lookup.
+     */
+    private static final class CacheEntry {
+
+        /**
+         * The resolved address, or <code>null</code> if the name is unknown.
+         */
+        private final IPAddress address;
+
+        private final long expiryNanos;
+
+        private CacheEntry(IPAddress address, long expiryNanos) {
+            this.address = address;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+
+    private final Lookup lookup;
+    private final long ttlNanos;
+    private final long negativeTTLNanos;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor lookupExecutor;
+
+    /**
+     * <code>true</code> while lookups are being refused, so the overload is
+     * only logged once.
+     */
+    private final AtomicBoolean overloaded = new AtomicBoolean();
+
+    /**
+     * The results of the most recent lookups, keyed by the lower case host
+     * names. Guarded by itself.
+     */
+    private final Map<String, CacheEntry> cache;
+
+    /**
+     * The lookups in progress, keyed by the lower case host names.
+     */
+    private final Map<String, CompletableFuture<IPAddress>> pendingLookups = new ConcurrentHashMap<String, CompletableFuture<IPAddress>>();
+
+    /**
+     * Create a resolver using <code>lookup</code> with the default settings.
+     *
+     * @param lookup
+     *            the lookup to resolve host names with.
+     */
+    HostNameResolver(Lookup lookup) {
+        this(lookup, DEFAULT_CACHE_SIZE, DEFAULT_TTL_MILLIS,
+                DEFAULT_NEGATIVE_TTL_MILLIS, DEFAULT_TIMEOUT_MILLIS,
+                DEFAULT_LOOKUP_THREAD_COUNT);
+    }
+
+    /**
+     * Create a resolver using <code>lookup</code>.
+     *
+     * @param lookup
+     *            the lookup to resolve host names with.
+     * @param cacheSize
+     *            the maximum number of host names to cache.
+     * @param ttlMillis
+     *            the number of milliseconds to cache a resolved host name.
+     * @param negativeTTLMillis
+     *            the number of milliseconds to cache an unknown host name.
+     * @param timeoutMillis
+     *            the number of milliseconds {@link #resolve(String)} waits for
+     *            a lookup.
+     * @param lookupThreadCount
+     *            the number of threads carrying out lookups.
+     */
+    HostNameResolver(Lookup lookup, final int cacheSize, long ttlMillis,
+            long negativeTTLMillis, long timeoutMillis, int lookupThreadCount) {
+        this.lookup = lookup;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        negativeTTLNanos = TimeUnit.MILLISECONDS.toNanos(negativeTTLMillis);
+        this.timeoutMillis = timeoutMillis;
+        cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CacheEntry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        lookupExecutor = new ThreadPoolExecutor(lookupThreadCount,
+                lookupThreadCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(LOOKUP_QUEUE_SIZE),
+                runnable -> {
+                    final Thread thread = new Thread(runnable,
+                            "ip-rolemapper-host-name-resolver-"
+                                    + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Resolve <code>hostName</code>, waiting at most the timeout of this
+     * resolver for the lookup.
+     *
+     * @param hostName
+     *            the host name to resolve.
+     * @return the address of the host, or <code>null</code> if the host is
+     *         unknown, or could not be looked up in time.
+     * @throws OverloadedException
+     *             if too many lookups are pending.
+     */
+    IPAddress resolve(String hostName) throws OverloadedException {
+        try {
+            return resolveAsync(hostName).get(timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException timeoutException) {
+            log.debug("resolve(): Gave up waiting for the lookup of {}.",
+                    hostName);
+            return null;
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException executionException) {
+            // The lookup futures are only completed exceptionally when the
+            // lookup was refused.
+            if (executionException.getCause() instanceof OverloadedException) {
+                throw (OverloadedException) executionException.getCause();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Resolve <code>hostName</code> without blocking, giving up after the
+     * timeout of this resolver like {@link #resolve(String)} does.
+     *
+     * @param hostName
+     *            the host name to resolve.
+     * @return a future completed by the address of the host, or by
+     *         <code>null</code> if the host is unknown, or could not be looked
+     *         up in time. It is completed exceptionally by an
+     *         {@link OverloadedException} if too many lookups are pending. The
+     *         future belongs to the caller.
+     */
+    CompletableFuture<IPAddress> resolveWithTimeout(String hostName) {
+        return resolveAsync(hostName).copy().completeOnTimeout(null,
+                timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resolve <code>hostName</code> without blocking.
+     *
+     * @param hostName
+     *            the host name to resolve.
+     * @return a future completed by the address of the host, or by
+     *         <code>null</code> if the host is unknown or cannot be looked up.
+     *         It is completed exceptionally by an {@link OverloadedException}
+     *         if too many lookups are pending. The future is shared with other
+     *         callers resolving the same name and must not be completed by the
+     *         caller.
+     */
+    CompletableFuture<IPAddress> resolveAsync(String hostName) {
+        final String key = hostName.toLowerCase(Locale.ROOT);
+        synchronized (cache) {
+            final CacheEntry cacheEntry = cache.get(key);
+            if (cacheEntry != null) {
+                if (System.nanoTime() - cacheEntry.expiryNanos < 0) {
+                    return CompletableFuture.completedFuture(cacheEntry.address);
+                }
+                cache.remove(key);
+            }
+        }
+
+        final CompletableFuture<IPAddress> newLookup = new CompletableFuture<IPAddress>();
+        final CompletableFuture<IPAddress> pendingLookup = pendingLookups
+                .putIfAbsent(key, newLookup);
+        if (pendingLookup != null) {
+            return pendingLookup;
+        }
+        try {
+            lookupExecutor.execute(() -> lookUp(key, newLookup));
+            if (overloaded.get() && overloaded.compareAndSet(true, false)) {
+                log.info("resolveAsync(): Accepting lookups again.");
+            }
+        } catch (RejectedExecutionException rejectedExecutionException) {
+            if (overloaded.compareAndSet(false, true)) {
+                log.warn("resolveAsync(): Too many pending lookups. Refusing "
+                        + "further lookups until the queue has room.");
+            }
+            log.debug("resolveAsync(): Refused to look up {}.", hostName);
+            pendingLookups.remove(key, newLookup);
+            newLookup.completeExceptionally(new OverloadedException(hostName));
+        }
+        return newLookup;
+    }
+
+    /**
+     * Stop the lookup threads. Pending lookups are completed by
+     * <code>null</code>.
+     */
+    void shutdown() {
+        lookupExecutor.shutdownNow();
+        for (CompletableFuture<IPAddress> pendingLookup : pendingLookups
+                .values()) {
+            pendingLookup.complete(null);
+        }
+    }
+
+    /**
+     * Look up <code>hostName</code>, cache the result and complete
+     * <code>pendingLookup</code> by it.
+     */
+    private void lookUp(String hostName,
+            CompletableFuture<IPAddress> pendingLookup) {
+        IPAddress address = null;
+        try {
+            address = lookup.lookup(hostName);
+            cache(hostName, address, ttlNanos);
+        } catch (UnknownHostException unknownHostException) {
+            cache(hostName, null, negativeTTLNanos);
+        } catch (RuntimeException runtimeException) {
+            log.warn("lookUp(): Failed looking up " + hostName + ".",
+                    runtimeException);
+        } finally {
+            pendingLookups.remove(hostName, pendingLookup);
+            pendingLookup.complete(address);
+        }
+    }
+
+    private void cache(String hostName, IPAddress address, long ttlNanos) {
+        final CacheEntry cacheEntry = new CacheEntry(address, System
+                .nanoTime() + ttlNanos);
+        synchronized (cache) {
+            cache.put(hostName, cacheEntry);
+        }
+    }
+}
@@ -26,36 +26,34 @@
  */
 package dk.statsbiblioteket.doms.iprolemapper.webservice;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRangeRoles;
-import dk.statsbiblioteket.util.xml.DOM;
 
 /**
  * This class is a factory class meant for production of lists of
  * <code>IPRange</code> instances from various configuration sources.
+ * <p/>
+ * The XML configuration is read with a streaming (StAX) parser in a single
+ * pass, so apart from the produced ranges themselves the memory used while
+ * reading a configuration does not depend on its size.
  * 
  * @author Thomas Skou Hansen &lt;tsh@statsbiblioteket.dk&gt;
  */
@@ -64,6 +62,19 @@ public class IPRangesConfigReader {
     private static final Logger log = LoggerFactory
             .getLogger(IPRangesConfigReader.class);
 
+    private static final String RANGES_ELEMENT = "ipranges";
+    private static final String RANGE_ELEMENT = "iprange";
+    private static final String ROLE_ELEMENT = "role";
+    private static final String BEGIN_ATTRIBUTE = "begin";
+    private static final String END_ATTRIBUTE = "end";
+
+    /**
+     * Element depths of the configuration elements. The root element has
+     * depth 1.
+     */
+    private static final int RANGE_DEPTH = 2;
+    private static final int ROLE_DEPTH = 3;
+
     /**
      * Produce a <code>List</code> of <code>IPRangeRoles</code> instances
      * constructed from the information read from the XML configuration
@@ -86,125 +97,213 @@ public class IPRangesConfigReader {
                     + rangesConfigFile);
         }
 
-        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory
-                .newInstance();
-
-        NodeList ipRangeNodes = null;
-
-        try {
-            final DocumentBuilder documentBuilder = documentBuilderFactory
-                    .newDocumentBuilder();
-
-            final Document configuationDocument = documentBuilder
-                    .parse(rangesConfigFile);
-
-            final XPathFactory xPathFactory = XPathFactory.newInstance();
-            final XPath xPath = xPathFactory.newXPath();
-
-            ipRangeNodes = (NodeList) xPath.evaluate("/ipranges/iprange",
-                    configuationDocument, XPathConstants.NODESET);
-        } catch (ParserConfigurationException parserConfigException) {
-            throw new IOException("Failed setting up parser",
-                    parserConfigException);
-        } catch (SAXException saxException) {
-            throw new IOException("Failed parsing configuration file '"
-                    + rangesConfigFile + "'", saxException);
+        try (InputStream rangesConfigStream = new BufferedInputStream(
+                new FileInputStream(rangesConfigFile))) {
+            return readFromXMLConfig(rangesConfigStream, rangesConfigFile
+                    .toURI().toString());
+        }
+    }
 
-        } catch (XPathExpressionException xPathExpressionException) {
-            throw new IOException("Failed parsing (evaluating) configuration"
-                    + " file '" + rangesConfigFile + "'",
-                    xPathExpressionException);
+    /**
+     * Produce a <code>List</code> of <code>IPRangeRoles</code> instances
+     * constructed from the information read from the XML configuration
+     * provided by <code>rangesConfigStream</code>.
+     * 
+     * @param rangesConfigStream
+     *            stream providing the contents of the XML configuration.
+     * @param systemID
+     *            the URI of the configuration, which is used for resolving
+     *            relative URIs and in error messages.
+     * @return a list of <code>IPRangeRoles</code> instances, produced from the
+     *         contents of the configuration.
+     * @throws IOException
+     *             if any errors are encountered while reading the
+     *             configuration.
+     */
+    public List<IPRangeRoles> readFromXMLConfig(
+            InputStream rangesConfigStream, String systemID)
+            throws IOException {
 
-        }
-        final List<IPRangeRoles> ipRangeList = new LinkedList<IPRangeRoles>();
-        for (int nodeIdx = 0; nodeIdx < ipRangeNodes.getLength(); nodeIdx++) {
-            try {
-                ipRangeList.add(produceIPRangeInstance(ipRangeNodes
-                        .item(nodeIdx)));
-            } catch (Exception cause) {
-                String ipRangeNodeXMLString = "Malformed IpRange.";
-                try {
-                    ipRangeNodeXMLString = DOM.domToString(ipRangeNodes
-                            .item(nodeIdx));
-                } catch (Exception eTwo) {
-                    // Exception being ignored
-                }
-                log.warn("readFromXMLConfigFile() failed to read IPRange: ",
-                        ipRangeNodeXMLString, cause);
-            }
-        }
+        final List<IPRangeRoles> ipRangeList = new ArrayList<IPRangeRoles>();
+        readFromXMLConfig(rangesConfigStream, systemID, ipRangeList::add);
 
         if (log.isTraceEnabled()) {
-            log.trace("readFromXMLConfigFile(): Returning IP address ranges: "
+            log.trace("readFromXMLConfig(): Returning IP address ranges: "
                     + ipRangeList);
         }
         return ipRangeList;
     }
 
     /**
-     * This method produces an <code>IPRangeRoles</code> instance from the
-     * information stored in the <code>Node</code> specified by
-     * <code>ipRangeNode</code>.
+     * Read the XML configuration provided by <code>rangesConfigStream</code>
+     * and pass an <code>IPRangeRoles</code> instance to
+     * <code>rangeConsumer</code> for each range in it, in document order, as
+     * soon as the range has been read.
+     * <p/>
+     * Malformed ranges, e.g. ranges with a missing or illegal address, are
+     * logged and skipped. If the configuration is not well-formed XML an
+     * <code>IOException</code> is thrown, however, the ranges read before the
+     * error was detected will already have been passed to
+     * <code>rangeConsumer</code>.
      * 
-     * @param ipRangeNode
-     *            a <code>Document Node</code> containing information about an
-     *            IP range and its associated roles.
-     * @return an <code>IPRangeRoles</code> instance created from the
-     *         information contained in <code>ipRangeNode</code>.
-     * @throws XPathExpressionException
-     *             if any errors are encountered while reading range roles from
-     *             <code>ipRangeNode</code>.
-     * @throws UnknownHostException
-     *             if the begin or end address of <code>ipRangeNode</code> is
-     *             either an unknown host name or an illegal IP address.
-     * @throws IllegalArgumentException
-     *             if the begin address and end address of the range is not of
-     *             the same type. I.e. if they are not both IPv4 or IPv6
-     *             addresses, or if <code>beginAddress</code> is higher/after
-     *             <code>endAddress</code>.
+     * @param rangesConfigStream
+     *            stream providing the contents of the XML configuration.
+     * @param systemID
+     *            the URI of the configuration, which is used for resolving
+     *            relative URIs and in error messages.
+     * @param rangeConsumer
+     *            receiver of the ranges read from the configuration.
+     * @throws IOException
+     *             if any errors are encountered while reading the
+     *             configuration.
      */
-    private IPRangeRoles produceIPRangeInstance(Node ipRangeNode)
-            throws XPathExpressionException, IllegalArgumentException,
-            UnknownHostException {
-
-        if (log.isTraceEnabled()) {
+    public void readFromXMLConfig(InputStream rangesConfigStream,
+            String systemID, Consumer<? super IPRangeRoles> rangeConsumer)
+            throws IOException {
 
-            String ipRangeNodeXMLString = "Malformed XML";
+        final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        try {
+            final XMLStreamReader xmlReader = xmlInputFactory
+                    .createXMLStreamReader(systemID, rangesConfigStream);
             try {
-                ipRangeNodeXMLString = DOM.domToString(ipRangeNode);
-            } catch (TransformerException transformerException) {
-                // Just ignore for now and log. The code will break later...
+                readRanges(xmlReader, systemID, rangeConsumer);
+            } finally {
+                xmlReader.close();
             }
-
-            log.trace("produceIPRangeInstance(): Called with XML node: "
-                    + ipRangeNodeXMLString);
+        } catch (XMLStreamException xmlStreamException) {
+            throw new IOException("Failed parsing configuration file '"
+                    + systemID + "'", xmlStreamException);
         }
+    }
 
-        final NamedNodeMap attributes = ipRangeNode.getAttributes();
-        final String beginAddress = attributes.getNamedItem("begin")
-                .getNodeValue();
-        final String endAddress = attributes.getNamedItem("end").getNodeValue();
+    /**
+     * Walk through the document read by <code>xmlReader</code> and pass the
+     * <code>iprange</code> children of the <code>ipranges</code> root element
+     * to <code>rangeConsumer</code>.
+     */
+    private void readRanges(XMLStreamReader xmlReader, String systemID,
+            Consumer<? super IPRangeRoles> rangeConsumer)
+            throws XMLStreamException {
+
+        // Ranges are only read if the root element is an "ipranges" element.
+        boolean rangesRoot = false;
+        int depth = 0;
 
-        final XPathFactory xPathFactory = XPathFactory.newInstance();
-        final XPath xPath = xPathFactory.newXPath();
+        // State of the range currently being read, if any.
+        String beginAddress = null;
+        String endAddress = null;
+        Location rangeLocation = null;
+        List<String> rangeRoles = null;
+        StringBuilder roleText = null;
+
+        while (xmlReader.hasNext()) {
+            switch (xmlReader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                final String elementName = xmlReader.getLocalName();
+                if (depth == 1) {
+                    rangesRoot = RANGES_ELEMENT.equals(elementName);
+                } else if (rangesRoot && depth == RANGE_DEPTH
+                        && RANGE_ELEMENT.equals(elementName)) {
+                    beginAddress = xmlReader.getAttributeValue(null,
+                            BEGIN_ATTRIBUTE);
+                    endAddress = xmlReader.getAttributeValue(null,
+                            END_ATTRIBUTE);
+                    rangeLocation = xmlReader.getLocation();
+                    rangeRoles = new ArrayList<String>();
+                } else if (rangeRoles != null && depth == ROLE_DEPTH
+                        && ROLE_ELEMENT.equals(elementName)) {
+                    roleText = new StringBuilder();
+                }
+                break;
 
-        final NodeList ipRangeRoleNodes = (NodeList) xPath.evaluate("role",
-                ipRangeNode, XPathConstants.NODESET);
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (roleText != null) {
+                    roleText.append(xmlReader.getTextCharacters(), xmlReader
+                            .getTextStart(), xmlReader.getTextLength());
+                }
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                if (roleText != null && depth == ROLE_DEPTH) {
+                    rangeRoles.add(roleText.toString().trim());
+                    roleText = null;
+                } else if (rangeRoles != null && depth == RANGE_DEPTH) {
+                    final IPRangeRoles rangeRoleInstance = produceIPRangeInstance(
+                            beginAddress, endAddress, rangeRoles,
+                            rangeLocation, systemID);
+                    if (rangeRoleInstance != null) {
+                        rangeConsumer.accept(rangeRoleInstance);
+                    }
+                    rangeRoles = null;
+                }
+                depth--;
+                break;
 
-        final List<String> ipRangeRoles = new LinkedList<String>();
-        for (int nodeIdx = 0; nodeIdx < ipRangeRoleNodes.getLength(); nodeIdx++) {
-            ipRangeRoles.add(ipRangeRoleNodes.item(nodeIdx).getTextContent()
-                    .trim());
+            default:
+                // Comments, processing instructions etc. are of no interest.
+                break;
+            }
         }
+    }
 
-        final IPRangeRoles rangeRoles = new IPRangeRoles(InetAddress
-                .getByName(beginAddress), InetAddress.getByName(endAddress),
-                ipRangeRoles);
+    /**
+     * This method produces an <code>IPRangeRoles</code> instance from the
+     * addresses and roles read from an <code>iprange</code> element.
+     * 
+     * @param beginAddress
+     *            the <code>begin</code> attribute of the element, or
+     *            <code>null</code> if it was missing.
+     * @param endAddress
+     *            the <code>end</code> attribute of the element, or
+     *            <code>null</code> if it was missing.
+     * @param roles
+     *            the contents of the <code>role</code> elements of the
+     *            element.
+     * @param rangeLocation
+     *            the location of the element in the configuration.
+     * @param systemID
+     *            the URI of the configuration.
+     * @return an <code>IPRangeRoles</code> instance created from the
+     *         information given, or <code>null</code> if the information was
+     *         malformed. E.g. if an address is missing, is either an unknown
+     *         host name or an illegal IP address, or if the addresses are not
+     *         of the same type or are in the wrong order.
+     */
+    private IPRangeRoles produceIPRangeInstance(String beginAddress,
+            String endAddress, List<String> roles, Location rangeLocation,
+            String systemID) {
 
         if (log.isTraceEnabled()) {
-            log.trace("produceIPRangeInstance(): Returning IPRangeRoles "
-                    + "instance: " + rangeRoles);
+            log.trace("produceIPRangeInstance(): Called with begin address: "
+                    + beginAddress + ", end address: " + endAddress
+                    + ", roles: " + roles);
+        }
+
+        try {
+            if (beginAddress == null || endAddress == null) {
+                throw new IllegalArgumentException("The range must have both"
+                        + " a '" + BEGIN_ATTRIBUTE + "' and an '"
+                        + END_ATTRIBUTE + "' attribute.");
+            }
+
+            final IPRangeRoles rangeRoles = new IPRangeRoles(InetAddress
+                    .getByName(beginAddress), InetAddress
+                    .getByName(endAddress), roles);
+
+            if (log.isTraceEnabled()) {
+                log.trace("produceIPRangeInstance(): Returning IPRangeRoles "
+                        + "instance: " + rangeRoles);
+            }
+            return rangeRoles;
+        } catch (Exception cause) {
+            log.warn("readFromXMLConfig() failed to read IPRange (begin="
+                    + beginAddress + ", end=" + endAddress + ", roles="
+                    + roles + ") at line " + rangeLocation.getLineNumber()
+                    + " of '" + systemID + "'.", cause);
+            return null;
         }
-        return rangeRoles;
     }
 }
@@ -1,6 +1,10 @@
 package dk.statsbiblioteket.doms.iprolemapper.webservice;
 
+import java.util.Arrays;
+import java.util.Locale;
+
 import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -8,6 +12,9 @@ import javax.servlet.ServletContextListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.LookupEngine;
+
 /**
  * Listener to handle the various setups and configuration sanity checks that can be carried out at when the
  * context is deployed/initalized.
@@ -28,7 +35,49 @@ public class IPRoleMapperContextListener implements ServletContextListener {
             log.info("Initializing IPRoleMapper service v{}", getClass().getPackage().getImplementationVersion());
             InitialContext ctx = new InitialContext();
             String configFile = (String) ctx.lookup("java:/comp/env/ip-ranges-config");
-            IPRoleMapperService.initialiseConfig(configFile);
+            LookupEngine lookupEngine = LookupEngine.SEGMENT_TABLE;
+            String engineName = null;
+            try {
+                engineName = (String) ctx.lookup("java:/comp/env/ip-rolemapper-lookup-engine");
+                lookupEngine = LookupEngine.valueOf(engineName.trim().toUpperCase(Locale.ROOT));
+            } catch (NameNotFoundException e) {
+                log.debug("No lookup engine configured, using {}", lookupEngine);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Illegal value '" + engineName
+                        + "' of ip-rolemapper-lookup-engine. Allowed values: "
+                        + Arrays.toString(LookupEngine.values()), e);
+            }
+            log.info("Using lookup engine {}", lookupEngine);
+            boolean resolveHostNames = false;
+            try {
+                String resolveSetting = (String) ctx.lookup("java:/comp/env/ip-rolemapper-resolve-host-names");
+                resolveHostNames = Boolean.parseBoolean(resolveSetting.trim());
+            } catch (NameNotFoundException e) {
+                log.debug("Host name resolution not configured, only accepting address literals");
+            }
+            log.info("Host name resolution {}", resolveHostNames ? "enabled" : "disabled");
+            IPRoleMapperService.setHostNameResolution(resolveHostNames);
+            boolean useVirtualThreads = false;
+            try {
+                String virtualThreadsSetting = (String) ctx.lookup("java:/comp/env/ip-rolemapper-virtual-threads");
+                useVirtualThreads = Boolean.parseBoolean(virtualThreadsSetting.trim());
+            } catch (NameNotFoundException e) {
+                log.debug("Virtual threads not configured, using platform threads");
+            }
+            log.info("Slow responses built on {} threads", useVirtualThreads ? "virtual" : "platform");
+            IPRoleMapperService.setRequestExecution(useVirtualThreads);
+            int cacheSize = lookupInt(ctx, "ip-rolemapper-address-cache-size", 0, 0, Integer.MAX_VALUE);
+            int cacheIPv6PrefixLength = lookupInt(ctx, "ip-rolemapper-address-cache-ipv6-prefix-length",
+                    IPRoleMapper.DEFAULT_CACHE_IPV6_PREFIX_LENGTH, 0, 128);
+            log.info("Address cache size {}, IPv6 prefix length {}", cacheSize, cacheIPv6PrefixLength);
+            IPRoleMapper.setAddressCache(cacheSize, cacheIPv6PrefixLength);
+            String snapshotDirectory = null;
+            try {
+                snapshotDirectory = ((String) ctx.lookup("java:/comp/env/ip-rolemapper-snapshot-directory")).trim();
+            } catch (NameNotFoundException e) {
+                log.debug("No snapshot directory configured, writing the snapshot next to the configuration file");
+            }
+            IPRoleMapperService.initialiseConfig(configFile, lookupEngine, snapshotDirectory);
         } catch (NamingException e) {
             throw new RuntimeException("Failed to lookup settings", e);
         } 
@@ -37,8 +86,48 @@ public class IPRoleMapperContextListener implements ServletContextListener {
     }
 
 
+    /**
+     * Look up an optional integer environment entry.
+     * @param ctx the naming context to look the entry up in.
+     * @param name the name of the entry, relative to java:/comp/env.
+     * @param defaultValue the value to use if the entry is not configured.
+     * @param minValue the smallest allowed value.
+     * @param maxValue the largest allowed value.
+     * @return the value of the entry, or defaultValue if it is not configured.
+     * @throws NamingException if the entry cannot be looked up.
+     * @throws IllegalArgumentException if the entry is not an integer between minValue and maxValue.
+     */
+    private int lookupInt(InitialContext ctx, String name, int defaultValue, int minValue, int maxValue)
+            throws NamingException {
+        final String setting;
+        try {
+            setting = (String) ctx.lookup("java:/comp/env/" + name);
+        } catch (NameNotFoundException e) {
+            log.debug("{} not configured, using {}", name, defaultValue);
+            return defaultValue;
+        }
+        try {
+            final int value = Integer.parseInt(setting.trim());
+            if (value >= minValue && value <= maxValue) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Illegal value '" + setting + "' of " + name
+                + ". Allowed values: integers from " + minValue + " to " + maxValue);
+    }
+
+    /**
+     * On context destruction this stops the background reloading of the
+     * configuration, the host name resolution and the request threads.
+     * @param sce context provided by the web server upon destruction.
+     */
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        IPRoleMapperService.shutdown();
+        IPRoleMapperService.setHostNameResolution(false);
+        IPRoleMapperService.setRequestExecutor(null);
         log.debug("IPRoleMapper service destroyed");
     }
 }
@@ -0,0 +1,538 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.LookupEngine;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.RoleSet;
+
+/**
+ * Standalone server of the IP role mapper, serving the same services as the
+ * web application, under the same <code>/ip-rolemapper/</code> path, on the
+ * HTTP server built into the JDK. It needs neither a servlet container, nor
+ * the JAX-RS runtime, nor JNDI, so it starts in well under a second and runs
+ * in a fraction of the memory of a container.
+ * <p/>
+ * The server is started from the classes and libraries of the web
+ * application, e.g. from the unpacked WAR file:
+ * 
+ * <pre>
+ * java -cp 'WEB-INF/classes:WEB-INF/lib/*' \
+ *     dk.statsbiblioteket.doms.iprolemapper.webservice.IPRoleMapperServer \
+ *     [configuration file [port]]
+ * </pre>
+ * 
+ * The configuration file and port may also be given by the environment
+ * variables <code>IP_RANGES_CONFIG</code> and <code>IP_ROLEMAPPER_PORT</code>.
+ * The other settings of the web application are given by environment
+ * variables named like its environment entries, i.e.
+ * <code>IP_ROLEMAPPER_LOOKUP_ENGINE</code>,
+ * <code>IP_ROLEMAPPER_RESOLVE_HOST_NAMES</code>,
+ * <code>IP_ROLEMAPPER_VIRTUAL_THREADS</code>,
+ * <code>IP_ROLEMAPPER_ADDRESS_CACHE_SIZE</code>,
+ * <code>IP_ROLEMAPPER_ADDRESS_CACHE_IPV6_PREFIX_LENGTH</code> and
+ * <code>IP_ROLEMAPPER_SNAPSHOT_DIRECTORY</code>.
+ * <p/>
+ * Unlike the JAX-RS runtime, the server does not weigh the media types
+ * accepted by a client by their quality factors, but prefers the first of
+ * them it can produce.
+ */
+public class IPRoleMapperServer {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(IPRoleMapperServer.class);
+
+    /**
+     * The path of the services, which is the context path of the web
+     * application.
+     */
+    static final String CONTEXT_PATH = "/ip-rolemapper/";
+
+    static final int DEFAULT_PORT = 8080;
+
+    private static final String TEXT_PLAIN_UTF8_TYPE = "text/plain; charset=UTF-8";
+    private static final String APPLICATION_JSON_UTF8_TYPE = "application/json; charset=UTF-8";
+    private static final String TEXT_CSV_UTF8_TYPE = "text/csv; charset=UTF-8";
+    private static final String APPLICATION_NDJSON_UTF8_TYPE = "application/x-ndjson; charset=UTF-8";
+
+    private static final String USAGE = "Usage: java "
+            + IPRoleMapperServer.class.getName()
+            + " [configuration file [port]]\n"
+            + "The configuration file and port may also be given by the "
+            + "environment variables IP_RANGES_CONFIG and IP_ROLEMAPPER_PORT.";
+
+    private final HttpServer httpServer;
+    private final ExecutorService requestExecutor;
+
+    /**
+     * Create a server of the services, which serves requests once it is
+     * started. The configuration must be initialised by
+     * {@link IPRoleMapperService#initialiseConfig(String, LookupEngine)}
+     * before any requests are served.
+     * 
+     * @param address
+     *            the address to listen on. Port 0 selects any free port.
+     * @param useVirtualThreads
+     *            <code>true</code> to handle each request on a virtual thread
+     *            of its own if the runtime supports it (Java 21 and later).
+     *            Otherwise a small pool of platform threads is used.
+     * @throws IOException
+     *             if the server cannot listen on <code>address</code>.
+     */
+    IPRoleMapperServer(InetSocketAddress address, boolean useVirtualThreads)
+            throws IOException {
+        httpServer = HttpServer.create(address, 0);
+        requestExecutor = IPRoleMapperService
+                .createRequestExecutor(useVirtualThreads);
+        httpServer.setExecutor(requestExecutor);
+        httpServer.createContext(CONTEXT_PATH, this::handle);
+    }
+
+    void start() {
+        httpServer.start();
+    }
+
+    /**
+     * Stop accepting requests, and stop the server once the requests being
+     * handled have been answered, or after at most a second.
+     */
+    void stop() {
+        httpServer.stop(1);
+        requestExecutor.shutdown();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public static void main(String[] args) throws IOException {
+        final long startNanos = System.nanoTime();
+
+        final String configFile;
+        final int port;
+        final LookupEngine lookupEngine;
+        final boolean resolveHostNames;
+        final boolean useVirtualThreads;
+        try {
+            if (args.length > 2) {
+                throw new IllegalArgumentException("Too many arguments.");
+            }
+            configFile = (args.length > 0) ? args[0] : System
+                    .getenv("IP_RANGES_CONFIG");
+            if (configFile == null) {
+                throw new IllegalArgumentException(
+                        "No configuration file was specified.");
+            }
+            port = Integer.parseInt((args.length > 1) ? args[1] : getSetting(
+                    "IP_ROLEMAPPER_PORT", Integer.toString(DEFAULT_PORT)));
+            if (port < 0 || port > 0xffff) {
+                throw new IllegalArgumentException("Illegal port: " + port);
+            }
+            lookupEngine = LookupEngine.valueOf(getSetting(
+                    "IP_ROLEMAPPER_LOOKUP_ENGINE",
+                    LookupEngine.SEGMENT_TABLE.name()).toUpperCase(Locale.ROOT));
+            resolveHostNames = Boolean.parseBoolean(getSetting(
+                    "IP_ROLEMAPPER_RESOLVE_HOST_NAMES", "false"));
+            useVirtualThreads = Boolean.parseBoolean(getSetting(
+                    "IP_ROLEMAPPER_VIRTUAL_THREADS", "false"));
+            IPRoleMapper.setAddressCache(Integer.parseInt(getSetting(
+                    "IP_ROLEMAPPER_ADDRESS_CACHE_SIZE", "0")), Integer
+                    .parseInt(getSetting(
+                            "IP_ROLEMAPPER_ADDRESS_CACHE_IPV6_PREFIX_LENGTH",
+                            Integer.toString(IPRoleMapper.DEFAULT_CACHE_IPV6_PREFIX_LENGTH))));
+        } catch (IllegalArgumentException illegalArgumentException) {
+            System.err.println(illegalArgumentException.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        log.info("Starting IPRoleMapper server v{} with lookup engine {}",
+                IPRoleMapperServer.class.getPackage()
+                        .getImplementationVersion(), lookupEngine);
+        IPRoleMapperService.setHostNameResolution(resolveHostNames);
+        IPRoleMapperService.initialiseConfig(configFile, lookupEngine,
+                getSetting("IP_ROLEMAPPER_SNAPSHOT_DIRECTORY", ""));
+
+        final IPRoleMapperServer server = new IPRoleMapperServer(
+                new InetSocketAddress(port), useVirtualThreads);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(() -> {
+                    server.stop();
+                    IPRoleMapperService.shutdown();
+                    IPRoleMapperService.setHostNameResolution(false);
+                }, "ip-rolemapper-shutdown"));
+
+        final long startedMillis = TimeUnit.NANOSECONDS.toMillis(System
+                .nanoTime()
+                - startNanos);
+        final String jvmStartedMillis = ProcessHandle.current().info()
+                .startInstant().map(
+                        jvmStart -> Long.toString(Duration.between(jvmStart,
+                                Instant.now()).toMillis())).orElse("unknown");
+        log.info("IPRoleMapper server listening on port {} of {} after {} ms "
+                + "({} ms since the JVM was started), resident memory {}",
+                server.getPort(), CONTEXT_PATH, startedMillis,
+                jvmStartedMillis, getResidentMemory());
+    }
+
+    /**
+     * Handle a request for any of the services.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getPath();
+        final String service = (path.length() > CONTEXT_PATH.length()) ? path
+                .substring(CONTEXT_PATH.length()) : "";
+        try {
+            if ("GET".equals(method) && service.startsWith("getRoles/")) {
+                getRoles(exchange, service.substring("getRoles/".length()));
+            } else if ("POST".equals(method) && "getRoles".equals(service)) {
+                getRolesBatch(exchange);
+            } else if ("POST".equals(method) && "enrichRoles".equals(service)) {
+                enrichRoles(exchange);
+            } else if ("GET".equals(method) && "getRanges".equals(service)) {
+                final Set<String> roles = new TreeSet<String>(getQueryValues(
+                        exchange, "role"));
+                send(exchange, 200, TEXT_PLAIN_UTF8_TYPE, IPRoleMapperService
+                        .encodeRanges(roles).getBytes(StandardCharsets.UTF_8));
+            } else if ("GET".equals(method) && "status".equals(service)) {
+                send(exchange, 200, TEXT_PLAIN_UTF8_TYPE, IPRoleMapperService
+                        .getStatusMessage().getBytes(StandardCharsets.UTF_8));
+            } else {
+                send(exchange, 404, TEXT_PLAIN_UTF8_TYPE, ("No such service: "
+                        + method + " " + path).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException runtimeException) {
+            log.warn("handle(): Caught un-expected exception.",
+                    runtimeException);
+            sendError(exchange);
+        }
+    }
+
+    /**
+     * Answer the roles of <code>ipAddress</code> like the
+     * <code>getRoles/{ipaddress}</code> service of {@link IPRoleMapperService}
+     * does, once the address has been parsed.
+     */
+    private static void getRoles(final HttpExchange exchange,
+            String ipAddress) {
+        final boolean prefersJSON = prefers(exchange, "application/json");
+        IPRoleMapperService.parseAddressAsync(ipAddress).whenComplete(
+                (addressToMap, throwable) -> {
+                    if (IPRoleMapperService.isOverloaded(throwable)) {
+                        sendOverloaded(exchange);
+                    } else if (throwable != null) {
+                        log.warn("getRoles(): Caught un-expected exception.",
+                                throwable);
+                        sendError(exchange);
+                    } else if (addressToMap == null) {
+                        send(exchange, 400, TEXT_PLAIN_UTF8_TYPE,
+                                BulkEnrichment.INVALID_ADDRESS_MESSAGE
+                                        .getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        final RoleSet mappedRoles = new IPRoleMapper()
+                                .mapIPHost(addressToMap);
+                        if (prefersJSON) {
+                            send(exchange, 200, APPLICATION_JSON_UTF8_TYPE,
+                                    mappedRoles.getJSONBytes());
+                        } else {
+                            send(exchange, 200, TEXT_PLAIN_UTF8_TYPE,
+                                    mappedRoles.getCommaSeparatedBytes());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Answer the roles of the addresses in the request body like the
+     * <code>POST getRoles</code> service of {@link IPRoleMapperService} does,
+     * once the addresses have been parsed. The body is read up to the size
+     * limit of that service, and larger bodies are refused.
+     */
+    private static void getRolesBatch(final HttpExchange exchange)
+            throws IOException {
+        final String ipAddresses;
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            ipAddresses = isTooLarge(exchange,
+                    IPRoleMapperService.MAX_BATCH_BYTES) ? null
+                    : IPRoleMapperService.readBatch(requestBody);
+        }
+        final List<String> addressStrings = (ipAddresses == null) ? null
+                : IPRoleMapperService.splitBatch(ipAddresses);
+        if (addressStrings == null
+                || addressStrings.size() > IPRoleMapperService.MAX_BATCH_SIZE) {
+            send(exchange, 413, TEXT_PLAIN_UTF8_TYPE,
+                    IPRoleMapperService.BATCH_TOO_LARGE_MESSAGE
+                            .getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        final boolean prefersJSON = prefers(exchange, "application/json");
+        IPRoleMapperService.mapBatchAsync(addressStrings, prefersJSON)
+                .whenComplete(
+                        (body, throwable) -> {
+                            if (IPRoleMapperService.isOverloaded(throwable)) {
+                                sendOverloaded(exchange);
+                            } else if (throwable != null) {
+                                log.warn("getRolesBatch(): Caught un-expected "
+                                        + "exception.", throwable);
+                                sendError(exchange);
+                            } else {
+                                send(exchange, 200,
+                                        prefersJSON ? APPLICATION_JSON_UTF8_TYPE
+                                                : TEXT_PLAIN_UTF8_TYPE, body);
+                            }
+                        });
+    }
+
+    /**
+     * Stream the roles of the addresses in the request body back to the
+     * client like the <code>POST enrichRoles</code> service of
+     * {@link IPRoleMapperService} does.
+     */
+    private static void enrichRoles(HttpExchange exchange) throws IOException {
+        final List<String> columns = getQueryValues(exchange, "column");
+        final List<String> headers = getQueryValues(exchange, "header");
+        final int addressColumn;
+        try {
+            addressColumn = columns.isEmpty() ? 0 : Integer.parseInt(columns
+                    .get(0));
+        } catch (NumberFormatException numberFormatException) {
+            send(exchange, 400, TEXT_PLAIN_UTF8_TYPE, ("Invalid address "
+                    + "column: " + columns.get(0))
+                    .getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (addressColumn < 0) {
+            send(exchange, 400, TEXT_PLAIN_UTF8_TYPE, ("The address column "
+                    + "must not be negative: " + addressColumn)
+                    .getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        final String requestType = exchange.getRequestHeaders().getFirst(
+                "Content-Type");
+        final BulkEnrichment bulkEnrichment;
+        final String responseType;
+        if (requestType != null
+                && getMediaType(requestType).equals("text/csv")) {
+            bulkEnrichment = new BulkEnrichment(exchange.getRequestBody(),
+                    BulkEnrichment.Format.CSV, addressColumn, !headers
+                            .isEmpty()
+                            && Boolean.parseBoolean(headers.get(0)));
+            responseType = TEXT_CSV_UTF8_TYPE;
+        } else if (prefers(exchange, "application/x-ndjson")) {
+            bulkEnrichment = new BulkEnrichment(exchange.getRequestBody(),
+                    BulkEnrichment.Format.NDJSON, 0, false);
+            responseType = APPLICATION_NDJSON_UTF8_TYPE;
+        } else {
+            bulkEnrichment = new BulkEnrichment(exchange.getRequestBody(),
+                    BulkEnrichment.Format.TEXT, 0, false);
+            responseType = TEXT_PLAIN_UTF8_TYPE;
+        }
+
+        // The answers are streamed back using chunked transfer encoding.
+        exchange.getResponseHeaders().set("Content-Type", responseType);
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            bulkEnrichment.write(responseBody);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Determine whether the <code>Content-Length</code> header of the request,
+     * if any, announces a body of more than <code>maxBytes</code> bytes, so it
+     * can be refused without reading it.
+     */
+    private static boolean isTooLarge(HttpExchange exchange, long maxBytes) {
+        final String contentLength = exchange.getRequestHeaders().getFirst(
+                "Content-Length");
+        try {
+            return contentLength != null
+                    && Long.parseLong(contentLength.trim()) > maxBytes;
+        } catch (NumberFormatException numberFormatException) {
+            return false;
+        }
+    }
+
+    /**
+     * Determine whether the client prefers <code>alternativeType</code> over
+     * plain text, based on the order of the media types in the
+     * <code>Accept</code> header of the request. Plain text is preferred if
+     * the client accepts any type, or if there is no such header.
+     */
+    static boolean prefers(HttpExchange exchange, String alternativeType) {
+        final String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return (accept != null) && prefers(accept, alternativeType);
+    }
+
+    /**
+     * Determine whether the <code>Accept</code> header specified by
+     * <code>accept</code> prefers <code>alternativeType</code> over plain
+     * text.
+     */
+    static boolean prefers(String accept, String alternativeType) {
+        for (String acceptedType : accept.split(",")) {
+            final String mediaType = getMediaType(acceptedType);
+            if (mediaType.equals("text/plain") || mediaType.equals("text/*")
+                    || mediaType.equals("*/*")) {
+                return false;
+            }
+            if (mediaType.equals(alternativeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the media type of the header value <code>headerValue</code>
+     *         without any parameters, in lower case.
+     */
+    private static String getMediaType(String headerValue) {
+        final int parametersIdx = headerValue.indexOf(';');
+        return ((parametersIdx < 0) ? headerValue : headerValue.substring(0,
+                parametersIdx)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the decoded values of the query parameter <code>name</code> of
+     *         the request, in the order they are given.
+     */
+    static List<String> getQueryValues(HttpExchange exchange, String name) {
+        final List<String> values = new ArrayList<String>();
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return values;
+        }
+        for (String parameter : query.split("&")) {
+            final int valueIdx = parameter.indexOf('=');
+            final String parameterName = (valueIdx < 0) ? parameter
+                    : parameter.substring(0, valueIdx);
+            if (name.equals(URLDecoder.decode(parameterName,
+                    StandardCharsets.UTF_8))) {
+                values.add((valueIdx < 0) ? "" : URLDecoder.decode(parameter
+                        .substring(valueIdx + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Send a complete response and end the exchange. Failures to send it,
+     * which are caused by the client going away, are only logged.
+     */
+    private static void send(HttpExchange exchange, int status,
+            String contentType, byte[] body) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, (body.length == 0) ? -1
+                    : body.length);
+            if (body.length > 0) {
+                try (OutputStream responseBody = exchange.getResponseBody()) {
+                    responseBody.write(body);
+                }
+            }
+        } catch (IOException ioException) {
+            log.debug("send(): Failed answering {}", exchange
+                    .getRequestURI(), ioException);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendError(HttpExchange exchange) {
+        send(exchange, 500, TEXT_PLAIN_UTF8_TYPE,
+                "Internal server error.".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendOverloaded(HttpExchange exchange) {
+        send(exchange, 503, TEXT_PLAIN_UTF8_TYPE,
+                IPRoleMapperService.OVERLOADED_MESSAGE
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the value of the environment variable <code>name</code>, or
+     *         <code>defaultValue</code> if it is not set.
+     */
+    private static String getSetting(String name, String defaultValue) {
+        final String value = System.getenv(name);
+        return (value == null) ? defaultValue : value.trim();
+    }
+
+    /**
+     * @return the resident set size of this process, as reported by Linux, or
+     *         the heap in use on other systems.
+     */
+    static String getResidentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths
+                    .get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring("VmRSS:".length()).trim();
+                }
+            }
+        } catch (IOException ioException) {
+            // Not Linux.
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return "unknown (heap in use "
+                + (runtime.totalMemory() - runtime.freeMemory()) / 1024
+                + " kB)";
+    }
+}
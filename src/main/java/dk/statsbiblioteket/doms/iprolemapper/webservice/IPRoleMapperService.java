@@ -26,28 +26,50 @@
  */
 package dk.statsbiblioteket.doms.iprolemapper.webservice;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
 import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRange;
-import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRangeRoles;
 import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
-import dk.statsbiblioteket.doms.iprolemapper.rolemapper.InetAddressComparator;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.LookupEngine;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.RoleSet;
 
 /**
  * @author Thomas Skou Hansen &lt;tsh@statsbiblioteket.dk&gt;
@@ -57,131 +79,659 @@ public class IPRoleMapperService {
 
     private static final Log log = LogFactory.getLog(IPRoleMapperService.class);
 
+    private static final MediaType TEXT_PLAIN_UTF8_TYPE = MediaType.TEXT_PLAIN_TYPE
+            .withCharset("UTF-8");
+    private static final MediaType APPLICATION_JSON_UTF8_TYPE = MediaType.APPLICATION_JSON_TYPE
+            .withCharset("UTF-8");
+    private static final MediaType TEXT_CSV_TYPE = new MediaType("text",
+            "csv");
+    private static final MediaType TEXT_CSV_UTF8_TYPE = TEXT_CSV_TYPE
+            .withCharset("UTF-8");
+    private static final MediaType APPLICATION_NDJSON_TYPE = new MediaType(
+            "application", "x-ndjson");
+    private static final MediaType APPLICATION_NDJSON_UTF8_TYPE = APPLICATION_NDJSON_TYPE
+            .withCharset("UTF-8");
+
+    /**
+     * The maximum number of addresses accepted by a single batch request.
+     */
+    static final int MAX_BATCH_SIZE = 10000;
+
+    /**
+     * The maximum length of an address in a batch request, which is the
+     * maximum length of a host name and well above that of any address
+     * literal.
+     */
+    static final int MAX_BATCH_ADDRESS_LENGTH = 253;
+
+    /**
+     * The maximum number of bytes accepted in the body of a single batch
+     * request: <code>MAX_BATCH_SIZE</code> addresses of the maximum length,
+     * each followed by a CR LF line break. The body is not read any further,
+     * so larger bodies cannot exhaust the heap.
+     */
+    static final int MAX_BATCH_BYTES = MAX_BATCH_SIZE
+            * (MAX_BATCH_ADDRESS_LENGTH + 2);
+
+    /**
+     * The body of the response to a batch request which is too large.
+     */
+    static final String BATCH_TOO_LARGE_MESSAGE = "At most " + MAX_BATCH_SIZE
+            + " addresses of at most " + MAX_BATCH_ADDRESS_LENGTH
+            + " characters are accepted per request.";
+
+    /**
+     * The body of the response to a request which cannot be answered because
+     * too many host names are being resolved.
+     */
+    static final String OVERLOADED_MESSAGE = "Too many host names are being "
+            + "resolved. Please try again later.";
+
+    /**
+     * The maximum number of host names of a single request being resolved at
+     * a time. A large batch is resolved a window at a time, so it cannot fill
+     * the queue of the resolver by itself and have the lookups of other
+     * requests refused.
+     */
+    static final int MAX_LOOKUPS_PER_REQUEST = 32;
+
+    /**
+     * The number of platform threads building slow responses when virtual
+     * threads are not used.
+     */
+    private static final int REQUEST_THREAD_COUNT = 4;
+
+    /**
+     * The maximum number of slow responses waiting for a platform thread.
+     * Further slow responses are built by the threads of the container.
+     */
+    private static final int REQUEST_QUEUE_SIZE = 100;
+
     private static final String IP_RANGE_ROLE_CONFIGURATION_PROPERTY = "dk.statsbiblioteket.doms.iprolemapper.webservice.IPRoleMapperService.configurationFile";
-    private static long latestConfigFileModificationTime = -1;
-    private static String currentConfigurationFilePath = null;
-    private static String lastConfigurationFilePath = "";
-    private static String lastConfigurationReloadStatusMessage = "No configuration loaded.";
-    private static Status lastConfigurationReloadStatus = Status.OK;
-    
-    private static String configProperty;
-
-    private enum Status {
-        OK, WARNING, ERROR
-    };
+
+    /**
+     * The watcher reloading the configuration, or <code>null</code> if the
+     * location of the configuration has not been specified.
+     */
+    private static volatile ConfigurationWatcher configurationWatcher;
+
+    /**
+     * The resolver of host names which are not address literals, or
+     * <code>null</code> if host names are not resolved.
+     */
+    private static volatile HostNameResolver hostNameResolver;
+
+    /**
+     * The executor building the responses which take a while, off the threads
+     * of the container, or <code>null</code> if they are built by the threads
+     * of the container.
+     */
+    private static volatile ExecutorService requestExecutor;
+
+    /**
+     * The body of the response to a request for the roles of an invalid
+     * address, which is common enough to be worth encoding once.
+     */
+    private static final byte[] INVALID_ADDRESS_BODY = BulkEnrichment.INVALID_ADDRESS_MESSAGE
+            .getBytes(StandardCharsets.UTF_8);
 
     public IPRoleMapperService() {
     }
 
-    public static synchronized void initialiseConfig(String ipRangeProperty) {
-    	configProperty = ipRangeProperty;
+    public static void initialiseConfig(String ipRangeProperty) {
+        initialiseConfig(ipRangeProperty, LookupEngine.SEGMENT_TABLE);
     }
-    
-    
-    /*
-     * Expected exception: UnknownHostException.
+
+    /**
+     * Set the location of the IP ranges configuration and the engine to use
+     * for looking up the roles of addresses. The configuration is loaded
+     * before this method returns, and is then reloaded in the background
+     * whenever it changes.
+     * 
+     * @param ipRangeProperty
+     *            path to the IP ranges configuration file.
+     * @param engine
+     *            the lookup engine to build from the configuration.
+     */
+    public static void initialiseConfig(String ipRangeProperty,
+            LookupEngine engine) {
+        initialiseConfig(ipRangeProperty, engine, null);
+    }
+
+    /**
+     * Set the location of the IP ranges configuration, the engine to use for
+     * looking up the roles of addresses and the directory to write the
+     * snapshot of the configuration to. The configuration is loaded before
+     * this method returns, and is then reloaded in the background whenever it
+     * changes.
+     * 
+     * @param ipRangeProperty
+     *            path to the IP ranges configuration file.
+     * @param engine
+     *            the lookup engine to build from the configuration.
+     * @param snapshotDirectory
+     *            path to a writable directory for the snapshot file, or
+     *            <code>null</code> or empty to write it next to the
+     *            configuration file.
+     */
+    public static synchronized void initialiseConfig(String ipRangeProperty,
+            LookupEngine engine, String snapshotDirectory) {
+        shutdown();
+        if (ipRangeProperty == null || ipRangeProperty.length() == 0) {
+            log.error("initialiseConfig(): " + getMissingLocationMessage());
+            return;
+        }
+        final File snapshotDirectoryFile = (snapshotDirectory == null
+                || snapshotDirectory.length() == 0) ? null : new File(
+                snapshotDirectory);
+        final ConfigurationWatcher newWatcher = new ConfigurationWatcher(
+                new File(ipRangeProperty), snapshotDirectoryFile, engine);
+        newWatcher.start();
+        configurationWatcher = newWatcher;
+    }
+
+    /**
+     * Enable or disable resolving host names by DNS. When disabled, which is
+     * the default, only IPv4 and IPv6 address literals are accepted, and no
+     * request ever waits for DNS. When enabled, anything which is not an
+     * address literal is looked up in DNS by a {@link HostNameResolver},
+     * which caches the results and bounds the time a request waits for a
+     * lookup.
+     * 
+     * @param resolve
+     *            <code>true</code> to resolve host names.
+     */
+    public static void setHostNameResolution(boolean resolve) {
+        setHostNameResolver(resolve ? new HostNameResolver(
+                HostNameResolver.DNS_LOOKUP) : null);
+    }
+
+    /**
+     * Set the resolver of host names which are not address literals. Any
+     * previous resolver is shut down.
+     * 
+     * @param resolver
+     *            the resolver to use, or <code>null</code> to refuse host
+     *            names.
+     */
+    static synchronized void setHostNameResolver(HostNameResolver resolver) {
+        final HostNameResolver previousResolver = hostNameResolver;
+        hostNameResolver = resolver;
+        if (previousResolver != null) {
+            previousResolver.shutdown();
+        }
+    }
+
+    /**
+     * Build the responses which take a while, which is currently those of
+     * {@link #getRanges(List)}, on an executor of their own instead of on the
+     * threads of the container, so a burst of slow requests cannot occupy all
+     * the threads of the container and hold up the cheap lookups. The lookups
+     * of host names are off the threads of the container regardless, as they
+     * are waited for by the {@link HostNameResolver} without blocking.
+     * 
+     * @param useVirtualThreads
+     *            <code>true</code> to build each response on a virtual thread
+     *            of its own if the runtime supports it (Java 21 and later).
+     *            Otherwise a small pool of platform threads is used, and the
+     *            threads of the container build the responses the pool has no
+     *            room for.
+     */
+    public static void setRequestExecution(boolean useVirtualThreads) {
+        setRequestExecutor(createRequestExecutor(useVirtualThreads));
+    }
+
+    /**
+     * Create an executor for handling requests.
+     * 
+     * @param useVirtualThreads
+     *            <code>true</code> to run each task on a virtual thread of its
+     *            own if the runtime supports it (Java 21 and later).
+     *            Otherwise a small pool of platform threads is used, and the
+     *            submitting threads run the tasks the pool has no room for.
+     * @return the new executor.
+     */
+    static ExecutorService createRequestExecutor(boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException noVirtualThreads) {
+                log.warn("createRequestExecutor(): Virtual threads are not "
+                        + "supported by this runtime. Using platform threads "
+                        + "instead.");
+            }
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(REQUEST_THREAD_COUNT,
+                REQUEST_THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(REQUEST_QUEUE_SIZE),
+                runnable -> {
+                    final Thread thread = new Thread(runnable,
+                            "ip-rolemapper-request-"
+                                    + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Set the executor building the responses which take a while. Any
+     * previous executor is shut down once it has finished its responses.
+     * 
+     * @param executor
+     *            the executor to use, or <code>null</code> to build the
+     *            responses on the threads of the container.
+     */
+    static synchronized void setRequestExecutor(ExecutorService executor) {
+        final ExecutorService previousExecutor = requestExecutor;
+        requestExecutor = executor;
+        if (previousExecutor != null) {
+            previousExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Stop watching the IP ranges configuration for changes.
+     */
+    public static synchronized void shutdown() {
+        if (configurationWatcher != null) {
+            configurationWatcher.stop();
+            configurationWatcher = null;
+        }
+    }
+
+    /**
+     * Get the roles of the address specified by <code>ipAddress</code>. The
+     * roles are returned as a comma separated list, or as a JSON array if the
+     * client prefers <code>application/json</code> over
+     * <code>text/plain</code>. The response bodies are pre-encoded by the role
+     * sets of the current configuration, so no strings are built per request.
+     * <p/>
+     * An invalid address is answered by the status 400 (Bad Request) without
+     * throwing any exceptions. Host names are refused as invalid unless host
+     * name resolution has been enabled by
+     * {@link #setHostNameResolution(boolean)}.
+     * <p/>
+     * The response to an address literal is complete when this method
+     * returns. The response to a host name is completed once the name has
+     * been resolved, or the resolver has given up, which leaves the thread of
+     * the container free for other requests in the meantime. If the resolver
+     * is overloaded, the request is answered by the status 503 (Service
+     * Unavailable).
      */
     @GET
     @Path("getRoles/{ipaddress}")
-    @Produces("text/plain")
-    public String getRoles(@PathParam("ipaddress") String ipAddress)
-            throws Throwable {
+    @Produces( { "text/plain", "application/json" })
+    public CompletionStage<Response> getRoles(
+            @PathParam("ipaddress") String ipAddress,
+            @Context HttpHeaders httpHeaders) throws Throwable {
 
         if (log.isTraceEnabled()) {
             log.trace("getRoles(): Called with IP adress: " + ipAddress);
         }
 
         try {
-            // The static content of IPRolemapper will be initialised by
-            // verifyConfiguration if the configuration can be successfully
+            // The static content of IPRolemapper is initialised by the
+            // configuration watcher if the configuration can be successfully
             // read.
             verifyConfiguration();
-            final IPRoleMapper ipRoleMapper = new IPRoleMapper();
-            final Set<String> mappedRoles = ipRoleMapper.mapIPHost(InetAddress
-                    .getByName(ipAddress));
-
-            // Build the result string.
-            String rolesString = "";
-            final Iterator<String> roleIterator = mappedRoles.iterator();
-            while (roleIterator.hasNext()) {
-                rolesString += roleIterator.next();
-
-                // Append a comma if there are more roles left.
-                if (roleIterator.hasNext()) {
-                    rolesString += ",";
-                }
-            }// end-while
 
+            // The headers may not be available once the request method has
+            // returned.
+            final boolean prefersJSON = prefersJSON(httpHeaders);
+            return logFailure("getRoles()", parseAddressAsync(ipAddress)
+                    .thenApply(
+                            addressToMap -> createRolesResponse(addressToMap,
+                                    prefersJSON)).exceptionally(
+                            IPRoleMapperService::createOverloadedResponse));
+        } catch (Throwable throwable) {
+            log.warn("getRoles(): Caught un-expected exception.", throwable);
+            throw throwable;
+        }
+    }
+
+    /**
+     * Create the response to a request for the roles of
+     * <code>addressToMap</code>, which is <code>null</code> if the requested
+     * address is invalid.
+     */
+    private static Response createRolesResponse(IPAddress addressToMap,
+            boolean prefersJSON) {
+        if (addressToMap == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(
+                    INVALID_ADDRESS_BODY).type(TEXT_PLAIN_UTF8_TYPE).build();
+        }
+        final IPRoleMapper ipRoleMapper = new IPRoleMapper();
+        final RoleSet mappedRoles = ipRoleMapper.mapIPHost(addressToMap);
+
+        if (log.isDebugEnabled()) {
             log.debug("IPRoleMapperService.getRoles(): returning roles: "
-                    + rolesString);
+                    + mappedRoles);
+        }
+
+        if (prefersJSON) {
+            return Response.ok(mappedRoles.getJSONBytes(),
+                    APPLICATION_JSON_UTF8_TYPE).build();
+        }
+        return Response.ok(mappedRoles.getCommaSeparatedBytes(),
+                TEXT_PLAIN_UTF8_TYPE).build();
+    }
 
-            return rolesString;
+    /**
+     * Get the roles of each of the addresses in the request body, which must
+     * contain one address per line. Empty lines are ignored. All the addresses
+     * are mapped in a single pass over the configuration, which is much
+     * cheaper than a <code>GET</code> request per address.
+     * <p/>
+     * The answers are returned in the order of the request. As plain text,
+     * each answer is a line of tab separated fields: the address, then
+     * <code>OK</code> and the comma separated roles, or <code>ERROR</code> and
+     * an error message if the address is invalid. If the client prefers
+     * <code>application/json</code>, the answers are returned as a JSON array
+     * of objects having an <code>address</code> field and either a
+     * <code>roles</code> array or an <code>error</code> message, e.g.
+     * <code>[{"address":"10.0.0.1","roles":["public"]}]</code>.
+     * <p/>
+     * Requests with more than <code>MAX_BATCH_SIZE</code> addresses, or with a
+     * body of more than <code>MAX_BATCH_BYTES</code> bytes, are refused with
+     * the status 413 (Request Entity Too Large). The body is only read up to
+     * that size.
+     * <p/>
+     * Like {@link #getRoles(String, HttpHeaders)}, a request of address
+     * literals only is answered before this method returns, whereas a request
+     * including host names is answered once they have all been resolved, or
+     * by the status 503 (Service Unavailable) if the resolver is overloaded.
+     */
+    @POST
+    @Path("getRoles")
+    @Consumes("text/plain")
+    @Produces( { "text/plain", "application/json" })
+    public CompletionStage<Response> getRolesBatch(InputStream requestBody,
+            @Context HttpHeaders httpHeaders) throws Throwable {
+
+        try {
+            // The static content of IPRolemapper is initialised by the
+            // configuration watcher if the configuration can be successfully
+            // read.
+            verifyConfiguration();
+
+            final String ipAddresses = readBatch(requestBody);
+            if (log.isTraceEnabled()) {
+                log.trace("getRolesBatch(): Called with IP adresses: "
+                        + ipAddresses);
+            }
+            final List<String> addressStrings = (ipAddresses == null) ? null
+                    : splitBatch(ipAddresses);
+            if (addressStrings == null
+                    || addressStrings.size() > MAX_BATCH_SIZE) {
+                return CompletableFuture.completedFuture(Response.status(
+                        Response.Status.REQUEST_ENTITY_TOO_LARGE).entity(
+                        BATCH_TOO_LARGE_MESSAGE).type(TEXT_PLAIN_UTF8_TYPE)
+                        .build());
+            }
+
+            final boolean prefersJSON = prefersJSON(httpHeaders);
+            return logFailure("getRolesBatch()", mapBatchAsync(
+                    addressStrings, prefersJSON).thenApply(
+                    body -> Response.ok(
+                            body,
+                            prefersJSON ? APPLICATION_JSON_UTF8_TYPE
+                                    : TEXT_PLAIN_UTF8_TYPE).build())
+                    .exceptionally(
+                            IPRoleMapperService::createOverloadedResponse));
         } catch (Throwable throwable) {
-            log.warn("getRoles(): Caught un-expected exception.", throwable);
+            log.warn("getRolesBatch(): Caught un-expected exception.",
+                    throwable);
             throw throwable;
         }
     }
 
+    /**
+     * Read the body of a batch request, but no more than
+     * <code>MAX_BATCH_BYTES</code> bytes of it.
+     * 
+     * @param requestBody
+     *            the body of the request.
+     * @return the body, or <code>null</code> if it is larger than
+     *         <code>MAX_BATCH_BYTES</code> bytes.
+     * @throws IOException
+     *             if the body cannot be read.
+     */
+    static String readBatch(InputStream requestBody) throws IOException {
+        final byte[] body = requestBody.readNBytes(MAX_BATCH_BYTES + 1);
+        if (body.length > MAX_BATCH_BYTES) {
+            return null;
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Split the body of a batch request into its addresses, which are the
+     * non-blank lines of the body.
+     */
+    static List<String> splitBatch(String ipAddresses) {
+        final List<String> addressStrings = new ArrayList<String>();
+        for (String line : ipAddresses.split("\r?\n")) {
+            final String addressString = line.trim();
+            if (addressString.length() > 0) {
+                addressStrings.add(addressString);
+            }
+        }
+        return addressStrings;
+    }
+
+    /**
+     * Map the roles of the addresses of a batch request without blocking.
+     * 
+     * @param addressStrings
+     *            the IP address literals or host names to map.
+     * @param prefersJSON
+     *            <code>true</code> to encode the answers as a JSON array, and
+     *            <code>false</code> to encode them as tab separated lines.
+     * @return a future completed by the encoded answers, once all the
+     *         addresses have been parsed. It is already complete unless host
+     *         names are being resolved.
+     */
+    static CompletableFuture<byte[]> mapBatchAsync(
+            final List<String> addressStrings, final boolean prefersJSON) {
+        return parseAddressesAsync(addressStrings).thenApply(
+                parsedAddresses -> encodeBatch(addressStrings, parsedAddresses,
+                        prefersJSON));
+    }
+
+    /**
+     * Encode the answers to a batch request for the roles of the addresses
+     * specified by <code>addressStrings</code>, once they have all been
+     * parsed into <code>parsedAddresses</code>.
+     */
+    private static byte[] encodeBatch(List<String> addressStrings,
+            List<IPAddress> parsedAddresses, boolean prefersJSON) {
+
+        // Map all the valid addresses in one go, and leave the answers to
+        // the invalid ones null.
+        final IPAddress[] validAddresses = new IPAddress[parsedAddresses.size()];
+        int validCount = 0;
+        for (IPAddress parsedAddress : parsedAddresses) {
+            if (parsedAddress != null) {
+                validAddresses[validCount++] = parsedAddress;
+            }
+        }
+        final IPAddress[] addressesToMap = new IPAddress[validCount];
+        System.arraycopy(validAddresses, 0, addressesToMap, 0, validCount);
+        final RoleSet[] mappedRoles = new IPRoleMapper()
+                .mapIPHosts(addressesToMap);
+        final RoleSet[] answers = new RoleSet[parsedAddresses.size()];
+        int mappedIdx = 0;
+        for (int addressIdx = 0; addressIdx < answers.length; addressIdx++) {
+            if (parsedAddresses.get(addressIdx) != null) {
+                answers[addressIdx] = mappedRoles[mappedIdx++];
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("getRolesBatch(): Mapped " + validCount + " of "
+                    + addressStrings.size() + " addresses.");
+        }
+
+        try {
+            return prefersJSON ? encodeBatchAsJSON(addressStrings, answers)
+                    : encodeBatchAsText(addressStrings, answers);
+        } catch (IOException ioException) {
+            // Only thrown by the byte array streams, which never throw.
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    /**
+     * Stream the roles of the addresses in the request body back to the client
+     * as they are mapped, for requests too large to be handled by
+     * {@link #getRolesBatch(InputStream, HttpHeaders)}. The body is read and
+     * answered in chunks, so there is no limit on the number of addresses, and
+     * the response is sent using chunked transfer encoding.
+     * <p/>
+     * A <code>text/plain</code> body must contain one address per line, and
+     * is answered by a line of tab separated fields per address like
+     * <code>POST getRoles</code> does, or by a JSON object per line if the
+     * client prefers <code>application/x-ndjson</code>. A
+     * <code>text/csv</code> body must contain one row per line, with the
+     * address in the zero-based column given by the <code>column</code>
+     * parameter. Each row is answered by itself with a column of comma
+     * separated roles and a column of error messages appended. If the
+     * <code>header</code> parameter is <code>true</code>, the first row is
+     * a header row. See {@link BulkEnrichment} for the details.
+     */
+    @POST
+    @Path("enrichRoles")
+    @Consumes( { "text/plain", "text/csv" })
+    @Produces( { "text/plain", "application/x-ndjson", "text/csv" })
+    public Response enrichRoles(InputStream requestBody,
+            @QueryParam("column") @DefaultValue("0") int addressColumn,
+            @QueryParam("header") @DefaultValue("false") boolean hasHeader,
+            @Context HttpHeaders httpHeaders) throws Throwable {
+
+        if (log.isTraceEnabled()) {
+            log.trace("enrichRoles(): Called with column: " + addressColumn
+                    + ", header: " + hasHeader);
+        }
+
+        try {
+            // The static content of IPRolemapper is initialised by the
+            // configuration watcher if the configuration can be successfully
+            // read.
+            verifyConfiguration();
+            if (addressColumn < 0) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(
+                        "The address column must not be negative: "
+                                + addressColumn).type(TEXT_PLAIN_UTF8_TYPE)
+                        .build();
+            }
+
+            final MediaType requestType = (httpHeaders == null) ? null
+                    : httpHeaders.getMediaType();
+            if (requestType != null && requestType.isCompatible(TEXT_CSV_TYPE)) {
+                return Response.ok(
+                        new BulkEnrichment(requestBody,
+                                BulkEnrichment.Format.CSV, addressColumn,
+                                hasHeader), TEXT_CSV_UTF8_TYPE).build();
+            }
+            if (prefers(httpHeaders, APPLICATION_NDJSON_TYPE)) {
+                return Response.ok(
+                        new BulkEnrichment(requestBody,
+                                BulkEnrichment.Format.NDJSON, 0, false),
+                        APPLICATION_NDJSON_UTF8_TYPE).build();
+            }
+            return Response.ok(
+                    new BulkEnrichment(requestBody,
+                            BulkEnrichment.Format.TEXT, 0, false),
+                    TEXT_PLAIN_UTF8_TYPE).build();
+        } catch (Throwable throwable) {
+            log.warn("enrichRoles(): Caught un-expected exception.",
+                    throwable);
+            throw throwable;
+        }
+    }
+
+    /**
+     * Get the ranges having any of the roles specified by <code>roles</code>,
+     * one range per line. The response is built by the executor set by
+     * {@link #setRequestExecution(boolean)}, if any, as it may take a while
+     * for large configurations.
+     */
     @GET
     @Path("getRanges")
     @Produces("text/plain")
-    public String getRanges(@QueryParam("role") List<String> roles)
-            throws Throwable {
+    public CompletionStage<String> getRanges(
+            @QueryParam("role") List<String> roles) throws Throwable {
 
         if (log.isTraceEnabled()) {
             log.trace("getRanges(): Called with roles: " + roles);
         }
 
         try {
-            // The static content of IPRolemapper will be initialised by
-            // verifyConfiguration if the configuration can be successfully
+            // The static content of IPRolemapper is initialised by the
+            // configuration watcher if the configuration can be successfully
             // read.
             verifyConfiguration();
-            final IPRoleMapper ipRoleMapper = new IPRoleMapper();
-            final Set<IPRange> mappedRanges = ipRoleMapper
-                    .mapRoles(new TreeSet<String>(roles));
-
-            // Build the result string.
-            String rangesString = "";
-            final Iterator<IPRange> rangesIterator = mappedRanges.iterator();
-            while (rangesIterator.hasNext()) {
-
-                final IPRange range = rangesIterator.next();
-                final InetAddress beginAddress = range.getBeginAddress();
-                final InetAddress endAddress = range.getEndAddress();
-
-                final InetAddressComparator addressComparator = new InetAddressComparator();
-                if (addressComparator.compare(beginAddress, endAddress) == 0) {
-                    // It's a single host...
-                    rangesString += beginAddress.getHostAddress();
-                } else {
-                    // It's an actual range...
-                    rangesString += beginAddress.getHostAddress() + "-"
-                            + endAddress.getHostAddress();
-                }
-
-                // Append a comma if there are more roles left.
-                if (rangesIterator.hasNext()) {
-                    rangesString += "\n";
-                }
-            }// end-while
-
-            log.debug("getRanges(): returning ranges: " + rangesString);
-
-            return rangesString;
+            final Set<String> roleSet = new TreeSet<String>(roles);
+            final ExecutorService executor = requestExecutor;
+            if (executor == null) {
+                return CompletableFuture.completedFuture(encodeRanges(roleSet));
+            }
+            return logFailure("getRanges()", CompletableFuture.supplyAsync(
+                    () -> encodeRanges(roleSet), executor));
         } catch (Throwable throwable) {
-            log.error("getRoles(): Caught un-expected exception.", throwable);
+            log.error("getRanges(): Caught un-expected exception.", throwable);
             throw throwable;
         }
     }
 
+    /**
+     * Encode the ranges having any of the roles specified by
+     * <code>roles</code> as a single host address or a begin and end address
+     * per line.
+     */
+    static String encodeRanges(Set<String> roles) {
+        final IPRoleMapper ipRoleMapper = new IPRoleMapper();
+        final Set<IPRange> mappedRanges = ipRoleMapper.mapRoles(roles);
+
+        // Build the result string.
+        final StringBuilder rangesString = new StringBuilder();
+        final Iterator<IPRange> rangesIterator = mappedRanges.iterator();
+        while (rangesIterator.hasNext()) {
+
+            final IPRange range = rangesIterator.next();
+            final InetAddress beginAddress = range.getBeginAddress();
+            final InetAddress endAddress = range.getEndAddress();
+
+            if (range.getBegin().equals(range.getEnd())) {
+                // It's a single host...
+                rangesString.append(beginAddress.getHostAddress());
+            } else {
+                // It's an actual range...
+                rangesString.append(beginAddress.getHostAddress()).append('-')
+                        .append(endAddress.getHostAddress());
+            }
+
+            // Append a newline if there are more ranges left.
+            if (rangesIterator.hasNext()) {
+                rangesString.append('\n');
+            }
+        }// end-while
+
+        log.debug("getRanges(): returning ranges: " + rangesString);
+
+        return rangesString.toString();
+    }
+
     /**
      * Simple status service which informs about the current state of the ip
      * role mapper service. If the reported status is <code>ERROR</code> then
      * the service is not working at all. If the status is <code>WARNING</code>
      * then the service has been unable to update its configuration and is still
      * using the last known good configuration. The <code>OK</code> status
-     * indicates that everything is OK.
+     * indicates that everything is OK. The generation of the configuration in
+     * use is increased every time it has been reloaded.
      * 
      * @return <code>String</code> containing a description of the current state
      *         of this service.
@@ -195,106 +745,314 @@ public class IPRoleMapperService {
 
         log.trace("getStatus(): Entered.");
 
-        verifyConfiguration();
+        final String statusMessage = getStatusMessage();
+        log.debug("getStatus(): Returning: " + statusMessage);
+        return statusMessage;
+    }
 
-        final String statusMessage = "STATUS: " + lastConfigurationReloadStatus
-                + "\n\nMESSAGE: " + lastConfigurationReloadStatusMessage
+    /**
+     * @return the status of the configuration and of the lookups, as reported
+     *         by {@link #getStatus()}.
+     */
+    static String getStatusMessage() {
+        final ConfigurationWatcher watcher = configurationWatcher;
+        return "STATUS: "
+                + ((watcher == null) ? ConfigurationWatcher.Status.ERROR
+                        : watcher.getStatus())
+                + "\n\nMESSAGE: "
+                + ((watcher == null) ? getMissingLocationMessage() : watcher
+                        .getStatusMessage())
                 + "\n\nCurrently using this configuration: "
-                + currentConfigurationFilePath;
+                + ((watcher == null) ? null : watcher
+                        .getCurrentConfigurationFilePath())
+                + "\n\nGENERATION: "
+                + IPRoleMapper.getGeneration() + "\n\nINDEX: "
+                + IPRoleMapper.getIndexDescription() + "\n\nADDRESS CACHE: "
+                + IPRoleMapper.getAddressCacheStatistics();
+    }
 
-        log.debug("getStatus(): Returning: " + statusMessage);
-        return statusMessage;
+    /**
+     * Encode the answers of a batch request as tab separated lines. The
+     * answers to invalid addresses are <code>null</code>.
+     */
+    private static byte[] encodeBatchAsText(List<String> addressStrings,
+            RoleSet[] answers) throws IOException {
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for (int addressIdx = 0; addressIdx < answers.length; addressIdx++) {
+            BulkEnrichment.writeTextAnswer(text, addressStrings
+                    .get(addressIdx), answers[addressIdx]);
+            text.write('\n');
+        }
+        return text.toByteArray();
     }
 
     /**
-     * Check whether the IP ranges configuration has changed since last
-     * initialisation, and if so, then re-initialise IPRoleMapper.
-     * <p/>
-     * This method will not throw any exceptions if the initialisation fails,
-     * but will just keep the previous configuration.
+     * Encode the answers of a batch request as a JSON array. The answers to
+     * invalid addresses are <code>null</code>.
      */
-    private void verifyConfiguration() {
+    private static byte[] encodeBatchAsJSON(List<String> addressStrings,
+            RoleSet[] answers) throws IOException {
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        json.write('[');
+        for (int addressIdx = 0; addressIdx < answers.length; addressIdx++) {
+            if (addressIdx > 0) {
+                json.write(',');
+            }
+            BulkEnrichment.writeJSONAnswer(json, addressStrings
+                    .get(addressIdx), answers[addressIdx]);
+        }
+        json.write(']');
+        return json.toByteArray();
+    }
 
-        log.trace("verifyConfiguration(): Entering.");
+    /**
+     * Determine whether the client prefers JSON over plain text, based on the
+     * order of the acceptable media types of the request. Plain text is
+     * preferred if the client accepts any type, or if there is no request.
+     */
+    private static boolean prefersJSON(HttpHeaders httpHeaders) {
+        return prefers(httpHeaders, MediaType.APPLICATION_JSON_TYPE);
+    }
 
-        // NOTE! Make sure that web.xml has a listener entry for the
-        // ConfigContextListener otherwise this will go very, very wrong.
-        final String rangesConfigLocation = configProperty;
-                
+    /**
+     * Determine whether the client prefers <code>alternativeType</code> over
+     * plain text, based on the order of the acceptable media types of the
+     * request. Plain text is preferred if the client accepts any type, or if
+     * there is no request.
+     */
+    private static boolean prefers(HttpHeaders httpHeaders,
+            MediaType alternativeType) {
+        if (httpHeaders == null) {
+            return false;
+        }
+        for (MediaType acceptedType : httpHeaders.getAcceptableMediaTypes()) {
+            if (acceptedType.isCompatible(MediaType.TEXT_PLAIN_TYPE)) {
+                return false;
+            }
+            if (acceptedType.isCompatible(alternativeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        if (log.isTraceEnabled()) {
-            log.trace("IPRoleMapperService(): About to load a configuration "
-                    + "from this location: " + rangesConfigLocation);
+    /**
+     * Check that the location of the IP ranges configuration has been
+     * specified. The configuration itself is loaded and reloaded by the
+     * configuration watcher, so this does no file I/O.
+     * 
+     * @throws IllegalArgumentException
+     *             if the location of the configuration has not been specified.
+     */
+    private void verifyConfiguration() throws IllegalArgumentException {
+        if (configurationWatcher == null) {
+            throw new IllegalArgumentException(getMissingLocationMessage());
         }
+    }
+
+    /**
+     * Parse <code>addressString</code> into an address without blocking. Host
+     * names are only resolved if host name resolution is enabled.
+     * 
+     * @param addressString
+     *            the IP address literal or host name to parse.
+     * @return a future completed by the parsed address, or by
+     *         <code>null</code> if <code>addressString</code> is
+     *         <code>null</code> or not a valid address. The future is already
+     *         complete unless a host name is being resolved, and is completed
+     *         exceptionally by a {@link HostNameResolver.OverloadedException}
+     *         if the resolver is overloaded.
+     */
+    static CompletableFuture<IPAddress> parseAddressAsync(String addressString) {
+        final IPAddress address = IPAddress.parse(addressString);
+        final HostNameResolver resolver = hostNameResolver;
+        if (address != null || resolver == null || addressString == null
+                || addressString.length() == 0) {
+            return CompletableFuture.completedFuture(address);
+        }
+        return resolver.resolveWithTimeout(addressString);
+    }
+
+    /**
+     * Parse <code>addressStrings</code> into addresses without blocking, like
+     * {@link #parseAddressAsync(String)}. At most
+     * <code>MAX_LOOKUPS_PER_REQUEST</code> of the host names are being
+     * resolved at a time; the next one is looked up as soon as one of them
+     * completes.
+     * 
+     * @param addressStrings
+     *            the IP address literals or host names to parse.
+     * @return a future completed by the parsed addresses, in the order of
+     *         <code>addressStrings</code> and with <code>null</code> for the
+     *         invalid ones. The future is already complete unless host names
+     *         are being resolved, and is completed exceptionally by a
+     *         {@link HostNameResolver.OverloadedException} if the resolver is
+     *         overloaded.
+     */
+    static CompletableFuture<List<IPAddress>> parseAddressesAsync(
+            List<String> addressStrings) {
+        return new WindowedParser(addressStrings).start();
+    }
+
+    /**
+     * Parses a list of addresses, keeping at most
+     * <code>MAX_LOOKUPS_PER_REQUEST</code> host names being resolved at a
+     * time.
+     */
+    private static final class WindowedParser {
+
+        private final List<String> addressStrings;
 
-        if (rangesConfigLocation == null || rangesConfigLocation.length() == 0) {
-            final String errorMessage = "The location of the IP address ranges"
-                    + " configuration has not been specified in the '"
-                    + IP_RANGE_ROLE_CONFIGURATION_PROPERTY
-                    + "' property in the service/server configuration.";
+        private final IPAddress[] addresses;
 
-            lastConfigurationReloadStatusMessage = errorMessage;
-            lastConfigurationFilePath = rangesConfigLocation;
-            lastConfigurationReloadStatus = (currentConfigurationFilePath == null) ? Status.ERROR
-                    : Status.WARNING;
-            throw new IllegalArgumentException(errorMessage);
+        private final CompletableFuture<List<IPAddress>> allParsed = new CompletableFuture<List<IPAddress>>();
+
+        /**
+         * The index of the next address to parse.
+         */
+        private final AtomicInteger nextIdx = new AtomicInteger();
+
+        /**
+         * The number of addresses parsed so far.
+         */
+        private final AtomicInteger parsedCount = new AtomicInteger();
+
+        private WindowedParser(List<String> addressStrings) {
+            this.addressStrings = addressStrings;
+            addresses = new IPAddress[addressStrings.size()];
         }
 
-        File rangesConfigFile = new File(rangesConfigLocation);
-        try {
-            if (!rangesConfigFile.exists()) {
-                final String errorMessage = "Could not locate the "
-                        + "configuration file on the file system: " + rangesConfigLocation;
- 
-                lastConfigurationReloadStatusMessage = errorMessage;
-                lastConfigurationFilePath = rangesConfigLocation;
-                lastConfigurationReloadStatus = (currentConfigurationFilePath == null) ? Status.ERROR
-                        : Status.WARNING;
-                throw new FileNotFoundException(errorMessage);
+        private CompletableFuture<List<IPAddress>> start() {
+            if (addresses.length == 0) {
+                allParsed.complete(Arrays.asList(addresses));
+            }
+            for (int lookupIdx = 0; lookupIdx < MAX_LOOKUPS_PER_REQUEST
+                    && !allParsed.isDone(); lookupIdx++) {
+                parseNext();
             }
+            return allParsed;
+        }
 
-            // Check if the file path or modification time has changed since
-            // last initialisation.
-            if ((rangesConfigFile.lastModified() != latestConfigFileModificationTime)
-                    || (!lastConfigurationFilePath.equals(rangesConfigFile
-                            .getAbsolutePath()))) {
-
-                lastConfigurationFilePath = rangesConfigFile.getAbsolutePath();
-                latestConfigFileModificationTime = rangesConfigFile
-                        .lastModified();
-
-                log.info("IP ranges configuration has changed. Re-initialising"
-                        + " from file: " + lastConfigurationFilePath);
-
-                // The configuration has changed. Re-initialise.
-                final IPRangesConfigReader rangesReader = new IPRangesConfigReader();
-                final List<IPRangeRoles> ranges = rangesReader
-                        .readFromXMLConfigFile(rangesConfigFile);
-                IPRoleMapper.init(ranges);
-
-                lastConfigurationReloadStatus = Status.OK;
-                lastConfigurationReloadStatusMessage = "Running normally.";
-                currentConfigurationFilePath = rangesConfigFile
-                        .getAbsolutePath();
+        /**
+         * Parse addresses until one of them is a host name whose lookup is
+         * pending, which continues parsing once it completes. Addresses which
+         * are parsed at once, like literals and cached host names, are handled
+         * in this loop rather than by nested calls, which could overflow the
+         * stack for a large batch.
+         */
+        private void parseNext() {
+            while (!allParsed.isDone()) {
+                final int addressIdx = nextIdx.getAndIncrement();
+                if (addressIdx >= addresses.length) {
+                    return;
+                }
+                final CompletableFuture<IPAddress> parsedAddress = parseAddressAsync(addressStrings
+                        .get(addressIdx));
+                if (!parsedAddress.isDone()) {
+                    parsedAddress.whenComplete((address, throwable) -> {
+                        if (parsed(addressIdx, address, throwable)) {
+                            parseNext();
+                        }
+                    });
+                    return;
+                }
+                IPAddress address = null;
+                Throwable throwable = null;
+                try {
+                    address = parsedAddress.join();
+                } catch (CompletionException completionException) {
+                    throwable = completionException.getCause();
+                }
+                if (!parsed(addressIdx, address, throwable)) {
+                    return;
+                }
             }
-        } catch (IOException ioException) {
-            // Intentionally ignoring/logging this exception. The service will
-            // just continue using the last known good configuration or wait for
-            // the configuration to be fixed.
-            final String errorMessage = "Failed (re-)initialising "
-                    + "configuration. Will proceed with the current "
-                    + "configuration. The failing configuration file is: "
-                    + rangesConfigFile;
+        }
 
-            lastConfigurationReloadStatus = (currentConfigurationFilePath == null) ? Status.ERROR
-                    : Status.WARNING;
+        /**
+         * Record the parsed address at <code>addressIdx</code>, and complete
+         * the parsing if it was the last one or if it failed.
+         * 
+         * @return <code>true</code> if parsing should continue.
+         */
+        private boolean parsed(int addressIdx, IPAddress address,
+                Throwable throwable) {
+            if (throwable != null) {
+                allParsed.completeExceptionally(throwable);
+                return false;
+            }
+            addresses[addressIdx] = address;
+            // The final increment happens after all the stores above it.
+            if (parsedCount.incrementAndGet() == addresses.length) {
+                allParsed.complete(Arrays.asList(addresses));
+                return false;
+            }
+            return true;
+        }
+    }
 
-            lastConfigurationReloadStatusMessage = errorMessage
-                    + " Cause of the failure: " + ioException;
-            log.warn("verifyConfiguration(): " + errorMessage, ioException);
+    /**
+     * Check whether <code>throwable</code>, which a future has been completed
+     * exceptionally by, means that the host name resolver is overloaded.
+     * 
+     * @param throwable
+     *            the failure to check, possibly wrapped in a
+     *            <code>CompletionException</code>.
+     * @return <code>true</code> if a host name could not be resolved because
+     *         too many lookups are pending.
+     */
+    static boolean isOverloaded(Throwable throwable) {
+        Throwable cause = throwable;
+        if (cause instanceof CompletionException) {
+            cause = cause.getCause();
+        }
+        return cause instanceof HostNameResolver.OverloadedException;
+    }
+
+    /**
+     * Create the response to a request which failed by
+     * <code>throwable</code>, if the failure was caused by an overloaded host
+     * name resolver.
+     * 
+     * @return a response with the status 503 (Service Unavailable).
+     * @throws CompletionException
+     *             wrapping <code>throwable</code>, if it was not caused by an
+     *             overloaded resolver.
+     */
+    private static Response createOverloadedResponse(Throwable throwable) {
+        if (isOverloaded(throwable)) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(OVERLOADED_MESSAGE).type(TEXT_PLAIN_UTF8_TYPE)
+                    .build();
         }
+        if (throwable instanceof CompletionException) {
+            throw (CompletionException) throwable;
+        }
+        throw new CompletionException(throwable);
+    }
+
+    /**
+     * Log the failure of the response to a request to
+     * <code>methodName</code>, if <code>response</code> completes
+     * exceptionally.
+     * 
+     * @return <code>response</code>.
+     */
+    private static <T> CompletionStage<T> logFailure(String methodName,
+            CompletableFuture<T> response) {
+        response.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                log.warn(methodName + ": Caught un-expected exception.",
+                        throwable);
+            }
+        });
+        return response;
+    }
 
-        log.trace("verifyConfiguration(): Exiting. Current re-load status: "
-                + lastConfigurationReloadStatus);
+    private static String getMissingLocationMessage() {
+        return "The location of the IP address ranges"
+                + " configuration has not been specified in the '"
+                + IP_RANGE_ROLE_CONFIGURATION_PROPERTY
+                + "' property in the service/server configuration.";
     }
 }
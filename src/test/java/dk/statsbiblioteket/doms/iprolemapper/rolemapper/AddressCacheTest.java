@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+
+public class AddressCacheTest {
+
+    /**
+     * Test that the cache answers like the index for random addresses in and
+     * around ranges, including IPv6 ranges which begin within a /64 prefix.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testLookup() throws UnknownHostException {
+        final SegmentIndex segmentIndex = new SegmentIndex(createRanges(
+                new String[][] { { "10.0.0.0", "10.0.0.127", "public" },
+                        { "10.0.0.100", "10.0.1.10", "staff" },
+                        { "2001:db8::", "2001:db8:0:ffff:ffff:ffff:ffff:ffff",
+                                "ipv6" },
+                        { "2001:db8::8000", "2001:db8::ffff", "lab" } }));
+        final AddressCache cache = new AddressCache(segmentIndex, 64, 64,
+                new AddressCacheStatistics());
+        assertEquals(113, cache.getIPv6PrefixLength());
+
+        final Random random = new Random(42);
+        for (int lookup = 0; lookup < 20000; lookup++) {
+            final IPAddress address;
+            if (random.nextBoolean()) {
+                address = new IPAddress(0, 0x0a000000L | random.nextInt(512),
+                        false);
+            } else {
+                address = new IPAddress(0x20010db800000000L
+                        | random.nextInt(2), random.nextInt(0x20000), true);
+            }
+            assertEquals(segmentIndex.lookup(address), cache.lookup(address),
+                    "Un-expected roles for " + address);
+        }
+    }
+
+    /**
+     * Test that IPv6 addresses within the same prefix share an entry, and that
+     * IPv4 addresses share their entries with their IPv4-mapped equivalents.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testKeying() throws UnknownHostException {
+        final SegmentIndex segmentIndex = new SegmentIndex(createRanges(
+                new String[][] {
+                        { "10.0.0.0", "10.0.0.255", "public" },
+                        { "2001:db8::", "2001:db8:0:ffff:ffff:ffff:ffff:ffff",
+                                "ipv6" } }));
+        final AddressCacheStatistics statistics = new AddressCacheStatistics();
+        final AddressCache cache = new AddressCache(segmentIndex, 64, 64,
+                statistics);
+        assertEquals(64, cache.getIPv6PrefixLength());
+
+        cache.lookup(IPAddress.parse("2001:db8:0:1:aaaa::1"));
+        cache.lookup(IPAddress.parse("2001:db8:0:1:bbbb::2"));
+        cache.lookup(IPAddress.valueOf(InetAddress.getByName("10.0.0.1")));
+        cache.lookup(IPAddress.valueOf(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, (byte) 0xff, (byte) 0xff, 10, 0, 0, 1 }));
+        assertEquals(2, statistics.getHitCount());
+        assertEquals(2, statistics.getMissCount());
+
+        cache.lookup(IPAddress.parse("2001:db8:0:2::1"));
+        assertEquals(3, statistics.getMissCount());
+    }
+
+    /**
+     * Test that a scan over addresses which are only looked up once does not
+     * evict the frequently looked up addresses.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testFrequencyAdmission() throws UnknownHostException {
+        final SegmentIndex segmentIndex = new SegmentIndex(createRanges(
+                new String[][] { { "10.0.0.0", "10.255.255.255", "public" } }));
+        final AddressCacheStatistics statistics = new AddressCacheStatistics();
+        final AddressCache cache = new AddressCache(segmentIndex, 64, 128,
+                statistics);
+
+        final IPAddress[] hotAddresses = new IPAddress[16];
+        for (int addressIdx = 0; addressIdx < hotAddresses.length; addressIdx++) {
+            hotAddresses[addressIdx] = new IPAddress(0,
+                    0x0a000000L | addressIdx, false);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (IPAddress hotAddress : hotAddresses) {
+                cache.lookup(hotAddress);
+            }
+        }
+
+        // The scanned addresses may replace each other, but not the hot
+        // addresses.
+        for (int scanIdx = 0; scanIdx < 1000; scanIdx++) {
+            cache.lookup(new IPAddress(0, 0x0a100000L | scanIdx, false));
+        }
+
+        final long hitsBeforeRecheck = statistics.getHitCount();
+        for (IPAddress hotAddress : hotAddresses) {
+            assertEquals(segmentIndex.lookup(hotAddress), cache
+                    .lookup(hotAddress));
+        }
+        assertEquals(hitsBeforeRecheck + hotAddresses.length, statistics
+                .getHitCount());
+    }
+
+    /**
+     * Test that illegal cache settings are refused.
+     */
+    @Test
+    public void testIllegalSettings() {
+        final SegmentIndex segmentIndex = new SegmentIndex(
+                new LinkedList<IPRangeRoles>());
+        final AddressCacheStatistics statistics = new AddressCacheStatistics();
+        assertThrows(IllegalArgumentException.class, () -> new AddressCache(
+                segmentIndex, 0, 64, statistics));
+        assertThrows(IllegalArgumentException.class, () -> new AddressCache(
+                segmentIndex, 64, 129, statistics));
+        assertEquals(AddressCache.WAYS, new AddressCache(segmentIndex, 1, 64,
+                statistics).getCapacity());
+    }
+
+    private List<IPRangeRoles> createRanges(String[][] rangeSetups)
+            throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        for (String[] rangeSetup : rangeSetups) {
+            ranges.add(new IPRangeRoles(InetAddress.getByName(rangeSetup[0]),
+                    InetAddress.getByName(rangeSetup[1]), Arrays.asList(Arrays
+                            .copyOfRange(rangeSetup, 2, rangeSetup.length))));
+        }
+        return ranges;
+    }
+}
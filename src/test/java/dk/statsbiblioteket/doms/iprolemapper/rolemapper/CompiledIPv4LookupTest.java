@@ -0,0 +1,143 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+
+public class CompiledIPv4LookupTest {
+
+    /**
+     * Test that the generated decision trees find the same segments as a
+     * binary search, for tables fitting a single method, tables split into
+     * several subtree methods and the largest table allowed, looking up the
+     * segment boundaries, their neighbours and the limits of the address
+     * space.
+     */
+    @Test
+    public void testFindSegment() {
+        final Random random = new Random(42);
+        final RoleSet[] roleSets = createRoleSets();
+        for (int segmentCount : new int[] { 1, 2, 3, 4, 5, 17, 100,
+                DecisionTreeClassWriter.SUBTREE_SEGMENT_COUNT,
+                DecisionTreeClassWriter.SUBTREE_SEGMENT_COUNT + 1, 5000,
+                CompiledIPv4Lookup.MAX_SEGMENTS }) {
+            final int[] segmentBegins = createSegmentBegins(random,
+                    segmentCount);
+            final RoleSet[] segmentRoles = new RoleSet[segmentCount];
+            for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+                segmentRoles[segmentIdx] = roleSets[segmentIdx
+                        % roleSets.length];
+            }
+            final CompiledIPv4Lookup compiledLookup = CompiledIPv4Lookup
+                    .compile(segmentBegins, segmentRoles);
+            assertEquals(segmentCount, compiledLookup.size());
+
+            assertFindSegment(segmentBegins, compiledLookup, 0);
+            assertFindSegment(segmentBegins, compiledLookup, -1);
+            for (int segmentBegin : segmentBegins) {
+                assertFindSegment(segmentBegins, compiledLookup,
+                        segmentBegin - 1);
+                assertFindSegment(segmentBegins, compiledLookup, segmentBegin);
+                assertFindSegment(segmentBegins, compiledLookup,
+                        segmentBegin + 1);
+            }
+            for (int lookup = 0; lookup < 1000; lookup++) {
+                final int address = random.nextInt();
+                assertFindSegment(segmentBegins, compiledLookup, address);
+                assertSame(new IPv4SegmentIndex(segmentBegins, segmentRoles)
+                        .lookup(address), compiledLookup.lookup(address));
+            }
+        }
+    }
+
+    /**
+     * Test that tables of more than the maximum number of segments are
+     * refused, and that the index falls back to the segment table for them.
+     */
+    @Test
+    public void testTooManySegments() {
+        final int[] segmentBegins = createSegmentBegins(new Random(42),
+                CompiledIPv4Lookup.MAX_SEGMENTS + 1);
+        final RoleSet[] segmentRoles = new RoleSet[segmentBegins.length];
+        Arrays.fill(segmentRoles, createRoleSets()[0]);
+        assertThrows(IllegalArgumentException.class, () -> CompiledIPv4Lookup
+                .compile(segmentBegins, segmentRoles));
+    }
+
+    private void assertFindSegment(int[] segmentBegins,
+            CompiledIPv4Lookup compiledLookup, int address) {
+        int segmentIdx = segmentBegins.length - 1;
+        while (Integer.compareUnsigned(segmentBegins[segmentIdx], address) > 0) {
+            segmentIdx--;
+        }
+        assertEquals(segmentIdx, compiledLookup.findSegment(address
+                ^ Integer.MIN_VALUE), "Un-expected segment for "
+                + Integer.toHexString(address));
+    }
+
+    /**
+     * Create <code>segmentCount</code> distinct, ascending (unsigned) segment
+     * begins, the first of which is 0.0.0.0. Every other table has a segment
+     * beginning at 255.255.255.255.
+     */
+    private int[] createSegmentBegins(Random random, int segmentCount) {
+        final SortedSet<Long> begins = new TreeSet<Long>();
+        begins.add(0L);
+        if (segmentCount > 1 && segmentCount % 2 == 0) {
+            begins.add(0xffffffffL);
+        }
+        while (begins.size() < segmentCount) {
+            begins.add(random.nextInt() & 0xffffffffL);
+        }
+        final int[] segmentBegins = new int[segmentCount];
+        int segmentIdx = 0;
+        for (long begin : begins) {
+            segmentBegins[segmentIdx++] = (int) begin;
+        }
+        return segmentBegins;
+    }
+
+    private RoleSet[] createRoleSets() {
+        final RoleTable roleTable = new RoleTable(Arrays.asList("a", "b", "c"));
+        final RoleSet[] roleSets = new RoleSet[3];
+        for (int roleIdx = 0; roleIdx < roleSets.length; roleIdx++) {
+            final long[] bits = roleTable.newBits();
+            bits[0] = 1L << roleIdx;
+            roleSets[roleIdx] = roleTable.intern(bits);
+        }
+        return roleSets;
+    }
+}
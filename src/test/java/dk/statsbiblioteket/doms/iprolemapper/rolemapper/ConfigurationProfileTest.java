@@ -0,0 +1,195 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+public class ConfigurationProfileTest {
+
+    /**
+     * Test the measured prefix counts and overlap depths.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testMeasurements() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        addRange(ranges, "10.0.0.0", "10.0.0.255", "public");
+        addRange(ranges, "10.0.0.1", "10.0.0.6", "staff");
+        addRange(ranges, "10.0.0.5", "10.0.0.5", "admin");
+        addRange(ranges, "10.0.0.6", "10.0.0.9", "guest");
+        addRange(ranges, "2001:db8::", "2001:db8::ffff", "ipv6");
+        addRange(ranges, "2001:db9::", "2001:db9::ffff", "ipv6");
+
+        final ConfigurationProfile profile = createProfile(ranges);
+
+        // 10.0.0.1-10.0.0.6 splits into /32, /31, /31 and /32, and
+        // 10.0.0.6-10.0.0.9 into /31 and /31.
+        assertEquals(1 + 4 + 1 + 2, profile.getIPv4PrefixCount());
+        assertEquals(2, profile.getIPv6PrefixCount());
+        assertEquals(3, profile.getIPv4OverlapDepth());
+        assertEquals(1, profile.getIPv6OverlapDepth());
+        assertEquals(LookupEngine.SEGMENT_TABLE, profile.selectEngine());
+    }
+
+    /**
+     * Test that large IPv4 configurations get a DIR-24-8 table, and that the
+     * index answers like the segment table with it.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testSelectDirectIndex() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        for (int rangeIdx = 0; rangeIdx < ConfigurationProfile.DIRECT_INDEX_MIN_SEGMENTS; rangeIdx++) {
+            ranges.add(new IPRangeRoles(toIPv4(0x0a000000 + rangeIdx * 16),
+                    toIPv4(0x0a000000 + rangeIdx * 16 + 4), Arrays
+                            .asList("role" + (rangeIdx % 7))));
+        }
+        assertEquals(LookupEngine.DIR_24_8, createProfile(ranges)
+                .selectEngine());
+
+        final SegmentIndex autoIndex = new SegmentIndex(ranges,
+                LookupEngine.AUTO);
+        final SegmentIndex segmentTableIndex = new SegmentIndex(ranges);
+        assertTrue(autoIndex.getDescription().contains("DIR-24-8"));
+        for (int address = 0x09ffff00; address < 0x0a010100; address += 3) {
+            assertEquals(segmentTableIndex.lookup(toIPv4(address)), autoIndex
+                    .lookup(toIPv4(address)));
+        }
+    }
+
+    /**
+     * Test that medium-sized IPv4 configurations get the Eytzinger layout.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testSelectEytzingerTable() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        for (int rangeIdx = 0; rangeIdx < ConfigurationProfile.EYTZINGER_MIN_SEGMENTS; rangeIdx++) {
+            ranges.add(new IPRangeRoles(toIPv4(0x0a000000 + rangeIdx * 16),
+                    toIPv4(0x0a000000 + rangeIdx * 16 + 4), Arrays
+                            .asList("role" + (rangeIdx % 7))));
+        }
+        assertEquals(LookupEngine.EYTZINGER_TABLE, createProfile(ranges)
+                .selectEngine());
+        assertEquals(LookupEngine.SEGMENT_TABLE, createProfile(
+                ranges.subList(0, 10)).selectEngine());
+    }
+
+    /**
+     * Test that configurations consisting mostly of single hosts get host
+     * hash tables.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testSelectHostHash() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        addRange(ranges, "10.0.0.0", "10.255.255.255", "public");
+        for (int hostIdx = 0; hostIdx < ConfigurationProfile.HOST_HASH_MIN_SEGMENTS; hostIdx++) {
+            ranges.add(new IPRangeRoles(toIPv4(0x0a000000 + hostIdx * 1000),
+                    toIPv4(0x0a000000 + hostIdx * 1000), Arrays
+                            .asList("host" + (hostIdx % 3))));
+        }
+        final ConfigurationProfile profile = createProfile(ranges);
+        assertEquals(ConfigurationProfile.HOST_HASH_MIN_SEGMENTS, profile
+                .getIPv4HostCount());
+        assertEquals(0, profile.getIPv6HostCount());
+        assertEquals(LookupEngine.HOST_HASH, profile.selectEngine());
+        assertTrue(new SegmentIndex(ranges, LookupEngine.AUTO)
+                .getDescription().contains("hash table of "
+                        + ConfigurationProfile.HOST_HASH_MIN_SEGMENTS
+                        + " hosts"));
+    }
+
+    /**
+     * Test that large, CIDR-aligned IPv6 configurations get prefix tries, but
+     * unaligned ones do not.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testSelectPrefixTrie() throws UnknownHostException {
+        final List<IPRangeRoles> alignedRanges = new LinkedList<IPRangeRoles>();
+        final List<IPRangeRoles> unalignedRanges = new LinkedList<IPRangeRoles>();
+        for (int rangeIdx = 0; rangeIdx < ConfigurationProfile.PREFIX_TRIE_MIN_SEGMENTS; rangeIdx++) {
+            final String network = "2001:db8:" + Integer.toHexString(rangeIdx)
+                    + ":0:";
+            final List<String> roles = Arrays.asList("role" + (rangeIdx % 5));
+            alignedRanges.add(new IPRangeRoles(InetAddress.getByName(network
+                    + ":"), InetAddress.getByName(network
+                    + "ffff:ffff:ffff:ffff"), roles));
+            unalignedRanges.add(new IPRangeRoles(InetAddress.getByName(network
+                    + ":3"), InetAddress.getByName(network + ":1:5"), roles));
+        }
+        assertEquals(LookupEngine.PREFIX_TRIE, createProfile(alignedRanges)
+                .selectEngine());
+        assertEquals(LookupEngine.SEGMENT_TABLE, createProfile(
+                unalignedRanges).selectEngine());
+        assertTrue(new SegmentIndex(alignedRanges, LookupEngine.AUTO)
+                .getDescription().contains("PREFIX_TRIE engine was selected"));
+    }
+
+    private ConfigurationProfile createProfile(List<IPRangeRoles> ranges) {
+        return new ConfigurationProfile(ranges, SegmentTables.compile(ranges));
+    }
+
+    private static void addRange(List<IPRangeRoles> ranges, String begin,
+            String end, String role) throws UnknownHostException {
+        ranges.add(new IPRangeRoles(InetAddress.getByName(begin), InetAddress
+                .getByName(end), Arrays.asList(role)));
+    }
+
+    private static InetAddress toIPv4(int address)
+            throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { (byte) (address >>> 24),
+                (byte) (address >>> 16), (byte) (address >>> 8),
+                (byte) address });
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+
+public class DirectIPv4IndexTest {
+
+    /**
+     * Test that the DIR-24-8 table returns the same roles as the segment
+     * table, both in whole /24 blocks, split blocks and at the limits of the
+     * address space.
+     */
+    @Test
+    public void testLookup() {
+        final SegmentBuilder segmentBuilder = createBuilder();
+        addRange(segmentBuilder, "0.0.0.0", "0.0.0.10", "low");
+        addRange(segmentBuilder, "10.0.0.0", "10.0.255.255", "public");
+        addRange(segmentBuilder, "10.0.1.17", "10.0.1.17", "student");
+        addRange(segmentBuilder, "10.0.1.100", "10.0.3.20", "professor");
+        addRange(segmentBuilder, "10.0.3.21", "10.0.3.255", "professor");
+        addRange(segmentBuilder, "255.255.255.200", "255.255.255.255", "high");
+        segmentBuilder.build();
+
+        final IPv4SegmentIndex segmentIndex = new IPv4SegmentIndex(
+                segmentBuilder);
+        final DirectIPv4Index directIndex = new DirectIPv4Index(segmentBuilder);
+
+        for (int address = 0; address < 256; address++) {
+            assertLookup(segmentIndex, directIndex, address);
+            assertLookup(segmentIndex, directIndex, 0xffffff00 | address);
+        }
+        for (int address = 0x0a000000; address < 0x0a000500; address++) {
+            assertLookup(segmentIndex, directIndex, address);
+        }
+        final Random random = new Random(42);
+        for (int lookup = 0; lookup < 100000; lookup++) {
+            assertLookup(segmentIndex, directIndex, random.nextInt());
+        }
+
+        // 0.0.0.x, 10.0.1.x and 255.255.255.x are split. The two professor
+        // ranges join into one segment ending at 10.0.3.255.
+        assertEquals(3, directIndex.getSplitBlockCount());
+    }
+
+    /**
+     * Test that a configuration with too many split /24 blocks is rejected.
+     */
+    @Test
+    public void testTooManySplitBlocks() {
+        final SegmentBuilder segmentBuilder = createBuilder();
+        for (int block = 0; block <= DirectIPv4Index.MAX_ENTRIES; block++) {
+            segmentBuilder.add(0, (block << 8) + 1, 0, (block << 8) + 1,
+                    Arrays.asList("host"));
+        }
+        segmentBuilder.build();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new DirectIPv4Index(segmentBuilder));
+    }
+
+    private void assertLookup(IPv4SegmentIndex segmentIndex,
+            DirectIPv4Index directIndex, int address) {
+        assertSame(segmentIndex.lookup(address), directIndex.lookup(address),
+                "Un-expected roles for " + Integer.toHexString(address));
+    }
+
+    private SegmentBuilder createBuilder() {
+        return new SegmentBuilder(0, 0xffffffffL, new RoleTable(Arrays.asList(
+                "low", "public", "student", "professor", "high", "host")));
+    }
+
+    private void addRange(SegmentBuilder segmentBuilder, String begin,
+            String end, String role) {
+        segmentBuilder.add(0, toKey(begin), 0, toKey(end), Collections
+                .singletonList(role));
+    }
+
+    private long toKey(String address) {
+        long key = 0;
+        final List<String> octets = Arrays.asList(address.split("\\."));
+        for (String octet : octets) {
+            key = (key << 8) | Integer.parseInt(octet);
+        }
+        return key;
+    }
+}
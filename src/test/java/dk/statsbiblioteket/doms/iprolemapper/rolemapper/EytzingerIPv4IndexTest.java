@@ -0,0 +1,151 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+
+public class EytzingerIPv4IndexTest {
+
+    /**
+     * Test that the Eytzinger layout returns the same roles as the sorted
+     * segment table for tables of every size up to a few blocks and for some
+     * tables of many blocks, looking up the segment boundaries, their
+     * neighbours and the limits of the address space.
+     */
+    @Test
+    public void testLookup() {
+        final RoleSet[] roleSets = createRoleSets();
+        final Random random = new Random(42);
+        int segmentCount = 1;
+        while (segmentCount <= 3000) {
+            final int[] segmentBegins = createSegmentBegins(random,
+                    segmentCount);
+            final RoleSet[] segmentRoles = new RoleSet[segmentCount];
+            for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+                segmentRoles[segmentIdx] = roleSets[segmentIdx
+                        % roleSets.length];
+            }
+            final IPv4SegmentIndex segmentIndex = new IPv4SegmentIndex(
+                    segmentBegins, segmentRoles);
+            final EytzingerIPv4Index eytzingerIndex = new EytzingerIPv4Index(
+                    segmentBegins, segmentRoles);
+            assertEquals(segmentCount, eytzingerIndex.size());
+
+            assertLookup(segmentIndex, eytzingerIndex, 0);
+            assertLookup(segmentIndex, eytzingerIndex, -1);
+            for (int segmentBegin : segmentBegins) {
+                assertLookup(segmentIndex, eytzingerIndex, segmentBegin - 1);
+                assertLookup(segmentIndex, eytzingerIndex, segmentBegin);
+                assertLookup(segmentIndex, eytzingerIndex, segmentBegin + 1);
+            }
+            for (int lookup = 0; lookup < 1000; lookup++) {
+                assertLookup(segmentIndex, eytzingerIndex, random.nextInt());
+            }
+
+            // Every size up to a few blocks, then a sample of larger sizes.
+            final int step = (segmentCount < 70) ? 1 : 97;
+            segmentCount += step;
+        }
+    }
+
+    /**
+     * Test the Eytzinger layout of a segment table built from ranges.
+     */
+    @Test
+    public void testLookupFromBuilder() {
+        final SegmentBuilder segmentBuilder = new SegmentBuilder(0,
+                0xffffffffL, new RoleTable(Arrays.asList("public", "staff",
+                        "high")));
+        segmentBuilder.add(0, 0x0a000000L, 0, 0x0a0000ffL, Arrays
+                .asList("public"));
+        segmentBuilder.add(0, 0x0a000080L, 0, 0x0a000080L, Arrays
+                .asList("staff"));
+        segmentBuilder.add(0, 0xffffff00L, 0, 0xffffffffL, Arrays
+                .asList("high"));
+        segmentBuilder.build();
+
+        final IPv4SegmentIndex segmentIndex = new IPv4SegmentIndex(
+                segmentBuilder);
+        final EytzingerIPv4Index eytzingerIndex = new EytzingerIPv4Index(
+                segmentBuilder);
+        for (int address = 0x09ffff00; address < 0x0a000200; address++) {
+            assertLookup(segmentIndex, eytzingerIndex, address);
+        }
+        for (int address = 0xfffffe00; address != 0; address++) {
+            assertLookup(segmentIndex, eytzingerIndex, address);
+        }
+    }
+
+    private void assertLookup(IPv4SegmentIndex segmentIndex,
+            EytzingerIPv4Index eytzingerIndex, int address) {
+        assertSame(segmentIndex.lookup(address), eytzingerIndex
+                .lookup(address), "Un-expected roles for "
+                + Integer.toHexString(address));
+    }
+
+    /**
+     * Create <code>segmentCount</code> distinct, ascending (unsigned) segment
+     * begins, the first of which is 0.0.0.0. Every other table has a segment
+     * beginning at 255.255.255.255.
+     */
+    private int[] createSegmentBegins(Random random, int segmentCount) {
+        final SortedSet<Long> begins = new TreeSet<Long>();
+        begins.add(0L);
+        if (segmentCount > 1 && segmentCount % 2 == 0) {
+            begins.add(0xffffffffL);
+        }
+        while (begins.size() < segmentCount) {
+            begins.add(random.nextInt() & 0xffffffffL);
+        }
+        final int[] segmentBegins = new int[segmentCount];
+        int segmentIdx = 0;
+        for (long begin : begins) {
+            segmentBegins[segmentIdx++] = (int) begin;
+        }
+        return segmentBegins;
+    }
+
+    private RoleSet[] createRoleSets() {
+        final RoleTable roleTable = new RoleTable(Arrays.asList("a", "b", "c"));
+        final RoleSet[] roleSets = new RoleSet[3];
+        for (int roleIdx = 0; roleIdx < roleSets.length; roleIdx++) {
+            final long[] bits = roleTable.newBits();
+            bits[0] = 1L << roleIdx;
+            roleSets[roleIdx] = roleTable.intern(bits);
+        }
+        return roleSets;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+
+public class HostHashIndexTest {
+
+    /**
+     * Test that hosts inside and outside ranges, hosts given more than once,
+     * hosts at the limits of the address space and IPv4-mapped hosts get the
+     * same roles as from the segment table, and that only the true ranges end
+     * up in the segment tables.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testLookup() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        addRange(ranges, "10.0.0.0", "10.0.0.255", "public");
+        addRange(ranges, "10.0.0.10", "10.0.0.10", "staff");
+        addRange(ranges, "10.0.0.10", "10.0.0.10", "admin");
+        addRange(ranges, "10.0.0.0", "10.0.0.0", "staff");
+        addRange(ranges, "10.0.0.255", "10.0.0.255", "staff");
+        addRange(ranges, "10.0.1.0", "10.0.1.0", "public");
+        addRange(ranges, "192.168.0.1", "192.168.0.1", "guest");
+        addRange(ranges, "0.0.0.0", "0.0.0.0", "low");
+        addRange(ranges, "255.255.255.255", "255.255.255.255", "high");
+        addRange(ranges, "::ffff:172.16.0.1", "::ffff:172.16.0.1", "mapped");
+        addRange(ranges, "2001:db8::", "2001:db8::ffff", "ipv6");
+        addRange(ranges, "2001:db8::1", "2001:db8::1", "staff");
+        addRange(ranges, "2001:db9::1", "2001:db9::1", "guest");
+
+        final SegmentIndex segmentTableIndex = new SegmentIndex(ranges);
+        final SegmentTables segmentTables = SegmentTables.compile(ranges);
+        final HostHashIndex hostIndex = new HostHashIndex(ranges,
+                segmentTables.getRoleTable());
+        assertEquals(8, hostIndex.getIPv4HostCount());
+        assertEquals(2, hostIndex.getIPv6HostCount());
+        assertEquals(3, hostIndex.getIPv4SegmentCount());
+        assertEquals(3, hostIndex.getIPv6SegmentCount());
+
+        final SegmentIndex hostHashIndex = new SegmentIndex(ranges,
+                segmentTables, LookupEngine.HOST_HASH);
+        for (String address : new String[] { "0.0.0.0", "0.0.0.1",
+                "9.255.255.255", "10.0.0.0", "10.0.0.1", "10.0.0.10",
+                "10.0.0.11", "10.0.0.255", "10.0.1.0", "10.0.1.1",
+                "172.16.0.1", "192.168.0.1", "192.168.0.2",
+                "255.255.255.254", "255.255.255.255", "2001:db8::",
+                "2001:db8::1", "2001:db8::2", "2001:db9::1", "2001:db9::2",
+                "::ffff:10.0.0.10" }) {
+            final InetAddress inetAddress = InetAddress.getByName(address);
+            assertEquals(segmentTableIndex.lookup(inetAddress), hostHashIndex
+                    .lookup(inetAddress), address);
+        }
+        assertEquals(Arrays.asList("admin", "public", "staff"), Arrays
+                .asList(hostHashIndex.lookup(
+                        InetAddress.getByName("10.0.0.10")).toArray()));
+    }
+
+    /**
+     * Test many scattered hosts between ranges, looked up one by one and in
+     * bulk, against the segment table.
+     */
+    @Test
+    public void testManyHosts() {
+        final Random random = new Random(42);
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        for (int rangeIdx = 0; rangeIdx < 20; rangeIdx++) {
+            final int begin = random.nextInt() >>> 1;
+            ranges.add(new IPRangeRoles(toIPAddress(begin),
+                    toIPAddress(begin + random.nextInt(1 << 20)), Arrays
+                            .asList("range" + (rangeIdx % 3))));
+        }
+        final int[] hosts = new int[5000];
+        for (int hostIdx = 0; hostIdx < hosts.length; hostIdx++) {
+            // Some hosts are neighbours, which must not collide in clusters.
+            hosts[hostIdx] = (hostIdx % 2 == 0) ? random.nextInt()
+                    : hosts[hostIdx - 1] + 1;
+            ranges.add(new IPRangeRoles(toIPAddress(hosts[hostIdx]),
+                    toIPAddress(hosts[hostIdx]), Arrays.asList("host"
+                            + (hostIdx % 5))));
+        }
+
+        final SegmentIndex segmentTableIndex = new SegmentIndex(ranges);
+        final SegmentIndex hostHashIndex = new SegmentIndex(ranges,
+                LookupEngine.HOST_HASH);
+        final IPAddress[] addresses = new IPAddress[hosts.length * 2];
+        for (int hostIdx = 0; hostIdx < hosts.length; hostIdx++) {
+            addresses[2 * hostIdx] = toIPAddress(hosts[hostIdx]);
+            addresses[2 * hostIdx + 1] = toIPAddress(random.nextInt());
+        }
+        final RoleSet[] bulkRoles = hostHashIndex.lookupAll(addresses);
+        for (int addressIdx = 0; addressIdx < addresses.length; addressIdx++) {
+            final RoleSet expectedRoles = segmentTableIndex
+                    .lookup(addresses[addressIdx]);
+            assertEquals(expectedRoles, hostHashIndex
+                    .lookup(addresses[addressIdx]));
+            assertEquals(expectedRoles, bulkRoles[addressIdx]);
+        }
+    }
+
+    private static void addRange(List<IPRangeRoles> ranges, String begin,
+            String end, String role) throws UnknownHostException {
+        ranges.add(new IPRangeRoles(InetAddress.getByName(begin), InetAddress
+                .getByName(end), Arrays.asList(role)));
+    }
+
+    private static IPAddress toIPAddress(int address) {
+        return IPAddress.valueOf(new byte[] { (byte) (address >>> 24),
+                (byte) (address >>> 16), (byte) (address >>> 8),
+                (byte) address });
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class IPAddressTest {
+
+    /**
+     * Test that addresses survive the conversion from and back to
+     * <code>InetAddress</code> instances, keeping their address family.
+     */
+    @Test
+    public void testInetAddressConversion() throws Exception {
+        for (String hostAddress : new String[] { "0.0.0.0", "10.50.0.42",
+                "255.255.255.255", "::", "1020:3040:5060:0:1337:b007:c4fe:f00d",
+                "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff" }) {
+            final InetAddress inetAddress = InetAddress.getByName(hostAddress);
+            final IPAddress ipAddress = IPAddress.valueOf(inetAddress);
+            assertEquals(inetAddress, ipAddress.toInetAddress(), hostAddress);
+            assertArrayEquals(inetAddress.getAddress(), ipAddress.getAddress(),
+                    hostAddress);
+            assertEquals(inetAddress.getHostAddress(), ipAddress.toString(),
+                    hostAddress);
+            assertEquals(inetAddress instanceof Inet6Address, ipAddress
+                    .isIPv6(), hostAddress);
+        }
+
+        // An IPv4-mapped IPv6 address must stay an IPv6 address.
+        final byte[] mappedAddress = new byte[16];
+        mappedAddress[10] = (byte) 0xff;
+        mappedAddress[11] = (byte) 0xff;
+        mappedAddress[12] = 10;
+        mappedAddress[15] = 42;
+        final IPAddress mapped = IPAddress.valueOf(mappedAddress);
+        assertTrue(mapped.isIPv6());
+        assertTrue(mapped.isIPv4OrMapped());
+        assertTrue(mapped.toInetAddress() instanceof Inet6Address);
+        assertArrayEquals(mappedAddress, mapped.getAddress());
+
+        final IPAddress ipv4 = IPAddress.valueOf(new byte[] { 10, 0, 0, 42 });
+        assertTrue(ipv4.toInetAddress() instanceof Inet4Address);
+        assertNotEquals(ipv4, mapped,
+                "An IPv4 address must differ from the IPv6 address mapping it.");
+
+        assertThrows(IllegalArgumentException.class, () -> IPAddress
+                .valueOf(new byte[5]));
+    }
+
+    /**
+     * Test that address literals are parsed into the same addresses as
+     * <code>InetAddress.getByName()</code> returns for them.
+     */
+    @Test
+    public void testParse() throws Exception {
+        for (String literal : new String[] { "0.0.0.0", "10.50.0.42",
+                "255.255.255.255", "::", "::1", "1::", "1:2:3:4:5:6:7::",
+                "::2:3:4:5:6:7:8", "1020:3040:5060:0:1337:b007:c4fe:f00d",
+                "2001:DB8::Ab:0:1", "2001:db8:0:0:1::1", "[2001:db8::1]",
+                "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", "::10.0.0.1",
+                "::ffff:10.0.0.1", "64:ff9b::192.0.2.33",
+                "1:2:3:4:5:6:10.0.0.1", "0:0:0:0:0:ffff:a00:1" }) {
+            assertEquals(IPAddress.valueOf(InetAddress.getByName(literal)),
+                    IPAddress.parse(literal), literal);
+        }
+
+        final Random random = new Random(42);
+        for (int addressIdx = 0; addressIdx < 10000; addressIdx++) {
+            final byte[] address = new byte[(addressIdx % 2 == 0) ? 4 : 16];
+            random.nextBytes(address);
+            if (address.length == 16 && addressIdx % 3 == 0) {
+                // Zero runs make getHostAddress() use "::" compression.
+                Arrays.fill(address, random.nextInt(8), 8 + random.nextInt(8),
+                        (byte) 0);
+            }
+            final InetAddress inetAddress = InetAddress.getByAddress(address);
+            assertEquals(IPAddress.valueOf(inetAddress), IPAddress
+                    .parse(inetAddress.getHostAddress()), inetAddress
+                    .getHostAddress());
+        }
+    }
+
+    /**
+     * Test that invalid address literals and host names are refused without
+     * any exceptions.
+     */
+    @Test
+    public void testParseInvalid() {
+        for (String literal : new String[] { "", "localhost", "10.0.0",
+                "10.0.0.1.", "10.0.0.256", "010.0.0.1", "10.0.0.-1",
+                "10..0.1", "1.2.3.4.5", "10.0.0.1a", "[10.0.0.1]", ":",
+                ":::", "1:", ":1", "1:::2", "1::2::3", "1:2:3:4:5:6:7",
+                "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::", "::1:2:3:4:5:6:7:8",
+                "12345::", "g::", "::10.0.0.256", "::10.0.0.1:1",
+                "1:2:3:4:5:6:7:10.0.0.1", "fe80::1%eth0", "[::1", "::1]",
+                "\u0661.2.3.4", " 10.0.0.1" }) {
+            assertNull(IPAddress.parse(literal), literal);
+        }
+        assertNull(IPAddress.parse(null));
+    }
+
+    /**
+     * Test that addresses compare as unsigned values, and that addresses of
+     * different address families cannot be compared.
+     */
+    @Test
+    public void testCompareTo() throws Exception {
+        final IPAddress lowIPv4 = IPAddress.valueOf(InetAddress
+                .getByName("10.50.0.42"));
+        final IPAddress highIPv4 = IPAddress.valueOf(InetAddress
+                .getByName("192.168.0.42"));
+        final IPAddress lowIPv6 = IPAddress.valueOf(InetAddress
+                .getByName("1020:3040:5060:0:1337:b007:c4fe:f00d"));
+        final IPAddress highIPv6 = IPAddress.valueOf(InetAddress
+                .getByName("f020:3040:5060:0:1337:beef:c0ff:ee"));
+
+        assertEquals(0, lowIPv4.compareTo(IPAddress.valueOf(InetAddress
+                .getByName("10.50.0.42"))));
+        assertTrue(lowIPv4.compareTo(highIPv4) < 0);
+        assertTrue(highIPv4.compareTo(lowIPv4) > 0);
+        assertTrue(lowIPv6.compareTo(highIPv6) < 0);
+        assertTrue(highIPv6.compareTo(lowIPv6) > 0);
+
+        assertEquals(lowIPv4, IPAddress.valueOf(InetAddress
+                .getByName("10.50.0.42")));
+        assertEquals(lowIPv4.hashCode(), IPAddress.valueOf(
+                InetAddress.getByName("10.50.0.42")).hashCode());
+
+        assertThrows(ClassCastException.class, () -> lowIPv4
+                .compareTo(lowIPv6));
+        assertThrows(ClassCastException.class, () -> lowIPv6
+                .compareTo(lowIPv4));
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import dk.statsbiblioteket.doms.iprolemapper.webservice.IPRangesConfigReader;
+
+/**
+ * Simple stand-alone micro benchmark of the <code>IPRoleMapper</code> lookup
+ * operations. This is not a unit test and is not executed by the build. Run it
+ * from the IDE or from the command line with the test class path, e.g.:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapperBenchmark
+ * </pre>
+ * 
+ * The figures reported are wall clock averages and are only meant for
+ * comparing the different implementations against each other on the same
+ * machine.
+ */
+public class IPRoleMapperBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_NANOS = 1000000000L;
+
+    /**
+     * The high 64 bits of the 2001:db8::/32 documentation prefix. The
+     * synthetic IPv6 ranges live in the first /40 block of it.
+     */
+    private static final long IPV6_TEST_PREFIX = 0x20010db800000000L;
+
+    /**
+     * The sizes of the synthetic segment tables the IPv4 search layouts are
+     * compared on.
+     */
+    private static final int[] IPV4_LAYOUT_SEGMENT_COUNTS = { 1000, 100000,
+            10000000 };
+
+    /**
+     * The sizes of the synthetic segment tables the compiled decision trees
+     * are compared on.
+     */
+    private static final int[] COMPILED_SEGMENT_COUNTS = { 100, 1000,
+            CompiledIPv4Lookup.MAX_SEGMENTS };
+
+    /**
+     * The number of distinct addresses of the recurring lookups the compiled
+     * decision trees are measured with.
+     */
+    private static final int RECURRING_ADDRESS_COUNT = 16;
+
+    public static void main(String[] args) throws Exception {
+        final URL configURL = ClassLoader
+                .getSystemResource("config/madstest.xml");
+        final List<IPRangeRoles> ranges = new IPRangesConfigReader()
+                .readFromXMLConfigFile(new File(configURL.getFile()));
+
+        final InetAddress[] ipv4Addresses = createIPv4Addresses(1 << 16);
+        final List<IPRangeRoles> syntheticRanges = createSyntheticIPv4Ranges(100000);
+        for (LookupEngine lookupEngine : LookupEngine.values()) {
+            benchmarkMapIPHost("madstest.xml", ranges, ipv4Addresses,
+                    lookupEngine);
+            benchmarkMapIPHost("synthetic", syntheticRanges, ipv4Addresses,
+                    lookupEngine);
+        }
+
+        // The original TreeMap based implementation cannot handle the mixed
+        // address families of madstest.xml, so it is only compared on a pure
+        // IPv6 configuration.
+        final InetAddress[] ipv6Addresses = createIPv6Addresses(1 << 16);
+        final List<IPRangeRoles> ipv6Ranges = createSyntheticIPv6Ranges(10000);
+        benchmarkTreeMapReference("synthetic IPv6", ipv6Ranges, ipv6Addresses);
+        for (LookupEngine lookupEngine : LookupEngine.values()) {
+            benchmarkMapIPHost("synthetic IPv6", ipv6Ranges, ipv6Addresses,
+                    lookupEngine);
+        }
+
+        // The 10M segment table needs a heap of about 2 GB for the TreeMap.
+        for (int segmentCount : IPV4_LAYOUT_SEGMENT_COUNTS) {
+            benchmarkIPv4Layouts(segmentCount);
+        }
+        for (int segmentCount : COMPILED_SEGMENT_COUNTS) {
+            benchmarkCompiledIPv4Lookup(segmentCount);
+        }
+    }
+
+    /**
+     * Measure the average time spent on looking up random addresses in a
+     * synthetic IPv4 segment table of <code>segmentCount</code> segments
+     * with the sorted and the Eytzinger layouts, compared with a
+     * <code>TreeMap.headMap()</code> search over the same segments.
+     */
+    private static void benchmarkIPv4Layouts(int segmentCount) {
+        final Random random = new Random(4242);
+        final int[] segmentBegins = new int[segmentCount];
+        final RoleSet[] segmentRoles = new RoleSet[segmentCount];
+        createSyntheticIPv4Segments(random, segmentBegins, segmentRoles);
+
+        final TreeMap<Integer, RoleSet> treeMap = new TreeMap<Integer, RoleSet>(
+                Integer::compareUnsigned);
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            treeMap.put(segmentBegins[segmentIdx], segmentRoles[segmentIdx]);
+        }
+        final IPv4SegmentIndex sortedIndex = new IPv4SegmentIndex(
+                segmentBegins, segmentRoles);
+        final EytzingerIPv4Index eytzingerIndex = new EytzingerIPv4Index(
+                segmentBegins, segmentRoles);
+
+        final int[] addresses = createRandomIPv4Addresses(random);
+        System.out.printf(Locale.ROOT, "IPv4 layouts, %d segments: "
+                + "TreeMap.headMap %.1f ns/op, sorted %.1f ns/op, "
+                + "Eytzinger %.1f ns/op%n", segmentCount, measureIPv4Lookups(
+                address -> treeMap.headMap(address, true).lastEntry()
+                        .getValue(), addresses), measureIPv4Lookups(
+                sortedIndex, addresses), measureIPv4Lookups(eytzingerIndex,
+                addresses));
+    }
+
+    /**
+     * Measure the average time spent on looking up addresses in a synthetic
+     * IPv4 segment table of <code>segmentCount</code> segments compiled into
+     * a decision tree class, compared with the sorted and the Eytzinger
+     * layouts of the same table, and report the time spent on generating and
+     * loading the class. The lookups are measured both for random addresses
+     * and for a few recurring addresses, whose branches through the tree the
+     * CPU learns to predict.
+     */
+    private static void benchmarkCompiledIPv4Lookup(int segmentCount) {
+        final Random random = new Random(4242);
+        final int[] segmentBegins = new int[segmentCount];
+        final RoleSet[] segmentRoles = new RoleSet[segmentCount];
+        createSyntheticIPv4Segments(random, segmentBegins, segmentRoles);
+
+        final long compileStart = System.nanoTime();
+        final CompiledIPv4Lookup compiledLookup = CompiledIPv4Lookup.compile(
+                segmentBegins, segmentRoles);
+        final long compileTime = System.nanoTime() - compileStart;
+        final IPv4SegmentIndex sortedIndex = new IPv4SegmentIndex(
+                segmentBegins, segmentRoles);
+        final EytzingerIPv4Index eytzingerIndex = new EytzingerIPv4Index(
+                segmentBegins, segmentRoles);
+
+        final int[] randomAddresses = createRandomIPv4Addresses(random);
+        final int[] recurringAddresses = new int[randomAddresses.length];
+        for (int addressIdx = 0; addressIdx < recurringAddresses.length; addressIdx++) {
+            recurringAddresses[addressIdx] = randomAddresses[random
+                    .nextInt(RECURRING_ADDRESS_COUNT)];
+        }
+        for (int[] addresses : new int[][] { randomAddresses,
+                recurringAddresses }) {
+            System.out.printf(Locale.ROOT, "Compiled IPv4 lookup, %d "
+                    + "segments, %s addresses: compiled in %.2f ms, sorted "
+                    + "%.1f ns/op, Eytzinger %.1f ns/op, compiled %.1f "
+                    + "ns/op%n", segmentCount,
+                    (addresses == randomAddresses) ? "random"
+                            : RECURRING_ADDRESS_COUNT + " recurring",
+                    compileTime / 1e6, measureIPv4Lookups(sortedIndex,
+                            addresses), measureIPv4Lookups(eytzingerIndex,
+                            addresses), measureIPv4Lookups(compiledLookup,
+                            addresses));
+        }
+    }
+
+    /**
+     * Fill <code>segmentBegins</code> and <code>segmentRoles</code> with a
+     * segment table of randomly spaced segments beginning at 0.0.0.0 and
+     * random role sets.
+     */
+    private static void createSyntheticIPv4Segments(Random random,
+            int[] segmentBegins, RoleSet[] segmentRoles) {
+        final int segmentCount = segmentBegins.length;
+        final RoleSet[] roleSets = createRoleSets(random, 64);
+        final long meanGap = (1L << 32) / segmentCount;
+        long segmentBegin = 0;
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            segmentBegins[segmentIdx] = (int) segmentBegin;
+            segmentRoles[segmentIdx] = roleSets[random.nextInt(roleSets.length)];
+            segmentBegin += 1 + (long) (random.nextDouble() * (2 * meanGap - 2));
+        }
+    }
+
+    /**
+     * Create 2^20 random IPv4 addresses.
+     */
+    private static int[] createRandomIPv4Addresses(Random random) {
+        final int[] addresses = new int[1 << 20];
+        for (int addressIdx = 0; addressIdx < addresses.length; addressIdx++) {
+            addresses[addressIdx] = random.nextInt();
+        }
+        return addresses;
+    }
+
+    /**
+     * Run the warm-up rounds and the measured rounds of looking up
+     * <code>addresses</code> with <code>ipv4Lookup</code>.
+     * 
+     * @return the average number of nanoseconds spent per lookup in the
+     *         fastest measured round.
+     */
+    private static double measureIPv4Lookups(IPv4Lookup ipv4Lookup,
+            int[] addresses) {
+        double bestNanosPerLookup = Double.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long lookups = 0;
+            long roleCount = 0;
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int lookup = 0; lookup < 1024; lookup++) {
+                    roleCount += ipv4Lookup.lookup(
+                            addresses[(int) (lookups++ & (addresses.length - 1))])
+                            .size();
+                }
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_NANOS);
+
+            // Make sure the JIT cannot discard the lookups.
+            if (roleCount == Long.MIN_VALUE) {
+                System.out.println(roleCount);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                bestNanosPerLookup = Math.min(bestNanosPerLookup,
+                        (double) elapsed / lookups);
+            }
+        }
+        return bestNanosPerLookup;
+    }
+
+    /**
+     * Create <code>count</code> random role sets of one or two of 40 roles.
+     */
+    private static RoleSet[] createRoleSets(Random random, int count) {
+        final List<String> roleNames = new ArrayList<String>();
+        for (int roleIdx = 0; roleIdx < 40; roleIdx++) {
+            roleNames.add("role" + roleIdx);
+        }
+        final RoleTable roleTable = new RoleTable(roleNames);
+        final RoleSet[] roleSets = new RoleSet[count];
+        for (int roleSetIdx = 0; roleSetIdx < count; roleSetIdx++) {
+            final long[] bits = roleTable.newBits();
+            bits[0] = (1L << random.nextInt(40)) | (1L << random.nextInt(40));
+            roleSets[roleSetIdx] = roleTable.intern(bits);
+        }
+        return roleSets;
+    }
+
+    /**
+     * Measure the average time spent by <code>IPRoleMapper.mapIPHost()</code>
+     * on looking up <code>addresses</code>.
+     */
+    private static void benchmarkMapIPHost(String name,
+            List<IPRangeRoles> ranges, InetAddress[] addresses,
+            LookupEngine lookupEngine) throws Exception {
+
+        long buildStart = System.nanoTime();
+        IPRoleMapper.init(ranges, lookupEngine);
+        if (lookupEngine == LookupEngine.MAPPED_SNAPSHOT) {
+            // The memory-mapped tables are only used when initialising from a
+            // snapshot file.
+            final File snapshotFile = File.createTempFile("ipRanges",
+                    ".snapshot");
+            snapshotFile.deleteOnExit();
+            IPRoleMapper.saveSnapshot(snapshotFile, new byte[0]);
+            IPRoleMapper.initFromSnapshot(snapshotFile, null, lookupEngine);
+        }
+        final long buildTime = System.nanoTime() - buildStart;
+
+        final IPRoleMapper ipRoleMapper = new IPRoleMapper();
+        final double nanosPerLookup = measureLookups(ipRoleMapper::mapIPHost,
+                addresses);
+
+        System.out.printf(Locale.ROOT,
+                "%s, %s: %d ranges, init %.2f ms, mapIPHost %.1f ns/op%n",
+                name, lookupEngine, ranges.size(), buildTime / 1e6,
+                nanosPerLookup);
+        System.out.println("  " + IPRoleMapper.getIndexDescription());
+    }
+
+    /**
+     * Measure the average time spent by the original, TreeMap based
+     * implementation of <code>mapIPHost()</code> on looking up
+     * <code>addresses</code>.
+     */
+    private static void benchmarkTreeMapReference(String name,
+            List<IPRangeRoles> ranges, InetAddress[] addresses) {
+
+        long buildStart = System.nanoTime();
+        final TreeMapReference reference = new TreeMapReference(ranges);
+        final long buildTime = System.nanoTime() - buildStart;
+
+        final double nanosPerLookup = measureLookups(reference::mapIPHost,
+                addresses);
+
+        System.out.printf(Locale.ROOT,
+                "%s, TreeMap reference: %d ranges, init %.2f ms, "
+                        + "mapIPHost %.1f ns/op%n", name, ranges.size(),
+                buildTime / 1e6, nanosPerLookup);
+    }
+
+    /**
+     * Run the warm-up rounds and the measured rounds of looking up
+     * <code>addresses</code> with <code>hostMapper</code>.
+     * 
+     * @return the average number of nanoseconds spent per lookup in the
+     *         fastest measured round.
+     */
+    private static double measureLookups(HostMapper hostMapper,
+            InetAddress[] addresses) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            runLookups(hostMapper, addresses);
+        }
+
+        double bestNanosPerLookup = Double.MAX_VALUE;
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            bestNanosPerLookup = Math.min(bestNanosPerLookup, runLookups(
+                    hostMapper, addresses));
+        }
+        return bestNanosPerLookup;
+    }
+
+    /**
+     * Look up the roles of <code>addresses</code> for (at least)
+     * <code>ROUND_NANOS</code> nanoseconds.
+     * 
+     * @return the average number of nanoseconds spent per lookup.
+     */
+    private static double runLookups(HostMapper hostMapper,
+            InetAddress[] addresses) {
+        long lookups = 0;
+        long roleCount = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int lookup = 0; lookup < 1024; lookup++) {
+                roleCount += hostMapper.mapIPHost(
+                        addresses[(int) (lookups++ & (addresses.length - 1))])
+                        .size();
+            }
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+
+        // Make sure the JIT cannot discard the lookups.
+        if (roleCount == Long.MIN_VALUE) {
+            System.out.println(roleCount);
+        }
+        return (double) elapsed / lookups;
+    }
+
+    /**
+     * Create <code>count</code> random IPv4 ranges in the same block as the
+     * addresses produced by <code>createIPv4Addresses()</code>. Like real
+     * configurations, 80% of the ranges are networks of 1 to 64 whole /24
+     * blocks and the rest are single hosts. Each range has one or two of 40
+     * different roles.
+     */
+    static List<IPRangeRoles> createSyntheticIPv4Ranges(int count)
+            throws Exception {
+        final Random random = new Random(4242);
+        final List<IPRangeRoles> ranges = new ArrayList<IPRangeRoles>(count);
+        for (int i = 0; i < count; i++) {
+            final int begin;
+            final int end;
+            if (random.nextInt(5) > 0) {
+                begin = ((130 + random.nextInt(84)) << 24)
+                        | (random.nextInt(1 << 16) << 8);
+                end = begin + (random.nextInt(64) << 8) + 255;
+            } else {
+                begin = ((130 + random.nextInt(84)) << 24)
+                        | random.nextInt(1 << 24);
+                end = begin;
+            }
+            final List<String> roles = new ArrayList<String>();
+            roles.add("role" + random.nextInt(40));
+            if (random.nextBoolean()) {
+                roles.add("role" + random.nextInt(40));
+            }
+            ranges.add(new IPRangeRoles(toInetAddress(begin),
+                    toInetAddress(end), roles));
+        }
+        return ranges;
+    }
+
+    private static InetAddress toInetAddress(int address) throws Exception {
+        return InetAddress.getByAddress(new byte[] { (byte) (address >>> 24),
+                (byte) (address >>> 16), (byte) (address >>> 8),
+                (byte) address });
+    }
+
+    /**
+     * Create <code>count</code> random IPv4 addresses biased towards the
+     * 130.0.0.0 - 213.255.255.255 block where most of the test ranges live.
+     */
+    private static InetAddress[] createIPv4Addresses(int count)
+            throws Exception {
+        final Random random = new Random(42);
+        final InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++) {
+            final byte[] address = new byte[4];
+            random.nextBytes(address);
+            address[0] = (byte) (130 + random.nextInt(84));
+            addresses[i] = InetAddress.getByAddress(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * Create <code>count</code> random IPv6 ranges within 2001:db8::/40. 70%
+     * of the ranges are /48 to /64 networks, 20% are single hosts and the rest
+     * are arbitrary ranges within a /64 network. Each range has one or two of
+     * 40 different roles.
+     */
+    static List<IPRangeRoles> createSyntheticIPv6Ranges(int count)
+            throws Exception {
+        final Random random = new Random(4242);
+        final List<IPRangeRoles> ranges = new ArrayList<IPRangeRoles>(count);
+        for (int i = 0; i < count; i++) {
+            final long network = IPV6_TEST_PREFIX
+                    | (random.nextLong() & 0xffffffL);
+            final long beginHigh;
+            final long beginLow;
+            final long endHigh;
+            final long endLow;
+            final int kind = random.nextInt(10);
+            if (kind < 7) {
+                final int hostBits = 64 + random.nextInt(17);
+                final long networkMask = -1L << (hostBits - 64);
+                beginHigh = network & networkMask;
+                beginLow = 0;
+                endHigh = beginHigh | ~networkMask;
+                endLow = -1L;
+            } else if (kind < 9) {
+                beginHigh = network;
+                beginLow = random.nextLong();
+                endHigh = beginHigh;
+                endLow = beginLow;
+            } else {
+                beginHigh = network;
+                beginLow = random.nextLong() >>> 1;
+                endHigh = beginHigh;
+                endLow = beginLow + (random.nextLong() >>> 1);
+            }
+            final List<String> roles = new ArrayList<String>();
+            roles.add("role" + random.nextInt(40));
+            if (random.nextBoolean()) {
+                roles.add("role" + random.nextInt(40));
+            }
+            ranges.add(new IPRangeRoles(toInetAddress(beginHigh, beginLow),
+                    toInetAddress(endHigh, endLow), roles));
+        }
+        return ranges;
+    }
+
+    private static InetAddress toInetAddress(long high, long low)
+            throws Exception {
+        final byte[] address = new byte[16];
+        for (int byteIdx = 0; byteIdx < 8; byteIdx++) {
+            address[byteIdx] = (byte) (high >>> (56 - 8 * byteIdx));
+            address[8 + byteIdx] = (byte) (low >>> (56 - 8 * byteIdx));
+        }
+        return InetAddress.getByAddress(address);
+    }
+
+    /**
+     * Create <code>count</code> random IPv6 addresses within the 2001:db8::/40
+     * block populated by <code>createSyntheticIPv6Ranges()</code>.
+     */
+    private static InetAddress[] createIPv6Addresses(int count)
+            throws Exception {
+        final Random random = new Random(42);
+        final InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = toInetAddress(IPV6_TEST_PREFIX
+                    | (random.nextLong() & 0xffffffL), random.nextLong());
+        }
+        return addresses;
+    }
+
+    /**
+     * The lookup operation being measured.
+     */
+    private interface HostMapper {
+        Set<String> mapIPHost(InetAddress ipAddress);
+    }
+
+    /**
+     * The original implementation of <code>IPRoleMapper.mapIPHost()</code>,
+     * which scans all the ranges starting at or before the address, kept for
+     * comparison.
+     */
+    private static class TreeMapReference {
+
+        private final TreeMap<InetAddress, LinkedList<IPRangeRoles>> startAddrRangeMapList = new TreeMap<InetAddress, LinkedList<IPRangeRoles>>(
+                new InetAddressComparator());
+
+        TreeMapReference(List<IPRangeRoles> ranges) {
+            for (IPRangeRoles range : ranges) {
+                LinkedList<IPRangeRoles> rangeList = startAddrRangeMapList
+                        .get(range.getBeginAddress());
+                if (rangeList == null) {
+                    rangeList = new LinkedList<IPRangeRoles>();
+                    startAddrRangeMapList.put(range.getBeginAddress(),
+                            rangeList);
+                }
+                rangeList.add(range);
+            }
+        }
+
+        Set<String> mapIPHost(InetAddress ipAddress) {
+            final Set<String> collectedRoles = new TreeSet<String>();
+            final Collection<LinkedList<IPRangeRoles>> allPotentialMatchingRangeSets = startAddrRangeMapList
+                    .headMap(ipAddress, true).values();
+            final InetAddressComparator ipComparator = new InetAddressComparator();
+            for (List<IPRangeRoles> potentialMatchingRanges : allPotentialMatchingRangeSets) {
+                for (IPRangeRoles candidateRange : potentialMatchingRanges) {
+                    if (ipComparator.compare(ipAddress, candidateRange
+                            .getBeginAddress()) >= 0
+                            && ipComparator.compare(ipAddress, candidateRange
+                                    .getEndAddress()) <= 0) {
+                        collectedRoles.addAll(candidateRange.getRoles());
+                    }
+                }
+            }
+            return collectedRoles;
+        }
+    }
+}
@@ -28,14 +28,21 @@ package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.jupiter.api.Test;
 
@@ -102,6 +109,38 @@ public class IPRoleMapperTest {
         assertEquals(expectedRoles, associatedRoles);
     }
 
+    /**
+     * Test method for
+     * {@link dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper#mapIPHosts(java.util.Collection)}
+     * .
+     *
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testMapIPHosts() throws UnknownHostException {
+
+        final List<InetAddress> addressesToMap = new LinkedList<InetAddress>();
+        for (String address : new String[] { "192.168.0.160", "192.168.0.34",
+                "10.0.0.1", "192.168.0.145", "192.168.0.34" }) {
+            addressesToMap.add(InetAddress.getByName(address));
+        }
+
+        final List<RoleSet> mappedRoles = ipRoleMapper
+                .mapIPHosts(addressesToMap);
+        assertEquals(addressesToMap.size(), mappedRoles.size());
+        for (int addressIdx = 0; addressIdx < addressesToMap.size(); addressIdx++) {
+            assertSame(ipRoleMapper.mapIPHost(addressesToMap.get(addressIdx)),
+                    mappedRoles.get(addressIdx));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("public",
+                "professor")), mappedRoles.get(0));
+        assertTrue(mappedRoles.get(2).isEmpty());
+        assertThrows(UnsupportedOperationException.class,
+                () -> mappedRoles.set(0, null));
+    }
+
     /**
      * Test method for {@link
      * dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper#mapRoles(
@@ -126,6 +165,174 @@ public class IPRoleMapperTest {
         assertEquals(expectedRanges, mappedRanges);
     }
 
+    /**
+     * Test that the mapped ranges of a role set are reused for the same known
+     * roles, and that they cannot be modified by the caller.
+     */
+    @Test
+    public void testMapRolesMemoized() {
+        final Set<IPRange> mappedRanges = ipRoleMapper.mapRoles(new HashSet<String>(
+                Arrays.asList("student", "professor")));
+        assertSame(mappedRanges, ipRoleMapper.mapRoles(new HashSet<String>(
+                Arrays.asList("professor", "student", "unknown"))));
+        assertThrows(UnsupportedOperationException.class, () -> mappedRanges
+                .clear());
+        assertTrue(ipRoleMapper.mapRoles(
+                new HashSet<String>(Arrays.asList("unknown"))).isEmpty());
+
+        // The ranges of a single role are merged when the snapshot is built.
+        final Set<IPRange> studentRanges = ipRoleMapper.mapRoles(Collections
+                .singleton("student"));
+        assertSame(studentRanges, ipRoleMapper.mapRoles(new HashSet<String>(
+                Arrays.asList("student", "unknown"))));
+        assertThrows(UnsupportedOperationException.class, () -> studentRanges
+                .clear());
+    }
+
+    /**
+     * Test that a configuration mixing IPv4 and IPv6 ranges, also for the
+     * same role, can be mapped both ways.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testMixedAddressFamilies() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = createIPv4TestRanges();
+        ranges.add(new IPRangeRoles(InetAddress.getByName("2001:db8::1"),
+                InetAddress.getByName("2001:db8::ff"), Arrays
+                        .asList("student")));
+        IPRoleMapper.init(ranges);
+
+        assertEquals(new HashSet<String>(Arrays.asList("student")),
+                ipRoleMapper.mapIPHost(InetAddress.getByName("2001:db8::2")));
+        assertEquals(new HashSet<String>(Arrays.asList("public", "student")),
+                ipRoleMapper.mapIPHost(InetAddress.getByName("192.168.0.130")));
+
+        final Set<IPRange> expectedRanges = new HashSet<IPRange>();
+        expectedRanges.add(new IPRange(InetAddress.getByName("192.168.0.123"),
+                InetAddress.getByName("192.168.0.151")));
+        expectedRanges.add(new IPRange(InetAddress.getByName("2001:db8::1"),
+                InetAddress.getByName("2001:db8::ff")));
+
+        // Unmerged ranges are returned as the configured IPRangeRoles
+        // instances, so only compare the addresses.
+        final Set<IPRange> mappedRanges = new HashSet<IPRange>();
+        for (IPRange range : ipRoleMapper.mapRoles(new HashSet<String>(Arrays
+                .asList("student")))) {
+            mappedRanges.add(new IPRange(range.getBeginAddress(), range
+                    .getEndAddress()));
+        }
+        assertEquals(expectedRanges, mappedRanges);
+    }
+
+    /**
+     * Test that every re-initialisation publishes a new generation, and that
+     * concurrent lookups always see either the old or the new configuration
+     * as a whole.
+     * 
+     * @throws Exception
+     *             if any of the hard-coded IP addresses are illegal or the
+     *             test is interrupted. This will not happen.
+     */
+    @Test
+    public void testReinitialisation() throws Exception {
+        final List<IPRangeRoles> initialRanges = createIPv4TestRanges();
+        final List<IPRangeRoles> replacementRanges = new LinkedList<IPRangeRoles>();
+        replacementRanges.add(new IPRangeRoles(InetAddress
+                .getByName("192.168.0.0"), InetAddress
+                .getByName("192.168.0.255"), Arrays.asList("replacement")));
+
+        final InetAddress addressToMap = InetAddress.getByName("192.168.0.145");
+        final Set<String> initialRoles = new HashSet<String>(Arrays.asList(
+                "public", "student", "professor"));
+        final Set<String> replacementRoles = new HashSet<String>(Arrays
+                .asList("replacement"));
+
+        final long initialGeneration = IPRoleMapper.getGeneration();
+        IPRoleMapper.init(replacementRanges);
+        assertEquals(initialGeneration + 1, IPRoleMapper.getGeneration());
+        assertEquals(replacementRoles, ipRoleMapper.mapIPHost(addressToMap));
+
+        final AtomicBoolean isReloading = new AtomicBoolean(true);
+        final AtomicReference<Set<String>> unexpectedRoles = new AtomicReference<Set<String>>();
+        final Thread[] readers = new Thread[4];
+        for (int readerIdx = 0; readerIdx < readers.length; readerIdx++) {
+            readers[readerIdx] = new Thread(() -> {
+                while (isReloading.get()) {
+                    final Set<String> roles = ipRoleMapper
+                            .mapIPHost(addressToMap);
+                    if (!roles.equals(initialRoles)
+                            && !roles.equals(replacementRoles)) {
+                        unexpectedRoles.set(roles);
+                    }
+                }
+            });
+            readers[readerIdx].start();
+        }
+        for (int reload = 0; reload < 50; reload++) {
+            IPRoleMapper.init((reload % 2 == 0) ? initialRanges
+                    : replacementRanges);
+        }
+        isReloading.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(unexpectedRoles.get());
+        assertEquals(initialGeneration + 51, IPRoleMapper.getGeneration());
+        assertEquals(replacementRoles, ipRoleMapper.mapIPHost(addressToMap));
+    }
+
+    /**
+     * Test that the address cache answers like the index, and that it is
+     * emptied when the mapper is re-initialised.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testAddressCache() throws UnknownHostException {
+        final List<IPRangeRoles> replacementRanges = new LinkedList<IPRangeRoles>();
+        replacementRanges.add(new IPRangeRoles(InetAddress
+                .getByName("192.168.0.0"), InetAddress
+                .getByName("192.168.0.255"), Arrays.asList("replacement")));
+        final IPAddress addressToMap = IPAddress.parse("192.168.0.145");
+
+        IPRoleMapper.setAddressCache(100, 64);
+        try {
+            IPRoleMapper.init(createIPv4TestRanges());
+            final AddressCacheStatistics statistics = IPRoleMapper
+                    .getAddressCacheStatistics();
+            final long initialHits = statistics.getHitCount();
+            final long initialMisses = statistics.getMissCount();
+
+            final Set<String> initialRoles = new HashSet<String>(Arrays
+                    .asList("public", "student", "professor"));
+            assertEquals(initialRoles, ipRoleMapper.mapIPHost(addressToMap));
+            assertEquals(initialRoles, ipRoleMapper.mapIPHost(addressToMap
+                    .toInetAddress()));
+            assertEquals(initialHits + 1, statistics.getHitCount());
+            assertEquals(initialMisses + 1, statistics.getMissCount());
+
+            IPRoleMapper.init(replacementRanges);
+            assertEquals(new HashSet<String>(Arrays.asList("replacement")),
+                    ipRoleMapper.mapIPHost(addressToMap));
+            assertEquals(initialMisses + 2, statistics.getMissCount());
+            assertTrue(IPRoleMapper.getIndexDescription().contains("cached"));
+        } finally {
+            IPRoleMapper.setAddressCache(0,
+                    IPRoleMapper.DEFAULT_CACHE_IPV6_PREFIX_LENGTH);
+            IPRoleMapper.init(createIPv4TestRanges());
+        }
+        assertThrows(IllegalArgumentException.class, () -> IPRoleMapper
+                .setAddressCache(-1, 64));
+        assertThrows(IllegalArgumentException.class, () -> IPRoleMapper
+                .setAddressCache(100, 129));
+    }
+
     private List<IPRangeRoles> createIPv4TestRanges()
             throws UnknownHostException {
 
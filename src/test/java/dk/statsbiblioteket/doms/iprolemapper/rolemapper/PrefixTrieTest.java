@@ -0,0 +1,235 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+
+public class PrefixTrieTest {
+
+    /**
+     * Test that the roles of nested prefixes are aggregated and that the
+     * longest matching prefix wins.
+     */
+    @Test
+    public void testNestedPrefixes() {
+        final PrefixTrie trie = new PrefixTrie(32, createRoleTable());
+        trie.add(0, 0x0a000000L, 0, 0x0affffffL, Arrays.asList("net"));
+        trie.add(0, 0x0a010000L, 0, 0x0a01ffffL, Arrays.asList("subnet"));
+        trie.add(0, 0x0a010203L, 0, 0x0a010203L, Arrays.asList("host"));
+        trie.build();
+
+        assertEquals(Collections.emptySet(), trie.lookup(0x09ffffff));
+        assertEquals(roles("net"), trie.lookup(0x0a000000));
+        assertEquals(roles("net", "subnet"), trie.lookup(0x0a010000));
+        assertEquals(roles("net", "subnet", "host"), trie.lookup(0x0a010203));
+        assertEquals(roles("net", "subnet"), trie.lookup(0x0a010204));
+        assertEquals(roles("net"), trie.lookup(0x0a020000));
+        assertEquals(Collections.emptySet(), trie.lookup(0x0b000000));
+    }
+
+    /**
+     * Test that ranges are split into their minimal CIDR prefixes.
+     */
+    @Test
+    public void testPrefixSplitting() {
+        final PrefixTrie trie = new PrefixTrie(32, createRoleTable());
+
+        // 10.0.0.1/32, 10.0.0.2/31, 10.0.0.4/31 and 10.0.0.6/32.
+        trie.add(0, 0x0a000001L, 0, 0x0a000006L, Arrays.asList("hosts"));
+        assertEquals(4, trie.getPrefixCount());
+
+        // 0.0.0.0/0
+        trie.add(0, 0, 0, 0xffffffffL, Arrays.asList("all"));
+        assertEquals(5, trie.getPrefixCount());
+
+        trie.build();
+        assertEquals(roles("all"), trie.lookup(0x0a000000));
+        assertEquals(roles("all", "hosts"), trie.lookup(0x0a000001));
+        assertEquals(roles("all", "hosts"), trie.lookup(0x0a000006));
+        assertEquals(roles("all"), trie.lookup(0x0a000007));
+        assertEquals(roles("all"), trie.lookup(0xffffffff));
+    }
+
+    /**
+     * Test that the IPv4 trie returns the same roles as the segment table for
+     * random, overlapping ranges.
+     */
+    @Test
+    public void testIPv4Lookup() {
+        final RoleTable roleTable = createRoleTable();
+        final SegmentBuilder segmentBuilder = new SegmentBuilder(0,
+                0xffffffffL, roleTable);
+        final PrefixTrie trie = new PrefixTrie(32, roleTable);
+
+        final Random random = new Random(42);
+        final long[] boundaries = new long[2000];
+        for (int rangeIdx = 0; rangeIdx < boundaries.length / 2; rangeIdx++) {
+            final long begin = 0x0a000000L + random.nextInt(1 << 20);
+            final long end = begin + random.nextInt(1 << (random.nextInt(12) + 1));
+            final List<String> roles = Arrays.asList("role"
+                    + random.nextInt(20));
+            segmentBuilder.add(0, begin, 0, end, roles);
+            trie.add(0, begin, 0, end, roles);
+            boundaries[2 * rangeIdx] = begin;
+            boundaries[2 * rangeIdx + 1] = end;
+        }
+        segmentBuilder.build();
+        trie.build();
+        final IPv4SegmentIndex segmentIndex = new IPv4SegmentIndex(
+                segmentBuilder);
+
+        for (long boundary : boundaries) {
+            for (long address = boundary - 1; address <= boundary + 1; address++) {
+                assertSame(segmentIndex.lookup((int) address), trie
+                        .lookup((int) address), "Un-expected roles for "
+                        + Long.toHexString(address));
+            }
+        }
+        for (int lookup = 0; lookup < 100000; lookup++) {
+            final int address = 0x0a000000 + random.nextInt(1 << 21);
+            assertSame(segmentIndex.lookup(address), trie.lookup(address),
+                    "Un-expected roles for " + Integer.toHexString(address));
+        }
+    }
+
+    /**
+     * Test that the IPv6 trie returns the same roles as the segment table for
+     * random, overlapping ranges, including ranges crossing a 64 bit boundary
+     * and covering the entire address space.
+     */
+    @Test
+    public void testIPv6Lookup() {
+        final PrefixTrie trie = assertIPv6Lookup(4, true);
+        assertEquals(roles("all"), trie.lookup(0, 0));
+        assertEquals(roles("all"), trie.lookup(-1L, -1L));
+    }
+
+    /**
+     * Test IPv6 lookups in a trie where all the prefixes are within a single
+     * /64 network, so the stride table indexes the low 64 bits only.
+     */
+    @Test
+    public void testIPv6LookupWithinNetwork() {
+        final PrefixTrie trie = assertIPv6Lookup(1, false);
+        assertEquals(Collections.emptySet(), trie.lookup(0, 0));
+        assertEquals(Collections.emptySet(), trie.lookup(-1L, -1L));
+    }
+
+    /**
+     * Build an IPv6 trie and segment table from random ranges in
+     * <code>networkCount</code> consecutive /64 networks and assert that they
+     * return the same roles.
+     * 
+     * @param networkCount
+     *            the number of /64 networks to create ranges in.
+     * @param addCoveringRanges
+     *            add a range covering the entire address space, and a range
+     *            crossing the boundary between the first two networks.
+     * @return the trie built.
+     */
+    private PrefixTrie assertIPv6Lookup(int networkCount,
+            boolean addCoveringRanges) {
+        final RoleTable roleTable = createRoleTable();
+        final SegmentBuilder segmentBuilder = new SegmentBuilder(-1L, -1L,
+                roleTable);
+        final PrefixTrie trie = new PrefixTrie(128, roleTable);
+
+        final long prefix = 0x20010db800000000L;
+        final Random random = new Random(42);
+        final List<long[]> boundaries = new ArrayList<long[]>();
+        for (int rangeIdx = 0; rangeIdx < 1000; rangeIdx++) {
+            final long high = prefix + random.nextInt(networkCount);
+            final long begin = (random.nextLong() >>> 2) + 1;
+            final long end = begin
+                    + (random.nextLong() >>> (random.nextInt(62) + 2));
+            final List<String> roles = Arrays.asList("role"
+                    + random.nextInt(20));
+            segmentBuilder.add(high, begin, high, end, roles);
+            trie.add(high, begin, high, end, roles);
+            boundaries.add(new long[] { high, begin });
+            boundaries.add(new long[] { high, end });
+        }
+        if (addCoveringRanges) {
+            segmentBuilder.add(prefix, -16L, prefix + 1, 15L, Arrays
+                    .asList("crossing"));
+            trie.add(prefix, -16L, prefix + 1, 15L, Arrays.asList("crossing"));
+            boundaries.add(new long[] { prefix, -16L });
+            boundaries.add(new long[] { prefix + 1, 15L });
+            segmentBuilder.add(0, 0, -1L, -1L, Arrays.asList("all"));
+            trie.add(0, 0, -1L, -1L, Arrays.asList("all"));
+        }
+        segmentBuilder.build();
+        trie.build();
+        final IPv6SegmentIndex segmentIndex = new IPv6SegmentIndex(
+                segmentBuilder);
+
+        for (long[] boundary : boundaries) {
+            for (long delta = -1; delta <= 1; delta++) {
+                final long low = boundary[1] + delta;
+                final long high = boundary[0]
+                        + ((delta < 0 && boundary[1] == 0) ? -1 : 0)
+                        + ((delta > 0 && low == 0) ? 1 : 0);
+                assertSame(segmentIndex.lookup(high, low), trie.lookup(high,
+                        low), "Un-expected roles for " + Long.toHexString(high)
+                        + ":" + Long.toHexString(low));
+            }
+        }
+        for (int lookup = 0; lookup < 100000; lookup++) {
+            final long high = prefix + random.nextInt(networkCount + 1);
+            final long low = random.nextLong();
+            assertSame(segmentIndex.lookup(high, low), trie.lookup(high, low),
+                    "Un-expected roles for " + Long.toHexString(high) + ":"
+                            + Long.toHexString(low));
+        }
+        return trie;
+    }
+
+    private RoleTable createRoleTable() {
+        final List<String> roleNames = new ArrayList<String>(Arrays.asList(
+                "net", "subnet", "host", "hosts", "all", "crossing"));
+        for (int roleIdx = 0; roleIdx < 20; roleIdx++) {
+            roleNames.add("role" + roleIdx);
+        }
+        return new RoleTable(roleNames);
+    }
+
+    private Set<String> roles(String... roles) {
+        return new HashSet<String>(Arrays.asList(roles));
+    }
+}
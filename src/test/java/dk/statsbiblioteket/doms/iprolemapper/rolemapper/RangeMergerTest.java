@@ -0,0 +1,105 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class RangeMergerTest {
+
+    /**
+     * Test merging ranges of both address families, which overlap, contain
+     * each other or are merely adjacent.
+     */
+    @Test
+    public void testMerge() {
+        final List<IPRange> ranges = Arrays.asList(ipv6Range(5, 9),
+                ipv4Range(20, 30), ipv4Range(1, 10), ipv4Range(5, 12),
+                ipv4Range(13, 15), ipv6Range(1, 5), ipv4Range(22, 25));
+
+        assertEquals(Arrays.asList(ipv4Range(1, 12), ipv4Range(13, 15),
+                ipv4Range(20, 30), ipv6Range(1, 9)), RangeMerger
+                .merge(ranges));
+        assertTrue(RangeMerger.merge(new ArrayList<IPRange>()).isEmpty());
+    }
+
+    /**
+     * Test that a k-way merge of merged range lists covers exactly the
+     * addresses covered by any of the lists.
+     */
+    @Test
+    public void testKWayMerge() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 100; round++) {
+            final List<List<IPRange>> rangeLists = new ArrayList<List<IPRange>>();
+            final BitSet expectedAddresses = new BitSet();
+            final int listCount = random.nextInt(5);
+            for (int listIdx = 0; listIdx < listCount; listIdx++) {
+                final List<IPRange> ranges = new ArrayList<IPRange>();
+                for (int rangeIdx = random.nextInt(10); rangeIdx > 0; rangeIdx--) {
+                    final int begin = random.nextInt(200);
+                    final int end = begin + random.nextInt(20);
+                    ranges.add(ipv4Range(begin, end));
+                    expectedAddresses.set(begin, end + 1);
+                }
+                rangeLists.add(RangeMerger.merge(ranges));
+            }
+
+            final List<IPRange> mergedRanges = RangeMerger.mergeSorted(rangeLists);
+            final BitSet mergedAddresses = new BitSet();
+            IPRange previousRange = null;
+            for (IPRange range : mergedRanges) {
+                if (previousRange != null) {
+                    assertTrue(previousRange.getEnd().compareTo(
+                            range.getBegin()) < 0, "Unmerged ranges: "
+                            + mergedRanges);
+                }
+                mergedAddresses.set((int) range.getBegin().getLow(),
+                        (int) range.getEnd().getLow() + 1);
+                previousRange = range;
+            }
+            assertEquals(expectedAddresses, mergedAddresses);
+        }
+    }
+
+    private static IPRange ipv4Range(int begin, int end) {
+        return new IPRange(new IPAddress(0, begin, false), new IPAddress(0,
+                end, false));
+    }
+
+    private static IPRange ipv6Range(int begin, int end) {
+        return new IPRange(new IPAddress(1, begin, true), new IPAddress(1,
+                end, true));
+    }
+}
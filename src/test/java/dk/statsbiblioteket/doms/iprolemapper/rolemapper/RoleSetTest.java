@@ -0,0 +1,170 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+
+public class RoleSetTest {
+
+    /**
+     * Test that role sets behave like sorted sets of the role names, and that
+     * they are equal to other sets having the same roles.
+     */
+    @Test
+    public void testSetSemantics() {
+        final RoleTable roleTable = new RoleTable(Arrays.asList("student",
+                "public", "professor", "student"));
+        assertEquals(3, roleTable.size());
+
+        final RoleSet roleSet = roleTable.intern(Arrays.asList("student",
+                "professor"));
+        final Set<String> expectedRoles = new TreeSet<String>(Arrays.asList(
+                "professor", "student"));
+
+        assertEquals(2, roleSet.size());
+        assertFalse(roleSet.isEmpty());
+        assertTrue(roleSet.contains("professor"));
+        assertTrue(roleSet.contains("student"));
+        assertFalse(roleSet.contains("public"));
+        assertFalse(roleSet.contains("unknown"));
+        assertFalse(roleSet.contains(null));
+        assertEquals(new ArrayList<String>(expectedRoles),
+                new ArrayList<String>(roleSet));
+        assertEquals(expectedRoles, roleSet);
+        assertEquals(roleSet, expectedRoles);
+        assertEquals(expectedRoles.hashCode(), roleSet.hashCode());
+        assertEquals(expectedRoles.toString(), roleSet.toString());
+
+        assertTrue(roleTable.getEmptySet().isEmpty());
+        assertEquals(Collections.emptySet(), roleTable.getEmptySet());
+        assertFalse(roleTable.getEmptySet().iterator().hasNext());
+    }
+
+    /**
+     * Test that role sets cannot be modified.
+     */
+    @Test
+    public void testImmutability() {
+        final RoleTable roleTable = new RoleTable(Arrays.asList("public",
+                "student"));
+        final RoleSet roleSet = roleTable.intern(Arrays.asList("public"));
+
+        assertThrows(UnsupportedOperationException.class,
+                () -> roleSet.add("student"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> roleSet.remove("public"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> roleSet.clear());
+
+        final Iterator<String> roleIterator = roleSet.iterator();
+        assertEquals("public", roleIterator.next());
+        assertThrows(UnsupportedOperationException.class,
+                () -> roleIterator.remove());
+        assertThrows(NoSuchElementException.class, () -> roleIterator.next());
+        assertEquals(1, roleSet.size());
+    }
+
+    /**
+     * Test that equal role sets are interned as the same instance, also when
+     * there are more roles than fit in a single word of bits.
+     */
+    @Test
+    public void testInterning() {
+        final List<String> roleNames = new ArrayList<String>();
+        for (int roleIdx = 0; roleIdx < 150; roleIdx++) {
+            roleNames.add(String.format(Locale.ROOT, "role%03d",
+                    roleIdx));
+        }
+        final RoleTable roleTable = new RoleTable(roleNames);
+
+        final List<String> roles = Arrays.asList("role149", "role000",
+                "role064", "role063");
+        final RoleSet roleSet = roleTable.intern(roles);
+        assertSame(roleSet, roleTable.intern(new TreeSet<String>(roles)));
+        assertNotSame(roleSet, roleTable.intern(roles.subList(0, 3)));
+        assertEquals(Arrays.asList("role000", "role063", "role064",
+                "role149"), new ArrayList<String>(roleSet));
+        assertTrue(roleSet.containsAll(roles));
+        assertFalse(roleSet.contains("role065"));
+
+        final long[] bits = roleTable.newBits();
+        bits[0] = 1L;
+        assertSame(roleTable.intern(Arrays.asList("role000")), roleTable
+                .intern(bits));
+
+        // The empty set, the two sets above and the single role set.
+        assertEquals(4, roleTable.getRoleSetCount());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> roleTable.intern(Arrays.asList("unknown")));
+    }
+
+    /**
+     * Test the pre-encoded comma separated and JSON representations of role
+     * sets, including role names which must be escaped in JSON.
+     */
+    @Test
+    public void testEncodedForms() {
+        final RoleTable roleTable = new RoleTable(Arrays.asList("student",
+                "professor", "quote\"back\\slash", "\u00e6bler"));
+
+        final RoleSet roleSet = roleTable.intern(Arrays.asList("student",
+                "professor"));
+        assertEquals("professor,student", new String(roleSet
+                .getCommaSeparatedBytes(), StandardCharsets.UTF_8));
+        assertEquals("[\"professor\",\"student\"]", new String(roleSet
+                .getJSONBytes(), StandardCharsets.UTF_8));
+
+        final RoleSet escapedRoleSet = roleTable.intern(Arrays.asList(
+                "quote\"back\\slash", "\u00e6bler"));
+        assertEquals("quote\"back\\slash,\u00e6bler", new String(
+                escapedRoleSet.getCommaSeparatedBytes(),
+                StandardCharsets.UTF_8));
+        assertEquals("[\"quote\\\"back\\\\slash\",\"\u00e6bler\"]",
+                new String(escapedRoleSet.getJSONBytes(),
+                        StandardCharsets.UTF_8));
+
+        assertEquals(0, roleTable.getEmptySet().getCommaSeparatedBytes().length);
+        assertEquals("[]", new String(roleTable.getEmptySet().getJSONBytes(),
+                StandardCharsets.UTF_8));
+    }
+}
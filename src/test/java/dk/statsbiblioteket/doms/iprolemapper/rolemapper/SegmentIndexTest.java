@@ -0,0 +1,291 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+
+public class SegmentIndexTest {
+
+    /**
+     * Test that the index returns the same roles as a brute-force scan of all
+     * the ranges for every address in and around some overlapping ranges.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testLookup() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = createRanges(new String[][] {
+                { "192.168.0.1", "192.168.0.254", "public" },
+                { "192.168.0.123", "192.168.0.151", "student" },
+                { "192.168.0.142", "192.168.0.162", "professor" },
+                { "192.168.0.142", "192.168.0.142", "professor", "admin" },
+                { "192.168.0.200", "192.168.1.10", "student" },
+                { "192.168.1.11", "192.168.1.11", "public" } });
+
+        final SegmentIndex segmentIndex = new SegmentIndex(ranges);
+
+        for (int address = 0; address < 512; address++) {
+            final InetAddress ipAddress = InetAddress.getByAddress(new byte[] {
+                    (byte) 192, (byte) 168, (byte) (address >> 8),
+                    (byte) address });
+            assertEquals(scanRanges(ranges, ipAddress), segmentIndex
+                    .lookup(ipAddress), "Un-expected roles for " + ipAddress);
+        }
+    }
+
+    /**
+     * Test that adjacent segments having the same roles are merged and that
+     * segments with equal roles share the same role set instance.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testSegmentMerging() throws UnknownHostException {
+        final SegmentIndex segmentIndex = new SegmentIndex(createRanges(
+                new String[][] { { "10.0.0.1", "10.0.0.5", "public" },
+                        { "10.0.0.6", "10.0.0.10", "public" },
+                        { "10.0.0.20", "10.0.0.30", "public" } }));
+
+        // The addresses below 10.0.0.1, 10.0.0.1-10.0.0.10, the gap up to
+        // 10.0.0.19, 10.0.0.20-10.0.0.30 and the remaining addresses. Plus
+        // the single (empty) IPv6 segment.
+        assertEquals(6, segmentIndex.size());
+        assertSame(segmentIndex.lookup(InetAddress.getByName("10.0.0.1")),
+                segmentIndex.lookup(InetAddress.getByName("10.0.0.25")));
+        assertTrue(segmentIndex.lookup(InetAddress.getByName("10.0.0.15"))
+                .isEmpty());
+    }
+
+    /**
+     * Test ranges covering the lowest and highest possible addresses.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testAddressSpaceLimits() throws UnknownHostException {
+        final SegmentIndex segmentIndex = new SegmentIndex(createRanges(
+                new String[][] { { "0.0.0.0", "0.0.0.0", "low" },
+                        { "255.255.255.0", "255.255.255.255", "high" } }));
+
+        assertEquals(new TreeSet<String>(Arrays.asList("low")), segmentIndex
+                .lookup(InetAddress.getByName("0.0.0.0")));
+        assertTrue(segmentIndex.lookup(InetAddress.getByName("0.0.0.1"))
+                .isEmpty());
+        assertEquals(new TreeSet<String>(Arrays.asList("high")), segmentIndex
+                .lookup(InetAddress.getByName("255.255.255.255")));
+    }
+
+    /**
+     * Test IPv6 lookups against a brute-force scan, including ranges crossing
+     * a 64 bit boundary.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testIPv6Lookup() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = createRanges(new String[][] {
+                { "2001:db8::", "2001:db8::1:0", "public" },
+                { "2001:db8::ff", "2001:db8::100", "student" },
+                { "2001:db8:0:1:ffff:ffff:ffff:fff0",
+                        "2001:db8:0:2::10", "professor" } });
+
+        final SegmentIndex segmentIndex = new SegmentIndex(ranges);
+
+        final String[] testAddresses = { "::", "2001:db7:ffff::",
+                "2001:db8::", "2001:db8::fe", "2001:db8::ff",
+                "2001:db8::100", "2001:db8::101", "2001:db8::1:0",
+                "2001:db8::1:1", "2001:db8:0:1:ffff:ffff:ffff:ffef",
+                "2001:db8:0:1:ffff:ffff:ffff:fff0", "2001:db8:0:2::",
+                "2001:db8:0:2::10", "2001:db8:0:2::11",
+                "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff" };
+        for (String testAddress : testAddresses) {
+            final InetAddress ipAddress = InetAddress.getByName(testAddress);
+            assertEquals(scanRanges(ranges, ipAddress), segmentIndex
+                    .lookup(ipAddress), "Un-expected roles for " + ipAddress);
+        }
+    }
+
+    /**
+     * Test that IPv4 and IPv6 ranges can be mixed, and that IPv4-mapped IPv6
+     * addresses are looked up in the IPv4 ranges.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testMixedAddressFamilies() throws UnknownHostException {
+        // InetAddress.getByName() converts IPv4-mapped addresses into
+        // Inet4Address instances, so create real Inet6Address instances.
+        final InetAddress mappedIPv6Address = createIPv4MappedAddress("10.0.0.1");
+        assertTrue(mappedIPv6Address instanceof Inet6Address);
+
+        // The IPv6 range ends at ::ffff:10.0.0.5.
+        final List<IPRangeRoles> ranges = createRanges(new String[][] {
+                { "10.0.0.1", "10.0.0.10", "ipv4" },
+                { "2001:db8::", "2001:db8::ff", "ipv6" } });
+        ranges.add(new IPRangeRoles(InetAddress.getByName("::"),
+                createIPv4MappedAddress("10.0.0.5"), Arrays.asList("ipv6")));
+        for (LookupEngine lookupEngine : LookupEngine.values()) {
+            final SegmentIndex segmentIndex = new SegmentIndex(ranges,
+                    lookupEngine);
+
+            assertEquals(new TreeSet<String>(Arrays.asList("ipv4")), segmentIndex
+                    .lookup(InetAddress.getByName("10.0.0.10")));
+            assertEquals(new TreeSet<String>(Arrays.asList("ipv6")), segmentIndex
+                    .lookup(InetAddress.getByName("2001:db8::1")));
+            assertEquals(new TreeSet<String>(Arrays.asList("ipv4", "ipv6")),
+                    segmentIndex.lookup(InetAddress.getByName("10.0.0.5")));
+            assertEquals(new TreeSet<String>(Arrays.asList("ipv6")), segmentIndex
+                    .lookup(InetAddress.getByName("9.255.255.255")));
+            assertEquals(new TreeSet<String>(Arrays.asList("ipv4")), segmentIndex
+                    .lookup(InetAddress.getByName("10.0.0.6")));
+
+            assertEquals(new TreeSet<String>(Arrays.asList("ipv4", "ipv6")),
+                    segmentIndex.lookup(mappedIPv6Address));
+        }
+    }
+
+    /**
+     * Test that a batch lookup of unsorted addresses of both families,
+     * including duplicates and the limits of the address spaces, returns the
+     * same roles as looking up each address on its own, in the order of the
+     * addresses, with all the lookup engines.
+     *
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testLookupAll() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = createRanges(new String[][] {
+                { "192.168.0.1", "192.168.0.254", "public" },
+                { "192.168.0.123", "192.168.0.151", "student" },
+                { "192.168.0.200", "192.168.1.10", "student" },
+                { "255.255.255.0", "255.255.255.255", "high" },
+                { "2001:db8::", "2001:db8::1:0", "public" },
+                { "2001:db8::ffff:ffff:ffff:ff00", "2001:db8:0:1::ff", "ipv6" } });
+
+        final List<IPAddress> addresses = new LinkedList<IPAddress>();
+        for (String address : new String[] { "192.168.1.11", "2001:db8::1",
+                "0.0.0.0", "192.168.0.130", "255.255.255.255", "::",
+                "192.168.0.130", "2001:db8:0:1::1", "10.0.0.1",
+                "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", "192.168.0.1",
+                "2001:db8::ffff:ffff:ffff:ffff", "2001:db8::1" }) {
+            addresses.add(IPAddress.valueOf(InetAddress.getByName(address)));
+        }
+        addresses.add(IPAddress
+                .valueOf(createIPv4MappedAddress("192.168.0.200")));
+        final IPAddress[] addressArray = addresses
+                .toArray(new IPAddress[addresses.size()]);
+
+        for (LookupEngine lookupEngine : LookupEngine.values()) {
+            final SegmentIndex segmentIndex = new SegmentIndex(ranges,
+                    lookupEngine);
+            final RoleSet[] roleSets = segmentIndex.lookupAll(addressArray);
+            assertEquals(addressArray.length, roleSets.length);
+            for (int addressIdx = 0; addressIdx < addressArray.length; addressIdx++) {
+                assertSame(segmentIndex.lookup(addressArray[addressIdx]),
+                        roleSets[addressIdx], lookupEngine + ": "
+                                + addressArray[addressIdx]);
+            }
+            assertEquals(0, segmentIndex.lookupAll(new IPAddress[0]).length);
+        }
+    }
+
+    /**
+     * Test that an index built from no ranges is empty and maps nothing.
+     * 
+     * @throws UnknownHostException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @Test
+    public void testEmptyIndex() throws UnknownHostException {
+        final SegmentIndex segmentIndex = new SegmentIndex(
+                new LinkedList<IPRangeRoles>());
+        assertTrue(segmentIndex.isEmpty());
+        assertTrue(segmentIndex.lookup(InetAddress.getByName("10.0.0.1"))
+                .isEmpty());
+    }
+
+    private InetAddress createIPv4MappedAddress(String ipv4Address)
+            throws UnknownHostException {
+        final byte[] mappedAddress = new byte[16];
+        mappedAddress[10] = (byte) 0xff;
+        mappedAddress[11] = (byte) 0xff;
+        System.arraycopy(InetAddress.getByName(ipv4Address).getAddress(), 0,
+                mappedAddress, 12, 4);
+        return Inet6Address.getByAddress(null, mappedAddress, -1);
+    }
+
+    private Set<String> scanRanges(List<IPRangeRoles> ranges,
+            InetAddress ipAddress) {
+        final InetAddressComparator comparator = new InetAddressComparator();
+        final Set<String> roles = new TreeSet<String>();
+        for (IPRangeRoles range : ranges) {
+            if (comparator.compare(range.getBeginAddress(), ipAddress) <= 0
+                    && comparator.compare(ipAddress, range.getEndAddress()) <= 0) {
+                roles.addAll(range.getRoles());
+            }
+        }
+        return roles;
+    }
+
+    private List<IPRangeRoles> createRanges(String[][] rangeSetups)
+            throws UnknownHostException {
+
+        final List<IPRangeRoles> ipRanges = new LinkedList<IPRangeRoles>();
+        for (String[] rangeSetup : rangeSetups) {
+            ipRanges.add(new IPRangeRoles(InetAddress.getByName(rangeSetup[0]),
+                    InetAddress.getByName(rangeSetup[1]), Arrays.asList(Arrays
+                            .copyOfRange(rangeSetup, 2, rangeSetup.length))));
+        }
+        return ipRanges;
+    }
+}
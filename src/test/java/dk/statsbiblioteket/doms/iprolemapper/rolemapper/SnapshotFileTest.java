@@ -0,0 +1,293 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.rolemapper;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotFileTest {
+
+    private static final byte[] DIGEST = { 1, 2, 3, 4 };
+
+    /**
+     * Test that a snapshot read back from a snapshot file maps addresses and
+     * roles exactly like the snapshot it was written from, with all the lookup
+     * engines.
+     * 
+     * @param tempDir
+     *            directory for the snapshot file.
+     * @throws IOException
+     *             if the snapshot file cannot be written or read. This will
+     *             not happen.
+     */
+    @Test
+    public void testRoundTrip(@TempDir Path tempDir) throws IOException {
+        final List<IPRangeRoles> ranges = createRanges();
+        final File snapshotFile = tempDir.resolve("ranges.snapshot").toFile();
+        final List<InetAddress> addresses = createAddresses();
+
+        for (LookupEngine lookupEngine : LookupEngine.values()) {
+            final MappingSnapshot original = new MappingSnapshot(1, ranges,
+                    lookupEngine);
+            SnapshotFile.write(original, DIGEST, snapshotFile);
+
+            final SnapshotFile snapshotContents = SnapshotFile
+                    .read(snapshotFile);
+            assertArrayEquals(DIGEST, snapshotContents.getSourceDigest());
+            assertArrayEquals(DIGEST, SnapshotFile
+                    .readSourceDigest(snapshotFile));
+            assertEquals(ranges, snapshotContents.getRanges());
+            final MappingSnapshot restored = new MappingSnapshot(2,
+                    snapshotContents.getRanges(), snapshotContents
+                            .getSegmentTables(), lookupEngine);
+
+            for (InetAddress address : addresses) {
+                assertEquals(original.getSegmentIndex().lookup(address),
+                        restored.getSegmentIndex().lookup(address),
+                        lookupEngine + ": " + address);
+            }
+            final IPAddress[] batch = new IPAddress[addresses.size()];
+            for (int addressIdx = 0; addressIdx < batch.length; addressIdx++) {
+                batch[addressIdx] = IPAddress.valueOf(addresses
+                        .get(addressIdx));
+            }
+            final RoleSet[] batchRoles = restored.getSegmentIndex().lookupAll(
+                    batch);
+            for (int addressIdx = 0; addressIdx < batch.length; addressIdx++) {
+                assertEquals(original.getSegmentIndex().lookup(
+                        batch[addressIdx]), batchRoles[addressIdx],
+                        lookupEngine + ": " + batch[addressIdx]);
+            }
+            for (String role : Arrays.asList("public", "student", "ipv6",
+                    "unknown")) {
+                assertEquals(original.getRanges(role), restored.getRanges(role));
+            }
+            assertEquals(original.getSegmentIndex().size(), restored
+                    .getSegmentIndex().size());
+            assertTrue(restored.getDescription().contains(
+                    "loaded from a snapshot"));
+        }
+    }
+
+    /**
+     * Test that corrupt snapshot files and snapshot files of other format
+     * versions are refused.
+     * 
+     * @param tempDir
+     *            directory for the snapshot file.
+     * @throws IOException
+     *             if the snapshot file cannot be written. This will not
+     *             happen.
+     */
+    @Test
+    public void testRefusedFiles(@TempDir Path tempDir) throws IOException {
+        final File snapshotFile = tempDir.resolve("ranges.snapshot").toFile();
+        SnapshotFile.write(new MappingSnapshot(1, createRanges(),
+                LookupEngine.SEGMENT_TABLE), DIGEST, snapshotFile);
+        final byte[] contents = Files.readAllBytes(snapshotFile.toPath());
+
+        final byte[] flippedBit = contents.clone();
+        flippedBit[contents.length / 2] ^= 0x10;
+        assertRefused(snapshotFile, flippedBit, "corrupt");
+
+        final byte[] otherVersion = contents.clone();
+        otherVersion[7]++;
+        assertRefused(snapshotFile, otherVersion, "version");
+
+        final byte[] truncated = Arrays.copyOf(contents, contents.length - 9);
+        assertRefused(snapshotFile, truncated, "corrupt");
+
+        assertRefused(snapshotFile, "<ipranges></ipranges>"
+                .getBytes(StandardCharsets.UTF_8),
+                "Not a snapshot");
+    }
+
+    /**
+     * Test that <code>IPRoleMapper</code> is only initialised from a snapshot
+     * written from the expected configuration, unless any snapshot will do.
+     * 
+     * @param tempDir
+     *            directory for the snapshot file.
+     * @throws IOException
+     *             if the snapshot file cannot be written or read. This will
+     *             not happen.
+     */
+    @Test
+    public void testInitFromSnapshot(@TempDir Path tempDir) throws IOException {
+        final File snapshotFile = tempDir.resolve("ranges.snapshot").toFile();
+        IPRoleMapper.init(createRanges());
+        IPRoleMapper.saveSnapshot(snapshotFile, DIGEST);
+        IPRoleMapper.init(new ArrayList<IPRangeRoles>());
+        assertTrue(new IPRoleMapper().isEmpty());
+
+        final long generation = IPRoleMapper.getGeneration();
+        assertFalse(IPRoleMapper.initFromSnapshot(snapshotFile, new byte[] {
+                4, 3, 2, 1 }, LookupEngine.SEGMENT_TABLE));
+        assertEquals(generation, IPRoleMapper.getGeneration());
+
+        // Only the header is read when the digest does not match, so the
+        // corrupt remainder of the file goes unnoticed.
+        final byte[] contents = Files.readAllBytes(snapshotFile.toPath());
+        final byte[] corrupt = contents.clone();
+        corrupt[contents.length / 2] ^= 0x10;
+        Files.write(snapshotFile.toPath(), corrupt);
+        assertFalse(IPRoleMapper.initFromSnapshot(snapshotFile, new byte[] {
+                4, 3, 2, 1 }, LookupEngine.MAPPED_SNAPSHOT));
+        assertThrows(IOException.class, () -> IPRoleMapper.initFromSnapshot(
+                snapshotFile, DIGEST, LookupEngine.SEGMENT_TABLE));
+        Files.write(snapshotFile.toPath(), contents);
+
+        assertTrue(IPRoleMapper.initFromSnapshot(snapshotFile, DIGEST,
+                LookupEngine.SEGMENT_TABLE));
+        assertEquals(generation + 1, IPRoleMapper.getGeneration());
+        assertEquals(Arrays.asList("public", "student"), new ArrayList<String>(
+                new IPRoleMapper().mapIPHost(InetAddress
+                        .getByName("192.168.0.130"))));
+
+        assertTrue(IPRoleMapper.initFromSnapshot(snapshotFile, null,
+                LookupEngine.SEGMENT_TABLE));
+        assertEquals(generation + 2, IPRoleMapper.getGeneration());
+    }
+
+    /**
+     * Test that a memory-mapped snapshot maps addresses like the snapshot it
+     * was written from, that it keeps doing so when the snapshot file is
+     * replaced, and that the replacement is used once it has been mapped.
+     * 
+     * @param tempDir
+     *            directory for the snapshot file.
+     * @throws IOException
+     *             if the snapshot file cannot be written or mapped. This will
+     *             not happen.
+     */
+    @Test
+    public void testMappedSnapshot(@TempDir Path tempDir) throws IOException {
+        final List<IPRangeRoles> ranges = createRanges();
+        final File snapshotFile = tempDir.resolve("ranges.snapshot").toFile();
+        final List<InetAddress> addresses = createAddresses();
+
+        final MappingSnapshot original = new MappingSnapshot(1, ranges,
+                LookupEngine.SEGMENT_TABLE);
+        SnapshotFile.write(original, DIGEST, snapshotFile);
+        final SnapshotFile mappedContents = SnapshotFile.map(snapshotFile);
+        assertTrue(mappedContents.getSegmentTables().isMapped());
+        final MappingSnapshot mapped = new MappingSnapshot(2, mappedContents
+                .getRanges(), mappedContents.getSegmentTables(),
+                LookupEngine.MAPPED_SNAPSHOT);
+        assertTrue(mapped.getDescription().contains(
+                "memory-mapped segment table"));
+        assertThrows(IOException.class, () -> SnapshotFile.write(mapped,
+                DIGEST, snapshotFile));
+
+        // Replace the snapshot file with one of a single range.
+        final List<IPRangeRoles> otherRanges = new ArrayList<IPRangeRoles>();
+        otherRanges.add(createRange("0.0.0.0", "255.255.255.255", "other"));
+        SnapshotFile.write(new MappingSnapshot(3, otherRanges,
+                LookupEngine.SEGMENT_TABLE), DIGEST, snapshotFile);
+
+        for (InetAddress address : addresses) {
+            assertEquals(original.getSegmentIndex().lookup(address), mapped
+                    .getSegmentIndex().lookup(address), address.toString());
+        }
+
+        final SnapshotFile remappedContents = SnapshotFile.map(snapshotFile);
+        final MappingSnapshot remapped = new MappingSnapshot(4,
+                remappedContents.getRanges(), remappedContents
+                        .getSegmentTables(), LookupEngine.MAPPED_SNAPSHOT);
+        assertEquals(Arrays.asList("other"), new ArrayList<String>(remapped
+                .getSegmentIndex().lookup(InetAddress.getByName("10.0.0.1"))));
+        assertTrue(remapped.getSegmentIndex().lookup(
+                InetAddress.getByName("2001:db8::1")).isEmpty());
+    }
+
+    private void assertRefused(File snapshotFile, byte[] contents,
+            String expectedMessage) throws IOException {
+        Files.write(snapshotFile.toPath(), contents);
+        final IOException refusal = assertThrows(IOException.class,
+                () -> SnapshotFile.read(snapshotFile));
+        assertTrue(refusal.getMessage().contains(expectedMessage), refusal
+                .getMessage());
+    }
+
+    private List<IPRangeRoles> createRanges() throws UnknownHostException {
+        final List<IPRangeRoles> ranges = new ArrayList<IPRangeRoles>();
+        ranges.add(createRange("0.0.0.0", "0.0.0.255", "public"));
+        ranges.add(createRange("192.168.0.1", "192.168.0.254", "public"));
+        ranges.add(createRange("192.168.0.123", "192.168.0.151", "student",
+                "public"));
+        ranges.add(createRange("192.168.0.200", "192.168.1.10", "student"));
+        ranges.add(createRange("255.255.255.0", "255.255.255.255", "student"));
+        ranges.add(createRange("2001:db8::", "2001:db8::ff", "ipv6"));
+        ranges.add(createRange("2001:db8::80", "2001:db8:1::", "student"));
+        ranges.add(createRange("10.0.0.1", "10.0.0.1"));
+
+        // An IPv6 range ending at the IPv4-mapped address ::ffff:10.0.0.5.
+        final byte[] mappedAddress = new byte[16];
+        mappedAddress[10] = (byte) 0xff;
+        mappedAddress[11] = (byte) 0xff;
+        mappedAddress[12] = 10;
+        mappedAddress[15] = 5;
+        ranges.add(new IPRangeRoles(InetAddress.getByName("::"), Inet6Address
+                .getByAddress(null, mappedAddress, -1), Arrays.asList("ipv6")));
+        return ranges;
+    }
+
+    private IPRangeRoles createRange(String beginAddress, String endAddress,
+            String... roles) throws UnknownHostException {
+        return new IPRangeRoles(InetAddress.getByName(beginAddress),
+                InetAddress.getByName(endAddress), Arrays.asList(roles));
+    }
+
+    private List<InetAddress> createAddresses() throws UnknownHostException {
+        final List<InetAddress> addresses = new ArrayList<InetAddress>();
+        for (String address : Arrays.asList("0.0.0.0", "0.0.0.255",
+                "0.0.1.0", "10.0.0.1", "10.0.0.5", "10.0.0.6", "192.168.0.0",
+                "192.168.0.1", "192.168.0.123", "192.168.0.152",
+                "192.168.1.10", "192.168.1.11", "255.255.255.255", "::",
+                "::1", "2001:db8::", "2001:db8::80", "2001:db8::100",
+                "2001:db8:1::", "2001:db8:1::1",
+                "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")) {
+            addresses.add(InetAddress.getByName(address));
+        }
+        return addresses;
+    }
+}
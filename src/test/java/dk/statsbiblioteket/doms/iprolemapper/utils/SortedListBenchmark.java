@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Simple stand-alone micro benchmark of <code>SortedList</code>, comparing it
+ * with a reference of the previous <code>LinkedList</code> based
+ * implementation. This is not a unit test and is not executed by the build.
+ * Run it from the IDE or from the command line with the test class path,
+ * e.g.:
+ * 
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes \
+ *     dk.statsbiblioteket.doms.iprolemapper.utils.SortedListBenchmark
+ * </pre>
+ * 
+ * The figures reported are wall clock times of the fastest of a few rounds,
+ * and are only meant for comparing the implementations against each other on
+ * the same machine.
+ */
+public class SortedListBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURE_ROUNDS = 3;
+
+    /**
+     * The largest list the quadratic reference implementation is measured
+     * with.
+     */
+    private static final int MAX_REFERENCE_SIZE = 10000;
+
+    private static final Comparator<Integer> INTEGER_ORDER = new Comparator<Integer>() {
+
+        public int compare(Integer integer1, Integer integer2) {
+            return integer1.compareTo(integer2);
+        }
+    };
+
+    public static void main(String[] args) {
+        for (int size : new int[] { 1000, 10000, 100000 }) {
+            final Integer[] values = createValues(size);
+            if (size <= MAX_REFERENCE_SIZE) {
+                benchmark("LinkedList reference", values,
+                        new CollectionFactory() {
+                            public Collection<Integer> create() {
+                                return new LinkedListReference(INTEGER_ORDER);
+                            }
+                        });
+            }
+            benchmark("SortedList", values, new CollectionFactory() {
+                public Collection<Integer> create() {
+                    return new SortedList<Integer>(INTEGER_ORDER);
+                }
+            });
+        }
+    }
+
+    /**
+     * Measure adding <code>values</code> one by one and in bulk, and looking
+     * all of them up, in collections created by <code>factory</code>.
+     */
+    private static void benchmark(String name, Integer[] values,
+            CollectionFactory factory) {
+
+        double bestAddMillis = Double.MAX_VALUE;
+        double bestAddAllMillis = Double.MAX_VALUE;
+        double bestContainsMillis = Double.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            final Collection<Integer> addedList = factory.create();
+            for (Integer value : values) {
+                addedList.add(value);
+            }
+            final double addMillis = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            final Collection<Integer> bulkList = factory.create();
+            bulkList.addAll(Arrays.asList(values));
+            final double addAllMillis = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            int found = 0;
+            for (Integer value : values) {
+                if (bulkList.contains(value)) {
+                    found++;
+                }
+            }
+            final double containsMillis = (System.nanoTime() - start) / 1e6;
+            if (found != values.length || addedList.size() != values.length) {
+                throw new IllegalStateException(name + " lost elements.");
+            }
+
+            if (round >= WARMUP_ROUNDS) {
+                bestAddMillis = Math.min(bestAddMillis, addMillis);
+                bestAddAllMillis = Math.min(bestAddAllMillis, addAllMillis);
+                bestContainsMillis = Math.min(bestContainsMillis,
+                        containsMillis);
+            }
+        }
+
+        System.out.printf(Locale.ROOT,
+                "%s: %d elements, add %.2f ms, addAll %.2f ms, "
+                        + "contains %.2f ms%n", name, values.length,
+                bestAddMillis, bestAddAllMillis, bestContainsMillis);
+    }
+
+    private static Integer[] createValues(int count) {
+        final Random random = new Random(42);
+        final Integer[] values = new Integer[count];
+        for (int index = 0; index < count; index++) {
+            values[index] = random.nextInt(count);
+        }
+        return values;
+    }
+
+    private interface CollectionFactory {
+        Collection<Integer> create();
+    }
+
+    /**
+     * The previous <code>SortedList</code> implementation, which inserted
+     * elements into a <code>LinkedList</code> at the position found by a
+     * binary search using <code>LinkedList.get()</code>.
+     */
+    private static class LinkedListReference extends LinkedList<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Comparator<Integer> comparator;
+
+        LinkedListReference(Comparator<Integer> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public boolean add(Integer element) {
+            int startIndex = 0;
+            int endIndex = size();
+            while (startIndex != endIndex) {
+                final int middleIndex = startIndex + (endIndex - startIndex)
+                        / 2;
+                final int compareResult = comparator.compare(
+                        get(middleIndex), element);
+                if (compareResult == 0) {
+                    startIndex = middleIndex;
+                    break;
+                } else if (compareResult < 0) {
+                    startIndex = middleIndex + 1;
+                } else {
+                    endIndex = middleIndex;
+                }
+            }
+            super.add(startIndex, element);
+            return true;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Integer> elements) {
+            boolean collectionHasChanged = false;
+            for (Integer element : elements) {
+                collectionHasChanged |= add(element);
+            }
+            return collectionHasChanged;
+        }
+    }
+}
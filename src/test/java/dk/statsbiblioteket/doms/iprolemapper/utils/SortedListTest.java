@@ -362,4 +362,79 @@ public class SortedListTest {
         testList.addAll(Arrays.asList(testValues));
         assertTrue(Arrays.deepEquals(sortedTestValues, testList.toArray()));
     }
+
+    /**
+     * Test that adding elements in bulk to a non-empty list merges them with
+     * the existing elements, keeping elements comparing equal in the order
+     * they were added in.
+     */
+    @Test
+    public void testAddAllMerge() {
+        final SortedList<String> lengthSortedList = new SortedList<String>(
+                new Comparator<String>() {
+
+                    public int compare(String string1, String string2) {
+                        return string1.length() - string2.length();
+                    }
+                });
+        lengthSortedList.addAll(Arrays.asList("ccc", "a", "bb"));
+        lengthSortedList.add("dd");
+        lengthSortedList.addAll(Arrays.asList("eee", "f", "gg"));
+
+        assertEquals(Arrays.asList("a", "f", "bb", "dd", "gg", "ccc", "eee"),
+                Arrays.asList(lengthSortedList.toArray()));
+        assertEquals(3, lengthSortedList.indexOf("dd"));
+        assertEquals(-1, lengthSortedList.indexOf("hh"));
+        assertFalse(lengthSortedList.addAll(new ArrayList<String>()));
+    }
+
+    /**
+     * Test method for
+     * {@link dk.statsbiblioteket.doms.iprolemapper.utils.SortedList#removeRange(int, int)}
+     * and the range removal methods based on element values.
+     */
+    @Test
+    public void testRemoveRange() {
+        testList.addAll(Arrays.asList(testValues));
+        testList.removeRange(0, 2);
+        assertEquals(Arrays.asList(sortedTestValues).subList(2,
+                sortedTestValues.length), Arrays.asList(testList.toArray()));
+
+        // Remove 2 <= x < 7.
+        assertEquals(6, testList.removeBetween(2, 7));
+        assertEquals(Arrays.asList(1, 7, 7, 8, 10, 10), Arrays
+                .asList(testList.toArray()));
+
+        assertEquals(2, testList.removeEqual(10));
+        assertEquals(0, testList.removeEqual(10));
+        assertEquals(Arrays.asList(1, 7, 7, 8), Arrays.asList(testList
+                .toArray()));
+
+        testList.subList(1, 3).clear();
+        assertEquals(Arrays.asList(1, 8), Arrays.asList(testList.toArray()));
+
+        assertThrows(IndexOutOfBoundsException.class, () -> testList
+                .removeRange(1, 3));
+    }
+
+    /**
+     * Test removing elements through the iterator of the list.
+     */
+    @Test
+    public void testIteratorRemove() {
+        testList.addAll(Arrays.asList(testValues));
+        final Iterator<Integer> intIterator = testList.iterator();
+        while (intIterator.hasNext()) {
+            if (intIterator.next() % 2 == 0) {
+                intIterator.remove();
+            }
+        }
+        assertEquals(Arrays.asList(1, 3, 7, 7), Arrays.asList(testList
+                .toArray()));
+
+        final Iterator<Integer> staleIterator = testList.iterator();
+        testList.add(5);
+        assertThrows(java.util.ConcurrentModificationException.class,
+                () -> staleIterator.next());
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRangeRoles;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
+
+public class BulkEnrichmentTest {
+
+    /**
+     * Initialise the mapper with a small configuration.
+     *
+     * @throws IOException
+     *             if any of the hard-coded IP addresses are illegal. This will
+     *             not happen.
+     */
+    @BeforeEach
+    public void setUp() throws IOException {
+        final List<IPRangeRoles> ranges = new LinkedList<IPRangeRoles>();
+        ranges.add(new IPRangeRoles(InetAddress.getByName("10.0.0.0"),
+                InetAddress.getByName("10.0.0.255"), Arrays.asList("public")));
+        ranges.add(new IPRangeRoles(InetAddress.getByName("10.0.0.128"),
+                InetAddress.getByName("10.0.0.255"), Arrays.asList("staff")));
+        ranges.add(new IPRangeRoles(InetAddress.getByName("2001:db8::"),
+                InetAddress.getByName("2001:db8::ff"), Arrays.asList("ipv6")));
+        IPRoleMapper.init(ranges);
+    }
+
+    /**
+     * Test that addresses are answered in order with tab separated lines,
+     * that blank lines are skipped and that invalid addresses get an error.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testTextFormat() throws IOException {
+        assertEquals("10.0.0.200\tOK\tpublic,staff\n"
+                + "999.1.1.1\tERROR\t"
+                + BulkEnrichment.INVALID_ADDRESS_MESSAGE + "\n"
+                + "10.0.0.1\tOK\tpublic\n" + "2001:db8::1\tOK\tipv6\n"
+                + "192.168.0.1\tOK\t\n", enrich(
+                "10.0.0.200\r\n999.1.1.1\n\n 10.0.0.1 \n2001:db8::1\n"
+                        + "192.168.0.1", BulkEnrichment.Format.TEXT, 0,
+                false));
+    }
+
+    /**
+     * Test that addresses are answered by a JSON object per line.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testNDJSONFormat() throws IOException {
+        assertEquals("{\"address\":\"10.0.0.200\",\"roles\":[\"public\","
+                + "\"staff\"]}\n{\"address\":\"999.1.1.1\",\"error\":\""
+                + BulkEnrichment.INVALID_ADDRESS_MESSAGE + "\"}\n", enrich(
+                "10.0.0.200\n999.1.1.1\n", BulkEnrichment.Format.NDJSON, 0,
+                false));
+    }
+
+    /**
+     * Test that CSV rows are written back with the roles and error columns
+     * appended, including the header row, quoted address fields and rows
+     * missing the address column.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testCSVFormat() throws IOException {
+        final String error = "\"" + BulkEnrichment.INVALID_ADDRESS_MESSAGE
+                + "\"";
+        assertEquals("time,ip,bytes,roles,error\n"
+                + "1,10.0.0.200,42,\"public,staff\",\n"
+                + "2,\" 10.0.0.1 \",\"a,b\",\"public\",\n"
+                + "3,bogus,0,," + error + "\n" + "4,," + error + "\n", enrich(
+                "time,ip,bytes\n1,10.0.0.200,42\n2,\" 10.0.0.1 \",\"a,b\"\n"
+                        + "3,bogus,0\n4\n", BulkEnrichment.Format.CSV, 1,
+                true));
+    }
+
+    /**
+     * Test that requests larger than a chunk are answered completely and in
+     * order.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testMultipleChunks() throws IOException {
+        final int lineCount = BulkEnrichment.CHUNK_SIZE * 2 + 17;
+        final StringBuilder request = new StringBuilder();
+        final StringBuilder expectedResponse = new StringBuilder();
+        for (int lineIdx = 0; lineIdx < lineCount; lineIdx++) {
+            final int thirdOctet = (lineIdx >> 8) & 1;
+            final String address = "10.0." + thirdOctet + "."
+                    + (lineIdx & 0xff);
+            request.append(address).append('\n');
+            expectedResponse.append(address).append("\tOK\t");
+            if (thirdOctet == 0) {
+                expectedResponse.append((lineIdx & 0xff) < 128 ? "public"
+                        : "public,staff");
+            }
+            expectedResponse.append('\n');
+        }
+        assertEquals(expectedResponse.toString(), enrich(request.toString(),
+                BulkEnrichment.Format.TEXT, 0, false));
+    }
+
+    /**
+     * Test that lines longer than the maximum line length are answered as
+     * invalid with only their beginning written back, and that the lines
+     * around them are answered as usual.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testLongLines() throws IOException {
+        final char[] longLine = new char[BulkEnrichment.MAX_LINE_LENGTH * 3];
+        Arrays.fill(longLine, '1');
+        final String truncatedLine = new String(longLine, 0,
+                BulkEnrichment.MAX_LINE_LENGTH);
+        assertEquals("10.0.0.1\tOK\tpublic\n" + truncatedLine + "\tERROR\t"
+                + BulkEnrichment.INVALID_ADDRESS_MESSAGE + "\n"
+                + "10.0.0.200\tOK\tpublic,staff\n" + truncatedLine
+                + "\tERROR\t" + BulkEnrichment.INVALID_ADDRESS_MESSAGE + "\n",
+                enrich("10.0.0.1\r" + new String(longLine) + "\r\n10.0.0.200\n"
+                        + new String(longLine), BulkEnrichment.Format.TEXT,
+                        0, false));
+    }
+
+    /**
+     * Test that the host names of a chunk are resolved concurrently rather
+     * than one at a time.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testHostNames() throws IOException {
+        final int hostCount = 8;
+        IPRoleMapperService.setHostNameResolver(new HostNameResolver(
+                hostName -> {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return IPAddress.parse("10.0.0.200");
+                }, 100, 60000, 60000, 5000, hostCount));
+        try {
+            final StringBuilder request = new StringBuilder();
+            final StringBuilder expectedResponse = new StringBuilder();
+            for (int hostIdx = 0; hostIdx < hostCount; hostIdx++) {
+                request.append("host").append(hostIdx).append(
+                        ".example.org\n");
+                expectedResponse.append("host").append(hostIdx).append(
+                        ".example.org\tOK\tpublic,staff\n");
+            }
+            final long begin = System.nanoTime();
+            assertEquals(expectedResponse.toString(), enrich(request
+                    .toString(), BulkEnrichment.Format.TEXT, 0, false));
+            assertTrue(System.nanoTime() - begin < TimeUnit.MILLISECONDS
+                    .toNanos(500L * hostCount / 2));
+        } finally {
+            IPRoleMapperService.setHostNameResolver(null);
+        }
+    }
+
+    /**
+     * Test that a chunk of more host names than the resolver can queue is
+     * answered, as its host names are resolved a window at a time.
+     *
+     * @throws IOException
+     *             if the enrichment fails. This will not happen.
+     */
+    @Test
+    public void testChunkOfManyHostNames() throws IOException {
+        assertTrue(BulkEnrichment.CHUNK_SIZE > HostNameResolver
+                .LOOKUP_QUEUE_SIZE);
+        IPRoleMapperService.setHostNameResolver(new HostNameResolver(
+                hostName -> IPAddress.parse("10.0.0.1")));
+        try {
+            final StringBuilder request = new StringBuilder();
+            final StringBuilder expectedResponse = new StringBuilder();
+            for (int hostIdx = 0; hostIdx < BulkEnrichment.CHUNK_SIZE; hostIdx++) {
+                request.append("host").append(hostIdx).append(
+                        ".example.org\n");
+                expectedResponse.append("host").append(hostIdx).append(
+                        ".example.org\tOK\tpublic\n");
+            }
+            assertEquals(expectedResponse.toString(), enrich(request
+                    .toString(), BulkEnrichment.Format.TEXT, 0, false));
+        } finally {
+            IPRoleMapperService.setHostNameResolver(null);
+        }
+    }
+
+    /**
+     * Test extraction of CSV fields.
+     */
+    @Test
+    public void testGetCSVField() {
+        assertEquals("a", BulkEnrichment.getCSVField("a,b,c", 0));
+        assertEquals("c", BulkEnrichment.getCSVField("a,b,c", 2));
+        assertEquals("", BulkEnrichment.getCSVField("a,,c", 1));
+        assertNull(BulkEnrichment.getCSVField("a,b,c", 3));
+        assertEquals("x,\"y\"", BulkEnrichment.getCSVField(
+                "\"a,b\",\"x,\"\"y\"\"\"", 1));
+    }
+
+    private String enrich(String request, BulkEnrichment.Format format,
+            int addressColumn, boolean hasHeader) throws IOException {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        new BulkEnrichment(new ByteArrayInputStream(request
+                .getBytes(StandardCharsets.UTF_8)), format, addressColumn,
+                hasHeader).write(response);
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRoleMapper;
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.LookupEngine;
+
+public class ConfigurationWatcherTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Test that the configuration is loaded when the watcher is started,
+     * reloaded when its contents change, left alone when it is merely touched
+     * and kept when it is replaced by a broken configuration.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written or the test is
+     *             interrupted. This will not happen.
+     */
+    @Test
+    public void testReloading(@TempDir Path tempDir) throws Exception {
+        final File configFile = tempDir.resolve("ipRangesAndRoles.xml")
+                .toFile();
+        writeConfig(configFile, "public");
+
+        final long initialGeneration = IPRoleMapper.getGeneration();
+        final ConfigurationWatcher watcher = new ConfigurationWatcher(
+                configFile, LookupEngine.SEGMENT_TABLE, 50, 100);
+        watcher.start();
+        try {
+            assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+            assertEquals(configFile.getAbsolutePath(), watcher
+                    .getCurrentConfigurationFilePath());
+            assertEquals(initialGeneration + 1, IPRoleMapper.getGeneration());
+            assertRoles("public");
+
+            // Touching the file must not cause a new generation.
+            assertTrue(configFile.setLastModified(configFile.lastModified()
+                    - 60000));
+            Thread.sleep(500);
+            assertEquals(initialGeneration + 1, IPRoleMapper.getGeneration());
+
+            writeConfig(configFile, "student");
+            waitFor(() -> IPRoleMapper.getGeneration() == initialGeneration + 2);
+            assertRoles("student");
+            assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+
+            Files.write(configFile.toPath(), "<ipranges>".getBytes(
+                    StandardCharsets.UTF_8));
+            waitFor(() -> watcher.getStatus() == ConfigurationWatcher.Status.WARNING);
+            assertEquals(initialGeneration + 2, IPRoleMapper.getGeneration());
+            assertRoles("student");
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    /**
+     * Test that a missing configuration is reported as an error, and loaded
+     * once it appears.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written or the test is
+     *             interrupted. This will not happen.
+     */
+    @Test
+    public void testMissingConfiguration(@TempDir Path tempDir)
+            throws Exception {
+        final File configFile = tempDir.resolve("ipRangesAndRoles.xml")
+                .toFile();
+        final ConfigurationWatcher watcher = new ConfigurationWatcher(
+                configFile, LookupEngine.SEGMENT_TABLE, 50, 100);
+        watcher.start();
+        try {
+            assertEquals(ConfigurationWatcher.Status.ERROR, watcher
+                    .getStatus());
+            assertNull(watcher.getCurrentConfigurationFilePath());
+
+            writeConfig(configFile, "professor");
+            waitFor(() -> watcher.getStatus() == ConfigurationWatcher.Status.OK);
+            assertRoles("professor");
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    /**
+     * Test that a snapshot is written next to the configuration file, that it
+     * is preferred when it matches the configuration file, and that it is
+     * used as the last known good configuration when the configuration file
+     * is broken.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written. This will not
+     *             happen.
+     */
+    @Test
+    public void testSnapshot(@TempDir Path tempDir) throws Exception {
+        final File configFile = tempDir.resolve("ipRangesAndRoles.xml")
+                .toFile();
+        final File snapshotFile = new File(configFile.getPath()
+                + ConfigurationWatcher.SNAPSHOT_FILE_SUFFIX);
+        writeConfig(configFile, "public");
+
+        startAndStop(configFile);
+        assertTrue(snapshotFile.exists());
+        assertTrue(IPRoleMapper.getIndexDescription().contains("compiled"));
+
+        // A restart with an unchanged configuration uses the snapshot.
+        final long snapshotModificationTime = snapshotFile.lastModified();
+        ConfigurationWatcher watcher = startAndStop(configFile);
+        assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+        assertTrue(IPRoleMapper.getIndexDescription().contains(
+                "loaded from a snapshot"));
+        assertEquals(snapshotModificationTime, snapshotFile.lastModified());
+        assertRoles("public");
+
+        // A broken configuration falls back to the last known good one.
+        Files.write(configFile.toPath(), "<ipranges>".getBytes(
+                StandardCharsets.UTF_8));
+        watcher = startAndStop(configFile);
+        assertEquals(ConfigurationWatcher.Status.WARNING, watcher.getStatus());
+        assertEquals(snapshotFile.getPath(), watcher
+                .getCurrentConfigurationFilePath());
+        assertRoles("public");
+
+        // A changed configuration is read and replaces the snapshot.
+        writeConfig(configFile, "student");
+        watcher = startAndStop(configFile);
+        assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+        assertTrue(IPRoleMapper.getIndexDescription().contains("compiled"));
+        assertRoles("student");
+
+        // A corrupt snapshot is ignored.
+        Files.write(snapshotFile.toPath(), new byte[100]);
+        watcher = startAndStop(configFile);
+        assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+        assertRoles("student");
+    }
+
+    /**
+     * Test that lookups are served from the memory-mapped snapshot with the
+     * <code>MAPPED_SNAPSHOT</code> lookup engine, also after a reload.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written or the test is
+     *             interrupted. This will not happen.
+     */
+    @Test
+    public void testMappedSnapshot(@TempDir Path tempDir) throws Exception {
+        final File configFile = tempDir.resolve("ipRangesAndRoles.xml")
+                .toFile();
+        writeConfig(configFile, "public");
+
+        final ConfigurationWatcher watcher = new ConfigurationWatcher(
+                configFile, LookupEngine.MAPPED_SNAPSHOT, 50, 100);
+        watcher.start();
+        try {
+            assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+            assertTrue(IPRoleMapper.getIndexDescription().contains(
+                    "memory-mapped segment table"));
+            assertRoles("public");
+
+            final long generation = IPRoleMapper.getGeneration();
+            writeConfig(configFile, "student");
+            waitFor(() -> IPRoleMapper.getGeneration() >= generation + 2);
+            assertTrue(IPRoleMapper.getIndexDescription().contains(
+                    "memory-mapped segment table"));
+            assertRoles("student");
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    /**
+     * Test that the snapshot is written to the snapshot directory, if one is
+     * given, and used from there.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written. This will not
+     *             happen.
+     */
+    @Test
+    public void testSnapshotDirectory(@TempDir Path tempDir) throws Exception {
+        final File configFile = tempDir.resolve("ipRangesAndRoles.xml")
+                .toFile();
+        final File snapshotDirectory = tempDir.resolve("snapshots").toFile();
+        final File snapshotFile = new File(snapshotDirectory,
+                "ipRangesAndRoles.xml"
+                        + ConfigurationWatcher.SNAPSHOT_FILE_SUFFIX);
+        writeConfig(configFile, "public");
+
+        ConfigurationWatcher watcher = new ConfigurationWatcher(configFile,
+                snapshotDirectory, LookupEngine.MAPPED_SNAPSHOT, 50, 100);
+        watcher.start();
+        watcher.stop();
+        assertEquals(ConfigurationWatcher.Status.OK, watcher.getStatus());
+        assertTrue(snapshotFile.exists());
+        assertFalse(new File(configFile.getPath()
+                + ConfigurationWatcher.SNAPSHOT_FILE_SUFFIX).exists());
+        assertTrue(IPRoleMapper.getIndexDescription().contains(
+                "memory-mapped segment table"));
+        assertRoles("public");
+
+        // A broken configuration falls back to the snapshot in the directory.
+        Files.write(configFile.toPath(), "<ipranges>".getBytes(
+                StandardCharsets.UTF_8));
+        watcher = new ConfigurationWatcher(configFile, snapshotDirectory,
+                LookupEngine.SEGMENT_TABLE, 50, 100);
+        watcher.start();
+        watcher.stop();
+        assertEquals(ConfigurationWatcher.Status.WARNING, watcher.getStatus());
+        assertEquals(snapshotFile.getPath(), watcher
+                .getCurrentConfigurationFilePath());
+        assertRoles("public");
+    }
+
+    /**
+     * Test that the lookups are served from the heap, and a warning is
+     * reported, if the snapshot cannot be written for the
+     * <code>MAPPED_SNAPSHOT</code> lookup engine.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written or the test is
+     *             interrupted. This will not happen.
+     */
+    @Test
+    public void testUnwritableSnapshot(@TempDir Path tempDir)
+            throws Exception {
+        final File configFile = tempDir.resolve("ipRangesAndRoles.xml")
+                .toFile();
+        // A file in place of the directory cannot be written to.
+        final File snapshotDirectory = tempDir.resolve("snapshots").toFile();
+        Files.write(snapshotDirectory.toPath(), new byte[0]);
+        writeConfig(configFile, "public");
+
+        final ConfigurationWatcher watcher = new ConfigurationWatcher(
+                configFile, snapshotDirectory, LookupEngine.MAPPED_SNAPSHOT,
+                50, 100);
+        watcher.start();
+        try {
+            assertEquals(ConfigurationWatcher.Status.WARNING, watcher
+                    .getStatus());
+            assertTrue(watcher.getStatusMessage().contains("MAPPED_SNAPSHOT"));
+            assertEquals(configFile.getAbsolutePath(), watcher
+                    .getCurrentConfigurationFilePath());
+            assertFalse(IPRoleMapper.getIndexDescription().contains(
+                    "memory-mapped"));
+            assertRoles("public");
+
+            // The warning is kept across reloads until the snapshot can be
+            // written.
+            final long generation = IPRoleMapper.getGeneration();
+            writeConfig(configFile, "student");
+            waitFor(() -> IPRoleMapper.getGeneration() > generation);
+            assertRoles("student");
+            assertEquals(ConfigurationWatcher.Status.WARNING, watcher
+                    .getStatus());
+
+            assertTrue(snapshotDirectory.delete());
+            writeConfig(configFile, "professor");
+            waitFor(() -> watcher.getStatus() == ConfigurationWatcher.Status.OK);
+            assertTrue(IPRoleMapper.getIndexDescription().contains(
+                    "memory-mapped segment table"));
+            assertRoles("professor");
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    private ConfigurationWatcher startAndStop(File configFile) {
+        final ConfigurationWatcher watcher = new ConfigurationWatcher(
+                configFile, LookupEngine.SEGMENT_TABLE, 50, 100);
+        watcher.start();
+        watcher.stop();
+        return watcher;
+    }
+
+    private void writeConfig(File configFile, String role) throws IOException {
+        final String config = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ipranges>\n"
+                + "    <iprange begin=\"10.0.0.0\" end=\"10.0.0.255\">\n"
+                + "        <role>" + role + "</role>\n" + "    </iprange>\n"
+                + "</ipranges>\n";
+        Files.write(configFile.toPath(), config
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void assertRoles(String... expectedRoles) throws IOException {
+        assertEquals(new HashSet<String>(Arrays.asList(expectedRoles)),
+                new IPRoleMapper().mapIPHost(InetAddress
+                        .getByName("10.0.0.1")));
+    }
+
+    private void waitFor(BooleanSupplier condition)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline,
+                    "Timed out waiting for the configuration to be reloaded.");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
+
+public class HostNameResolverTest {
+
+    private static final IPAddress HOST_ADDRESS = IPAddress.parse("10.0.0.1");
+
+    /**
+     * In-memory stand-in for DNS, which counts the lookups of each name and
+     * can hold back the lookups until released.
+     */
+    private static class InMemoryLookup implements HostNameResolver.Lookup {
+
+        private final Map<String, IPAddress> hosts = new HashMap<String, IPAddress>();
+        private final Map<String, AtomicInteger> lookupCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        private final CountDownLatch release;
+
+        InMemoryLookup(boolean isHeldBack) {
+            release = new CountDownLatch(isHeldBack ? 1 : 0);
+            hosts.put("host.example.org", HOST_ADDRESS);
+        }
+
+        @Override
+        public IPAddress lookup(String hostName) throws UnknownHostException {
+            lookupCounts.computeIfAbsent(hostName, name -> new AtomicInteger())
+                    .incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                throw new UnknownHostException(hostName);
+            }
+            final IPAddress address = hosts.get(hostName);
+            if (address == null) {
+                throw new UnknownHostException(hostName);
+            }
+            return address;
+        }
+
+        int getLookupCount(String hostName) {
+            final AtomicInteger lookupCount = lookupCounts.get(hostName);
+            return (lookupCount == null) ? 0 : lookupCount.get();
+        }
+    }
+
+    /**
+     * Test that known and unknown host names are resolved and cached, and
+     * that names are looked up again when their cache entries have expired.
+     *
+     * @throws InterruptedException
+     *             if the test is interrupted. This will not happen.
+     */
+    @Test
+    public void testCaching() throws InterruptedException {
+        final InMemoryLookup lookup = new InMemoryLookup(false);
+        final HostNameResolver resolver = new HostNameResolver(lookup, 100,
+                1000, 100, 1000, 2);
+        try {
+            assertEquals(HOST_ADDRESS, resolver.resolve("host.example.org"));
+            assertEquals(HOST_ADDRESS, resolver.resolve("HOST.example.org"));
+            assertNull(resolver.resolve("unknown.example.org"));
+            assertNull(resolver.resolve("unknown.example.org"));
+            assertEquals(1, lookup.getLookupCount("host.example.org"));
+            assertEquals(1, lookup.getLookupCount("unknown.example.org"));
+
+            // The negative entry expires before the positive one.
+            Thread.sleep(300);
+            assertNull(resolver.resolve("unknown.example.org"));
+            assertEquals(HOST_ADDRESS, resolver.resolve("host.example.org"));
+            assertEquals(2, lookup.getLookupCount("unknown.example.org"));
+            assertEquals(1, lookup.getLookupCount("host.example.org"));
+
+            Thread.sleep(900);
+            assertEquals(HOST_ADDRESS, resolver.resolve("host.example.org"));
+            assertEquals(2, lookup.getLookupCount("host.example.org"));
+        } finally {
+            resolver.shutdown();
+        }
+    }
+
+    /**
+     * Test that the least recently used names are evicted from a full cache.
+     */
+    @Test
+    public void testCacheSize() {
+        final InMemoryLookup lookup = new InMemoryLookup(false);
+        final HostNameResolver resolver = new HostNameResolver(lookup, 2,
+                60000, 60000, 1000, 1);
+        try {
+            resolver.resolve("a.example.org");
+            resolver.resolve("b.example.org");
+            resolver.resolve("a.example.org");
+            resolver.resolve("c.example.org");
+            resolver.resolve("a.example.org");
+            resolver.resolve("b.example.org");
+            assertEquals(1, lookup.getLookupCount("a.example.org"));
+            assertEquals(2, lookup.getLookupCount("b.example.org"));
+            assertEquals(1, lookup.getLookupCount("c.example.org"));
+        } finally {
+            resolver.shutdown();
+        }
+    }
+
+    /**
+     * Test that concurrent requests for a name share a single lookup, that
+     * requests give up waiting after the timeout, and that the result of the
+     * slow lookup is cached once it arrives.
+     *
+     * @throws Exception
+     *             if the test is interrupted or times out. This will not
+     *             happen.
+     */
+    @Test
+    public void testSingleFlightAndTimeout() throws Exception {
+        final InMemoryLookup lookup = new InMemoryLookup(true);
+        final HostNameResolver resolver = new HostNameResolver(lookup, 100,
+                60000, 60000, 50, 2);
+        try {
+            final CompletableFuture<IPAddress> firstLookup = resolver
+                    .resolveAsync("host.example.org");
+            for (int requestIdx = 0; requestIdx < 10; requestIdx++) {
+                assertSame(firstLookup, resolver
+                        .resolveAsync("host.example.org"));
+            }
+
+            final long waitBegin = System.nanoTime();
+            assertNull(resolver.resolve("host.example.org"));
+            assertTrue(System.nanoTime() - waitBegin < TimeUnit.SECONDS
+                    .toNanos(5));
+            assertFalse(firstLookup.isDone());
+
+            lookup.release.countDown();
+            assertEquals(HOST_ADDRESS, firstLookup.get(5, TimeUnit.SECONDS));
+            assertEquals(HOST_ADDRESS, resolver.resolve("host.example.org"));
+            assertEquals(1, lookup.getLookupCount("host.example.org"));
+        } finally {
+            resolver.shutdown();
+        }
+    }
+
+    /**
+     * Test that names are refused with an <code>OverloadedException</code>,
+     * rather than reported as unknown, while the lookup queue is full, and
+     * accepted again once it has room.
+     *
+     * @throws Exception
+     *             if the test is interrupted or times out. This will not
+     *             happen.
+     */
+    @Test
+    public void testOverload() throws Exception {
+        final InMemoryLookup lookup = new InMemoryLookup(true);
+        final HostNameResolver resolver = new HostNameResolver(lookup, 100,
+                60000, 60000, 50, 1);
+        try {
+            // One lookup held back by the lookup thread, and a full queue.
+            final CompletableFuture<IPAddress> heldBackLookup = resolver
+                    .resolveAsync("host.example.org");
+            for (int nameIdx = 0; nameIdx < HostNameResolver.LOOKUP_QUEUE_SIZE; nameIdx++) {
+                resolver.resolveAsync("host" + nameIdx + ".example.org");
+            }
+
+            final CompletableFuture<IPAddress> refusedLookup = resolver
+                    .resolveWithTimeout("refused.example.org");
+            final ExecutionException refusal = assertThrows(
+                    ExecutionException.class, () -> refusedLookup.get(5,
+                            TimeUnit.SECONDS));
+            assertTrue(refusal.getCause()
+                    instanceof HostNameResolver.OverloadedException);
+            assertThrows(HostNameResolver.OverloadedException.class,
+                    () -> resolver.resolve("refused.example.org"));
+            assertTrue(IPRoleMapperService.isOverloaded(refusal.getCause()));
+
+            lookup.release.countDown();
+            assertEquals(HOST_ADDRESS, heldBackLookup.get(5, TimeUnit.SECONDS));
+            final long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(10);
+            CompletableFuture<IPAddress> acceptedLookup;
+            do {
+                assertTrue(System.nanoTime() < deadline,
+                        "Timed out waiting for the queue to drain.");
+                Thread.sleep(10);
+                acceptedLookup = resolver.resolveAsync("refused.example.org");
+            } while (acceptedLookup.isCompletedExceptionally());
+            // Now looked up, and found to be unknown.
+            assertNull(acceptedLookup.get(5, TimeUnit.SECONDS));
+        } finally {
+            resolver.shutdown();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPRangeRoles;
+
+/**
+ * Simple stand-alone benchmark of the time spent by
+ * <code>IPRangesConfigReader</code> on reading a configuration. This is not a
+ * unit test and is not executed by the build. Run it from the IDE or from the
+ * command line with the test class path, e.g.:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     dk.statsbiblioteket.doms.iprolemapper.webservice.IPRangesConfigReaderBenchmark
+ * </pre>
+ * 
+ * The figures reported are wall clock averages and are only meant for
+ * comparing different implementations against each other on the same machine.
+ */
+public class IPRangesConfigReaderBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final URL configURL = ClassLoader
+                .getSystemResource("config/madstest.xml");
+        benchmarkRead("madstest.xml", new File(configURL.getFile()), 10);
+
+        final File syntheticConfig = File.createTempFile("ipRanges", ".xml");
+        try {
+            writeSyntheticConfig(syntheticConfig, 1000000);
+            benchmarkRead("synthetic", syntheticConfig, 1);
+        } finally {
+            Files.delete(syntheticConfig.toPath());
+        }
+    }
+
+    /**
+     * Measure the average time spent on reading <code>configFile</code>, and
+     * the heap in use right after reading it.
+     */
+    private static void benchmarkRead(String name, File configFile,
+            int readsPerRound) throws IOException {
+
+        final IPRangesConfigReader configReader = new IPRangesConfigReader();
+        int rangeCount = 0;
+        long elapsedNanos = 0;
+        long peakHeap = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            System.gc();
+            final long start = System.nanoTime();
+            for (int read = 0; read < readsPerRound; read++) {
+                final List<IPRangeRoles> ranges = configReader
+                        .readFromXMLConfigFile(configFile);
+                rangeCount = ranges.size();
+            }
+            if (round >= WARMUP_ROUNDS) {
+                elapsedNanos += System.nanoTime() - start;
+                final Runtime runtime = Runtime.getRuntime();
+                peakHeap = Math.max(peakHeap, runtime.totalMemory()
+                        - runtime.freeMemory());
+            }
+        }
+
+        System.out.printf(Locale.ROOT,
+                "%s: %d ranges, %d bytes, read %.2f ms, heap after read "
+                        + "%.1f MB%n", name, rangeCount, configFile.length(),
+                elapsedNanos / 1e6 / (MEASURE_ROUNDS * readsPerRound),
+                peakHeap / 1e6);
+    }
+
+    /**
+     * Write a configuration of <code>rangeCount</code> adjacent IPv4 ranges,
+     * each associated with one or two of a handful of roles.
+     */
+    private static void writeSyntheticConfig(File configFile, int rangeCount)
+            throws IOException {
+
+        try (Writer writer = new OutputStreamWriter(Files
+                .newOutputStream(configFile.toPath()), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<ipranges>\n");
+            for (int rangeIdx = 0; rangeIdx < rangeCount; rangeIdx++) {
+                final int begin = 0x0a000000 + rangeIdx * 8;
+                writer.write("    <iprange begin=\"" + toDottedQuad(begin)
+                        + "\" end=\"" + toDottedQuad(begin + 7) + "\">\n");
+                writer.write("        <role>role" + (rangeIdx % 7)
+                        + "</role>\n");
+                if (rangeIdx % 3 == 0) {
+                    writer.write("        <role>shared</role>\n");
+                }
+                writer.write("    </iprange>\n");
+            }
+            writer.write("</ipranges>\n");
+        }
+    }
+
+    private static String toDottedQuad(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xff) + "."
+                + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+}
@@ -29,9 +29,15 @@ package dk.statsbiblioteket.doms.iprolemapper.webservice;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -82,4 +88,91 @@ public class IPRangesConfigReaderTest {
         assertEquals(967, ipRanges.size(),
                 "Un-expected number of IPRange instances were produced from the configuration file.");
     }
+
+    /**
+     * Test that malformed ranges are skipped without affecting the well-formed
+     * ranges around them, and that only <code>iprange</code> children of the
+     * root element and their <code>role</code> children are read.
+     * 
+     * @throws IOException
+     *             if the configuration cannot be read. This will not happen.
+     */
+    @Test
+    public void testReadFromXMLConfigSkipsMalformedRanges() throws IOException {
+        final String config = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ipranges>\n"
+                + "  <!-- A comment. -->\n"
+                + "  <iprange begin=\"10.0.0.0\" end=\"10.0.0.255\">\n"
+                + "    <role> student </role>\n"
+                + "    <role><![CDATA[staff]]></role>\n"
+                + "    <other><role>ignored</role></other>\n"
+                + "  </iprange>\n"
+                + "  <iprange end=\"10.0.1.255\"><role>missing</role></iprange>\n"
+                + "  <iprange begin=\"10.0.2.0\" end=\"not..an..address\">\n"
+                + "    <role>illegal</role>\n"
+                + "  </iprange>\n"
+                + "  <iprange begin=\"10.0.3.255\" end=\"10.0.3.0\">\n"
+                + "    <role>reversed</role>\n"
+                + "  </iprange>\n"
+                + "  <nested><iprange begin=\"10.0.4.0\" end=\"10.0.4.255\"/></nested>\n"
+                + "  <iprange begin=\"::1\" end=\"::1\"/>\n"
+                + "</ipranges>\n";
+
+        final List<IPRangeRoles> ranges = new IPRangesConfigReader()
+                .readFromXMLConfig(toStream(config), "test.xml");
+
+        assertEquals(2, ranges.size());
+        assertEquals(InetAddress.getByName("10.0.0.0"), ranges.get(0)
+                .getBeginAddress());
+        assertEquals(InetAddress.getByName("10.0.0.255"), ranges.get(0)
+                .getEndAddress());
+        assertEquals(Arrays.asList("student", "staff"), ranges.get(0)
+                .getRoles());
+        assertEquals(InetAddress.getByName("::1"), ranges.get(1)
+                .getBeginAddress());
+        assertTrue(ranges.get(1).getRoles().isEmpty());
+    }
+
+    /**
+     * Test that the streaming variant passes the ranges on in document order,
+     * and that a configuration which is not well-formed XML is reported by an
+     * <code>IOException</code> after the ranges read before the error.
+     * 
+     * @throws IOException
+     *             if the configuration cannot be read. This will not happen.
+     */
+    @Test
+    public void testReadFromXMLConfigStreaming() throws IOException {
+        final String config = "<ipranges>"
+                + "<iprange begin=\"10.0.0.1\" end=\"10.0.0.1\"><role>a</role></iprange>"
+                + "<iprange begin=\"10.0.0.2\" end=\"10.0.0.2\"><role>b</role></iprange>"
+                + "<iprange begin=\"10.0.0.3\" end=\"10.0.0.3\"><role>c</role>";
+
+        final List<String> roles = new ArrayList<String>();
+        final IPRangesConfigReader configReader = new IPRangesConfigReader();
+        assertThrows(IOException.class, () -> configReader.readFromXMLConfig(
+                toStream(config), "test.xml", range -> roles.addAll(range
+                        .getRoles())));
+        assertEquals(Arrays.asList("a", "b"), roles);
+    }
+
+    /**
+     * Test that a configuration with a different root element produces no
+     * ranges.
+     * 
+     * @throws IOException
+     *             if the configuration cannot be read. This will not happen.
+     */
+    @Test
+    public void testReadFromXMLConfigWrongRoot() throws IOException {
+        final String config = "<ranges>"
+                + "<iprange begin=\"10.0.0.1\" end=\"10.0.0.1\"><role>a</role></iprange>"
+                + "</ranges>";
+        assertTrue(new IPRangesConfigReader().readFromXMLConfig(
+                toStream(config), "test.xml").isEmpty());
+    }
+
+    private InputStream toStream(String config) {
+        return new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8));
+    }
 }
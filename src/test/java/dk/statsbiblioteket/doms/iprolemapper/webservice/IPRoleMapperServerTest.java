@@ -0,0 +1,186 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IPRoleMapperServerTest {
+
+    private IPRoleMapperServer server;
+
+    /**
+     * Start a server of a small configuration on a free port.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written or the server
+     *             cannot be started. This will not happen.
+     */
+    @BeforeEach
+    public void setUp(@TempDir Path tempDir) throws Exception {
+        final Path configFile = tempDir.resolve("ipRangesAndRoles.xml");
+        Files.write(configFile, ("<ipranges>\n"
+                + "    <iprange begin=\"10.0.0.0\" end=\"10.0.0.255\">\n"
+                + "        <role>public</role>\n    </iprange>\n"
+                + "    <iprange begin=\"10.0.0.128\" end=\"10.0.0.255\">\n"
+                + "        <role>staff</role>\n    </iprange>\n"
+                + "</ipranges>\n").getBytes(StandardCharsets.UTF_8));
+        IPRoleMapperService.initialiseConfig(configFile.toString());
+        server = new IPRoleMapperServer(new InetSocketAddress("127.0.0.1",
+                0), false);
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop();
+        IPRoleMapperService.shutdown();
+    }
+
+    /**
+     * Test that the roles of single addresses are answered as plain text or
+     * JSON, and that invalid addresses and unknown services are refused.
+     * 
+     * @throws IOException
+     *             if the server cannot be reached. This will not happen.
+     */
+    @Test
+    public void testGetRoles() throws IOException {
+        assertEquals("200 public,staff", request("GET", "getRoles/10.0.0.200",
+                null, null, null));
+        assertEquals("200 [\"public\",\"staff\"]", request("GET",
+                "getRoles/10.0.0.200", "application/json", null, null));
+        assertEquals("200 public", request("GET", "getRoles/10.0.0.1",
+                "text/plain, application/json", null, null));
+        assertEquals("400 " + BulkEnrichment.INVALID_ADDRESS_MESSAGE, request(
+                "GET", "getRoles/10.0.0.256", null, null, null));
+        assertEquals(404, Integer.parseInt(request("GET", "getRole/10.0.0.1",
+                null, null, null).substring(0, 3)));
+    }
+
+    /**
+     * Test the batch, bulk, ranges and status services.
+     * 
+     * @throws IOException
+     *             if the server cannot be reached. This will not happen.
+     */
+    @Test
+    public void testOtherServices() throws IOException {
+        assertEquals("200 10.0.0.1\tOK\tpublic\nbogus\tERROR\t"
+                + BulkEnrichment.INVALID_ADDRESS_MESSAGE + "\n", request(
+                "POST", "getRoles", null, "text/plain", "10.0.0.1\nbogus\n"));
+        final StringBuilder largeBody = new StringBuilder();
+        while (largeBody.length() <= IPRoleMapperService.MAX_BATCH_BYTES) {
+            largeBody.append("10.0.0.1\n");
+        }
+        assertEquals("413 " + IPRoleMapperService.BATCH_TOO_LARGE_MESSAGE,
+                request("POST", "getRoles", null, "text/plain", largeBody
+                        .toString()));
+        assertEquals("200 {\"address\":\"10.0.0.200\",\"roles\":[\"public\","
+                + "\"staff\"]}\n", request("POST", "enrichRoles",
+                "application/x-ndjson", "text/plain", "10.0.0.200\n"));
+        assertEquals("200 10.0.0.128-10.0.0.255", request("GET",
+                "getRanges?role=staff", null, null, null));
+        assertTrue(request("GET", "status", null, null, null).startsWith(
+                "200 STATUS: OK"));
+    }
+
+    /**
+     * Test the negotiation of the media type of the response.
+     */
+    @Test
+    public void testPrefers() {
+        assertTrue(IPRoleMapperServer.prefers("application/json",
+                "application/json"));
+        assertTrue(IPRoleMapperServer.prefers(
+                "application/json;q=0.9, text/plain", "application/json"));
+        assertFalse(IPRoleMapperServer.prefers("text/plain; charset=UTF-8, "
+                + "application/json", "application/json"));
+        assertFalse(IPRoleMapperServer.prefers("*/*", "application/json"));
+    }
+
+    /**
+     * @return the status code and the body of the response, separated by a
+     *         space.
+     */
+    private String request(String method, String service, String accept,
+            String contentType, String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + server.getPort()
+                        + IPRoleMapperServer.CONTEXT_PATH + service)
+                .openConnection();
+        try {
+            connection.setRequestMethod(method);
+            if (accept != null) {
+                connection.setRequestProperty("Accept", accept);
+            }
+            if (body != null) {
+                connection.setRequestProperty("Content-Type", contentType);
+                connection.setDoOutput(true);
+
+                // Without a Content-Length, a body which is too large is read
+                // up to the limit before it is refused, rather than refused
+                // while the client is still sending it.
+                connection.setChunkedStreamingMode(0);
+                try (OutputStream requestBody = connection.getOutputStream()) {
+                    requestBody.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            final int status = connection.getResponseCode();
+            final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+            try (InputStream responseStream = (status < 400) ? connection
+                    .getInputStream() : connection.getErrorStream()) {
+                if (responseStream != null) {
+                    responseStream.transferTo(responseBody);
+                }
+            }
+            return status + " "
+                    + new String(responseBody.toByteArray(),
+                            StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
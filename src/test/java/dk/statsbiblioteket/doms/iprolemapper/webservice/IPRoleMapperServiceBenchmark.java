@@ -0,0 +1,192 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.ws.rs.core.Response;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
+
+/**
+ * Simple stand-alone load test of the latency of the getRoles service under
+ * mixed traffic, where one in twenty requests is for a host name which takes
+ * a while to resolve. The host names arrive in a burst at the beginning of
+ * every second, like the requests of a crawler from a slow domain. This is not a unit test and is not executed by the build.
+ * Run it like <code>IPRangesConfigReaderBenchmark</code>.
+ * <p/>
+ * The container is simulated by a fixed pool of request threads, which the
+ * requests are submitted to at a fixed rate regardless of how quickly they
+ * are answered, like independent clients would. The latency of a request is
+ * measured from the time it was due to be submitted, so the time spent
+ * waiting for a request thread is included. Each request is run either
+ * blocking, where the request thread waits for the response like a
+ * synchronous service method does, or asynchronously, where the request
+ * thread is released as soon as the service method returns.
+ * <p/>
+ * The figures reported are only meant for comparing the two modes against
+ * each other on the same machine.
+ */
+public class IPRoleMapperServiceBenchmark {
+
+    private static final int REQUEST_THREAD_COUNT = 8;
+    private static final int REQUESTS_PER_SECOND = 1000;
+    private static final int HOST_NAMES_PER_SECOND = 50;
+    private static final long LOOKUP_MILLIS = 100;
+    private static final int WARMUP_SECONDS = 3;
+    private static final int MEASURE_SECONDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        final URL configURL = ClassLoader
+                .getSystemResource("config/madstest.xml");
+        IPRoleMapperService.initialiseConfig(configURL.getFile());
+
+        // A resolver of every host name, which takes a while and has enough
+        // threads to keep up, so the lookups themselves never queue.
+        IPRoleMapperService.setHostNameResolver(new HostNameResolver(
+                hostName -> {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS
+                            .toNanos(LOOKUP_MILLIS));
+                    return IPAddress.parse("130.225.0.1");
+                }, HostNameResolver.DEFAULT_CACHE_SIZE, 0, 0,
+                HostNameResolver.DEFAULT_TIMEOUT_MILLIS, 64));
+        try {
+            for (boolean isBlocking : new boolean[] { true, false }) {
+                runLoad(isBlocking, WARMUP_SECONDS, false);
+                runLoad(isBlocking, MEASURE_SECONDS, true);
+            }
+        } finally {
+            IPRoleMapperService.setHostNameResolver(null);
+            IPRoleMapperService.shutdown();
+        }
+    }
+
+    /**
+     * Submit requests to the request threads at a fixed rate for
+     * <code>seconds</code> seconds, wait for all the responses and report the
+     * latencies if <code>isReported</code> is <code>true</code>.
+     */
+    private static void runLoad(final boolean isBlocking, int seconds,
+            boolean isReported) throws InterruptedException {
+
+        final IPRoleMapperService service = new IPRoleMapperService();
+        final ExecutorService requestThreads = Executors
+                .newFixedThreadPool(REQUEST_THREAD_COUNT);
+        final int requestCount = seconds * REQUESTS_PER_SECOND;
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1)
+                / REQUESTS_PER_SECOND;
+        final long[] latencies = new long[requestCount];
+        final CountDownLatch responses = new CountDownLatch(requestCount);
+        final Random random = new Random(42);
+        final long start = System.nanoTime();
+
+        for (int requestIdx = 0; requestIdx < requestCount; requestIdx++) {
+            final long due = start + requestIdx * intervalNanos;
+            final long delay = due - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            final int index = requestIdx;
+            final String address = isHostName(requestIdx) ? "host-"
+                    + requestIdx + ".example.org"
+                    : "130.225." + random.nextInt(64) + "."
+                            + random.nextInt(256);
+            requestThreads.execute(() -> {
+                try {
+                    final CompletionStage<Response> response = service
+                            .getRoles(address, null);
+                    if (isBlocking) {
+                        response.toCompletableFuture().join();
+                        latencies[index] = System.nanoTime() - due;
+                        responses.countDown();
+                    } else {
+                        response.whenComplete((result, throwable) -> {
+                            latencies[index] = System.nanoTime() - due;
+                            responses.countDown();
+                        });
+                    }
+                } catch (Throwable throwable) {
+                    throw new IllegalStateException(throwable);
+                }
+            });
+        }
+        responses.await();
+        requestThreads.shutdown();
+
+        if (isReported) {
+            final int hostNameCount = seconds * HOST_NAMES_PER_SECOND;
+            final long[] addressLatencies = new long[requestCount
+                    - hostNameCount];
+            final long[] hostNameLatencies = new long[hostNameCount];
+            int addressIdx = 0;
+            int hostNameIdx = 0;
+            for (int requestIdx = 0; requestIdx < requestCount; requestIdx++) {
+                if (isHostName(requestIdx)) {
+                    hostNameLatencies[hostNameIdx++] = latencies[requestIdx];
+                } else {
+                    addressLatencies[addressIdx++] = latencies[requestIdx];
+                }
+            }
+            Arrays.sort(addressLatencies);
+            Arrays.sort(hostNameLatencies);
+            System.out.printf(Locale.ROOT,
+                    "%s: addresses p50 %.2f ms, p99 %.2f ms, max %.2f ms; "
+                            + "host names p50 %.2f ms, p99 %.2f ms%n",
+                    isBlocking ? "blocking" : "async", percentile(
+                            addressLatencies, 50), percentile(
+                            addressLatencies, 99),
+                    addressLatencies[addressLatencies.length - 1] / 1e6,
+                    percentile(hostNameLatencies, 50), percentile(
+                            hostNameLatencies, 99));
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the request specified by
+     *         <code>requestIdx</code> is for a host name.
+     */
+    private static boolean isHostName(int requestIdx) {
+        return requestIdx % REQUESTS_PER_SECOND < HOST_NAMES_PER_SECOND;
+    }
+
+    /**
+     * @return the given percentile of the sorted <code>latencies</code> in
+     *         milliseconds.
+     */
+    private static double percentile(long[] latencies, int percentile) {
+        return latencies[(int) ((long) (latencies.length - 1) * percentile / 100)] / 1e6;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.iprolemapper.webservice;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dk.statsbiblioteket.doms.iprolemapper.rolemapper.IPAddress;
+
+public class IPRoleMapperServiceTest {
+
+    /**
+     * Released by the tests to let the lookups of host names complete.
+     */
+    private CountDownLatch release;
+
+    /**
+     * Initialise the service with a small configuration and a resolver whose
+     * lookups are held back until released.
+     * 
+     * @param tempDir
+     *            directory for the test configuration.
+     * @throws Exception
+     *             if the test configuration cannot be written. This will not
+     *             happen.
+     */
+    @BeforeEach
+    public void setUp(@TempDir Path tempDir) throws Exception {
+        final Path configFile = tempDir.resolve("ipRangesAndRoles.xml");
+        Files.write(configFile, ("<ipranges>\n"
+                + "    <iprange begin=\"10.0.0.0\" end=\"10.0.0.255\">\n"
+                + "        <role>public</role>\n    </iprange>\n"
+                + "    <iprange begin=\"10.0.1.1\" end=\"10.0.1.1\">\n"
+                + "        <role>staff</role>\n    </iprange>\n"
+                + "</ipranges>\n").getBytes(StandardCharsets.UTF_8));
+        IPRoleMapperService.initialiseConfig(configFile.toString());
+
+        release = new CountDownLatch(1);
+        IPRoleMapperService.setHostNameResolver(new HostNameResolver(
+                hostName -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return IPAddress.parse("10.0.0.1");
+                }));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        IPRoleMapperService.setHostNameResolver(null);
+        IPRoleMapperService.setRequestExecutor(null);
+        IPRoleMapperService.shutdown();
+    }
+
+    /**
+     * Test that the roles of address literals are answered before the service
+     * method returns, that the roles of a host name are answered once its
+     * lookup completes, without the service method waiting for it, and that
+     * host names are refused at once without a resolver.
+     * 
+     * @throws Throwable
+     *             if the service fails. This will not happen.
+     */
+    @Test
+    public void testGetRoles() throws Throwable {
+        final IPRoleMapperService service = new IPRoleMapperService();
+
+        final CompletableFuture<Response> literalResponse = service.getRoles(
+                "10.0.0.1", null).toCompletableFuture();
+        assertTrue(literalResponse.isDone());
+        assertEquals(200, literalResponse.join().getStatus());
+        assertEquals("public", body(literalResponse.join()));
+
+        final CompletableFuture<Response> hostResponse = service.getRoles(
+                "host.example.org", null).toCompletableFuture();
+        assertFalse(hostResponse.isDone());
+        release.countDown();
+        assertEquals("public", body(hostResponse.get(5, TimeUnit.SECONDS)));
+
+        // Without host name resolution, anything but a literal is invalid.
+        IPRoleMapperService.setHostNameResolver(null);
+        final CompletableFuture<Response> invalidResponse = service.getRoles(
+                "host.example.org", null).toCompletableFuture();
+        assertTrue(invalidResponse.isDone());
+        assertEquals(400, invalidResponse.join().getStatus());
+    }
+
+    /**
+     * Test that a batch including a host name is answered in request order
+     * once the host name has been resolved.
+     * 
+     * @throws Throwable
+     *             if the service fails. This will not happen.
+     */
+    @Test
+    public void testGetRolesBatch() throws Throwable {
+        final CompletableFuture<Response> response = new IPRoleMapperService()
+                .getRolesBatch(body("10.0.1.1\nhost.example.org\n"
+                        + "other.example.org\n"), null)
+                .toCompletableFuture();
+        assertFalse(response.isDone());
+        release.countDown();
+        assertEquals("10.0.1.1\tOK\tstaff\nhost.example.org\tOK\tpublic\n"
+                + "other.example.org\tOK\tpublic\n", body(response.get(5,
+                TimeUnit.SECONDS)));
+    }
+
+    /**
+     * Test that a batch of more host names than the resolver can queue is
+     * answered, as its host names are resolved a window at a time, and that
+     * a single lookup is still accepted while it is being resolved.
+     * 
+     * @throws Throwable
+     *             if the service fails. This will not happen.
+     */
+    @Test
+    public void testGetRolesBatchOfManyHostNames() throws Throwable {
+        final int hostNameCount = 2 * HostNameResolver.LOOKUP_QUEUE_SIZE;
+        final StringBuilder request = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int hostIdx = 0; hostIdx < hostNameCount; hostIdx++) {
+            final String hostName = "host" + hostIdx + ".example.org";
+            request.append(hostName).append('\n');
+            expected.append(hostName).append("\tOK\tpublic\n");
+        }
+
+        final IPRoleMapperService service = new IPRoleMapperService();
+        final CompletableFuture<Response> response = service.getRolesBatch(
+                body(request.toString()), null).toCompletableFuture();
+        final CompletableFuture<Response> hostResponse = service.getRoles(
+                "single.example.org", null).toCompletableFuture();
+        release.countDown();
+        assertEquals(200, response.get(10, TimeUnit.SECONDS).getStatus());
+        assertEquals(expected.toString(), body(response.join()));
+        assertEquals("public", body(hostResponse.get(5, TimeUnit.SECONDS)));
+    }
+
+    /**
+     * Test that batches of too many addresses, or too large bodies, are
+     * refused.
+     * 
+     * @throws Throwable
+     *             if the service fails. This will not happen.
+     */
+    @Test
+    public void testGetRolesBatchTooLarge() throws Throwable {
+        final IPRoleMapperService service = new IPRoleMapperService();
+        final StringBuilder addresses = new StringBuilder();
+        for (int addressIdx = 0; addressIdx <= IPRoleMapperService.MAX_BATCH_SIZE; addressIdx++) {
+            addresses.append("10.0.0.1\n");
+        }
+        assertEquals(413, service.getRolesBatch(body(addresses.toString()),
+                null).toCompletableFuture().join().getStatus());
+
+        final byte[] largeBody = new byte[IPRoleMapperService.MAX_BATCH_BYTES + 1];
+        Arrays.fill(largeBody, (byte) 'a');
+        assertEquals(413, service.getRolesBatch(
+                new ByteArrayInputStream(largeBody), null)
+                .toCompletableFuture().join().getStatus());
+    }
+
+    /**
+     * Test that the ranges are the same whether they are built on the thread
+     * of the caller or by the request executor.
+     * 
+     * @throws Throwable
+     *             if the service fails. This will not happen.
+     */
+    @Test
+    public void testGetRanges() throws Throwable {
+        final IPRoleMapperService service = new IPRoleMapperService();
+        final String expectedRanges = "10.0.0.0-10.0.0.255\n10.0.1.1";
+        assertEquals(expectedRanges, service.getRanges(
+                Arrays.asList("public", "staff")).toCompletableFuture()
+                .join());
+
+        IPRoleMapperService.setRequestExecutor(Executors
+                .newSingleThreadExecutor());
+        assertEquals(expectedRanges, service.getRanges(
+                Arrays.asList("public", "staff")).toCompletableFuture().get(5,
+                TimeUnit.SECONDS));
+    }
+
+    private static InputStream body(String requestBody) {
+        return new ByteArrayInputStream(requestBody
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String body(Response response) {
+        return new String((byte[]) response.getEntity(),
+                StandardCharsets.UTF_8);
+    }
+}